@@ -72,14 +72,120 @@ public class Bitmap implements Iterable<Integer> {
         return new Bitmap(this.bmp.and(otherBitmap.bmp));
     }
 
+    public Bitmap andNot(Bitmap otherBitmap) {
+        return new Bitmap(this.bmp.andNot(otherBitmap.bmp));
+    }
+
     public boolean intersects(Bitmap otherBitmap) {
         return this.bmp.intersects(otherBitmap.bmp);
     }
 
+    /**
+     * Determines whether the specified bit is set.
+     */
+    public boolean get(int bit) {
+        return bmp.get(bit);
+    }
+
+    /**
+     * @return the number of bits that are set in this bitmap.
+     */
+    public int cardinality() {
+        return bmp.cardinality();
+    }
+
+    public boolean isEmpty() {
+        return bmp.cardinality() == 0;
+    }
+
     public int[] toArray() {
         return this.bmp.toArray();
     }
 
+    /**
+     * Creates a bitmap with the first <code>count</code> bits set.  The full
+     * words are stored as a single run, so the result stays small regardless
+     * of the number of bits.
+     */
+    public static Bitmap firstBits(int count) {
+        EWAHCompressedBitmap bmp = new EWAHCompressedBitmap();
+        int words = count / 64;
+        if (words > 0) {
+            bmp.addStreamOfEmptyWords(true, words);
+        }
+        for (int i = words * 64; i < count; ++i) {
+            bmp.set(i);
+        }
+        return new Bitmap(bmp);
+    }
+
+    /**
+     * Builds a bitmap from runs of set bits without materializing the
+     * uncompressed words: each word is appended to the compressed bitmap once
+     * it is complete, and gaps or fully set stretches are stored as runs.
+     * Runs must be added in increasing order, and a builder can only be used
+     * once.
+     */
+    public static class Builder {
+
+        private EWAHCompressedBitmap bmp = new EWAHCompressedBitmap();
+
+        /* The word currently being filled, and its index in the bitmap */
+        private long word;
+        private int wordIndex;
+
+        /**
+         * Sets the bits from <code>from</code> (inclusive) to
+         * <code>to</code> (exclusive).
+         */
+        public void set(int from, int to) {
+            if (from >= to) {
+                return;
+            }
+            if (from < wordIndex * 64) {
+                throw new IllegalArgumentException(
+                        "Bits must be set in increasing order");
+            }
+
+            int first = from >>> 6;
+            if (first > wordIndex) {
+                bmp.addWord(word);
+                skip(first - wordIndex - 1, false);
+                word = 0;
+                wordIndex = first;
+            }
+
+            long head = -1L << (from & 63);
+            long tail = -1L >>> (63 - ((to - 1) & 63));
+            int last = (to - 1) >>> 6;
+            if (first == last) {
+                word |= head & tail;
+                return;
+            }
+            bmp.addWord(word | head);
+            skip(last - first - 1, true);
+            word = tail;
+            wordIndex = last;
+        }
+
+        private void skip(int words, boolean value) {
+            if (words > 0) {
+                bmp.addStreamOfEmptyWords(value, words);
+            }
+        }
+
+        /**
+         * Completes the bitmap, padding it with unset bits so that it spans
+         * at least <code>size</code> bits.
+         */
+        public Bitmap build(int size) {
+            int words = (size + 63) / 64;
+            bmp.addWord(word);
+            skip(words - wordIndex - 1, false);
+            return new Bitmap(bmp);
+        }
+    }
+
     /**
      * Given an array of raw bytes, convert the bytes into a compressed bitmap
      * representation with 2D characteristics.  This method provides
@@ -219,6 +325,11 @@ public class Bitmap implements Iterable<Integer> {
         return this.bmp.equals(b.bmp);
     }
 
+    @Override
+    public String toString() {
+        return bmp.toString();
+    }
+
     @Override
     public Iterator<Integer> iterator() {
         return bmp.iterator();
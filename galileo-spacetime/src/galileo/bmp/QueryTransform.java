@@ -56,91 +56,70 @@ public class QueryTransform {
 
 		/* Convert lat, lon coordinates into x, y points on the grid */
 		List<Coordinates> poly = query.getPolygon();
-		Polygon p = new Polygon();
-		for (Coordinates coords : poly) {
-			Point<Integer> point = grid.coordinatesToXY(coords);
-			p.addPoint(point.X(), point.Y());
+		int[] xs = new int[poly.size()];
+		int[] ys = new int[poly.size()];
+		for (int i = 0; i < xs.length; ++i) {
+			Point<Integer> point = grid.coordinatesToXY(poly.get(i));
+			xs[i] = point.X();
+			ys[i] = point.Y();
 		}
+		return fillPolygon(xs, ys, grid.getWidth(), grid.getHeight());
+	}
 
-		Area polygonArea = new Area(p);
-		Area gridArea = new Area(new Rectangle(0, 0, grid.getWidth(), grid.getHeight()));
-		/*
-		 * compute the intersection region and use that region as the polygon to
-		 * build the query bitmap
-		 */
-		
-		/* Puro grid e polygon ta kotota area cover koreche */
-		polygonArea.intersect(gridArea);
-		
-		/*if(polygonArea.isEmpty()) {
-			logger.info("RIKI: MY CHANGE, QUERYBITMAP SET TO NULL");
-			return null;
-		}*/
-
-		/*
-		 * Determine the minimum bounding rectangle (MBR) of the polygon.
-		 * Rectangle boundingBox = p.getBounds();
-		 */
-		/*
-		 * Ignoring the orignial polygon and treating the geometry outline of
-		 * the intersecting region between the original polygon and the grid as
-		 * the new polygon
-		 */
-		Rectangle boundingBox = polygonArea.getBounds();
-		int x = (int) boundingBox.getX();
-		int y = (int) boundingBox.getY();
-		int w = (int) boundingBox.getWidth();
-		int h = (int) boundingBox.getHeight();
-
-		/*
-		 * if bounding box starts with negative x, we will map it on the grid
-		 * starting at 0, so shift is not needed.
-		 * 
-		 * Removing the upper 2 5bit things
-		 */
-		int shift = (x > 0) ? x % 64 : 0;
-		w = w + shift;
-		p = new Polygon();
-		for (Coordinates coords : poly) {
-			Point<Integer> point = grid.coordinatesToXY(coords);
-			p.addPoint(point.X() + shift, point.Y());
+	/**
+	 * Fills a polygon onto a width x height bitmap one scanline at a time,
+	 * clipping anything that falls outside of it. A cell is set if the point a
+	 * quarter of the way into it lies inside the polygon under the even-odd
+	 * rule. This is what {@link Graphics2D#fillPolygon(Polygon)} draws: with
+	 * the default stroke control, it moves integer vertices by a quarter of a
+	 * pixel and then samples the center of each pixel. Sample points exactly
+	 * on an edge are filled on the left side of a span only; AWT rounds those
+	 * either way. Spans are written straight into the compressed bitmap, so
+	 * the cost depends on the number of rows and edges rather than on the
+	 * area covered.
+	 */
+	public static Bitmap fillPolygon(int[] xs, int[] ys, int width, int height) {
+		Bitmap.Builder bitmap = new Bitmap.Builder();
+		int points = xs.length;
+		if (points > 0) {
+			long top = ys[0];
+			long bottom = ys[0];
+			for (int i = 1; i < points; ++i) {
+				top = Math.min(top, ys[i]);
+				bottom = Math.max(bottom, ys[i]);
+			}
+
+			/* Rows sampled (at row + 0.25) between the top and bottom */
+			int firstRow = (int) Math.max(0, top);
+			int lastRow = (int) Math.min(height - 1, bottom - 1);
+			double[] crossings = new double[points];
+			for (int row = firstRow; row <= lastRow; ++row) {
+				int count = 0;
+				for (int i = 0; i < points; ++i) {
+					int j = (i + 1 == points) ? 0 : i + 1;
+					long y1 = ys[i];
+					long y2 = ys[j];
+					/* Vertices are on whole rows, so an edge never ends on a sample */
+					if ((y1 <= row) == (y2 <= row))
+						continue;
+					double t = (4.0 * (row - y1) + 1) * ((long) xs[j] - xs[i]);
+					crossings[count++] = xs[i] + t / (4.0 * (y2 - y1));
+				}
+				Arrays.sort(crossings, 0, count);
+
+				long offset = (long) row * width;
+				for (int i = 0; i + 1 < count; i += 2) {
+					/* Cells sampled (at x + 0.25) in [left, right) */
+					double left = Math.max(0, Math.ceil(crossings[i] - 0.25));
+					double right = Math.min(width, Math.ceil(crossings[i + 1] - 0.25));
+					if (left < right)
+						bitmap.set((int) (offset + left), (int) (offset + right));
+				}
+			}
 		}
-
-		/*
-		 * Calculate shift factors. This method outputs Bitmaps that are
-		 * word-aligned (64 bit boundaries). If the extra width or height added
-		 * overflows, then the shift factors are adjusted accordingly.
-		 */
-		int wshift = (64 - (w % 64)) % 64;
-		int hshift = (64 - (h % 64)) % 64;
-
-		w = w + wshift;
-		h = h + hshift;
-
-		/*if (logger.isLoggable(Level.INFO)) {
-			logger.log(Level.INFO, "Converting query polygon to " + "GeoavailabilityGrid bitmap. {0}x{1} at ({2}, {3});"
-					+ " shifts: +({4}, {5})", new Object[] { w, h, x, y, wshift, hshift });
-			logger.log(Level.INFO, "Polygon shifted by {0} along x axis on the new plane", shift);
-		}*/
-
-		BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_INDEXED);
-		Graphics2D g = img.createGraphics();
-		/* Apply these x, y transformations to the resulting image */
-		AffineTransform transform = new AffineTransform();
-		transform.translate(-x, -y);
-		g.setTransform(transform);
-
-		g.fillPolygon(p);
-		g.dispose();
-
-		/* Convert the bytes into a Bitmap representation */
-		/* Get the raw image data, in bytes */
-		DataBufferByte buffer = ((DataBufferByte) img.getData().getDataBuffer());
-		byte[] data = buffer.getData();
-		Bitmap queryBitmap = Bitmap.fromBytes(data, x, y, w, h, grid.getWidth(), grid.getHeight());
-		return queryBitmap;
+		return bitmap.build(width * height);
 	}
-	
+
 	public static Bitmap queryToGridBitmapTest(List<Coordinates> poly, GeoavailabilityGrid grid, Graphics2D gr) {
 
 		/* Convert lat, lon coordinates into x, y points on the grid */
@@ -0,0 +1,144 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.comm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import galileo.serialization.ByteSerializable;
+import galileo.serialization.SerializationInputStream;
+import galileo.serialization.SerializationOutputStream;
+
+/**
+ * Describes the statistics an aggregate query computes: the features to
+ * summarize and, optionally, how records are grouped. Each group reports the
+ * count, sum, mean, variance, minimum and maximum of every feature, computed
+ * where the data is stored rather than on the client.
+ *
+ * @author sapmitra
+ */
+public class Aggregation implements ByteSerializable {
+
+	/** Name of the single group used when records are not grouped. */
+	public static final String ALL = "all";
+
+	public enum Grouping {
+		/** All matching records form a single group */
+		NONE,
+		/** Records are grouped by a prefix of the geohash of their location */
+		GEOHASH,
+		/** Records are grouped by the time bucket their timestamp falls in */
+		TIME
+	}
+
+	private List<String> features;
+	private Grouping grouping = Grouping.NONE;
+	private int geohashPrecision;
+	private TemporalType temporalType;
+
+	public Aggregation(List<String> features) {
+		if (features == null || features.isEmpty())
+			throw new IllegalArgumentException("at least one feature must be aggregated");
+		for (String feature : features)
+			if (feature == null || feature.trim().length() == 0)
+				throw new IllegalArgumentException("invalid feature name to aggregate");
+		this.features = new ArrayList<>(features);
+	}
+
+	public Aggregation(String... features) {
+		this(Arrays.asList(features));
+	}
+
+	/**
+	 * Groups records by the first <code>precision</code> characters of their
+	 * geohash.
+	 */
+	public void groupByGeohash(int precision) {
+		if (precision < 1 || precision > 12)
+			throw new IllegalArgumentException("geohash precision must be between 1 and 12");
+		this.grouping = Grouping.GEOHASH;
+		this.geohashPrecision = precision;
+		this.temporalType = null;
+	}
+
+	/**
+	 * Groups records by the year, month, day or hour their timestamp falls in.
+	 */
+	public void groupByTime(TemporalType temporalType) {
+		if (temporalType == null)
+			throw new IllegalArgumentException("temporal type cannot be null");
+		this.grouping = Grouping.TIME;
+		this.temporalType = temporalType;
+		this.geohashPrecision = 0;
+	}
+
+	public List<String> getFeatures() {
+		return Collections.unmodifiableList(this.features);
+	}
+
+	public Grouping getGrouping() {
+		return this.grouping;
+	}
+
+	public int getGeohashPrecision() {
+		return this.geohashPrecision;
+	}
+
+	public TemporalType getTemporalType() {
+		return this.temporalType;
+	}
+
+	@Override
+	public String toString() {
+		String groups = (grouping == Grouping.GEOHASH) ? "geohash/" + geohashPrecision
+				: (grouping == Grouping.TIME) ? "time/" + temporalType : "none";
+		return "Aggregation" + features + " grouped by " + groups;
+	}
+
+	@Deserialize
+	public Aggregation(SerializationInputStream in) throws IOException {
+		this.features = new ArrayList<>();
+		in.readStringCollection(this.features);
+		this.grouping = Grouping.valueOf(in.readString());
+		if (this.grouping == Grouping.GEOHASH)
+			this.geohashPrecision = in.readInt();
+		else if (this.grouping == Grouping.TIME)
+			this.temporalType = TemporalType.fromType(in.readInt());
+	}
+
+	@Override
+	public void serialize(SerializationOutputStream out) throws IOException {
+		out.writeStringCollection(this.features);
+		out.writeString(this.grouping.name());
+		if (this.grouping == Grouping.GEOHASH)
+			out.writeInt(this.geohashPrecision);
+		else if (this.grouping == Grouping.TIME)
+			out.writeInt(this.temporalType.getType());
+	}
+}
@@ -13,6 +13,8 @@ public class BlockRequest implements Event {
 
 	private String fsName;
 	private List<String> filePaths;
+	/* Compressed blocks may be returned as they are stored */
+	private boolean acceptsCompressed = true;
 
 	public BlockRequest(String fsName, String filePath) {
 		if (fsName == null || fsName.trim().length() == 0 || filePath == null || filePath.trim().length() == 0)
@@ -35,17 +37,33 @@ public class BlockRequest implements Event {
 		return this.filePaths;
 	}
 
+	public boolean acceptsCompressed() {
+		return this.acceptsCompressed;
+	}
+
+	/**
+	 * Blocks are decompressed when a {@link galileo.comm.BlockResponse} is
+	 * deserialized, so compressed blocks are accepted by default. Clearing
+	 * this makes the storage node decompress blocks before sending them.
+	 */
+	public void setAcceptsCompressed(boolean acceptsCompressed) {
+		this.acceptsCompressed = acceptsCompressed;
+	}
+
 	@Deserialize
 	public BlockRequest(SerializationInputStream in) throws IOException, SerializationException {
 		this.fsName = in.readString();
 		this.filePaths = new ArrayList<String>();
 		in.readStringCollection(this.filePaths);
+		/* Older clients cannot decompress blocks and do not say so */
+		this.acceptsCompressed = (in.available() > 0) && in.readBoolean();
 	}
 
 	@Override
 	public void serialize(SerializationOutputStream out) throws IOException {
 		out.writeString(fsName);
 		out.writeStringCollection(filePaths);
+		out.writeBoolean(acceptsCompressed);
 	}
 
 }
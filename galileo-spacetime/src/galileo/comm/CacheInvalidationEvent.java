@@ -0,0 +1,120 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.comm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import galileo.event.Event;
+import galileo.serialization.SerializationException;
+import galileo.serialization.SerializationInputStream;
+import galileo.serialization.SerializationOutputStream;
+
+/**
+ * Announces the blocks a storage node has written to since its last
+ * announcement, so that every node can drop the cached query results that
+ * covered them. Each block is identified by its time string, at the temporal
+ * granularity of the filesystem, and by its geohash at the precision of the
+ * filesystem.
+ *
+ * @author sapmitra
+ */
+public class CacheInvalidationEvent implements Event {
+
+	private String fsName;
+	private List<String> times = new ArrayList<>();
+	private List<String> geohashes = new ArrayList<>();
+
+	/* Blocks already listed, so that repeated writes are announced once */
+	private Set<String> listed = new HashSet<>();
+
+	public CacheInvalidationEvent(String fsName) {
+		if (fsName == null || fsName.trim().length() == 0)
+			throw new IllegalArgumentException("invalid filesystem name");
+		this.fsName = fsName;
+	}
+
+	/**
+	 * @param time
+	 *            time string of the block in the form yyyy-mm-dd-hh, or null
+	 *            if it is not known.
+	 * @param geohash
+	 *            geohash of the block, or null if it is not known.
+	 */
+	public void addBlock(String time, String geohash) {
+		if (this.listed.add(time + "/" + geohash)) {
+			this.times.add(time);
+			this.geohashes.add(geohash);
+		}
+	}
+
+	public String getFilesystemName() {
+		return this.fsName;
+	}
+
+	public int size() {
+		return this.times.size();
+	}
+
+	public List<String> getTimes() {
+		return Collections.unmodifiableList(this.times);
+	}
+
+	public List<String> getGeohashes() {
+		return Collections.unmodifiableList(this.geohashes);
+	}
+
+	@Deserialize
+	public CacheInvalidationEvent(SerializationInputStream in) throws IOException, SerializationException {
+		this.fsName = in.readString();
+		int count = in.readInt();
+		for (int i = 0; i < count; ++i) {
+			String time = in.readBoolean() ? in.readString() : null;
+			String geohash = in.readBoolean() ? in.readString() : null;
+			addBlock(time, geohash);
+		}
+	}
+
+	@Override
+	public void serialize(SerializationOutputStream out) throws IOException {
+		out.writeString(fsName);
+		out.writeInt(times.size());
+		for (int i = 0; i < times.size(); ++i) {
+			String time = times.get(i);
+			out.writeBoolean(time != null);
+			if (time != null)
+				out.writeString(time);
+			String geohash = geohashes.get(i);
+			out.writeBoolean(geohash != null);
+			if (geohash != null)
+				out.writeString(geohash);
+		}
+	}
+}
@@ -0,0 +1,87 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.comm;
+
+import java.io.IOException;
+
+import galileo.event.Event;
+import galileo.serialization.SerializationException;
+import galileo.serialization.SerializationInputStream;
+import galileo.serialization.SerializationOutputStream;
+
+/**
+ * Asks a storage node for the next batch of records of a query whose results
+ * are streamed through a cursor. The cursor token is the one that came with
+ * the previous batch.
+ *
+ * @author sapmitra
+ */
+public class CursorRequest implements Event {
+
+	/** Number of records a batch holds unless asked otherwise. */
+	public static final int DEFAULT_BATCH_SIZE = 10000;
+
+	private String cursor;
+	private int maxRecords;
+
+	/**
+	 * @param maxRecords
+	 *            largest number of records to return; zero closes the cursor
+	 *            without returning any.
+	 */
+	public CursorRequest(String cursor, int maxRecords) {
+		if (cursor == null || cursor.trim().length() == 0)
+			throw new IllegalArgumentException("A cursor token is needed to retrieve results");
+		if (maxRecords < 0)
+			throw new IllegalArgumentException("The batch size cannot be negative");
+		this.cursor = cursor;
+		this.maxRecords = maxRecords;
+	}
+
+	public String getCursor() {
+		return this.cursor;
+	}
+
+	public int getMaxRecords() {
+		return this.maxRecords;
+	}
+
+	public boolean isClose() {
+		return this.maxRecords == 0;
+	}
+
+	@Deserialize
+	public CursorRequest(SerializationInputStream in) throws IOException, SerializationException {
+		this.cursor = in.readString();
+		this.maxRecords = in.readInt();
+	}
+
+	@Override
+	public void serialize(SerializationOutputStream out) throws IOException {
+		out.writeString(cursor);
+		out.writeInt(maxRecords);
+	}
+}
@@ -0,0 +1,112 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.comm;
+
+import java.io.IOException;
+
+import galileo.event.Event;
+import galileo.serialization.SerializationException;
+import galileo.serialization.SerializationInputStream;
+import galileo.serialization.SerializationOutputStream;
+
+/**
+ * A batch of query results, as newline separated records, along with the
+ * token for the next batch. The token is null once the cursor is exhausted.
+ *
+ * @author sapmitra
+ */
+public class CursorResponse implements Event {
+	private byte[] records;
+	private String cursor;
+	private boolean found;
+	private boolean partial;
+
+	public CursorResponse(byte[] records, String cursor) {
+		this.records = records;
+		this.cursor = cursor;
+		this.found = true;
+	}
+
+	/**
+	 * Creates a response for a cursor that expired, was closed or was asked
+	 * for a batch it had already handed out.
+	 */
+	public static CursorResponse notFound() {
+		CursorResponse response = new CursorResponse(new byte[0], null);
+		response.found = false;
+		return response;
+	}
+
+	public byte[] getRecords() {
+		return this.records;
+	}
+
+	/**
+	 * @return the token for the next batch, or null if there are no more
+	 *         records.
+	 */
+	public String getCursor() {
+		return this.cursor;
+	}
+
+	public boolean hasMore() {
+		return this.cursor != null;
+	}
+
+	public boolean isFound() {
+		return this.found;
+	}
+
+	/**
+	 * Marks the results as incomplete: the query ran past its deadline, or
+	 * was cancelled, before every block had been read.
+	 */
+	public void setPartial(boolean partial) {
+		this.partial = partial;
+	}
+
+	public boolean isPartial() {
+		return this.partial;
+	}
+
+	@Deserialize
+	public CursorResponse(SerializationInputStream in) throws IOException, SerializationException {
+		this.records = in.readCompressableField();
+		this.cursor = in.readBoolean() ? in.readString() : null;
+		this.found = in.readBoolean();
+		this.partial = in.readBoolean();
+	}
+
+	@Override
+	public void serialize(SerializationOutputStream out) throws IOException {
+		out.writeCompressableField(records, records.length > 0);
+		out.writeBoolean(cursor != null);
+		if (cursor != null)
+			out.writeString(cursor);
+		out.writeBoolean(found);
+		out.writeBoolean(partial);
+	}
+}
@@ -11,6 +11,7 @@ import galileo.serialization.SerializationException;
 import galileo.serialization.SerializationInputStream;
 import galileo.serialization.SerializationOutputStream;
 import galileo.serialization.ByteSerializable.Deserialize;
+import galileo.util.Deadline;
 
 public class DataIntegrationEvent implements Event{
 
@@ -28,6 +29,8 @@ public class DataIntegrationEvent implements Event{
 	private String id;
 	private boolean fixedBeta;
 	private String model;
+	private long deadline;
+	private boolean explain;
 	
 	
 	public boolean isSpatial() {
@@ -80,6 +83,8 @@ public class DataIntegrationEvent implements Event{
 		fixedBeta = in.readBoolean();
 		if(!fixedBeta)
 			model = in.readString();
+		deadline = Deadline.fromRemaining(in.readLong());
+		explain = in.readBoolean();
 		
 		
 	}
@@ -111,6 +116,8 @@ public class DataIntegrationEvent implements Event{
 		out.writeBoolean(fixedBeta);
 		if(!fixedBeta) 
 			out.writeString(model);
+		out.writeLong(Deadline.toRemaining(deadline));
+		out.writeBoolean(explain);
 		
 		
 	}
@@ -227,4 +234,24 @@ public class DataIntegrationEvent implements Event{
 		this.model = model;
 	}
 
+	/**
+	 * @return the time in milliseconds since the epoch at which this
+	 *         request should stop, or 0 if it has no deadline.
+	 */
+	public long getDeadline() {
+		return deadline;
+	}
+
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	public void setExplain(boolean explain) {
+		this.explain = explain;
+	}
+
+	public boolean isExplain() {
+		return explain;
+	}
+
 }
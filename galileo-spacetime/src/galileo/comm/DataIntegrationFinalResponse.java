@@ -4,6 +4,9 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.json.JSONArray;
+import org.json.JSONObject;
+
 import galileo.event.Event;
 import galileo.serialization.SerializationException;
 import galileo.serialization.SerializationInputStream;
@@ -13,6 +16,7 @@ public class DataIntegrationFinalResponse implements Event{
 
 	String eventId;
 	List<String> resultPaths; 
+	JSONArray plans;
 	
 	public DataIntegrationFinalResponse(String eventId) {
 		// TODO Auto-generated constructor stub
@@ -31,6 +35,9 @@ public class DataIntegrationFinalResponse implements Event{
 		out.writeBoolean(hasResults);
 		if(hasResults)
 			out.writeStringCollection(resultPaths);
+		out.writeBoolean(plans != null);
+		if (plans != null)
+			out.writeString(plans.toString());
 	}
 	@Deserialize
 	public DataIntegrationFinalResponse(SerializationInputStream in) throws IOException, SerializationException {
@@ -39,9 +46,12 @@ public class DataIntegrationFinalResponse implements Event{
 		
 		boolean hasResults = in.readBoolean();
 		
-		if(hasResults)
+		if(hasResults) {
+			resultPaths = new ArrayList<String>();
 			in.readStringCollection(resultPaths);
-		
+		}
+		if (in.readBoolean())
+			plans = new JSONArray(in.readString());
 	}
 	
 	
@@ -65,4 +75,18 @@ public class DataIntegrationFinalResponse implements Event{
 		resultPaths.add(path);
 	}
 
+	/**
+	 * @return the plans of the nodes holding the first filesystem, if the
+	 *         integration was only to be explained.
+	 */
+	public JSONArray getPlans() {
+		return plans;
+	}
+
+	public void addPlan(JSONObject plan) {
+		if (plans == null)
+			plans = new JSONArray();
+		plans.put(plan);
+	}
+
 }
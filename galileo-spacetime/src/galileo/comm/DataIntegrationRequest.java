@@ -10,6 +10,7 @@ import galileo.query.Query;
 import galileo.serialization.SerializationException;
 import galileo.serialization.SerializationInputStream;
 import galileo.serialization.SerializationOutputStream;
+import galileo.util.Deadline;
 
 public class DataIntegrationRequest implements Event{
 	
@@ -29,6 +30,8 @@ public class DataIntegrationRequest implements Event{
 	private double longRelax;
 	private boolean fixedBeta;
 	private String model;
+	private long deadline;
+	private boolean explain;
 	
 	public boolean isSpatial() {
 		return polygon != null;
@@ -80,6 +83,8 @@ public class DataIntegrationRequest implements Event{
 		fixedBeta = in.readBoolean();
 		if(!fixedBeta)
 			model = in.readString();
+		deadline = Deadline.fromRemaining(in.readLong());
+		explain = in.readBoolean();
 		
 		
 		
@@ -111,6 +116,8 @@ public class DataIntegrationRequest implements Event{
 		out.writeBoolean(fixedBeta);
 		if(!fixedBeta) 
 			out.writeString(model);
+		out.writeLong(Deadline.toRemaining(deadline));
+		out.writeBoolean(explain);
 		
 		
 	}
@@ -219,4 +226,41 @@ public class DataIntegrationRequest implements Event{
 		this.model = model;
 	}
 
+	/**
+	 * Limits how long the integration may run. Once the timeout elapses the
+	 * storage nodes stop scanning and reply with what they have gathered.
+	 *
+	 * @param timeout milliseconds from now, or 0 for no limit.
+	 */
+	public void setTimeout(long timeout) {
+		if (timeout < 0)
+			throw new IllegalArgumentException("timeout cannot be negative");
+		this.deadline = (timeout == 0) ? 0 : System.currentTimeMillis() + timeout;
+	}
+
+	/**
+	 * @return the time in milliseconds since the epoch at which this
+	 *         request should stop, or 0 if it has no deadline.
+	 */
+	public long getDeadline() {
+		return deadline;
+	}
+
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Asks the storage nodes to describe how the integration would be carried
+	 * out, without reading any block or contacting the nodes holding the
+	 * second filesystem.
+	 */
+	public void setExplain(boolean explain) {
+		this.explain = explain;
+	}
+
+	public boolean isExplain() {
+		return explain;
+	}
+
 }
@@ -4,6 +4,8 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.json.JSONObject;
+
 import galileo.event.Event;
 import galileo.serialization.SerializationException;
 import galileo.serialization.SerializationInputStream;
@@ -15,6 +17,7 @@ public class DataIntegrationResponse implements Event{
 	private List<String> resultPaths;
 	private String nodeName;
 	private String nodePort;
+	private JSONObject plan;
 	
 	public DataIntegrationResponse(String eventId) {
 		// TODO Auto-generated constructor stub
@@ -43,6 +46,8 @@ public class DataIntegrationResponse implements Event{
 		
 		nodeName = in.readString();
 		nodePort = in.readString();
+		if (in.readBoolean())
+			plan = new JSONObject(in.readString());
 		
 	}
 
@@ -57,6 +62,9 @@ public class DataIntegrationResponse implements Event{
 			out.writeStringCollection(resultPaths);
 		out.writeString(nodeName);
 		out.writeString(nodePort);
+		out.writeBoolean(plan != null);
+		if (plan != null)
+			out.writeString(plan.toString());
 	}
 	public String getNodeName() {
 		return nodeName;
@@ -71,4 +79,16 @@ public class DataIntegrationResponse implements Event{
 		this.nodePort = nodePort;
 	}
 
+	/**
+	 * @return the plan this node drew up for an integration that was only to
+	 *         be explained, or null if the integration was carried out.
+	 */
+	public JSONObject getPlan() {
+		return plan;
+	}
+
+	public void setPlan(JSONObject plan) {
+		this.plan = plan;
+	}
+
 }
@@ -38,6 +38,7 @@ public class FilesystemEvent implements Event{
 	private int temporalUncertaintyPrecision;
 	
 	private boolean isRasterized;
+	private String blockCodec;
 	
 
 	public FilesystemEvent(String name, FilesystemAction action, List<Pair<String, FeatureType>> featureList,
@@ -176,6 +177,9 @@ public class FilesystemEvent implements Event{
 		this.isRasterized = in.readBoolean();
 		this.temporalHint = in.readString();
 		this.spatialPartitioningType = in.readInt();
+		/* Events from older nodes end here */
+		if (in.available() > 0)
+			this.blockCodec = FilesystemRequest.readBlockCodec(in);
 	}
 
 	@Override
@@ -196,6 +200,7 @@ public class FilesystemEvent implements Event{
 		out.writeBoolean(this.isRasterized);
 		out.writeString(this.temporalHint);
 		out.writeInt(spatialPartitioningType);
+		out.writeString((blockCodec == null) ? "" : blockCodec);
 	}
 
 	public boolean isRasterized() {
@@ -243,6 +248,14 @@ public class FilesystemEvent implements Event{
 		this.spatialPartitioningType = spatialPartitioningType;
 	}
 
+	public String getBlockCodec() {
+		return blockCodec;
+	}
+
+	public void setBlockCodec(String blockCodec) {
+		this.blockCodec = blockCodec;
+	}
+
 	public static int getMaxPrecision() {
 		return MAX_PRECISION;
 	}
@@ -76,6 +76,12 @@ public class FilesystemRequest implements Event {
 	
 	
 	private boolean isRasterized;
+
+	/**
+	 * Name of the compression applied to the blocks of the filesystem, such
+	 * as "gzip". Default is null, which leaves blocks uncompressed
+	 */
+	private String blockCodec;
 	
 	
 
@@ -270,7 +276,9 @@ public class FilesystemRequest implements Event {
 		this.temporalUncertaintyPrecision = in.readInt();
 		this.spatialPartitioningType = in.readInt();
 		this.isRasterized = in.readBoolean();
-		
+		/* Requests from older clients end here */
+		if (in.available() > 0)
+			this.blockCodec = readBlockCodec(in);
 	}
 
 	@Override
@@ -291,7 +299,12 @@ public class FilesystemRequest implements Event {
 		out.writeInt(this.temporalUncertaintyPrecision);
 		out.writeInt(this.spatialPartitioningType);
 		out.writeBoolean(this.isRasterized);
+		out.writeString((this.blockCodec == null) ? "" : this.blockCodec);
+	}
 
+	static String readBlockCodec(SerializationInputStream in) throws IOException {
+		String codec = in.readString();
+		return codec.isEmpty() ? null : codec;
 	}
 
 	public int getUncertaintyPrecision() {
@@ -350,4 +363,19 @@ public class FilesystemRequest implements Event {
 		this.spatialPartitioningType = spatialPartitioningType;
 	}
 
+
+	public String getBlockCodec() {
+		return blockCodec;
+	}
+
+
+	/**
+	 * @param blockCodec
+	 *            name of the compression to apply to blocks, or null to leave
+	 *            them uncompressed
+	 */
+	public void setBlockCodec(String blockCodec) {
+		this.blockCodec = blockCodec;
+	}
+
 }
\ No newline at end of file
@@ -38,6 +38,9 @@ public class GalileoEventMap extends EventMap {
         addMapping(201, QueryRequest.class);
         addMapping(202, QueryPreamble.class);
         addMapping(203, QueryResponse.class);
+        addMapping(204, QueryCancelRequest.class);
+        addMapping(205, QueryCancelEvent.class);
+        addMapping(206, CacheInvalidationEvent.class);
         
         addMapping(301, MetadataRequest.class);
         addMapping(302, MetadataResponse.class);
@@ -45,6 +48,8 @@ public class GalileoEventMap extends EventMap {
         
         addMapping(401, BlockRequest.class);
         addMapping(402, BlockResponse.class);
+        addMapping(403, CursorRequest.class);
+        addMapping(404, CursorResponse.class);
         
         addMapping(501, FilesystemRequest.class);
         addMapping(502, FilesystemEvent.class);
@@ -14,6 +14,7 @@ import galileo.serialization.SerializationException;
 import galileo.serialization.SerializationInputStream;
 import galileo.serialization.SerializationOutputStream;
 import galileo.serialization.ByteSerializable.Deserialize;
+import galileo.util.Deadline;
 import galileo.util.SuperCube;
 
 public class NeighborDataEvent implements Event{
@@ -24,6 +25,7 @@ public class NeighborDataEvent implements Event{
 	private List<Coordinates> superPolygon;
 	private String queryTime;
 	private Query featureQuery;
+	private long deadline;
 	
 	public NeighborDataEvent(List<SuperCube> supercubes, String reqFs, String srcFs, List<Coordinates> superPolygon, String queryTime, Query featureQuery) {
 		
@@ -65,6 +67,7 @@ public class NeighborDataEvent implements Event{
 		out.writeBoolean(featureQuery != null);
 		if (featureQuery != null)
 			out.writeSerializable(this.featureQuery);
+		out.writeLong(Deadline.toRemaining(deadline));
 		
 	}
 	
@@ -92,6 +95,7 @@ public class NeighborDataEvent implements Event{
 		boolean hasFeatureQuery = in.readBoolean();
 		if (hasFeatureQuery)
 			this.featureQuery = new Query(in);
+		deadline = Deadline.fromRemaining(in.readLong());
 		
 	}
 
@@ -155,4 +159,16 @@ public class NeighborDataEvent implements Event{
 		this.featureQuery = featureQuery;
 	}
 
+	/**
+	 * @return the time in milliseconds since the epoch at which this
+	 *         request should stop, or 0 if it has no deadline.
+	 */
+	public long getDeadline() {
+		return deadline;
+	}
+
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
 }
@@ -39,6 +39,7 @@ import galileo.query.Query;
 import galileo.serialization.SerializationException;
 import galileo.serialization.SerializationInputStream;
 import galileo.serialization.SerializationOutputStream;
+import galileo.util.Deadline;
 
 /**
  * Contains an internal query between StorageNodes.
@@ -53,6 +54,9 @@ public class QueryEvent implements Event {
 	private List<Coordinates> polygon;
 	private String time;
 	private boolean dryRun;
+	private boolean explain;
+	private Aggregation aggregation;
+	private long deadline;
 
 	private void validateId(String id) {
 		if (id == null || id.trim().length() == 0 || !id.matches("[A-Za-z0-9]+"))
@@ -192,6 +196,46 @@ public class QueryEvent implements Event {
 		this.dryRun = false;
 	}
 
+	public void enableExplain() {
+		this.explain = true;
+	}
+
+	public void disableExplain() {
+		this.explain = false;
+	}
+
+	public boolean isExplain() {
+		return this.explain;
+	}
+
+	/**
+	 * Turns this into an aggregate query: instead of the matching records,
+	 * the statistics described by the aggregation are returned.
+	 */
+	public void setAggregation(Aggregation aggregation) {
+		this.aggregation = aggregation;
+	}
+
+	public Aggregation getAggregation() {
+		return this.aggregation;
+	}
+
+	public boolean isAggregate() {
+		return this.aggregation != null;
+	}
+
+	/**
+	 * @param deadline time in milliseconds since the epoch at which the query
+	 *            should stop, or 0 if it has no deadline.
+	 */
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	public long getDeadline() {
+		return this.deadline;
+	}
+
 	@Deserialize
 	public QueryEvent(SerializationInputStream in) throws IOException, SerializationException {
 		id = in.readString();
@@ -212,6 +256,11 @@ public class QueryEvent implements Event {
 		if (hasMetadataQuery)
 			this.metadataQuery = new Query(in);
 		dryRun = in.readBoolean();
+		boolean isAggregate = in.readBoolean();
+		if (isAggregate)
+			this.aggregation = new Aggregation(in);
+		this.deadline = Deadline.fromRemaining(in.readLong());
+		this.explain = in.readBoolean();
 	}
 
 	@Override
@@ -231,5 +280,10 @@ public class QueryEvent implements Event {
 		if (hasMetadataQuery())
 			out.writeSerializable(this.metadataQuery);
 		out.writeBoolean(dryRun);
+		out.writeBoolean(isAggregate());
+		if (isAggregate())
+			out.writeSerializable(this.aggregation);
+		out.writeLong(Deadline.toRemaining(deadline));
+		out.writeBoolean(explain);
 	}
 }
@@ -39,6 +39,7 @@ import galileo.query.Query;
 import galileo.serialization.SerializationException;
 import galileo.serialization.SerializationInputStream;
 import galileo.serialization.SerializationOutputStream;
+import galileo.util.Deadline;
 
 /**
  * Encapsulates query information submitted by clients to be processed by
@@ -54,6 +55,10 @@ public class QueryRequest implements Event {
 	private List<Coordinates> polygon;
 	private String time;
 	private boolean dryRun;
+	private boolean explain;
+	private Aggregation aggregation;
+	private String queryId;
+	private long deadline;
 
 	private void validate(String fsName) {
 		if (fsName == null || fsName.trim().length() == 0 || !fsName.matches("[a-z0-9-]{5,50}"))
@@ -180,6 +185,74 @@ public class QueryRequest implements Event {
 		this.dryRun = false;
 	}
 
+	/**
+	 * Asks each storage node to describe the work the query would do instead
+	 * of doing it. See {@link galileo.fs.GeospatialFileSystem#explain}.
+	 */
+	public void enableExplain() {
+		this.explain = true;
+	}
+
+	public void disableExplain() {
+		this.explain = false;
+	}
+
+	public boolean isExplain() {
+		return this.explain;
+	}
+
+	/**
+	 * Turns this into an aggregate query: instead of the matching records,
+	 * the statistics described by the aggregation are returned.
+	 */
+	public void setAggregation(Aggregation aggregation) {
+		this.aggregation = aggregation;
+	}
+
+	public Aggregation getAggregation() {
+		return this.aggregation;
+	}
+
+	public boolean isAggregate() {
+		return this.aggregation != null;
+	}
+
+	/**
+	 * Names the query so that it can be cancelled with a
+	 * {@link QueryCancelRequest} while it runs. If no id is given, the
+	 * storage node that receives the request assigns one.
+	 */
+	public void setQueryId(String queryId) {
+		if (queryId != null && !queryId.matches("[A-Za-z0-9]+"))
+			throw new IllegalArgumentException("query id must be alphanumeric");
+		this.queryId = queryId;
+	}
+
+	public String getQueryId() {
+		return this.queryId;
+	}
+
+	/**
+	 * Limits how long the query may run. Once the timeout elapses the storage
+	 * nodes stop scanning and the results gathered so far are returned,
+	 * marked as partial.
+	 *
+	 * @param timeout milliseconds from now, or 0 for no limit.
+	 */
+	public void setTimeout(long timeout) {
+		if (timeout < 0)
+			throw new IllegalArgumentException("timeout cannot be negative");
+		this.deadline = (timeout == 0) ? 0 : System.currentTimeMillis() + timeout;
+	}
+
+	/**
+	 * @return the time in milliseconds since the epoch at which the query
+	 *         should stop, or 0 if it has no deadline.
+	 */
+	public long getDeadline() {
+		return this.deadline;
+	}
+
 	@Deserialize
 	public QueryRequest(SerializationInputStream in) throws IOException, SerializationException {
 		fsName = in.readString();
@@ -199,6 +272,13 @@ public class QueryRequest implements Event {
 		if (hasMetadataQuery)
 			this.metadataQuery = new Query(in);
 		dryRun = in.readBoolean();
+		boolean isAggregate = in.readBoolean();
+		if (isAggregate)
+			this.aggregation = new Aggregation(in);
+		if (in.readBoolean())
+			this.queryId = in.readString();
+		this.deadline = Deadline.fromRemaining(in.readLong());
+		this.explain = in.readBoolean();
 	}
 
 	@Override
@@ -217,5 +297,13 @@ public class QueryRequest implements Event {
 		if (hasMetadataQuery())
 			out.writeSerializable(this.metadataQuery);
 		out.writeBoolean(dryRun);
+		out.writeBoolean(isAggregate());
+		if (isAggregate())
+			out.writeSerializable(this.aggregation);
+		out.writeBoolean(queryId != null);
+		if (queryId != null)
+			out.writeString(queryId);
+		out.writeLong(Deadline.toRemaining(deadline));
+		out.writeBoolean(explain);
 	}
 }
@@ -26,8 +26,10 @@ software, even if advised of the possibility of such damage.
 package galileo.comm;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 
 import org.json.JSONArray;
@@ -48,6 +50,11 @@ public class QueryResponse implements Event {
 	private JSONObject jsonResults;
 	private long elapsedTime;
 	private Iterator<Pair<NetworkDestination, String>> blockIterator;
+	/* Batches of records that came with the response, and cursors for the rest */
+	private LinkedList<String> batches = new LinkedList<>();
+	private LinkedList<Pair<NetworkDestination, String>> cursors = new LinkedList<>();
+	private int batchSize = CursorRequest.DEFAULT_BATCH_SIZE;
+	private boolean partial;
 	private String fsName;
 	private Connector connector;
 
@@ -64,6 +71,10 @@ public class QueryResponse implements Event {
 							hostResult.getInt("hostPort"));
 					for (int j = 0; j < blocks.length(); j++)
 						blockDestinations.add(new Pair<NetworkDestination, String>(host, blocks.getString(j)));
+					if (hostResult.has("records"))
+						this.batches.add(hostResult.getString("records"));
+					if (hostResult.has("cursor"))
+						this.cursors.add(new Pair<NetworkDestination, String>(host, hostResult.getString("cursor")));
 				}
 			}
 			if (this.jsonResults.has("filesystem"))
@@ -106,6 +117,15 @@ public class QueryResponse implements Event {
 		return this.header;
 	}
 	
+	/**
+	 * @return true if the results are incomplete because the query ran past
+	 *         its deadline, was cancelled, or some storage nodes did not reply
+	 *         in time.
+	 */
+	public boolean isPartial() {
+		return this.partial || (this.jsonResults != null && this.jsonResults.optBoolean("partial"));
+	}
+
 	public int getBlockCount(){
 		if(this.jsonResults.has("totalNumPaths")){
 			return this.jsonResults.getInt("totalNumPaths");
@@ -113,9 +133,19 @@ public class QueryResponse implements Event {
 		return 0;
 	}
 
+	/**
+	 * Sets the largest number of records in each block of a filtered result
+	 * that is fetched from here on.
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize <= 0)
+			throw new IllegalArgumentException("The batch size must be positive");
+		this.batchSize = batchSize;
+	}
+
 	public boolean hasBlocks() {
 		if (this.blockIterator != null) {
-			boolean hasNext = this.blockIterator.hasNext();
+			boolean hasNext = this.blockIterator.hasNext() || !this.batches.isEmpty() || !this.cursors.isEmpty();
 			if (!hasNext && this.connector != null){
 				this.connector.close();
 			}
@@ -124,10 +154,17 @@ public class QueryResponse implements Event {
 		return false;
 	}
 	
+	/**
+	 * Retrieves the next block of results. Stored blocks are returned whole,
+	 * while the records matching a filtered query are returned in blocks of at
+	 * most the batch size, fetched from the storage nodes one at a time.
+	 */
 	public Block getNextBlock() throws IOException, InterruptedException {
 		if (hasBlocks()) {
 			if (this.connector == null)
 				this.connector = new Connector();
+			if (!this.blockIterator.hasNext())
+				return nextBatch();
 			Pair<NetworkDestination, String> pair = this.blockIterator.next();
 			BlockResponse response = (BlockResponse) connector.sendMessage(pair.a,
 					new BlockRequest(this.fsName, pair.b));
@@ -137,8 +174,54 @@ public class QueryResponse implements Event {
 		}
 		return null;
 	}
+
+	private Block nextBatch() throws IOException, InterruptedException {
+		while (this.batches.isEmpty() && !this.cursors.isEmpty()) {
+			Pair<NetworkDestination, String> cursor = this.cursors.removeFirst();
+			CursorResponse response = (CursorResponse) connector.sendMessage(cursor.a,
+					new CursorRequest(cursor.b, this.batchSize));
+			if (!response.isFound())
+				throw new IOException("Results of the query are no longer available on " + cursor.a);
+			if (response.isPartial())
+				this.partial = true;
+			if (response.hasMore())
+				this.cursors.addFirst(new Pair<NetworkDestination, String>(cursor.a, response.getCursor()));
+			if (response.getRecords().length > 0)
+				this.batches.add(new String(response.getRecords(), StandardCharsets.UTF_8));
+		}
+		if (this.batches.isEmpty())
+			return null;
+		return new Block(this.fsName, this.batches.removeFirst().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Releases the results that have not been retrieved yet, so that the
+	 * storage nodes do not have to wait for their cursors to expire.
+	 */
+	public void close() throws IOException, InterruptedException {
+		if (!this.cursors.isEmpty() && this.connector == null)
+			this.connector = new Connector();
+		for (Pair<NetworkDestination, String> cursor : this.cursors)
+			connector.sendMessage(cursor.a, new CursorRequest(cursor.b, 0));
+		this.cursors.clear();
+		this.batches.clear();
+		if (this.blockIterator != null)
+			while (this.blockIterator.hasNext())
+				this.blockIterator.next();
+		if (this.connector != null)
+			this.connector.close();
+	}
 	
 	public List<Block> getNextBlocks(int blockCount) throws IOException, InterruptedException {
+		if (hasBlocks() && !this.blockIterator.hasNext()) {
+			List<Block> blocks = new ArrayList<>();
+			while (blocks.size() < blockCount && hasBlocks()) {
+				Block block = getNextBlock();
+				if (block != null)
+					blocks.add(block);
+			}
+			return blocks;
+		}
 		if (hasBlocks()) {
 			if (this.connector == null)
 				this.connector = new Connector();
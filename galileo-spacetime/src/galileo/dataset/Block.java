@@ -43,6 +43,8 @@ public class Block implements ByteSerializable {
 	private String filesystem;
 	private Metadata metadata;
 	private byte[] data;
+	/* data holds GZIP-compressed bytes that are shipped as they are */
+	private boolean compressed;
 
 	public Block(String filesystem, byte[] data) {
 		this.filesystem = filesystem;
@@ -56,6 +58,15 @@ public class Block implements ByteSerializable {
 		this.data = data;
 	}
 
+	/**
+	 * Creates a block whose data may already be GZIP-compressed. Compressed
+	 * data is sent over the wire as it is and decompressed by the receiver.
+	 */
+	public Block(String filesystem, Metadata metadata, byte[] data, boolean compressed) {
+		this(filesystem, metadata, data);
+		this.compressed = compressed;
+	}
+
 	public String getFilesystem() {
 		return this.filesystem;
 	}
@@ -68,13 +79,17 @@ public class Block implements ByteSerializable {
 		return data;
 	}
 
+	public boolean isCompressed() {
+		return compressed;
+	}
+
 	@Deserialize
 	public Block(SerializationInputStream in) throws IOException, SerializationException {
 		this.filesystem = in.readString();
 		if(in.readBoolean())
         	this.metadata = new Metadata(in);
         if(in.readBoolean())
-        	this.data = in.readField();
+        	this.data = in.readCompressableField();
 	}
 
 	@Override
@@ -84,7 +99,10 @@ public class Block implements ByteSerializable {
 		if (this.metadata != null)
 			out.writeSerializable(metadata);
 		out.writeBoolean(this.data != null);
-		if(this.data != null)
+		if(this.data != null) {
+			/* Same layout as writeCompressableField, without compressing twice */
+			out.writeBoolean(this.compressed);
 			out.writeField(this.data);
+		}
 	}
 }
@@ -0,0 +1,103 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.dataset.feature;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Shares {@link Feature} instances that carry the same name and value.  The
+ * paths of a file system repeat a small set of values (time ranges, geohashes,
+ * ...) millions of times; interning them lets every path reference a single
+ * copy of each.  Feature names are already interned by Feature itself, and
+ * Features are immutable, so the instances can be shared freely.
+ * <p>
+ * Only low-cardinality Features benefit from this.  Once a Feature has more
+ * than a set number of distinct values, new values are no longer retained.
+ *
+ * @author sapmitra
+ */
+public class FeatureInterner {
+
+    public static final int DEFAULT_MAX_VALUES = 1 << 16;
+
+    private final int maxValues;
+
+    /** Interned values, by Feature name. */
+    private final ConcurrentMap<String, ConcurrentMap<Feature, Feature>> tables
+        = new ConcurrentHashMap<>();
+
+    public FeatureInterner() {
+        this(Integer.getInteger(
+                    "galileo.dataset.feature.FeatureInterner.maxValues",
+                    DEFAULT_MAX_VALUES));
+    }
+
+    /**
+     * @param maxValues the number of distinct values retained per Feature
+     * name.
+     */
+    public FeatureInterner(int maxValues) {
+        this.maxValues = maxValues;
+    }
+
+    /**
+     * Retrieves the shared instance of a Feature, making the Feature the
+     * shared instance if there is none yet.
+     */
+    public Feature intern(Feature feature) {
+        ConcurrentMap<Feature, Feature> table = tables.get(feature.getName());
+        if (table == null) {
+            ConcurrentMap<Feature, Feature> created = new ConcurrentHashMap<>();
+            table = tables.putIfAbsent(feature.getName(), created);
+            if (table == null) {
+                table = created;
+            }
+        }
+
+        Feature existing = table.get(feature);
+        if (existing == null) {
+            if (table.size() >= maxValues) {
+                return feature;
+            }
+            existing = table.putIfAbsent(feature, feature);
+            if (existing == null) {
+                return feature;
+            }
+        }
+
+        /* FeatureData of different types may still be equal (0 and 0L) */
+        return (existing.getType() == feature.getType()) ? existing : feature;
+    }
+
+    /**
+     * Retrieves the number of distinct values retained for a Feature name.
+     */
+    public int size(String name) {
+        ConcurrentMap<Feature, Feature> table = tables.get(name);
+        return (table == null) ? 0 : table.size();
+    }
+}
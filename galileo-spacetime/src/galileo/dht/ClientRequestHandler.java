@@ -3,12 +3,19 @@ package galileo.dht;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -30,6 +37,7 @@ import galileo.net.MessageListener;
 import galileo.net.NetworkDestination;
 import galileo.net.RequestListener;
 import galileo.serialization.SerializationException;
+import galileo.stat.AggregateStatistics;
 
 /**
  * This class will collect the responses from all the nodes of galileo and then
@@ -40,6 +48,24 @@ import galileo.serialization.SerializationException;
 public class ClientRequestHandler implements MessageListener {
 
 	private static final Logger logger = Logger.getLogger("galileo");
+
+	/*
+	 * How long past a request's deadline responses are still waited for, so
+	 * that nodes which stopped at the deadline can report what they have.
+	 */
+	private static final long DEADLINE_GRACE = Long.getLong("galileo.dht.ClientRequestHandler.deadlineGrace", 2000);
+
+	/* Closes the requests whose deadlines have passed */
+	private static final ScheduledExecutorService deadlineTimer = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "galileo-request-deadline");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
 	private GalileoEventMap eventMap;
 	private BasicEventWrapper eventWrapper;
 	private ClientMessageRouter router;
@@ -51,6 +77,10 @@ public class ClientRequestHandler implements MessageListener {
 	private Event response;
 	private long elapsedTime;
 	private long reqId;
+	private long deadline;
+	private AtomicBoolean closed = new AtomicBoolean();
+	private volatile boolean timedOut;
+	private volatile ScheduledFuture<?> deadlineTask;
 
 	public ClientRequestHandler(Collection<NetworkDestination> nodes, EventContext clientContext,
 			RequestListener listener) throws IOException {
@@ -60,15 +90,37 @@ public class ClientRequestHandler implements MessageListener {
 
 		this.router = new ClientMessageRouter(true);
 		this.router.addListener(this);
-		this.responses = new ArrayList<GalileoMessage>();
+		this.responses = Collections.synchronizedList(new ArrayList<GalileoMessage>());
 		this.eventMap = new GalileoEventMap();
 		this.eventWrapper = new BasicEventWrapper(this.eventMap);
 		this.expectedResponses = new AtomicInteger(this.nodes.size());
 	}
 
+	/**
+	 * Stops waiting for responses shortly after the given time. The request
+	 * is then closed with the responses received so far, and query results
+	 * are marked as partial.
+	 * 
+	 * @param deadline
+	 *            time in milliseconds since the epoch, or 0 to wait for every
+	 *            node.
+	 */
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
 	public void closeRequest() {
+		if (!this.closed.compareAndSet(false, true))
+			return;
+		ScheduledFuture<?> task = this.deadlineTask;
+		if (task != null)
+			task.cancel(false);
 		silentClose(); // closing the router to make sure that no new responses
 						// are added.
+		List<GalileoMessage> responses;
+		synchronized (this.responses) {
+			responses = new ArrayList<>(this.responses);
+		}
 		class LocalFeature implements Comparable<LocalFeature> {
 			String name;
 			String type;
@@ -102,9 +154,10 @@ public class ClientRequestHandler implements MessageListener {
 			}
 		}
 		Map<String, Set<LocalFeature>> resultMap = new HashMap<String, Set<LocalFeature>>();
+		AggregateStatistics aggregates = null;
 		int responseCount = 0;
 
-		for (GalileoMessage gresponse : this.responses) {
+		for (GalileoMessage gresponse : responses) {
 			responseCount++;
 			Event event;
 			try {
@@ -123,6 +176,8 @@ public class ClientRequestHandler implements MessageListener {
 							actualResponse.addResultPath(newPath);
 						}
 					}
+					if (eventResponse.getPlan() != null)
+						actualResponse.addPlan(eventResponse.getPlan());
 					
 					
 				} else if (event instanceof QueryResponse && this.response instanceof QueryResponse) {
@@ -131,6 +186,15 @@ public class ClientRequestHandler implements MessageListener {
 					QueryResponse eventResponse = (QueryResponse) event;
 					JSONObject responseJSON = actualResponse.getJSONResults();
 					JSONObject eventJSON = eventResponse.getJSONResults();
+					/* Statistics computed by each node are merged, not collected */
+					if (eventJSON.has("partialAggregates")) {
+						AggregateStatistics partial = AggregateStatistics
+								.fromPartialJSON((JSONObject) eventJSON.remove("partialAggregates"));
+						if (aggregates == null)
+							aggregates = partial;
+						else
+							aggregates.merge(partial);
+					}
 					if (responseJSON.length() == 0) {
 						for (String name : JSONObject.getNames(eventJSON))
 							responseJSON.put(name, eventJSON.get(name));
@@ -181,6 +245,8 @@ public class ClientRequestHandler implements MessageListener {
 								responseJSON.put("totalBlocksProcessed", responseJSON.getLong("totalBlocksProcessed")
 										+ eventJSON.getLong("totalBlocksProcessed"));
 							}
+							if (eventJSON.optBoolean("partial"))
+								responseJSON.put("partial", true);
 						}
 					}
 				} else if (event instanceof MetadataResponse && this.response instanceof MetadataResponse) {
@@ -204,7 +270,7 @@ public class ClientRequestHandler implements MessageListener {
 								}
 							}
 						}
-						if (this.responses.size() == responseCount) {
+						if (responses.size() == responseCount) {
 							JSONObject jsonResponse = new JSONObject();
 							jsonResponse.put("kind", "galileo#features");
 							JSONArray fsArray = new JSONArray();
@@ -310,6 +376,10 @@ public class ClientRequestHandler implements MessageListener {
 								+ e.getMessage(), e);
 			}
 		}
+		if (aggregates != null && this.response instanceof QueryResponse)
+			((QueryResponse) this.response).getJSONResults().put("aggregates", aggregates.toJSON());
+		if (this.timedOut && this.response instanceof QueryResponse)
+			((QueryResponse) this.response).getJSONResults().put("partial", true);
 		long diff = System.currentTimeMillis() - reqId;
 		logger.info("RIKI: ENTIRE THING FINISHED IN: "+ diff);
 		this.requestListener.onRequestCompleted(this.response, clientContext, this);
@@ -317,22 +387,8 @@ public class ClientRequestHandler implements MessageListener {
 
 	@Override
 	public void onMessage(GalileoMessage message) {
-		Event event;
-		try {
-			event = this.eventWrapper.unwrap(message);
-			DataIntegrationResponse eventResponse = (DataIntegrationResponse) event;
-			//logger.log(Level.INFO, "RIKI: ONE DATA INTEGRATION RESPONSE RECEIVED FROM "+ eventResponse.getNodeName()+" "+eventResponse.getResultPaths());
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (SerializationException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		
-		
-		
-		
+		if (this.closed.get())
+			return;
 		if (null != message)
 			this.responses.add(message);
 		int awaitedResponses = this.expectedResponses.decrementAndGet();
@@ -368,12 +424,37 @@ public class ClientRequestHandler implements MessageListener {
 				//logger.info("Request sent to " + node.toString());
 			}
 			this.elapsedTime = System.currentTimeMillis();
+			if (this.deadline > 0)
+				awaitDeadline();
 		} catch (IOException e) {
 			logger.log(Level.INFO,
 					"Failed to send request to other nodes in the network. Details follow: " + e.getMessage());
 		}
 	}
 
+	/**
+	 * Closes the request once its deadline and grace period have passed,
+	 * unless every node has replied by then.
+	 */
+	private void awaitDeadline() {
+		long wait = deadline + DEADLINE_GRACE - System.currentTimeMillis();
+		this.deadlineTask = deadlineTimer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (expectedResponses.get() > 0 && !closed.get()) {
+					logger.log(Level.WARNING, "Deadline passed while awaiting " + expectedResponses.get()
+							+ " response(s). Closing the request with partial results.");
+					timedOut = true;
+					elapsedTime = System.currentTimeMillis() - elapsedTime;
+					closeRequest();
+				}
+			}
+		}, Math.max(wait, 0), TimeUnit.MILLISECONDS);
+		/* The request may have been closed before the task was recorded */
+		if (closed.get())
+			this.deadlineTask.cancel(false);
+	}
+
 	public void silentClose() {
 		try {
 			this.router.forceShutdown();
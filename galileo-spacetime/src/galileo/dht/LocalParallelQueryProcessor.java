@@ -17,12 +17,10 @@ import galileo.bmp.GeoavailabilityQuery;
 import galileo.dataset.Coordinates;
 import galileo.dataset.Metadata;
 import galileo.dataset.feature.Feature;
-import galileo.dataset.feature.FeatureSet;
 import galileo.dataset.feature.FeatureType;
 import galileo.fs.GeospatialFileSystem;
 import galileo.graph.FeaturePath;
-import galileo.graph.MetadataGraph;
-import galileo.graph.Path;
+import galileo.query.CompiledQuery;
 import galileo.query.Query;
 import galileo.util.Pair;
 import galileo.util.PathFragments;
@@ -109,46 +107,8 @@ public class LocalParallelQueryProcessor implements Runnable{
 				//logger.log(Level.INFO, "RIKI: LocalParallelQueryProcessor PATHS3 "+featurePaths);
 				
 			}
-			if (query != null && this.featurePaths.size() > 0) {
-				//logger.log(Level.INFO, "RIKI: LocalParallelQueryProcessor PATHS4 "+featurePaths);
-				MetadataGraph temporaryGraph = new MetadataGraph();
-				Iterator<String[]> pathIterator = this.featurePaths.iterator();
-				while (pathIterator.hasNext()) {
-					String[] features = pathIterator.next();
-					try {
-						Metadata metadata = new Metadata();
-						FeatureSet featureset = new FeatureSet();
-						for (int i = 0; i < features.length; i++) {
-							Pair<String, FeatureType> pair = gfs.getFeatureList().get(i);
-							if (pair.b == FeatureType.FLOAT)
-								featureset.put(new Feature(pair.a, Float.valueOf(features[i])));
-							if (pair.b == FeatureType.INT)
-								featureset.put(new Feature(pair.a, Integer.valueOf(features[i])));
-							if (pair.b == FeatureType.LONG)
-								featureset.put(new Feature(pair.a, Long.valueOf(features[i])));
-							if (pair.b == FeatureType.DOUBLE)
-								featureset.put(new Feature(pair.a, Double.valueOf(features[i])));
-							if (pair.b == FeatureType.STRING)
-								featureset.put(new Feature(pair.a, features[i]));
-						}
-						metadata.setAttributes(featureset);
-						Path<Feature, String> featurePath = createPath("/nopath", metadata);
-						temporaryGraph.addPath(featurePath);
-					} catch (Exception e) {
-						logger.warning(e.getMessage());
-					}
-					pathIterator.remove();
-				}
-				List<Path<Feature, String>> evaluatedPaths = temporaryGraph.evaluateQuery(query);
-				for (Path<Feature, String> path : evaluatedPaths) {
-					String[] featureValues = new String[path.size()];
-					int index = 0;
-					
-					for (Feature feature : path.getLabels())
-						featureValues[index++] = feature.getString();
-					this.featurePaths.add(featureValues);
-				}
-			}
+			if (query != null && this.featurePaths.size() > 0)
+				this.featurePaths = CompiledQuery.compile(query, gfs.getFeatureList(), false).filter(this.featurePaths);
 			//logger.log(Level.INFO, "RIKI: LocalParallelQueryProcessor PATHS5 "+featurePaths);
 
 		} catch (BitmapException e) {
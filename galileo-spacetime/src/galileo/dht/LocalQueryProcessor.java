@@ -15,6 +15,7 @@ import galileo.dataset.feature.Feature;
 import galileo.event.EventContext;
 import galileo.fs.GeospatialFileSystem;
 import galileo.graph.Path;
+import galileo.util.Deadline;
 import galileo.util.PathFragments;
 
 /* This handles a single path */
@@ -30,6 +31,7 @@ public class LocalQueryProcessor implements Runnable{
 	private GeospatialFileSystem fs1;
 	private Bitmap queryBitmap;
 	private int superCubeId;
+	private Deadline deadline;
 	//private EventContext context;
 	//private String nodeString;
 	
@@ -62,7 +64,7 @@ public class LocalQueryProcessor implements Runnable{
 	}*/
 	
 	public LocalQueryProcessor(GeospatialFileSystem fs1, List<String> blocks, GeoavailabilityQuery gQuery,
-			GeoavailabilityGrid grid, Bitmap queryBitmap, int superCubeId) {
+			GeoavailabilityGrid grid, Bitmap queryBitmap, int superCubeId, Deadline deadline) {
 		
 		this.fs1 = fs1;
 		this.geoQuery = gQuery;
@@ -70,6 +72,7 @@ public class LocalQueryProcessor implements Runnable{
 		this.queryBitmap = queryBitmap;
 		this.blocks = blocks;
 		this.superCubeId = superCubeId;
+		this.deadline = deadline;
 		
 	}
 
@@ -79,7 +82,7 @@ public class LocalQueryProcessor implements Runnable{
 		try {
 			
 			/* This thread is created one for each path */
-			this.resultRecordLists = this.fs1.queryLocal(this.blocks, this.geoQuery, this.grid, this.queryBitmap);
+			this.resultRecordLists = this.fs1.queryLocal(this.blocks, this.geoQuery, this.grid, this.queryBitmap, this.deadline);
 			
 		} catch (IOException | InterruptedException e) {
 			// TODO Auto-generated catch block
@@ -15,6 +15,7 @@ import galileo.dataset.feature.Feature;
 import galileo.event.EventContext;
 import galileo.fs.GeospatialFileSystem;
 import galileo.graph.Path;
+import galileo.util.Deadline;
 import galileo.util.PathFragments;
 
 /* This handles a single path */
@@ -40,9 +41,11 @@ public class NeighborDataQueryProcessor implements Runnable{
 	private PathFragments pathFragments;
 	private int pathIndex;
 	private String pathInfo;
+	private Deadline deadline;
 	
 	public NeighborDataQueryProcessor(GeospatialFileSystem gfs, Path<Feature, String> path, GeoavailabilityQuery gQuery, 
-			GeoavailabilityGrid grid, Bitmap queryBitmap, PathFragments pathFragments, EventContext context, int pathIndex, String nodeString) {
+			GeoavailabilityGrid grid, Bitmap queryBitmap, PathFragments pathFragments, EventContext context, int pathIndex, String nodeString,
+			Deadline deadline) {
 		
 		this.gfs = gfs;
 		this.path = path;
@@ -55,6 +58,7 @@ public class NeighborDataQueryProcessor implements Runnable{
 		this.pathIndex = pathIndex;
 		this.pathInfo = GeospatialFileSystem.getPathInfo(path, 0);
 		this.nodeString = nodeString;
+		this.deadline = deadline;
 		
 		/*for(int i=0; i < 28; i++) {
 			
@@ -68,7 +72,9 @@ public class NeighborDataQueryProcessor implements Runnable{
 		
 		try {
 			/* This thread is created one for each path */
-			this.resultRecordLists = this.gfs.queryFragments(this.blocks, this.geoQuery, this.grid, this.queryBitmap, this.pathFragments);
+			/* Even past the deadline a (blank) response is sent, since the requester counts one per path */
+			this.resultRecordLists = this.gfs.queryFragments(this.blocks, this.geoQuery, this.grid, this.queryBitmap, this.pathFragments,
+					this.deadline);
 			NeighborDataResponse ndr = createNeighborResponse();
 			context.sendReply(ndr);
 			logger.info("RIKI: SENT BACK BEIGHBOR DATA RESPONSE");
@@ -15,7 +15,6 @@ import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -27,7 +26,6 @@ import galileo.bmp.Bitmap;
 import galileo.bmp.BitmapException;
 import galileo.bmp.GeoavailabilityGrid;
 import galileo.bmp.GeoavailabilityQuery;
-import galileo.bmp.QueryTransform;
 import galileo.comm.DataIntegrationResponse;
 import galileo.comm.GalileoEventMap;
 import galileo.comm.MetadataResponse;
@@ -44,7 +42,9 @@ import galileo.net.GalileoMessage;
 import galileo.net.MessageListener;
 import galileo.net.NetworkDestination;
 import galileo.net.RequestListener;
+import galileo.query.QueryPlanCache;
 import galileo.serialization.SerializationException;
+import galileo.util.Deadline;
 import galileo.util.GeoHash;
 import galileo.util.MDC;
 import galileo.util.MyPorter;
@@ -104,8 +104,16 @@ public class NeighborRequestHandler implements MessageListener {
 	private int interpolatingFeature;
 	private MyPorter model;
 	private boolean fixedBeta;
+	private Deadline deadline = Deadline.none();
 	
 
+	/**
+	 * Limits how long the local reads and joins of this request may run.
+	 */
+	public void setDeadline(Deadline deadline) {
+		this.deadline = deadline;
+	}
+
 	public NeighborRequestHandler(List<NeighborDataEvent> internalEvents, List<NeighborDataEvent> individualRequests, Collection<NetworkDestination> destinations, EventContext clientContext,
 			RequestListener listener, List<SuperCube> allCubes, Map<Integer, Integer> superCubeNumNodesMap, 
 			int numCores, GeoavailabilityQuery geoQuery, GeospatialFileSystem fs1, String eventId, String queryResultsDir, 
@@ -575,7 +583,7 @@ public class NeighborRequestHandler implements MessageListener {
 					Bitmap queryBitmap = null;
 					
 					if (geoQuery.getPolygon() != null) {
-						queryBitmap = QueryTransform.queryToGridBitmap(geoQuery, blockGrid);
+						queryBitmap = QueryPlanCache.getInstance().getGridBitmap(geoQuery, blockGrid);
 						
 						/*if(queryBitmap == null) {
 							
@@ -585,15 +593,14 @@ public class NeighborRequestHandler implements MessageListener {
 					
 					
 					// One of these per SuperCube 
-					LocalQueryProcessor qp = new LocalQueryProcessor(fs1, sc.getFs1BlockPath(), geoQuery, blockGrid, queryBitmap, (int)sc.getId());
+					LocalQueryProcessor qp = new LocalQueryProcessor(fs1, sc.getFs1BlockPath(), geoQuery, blockGrid, queryBitmap, (int)sc.getId(), deadline);
 					queryProcessors.add(qp);
 					executor.execute(qp);
 						
 				}
-				executor.shutdown();
-				boolean status = executor.awaitTermination(10, TimeUnit.MINUTES);
+				boolean status = deadline.await(executor);
 				if (!status)
-					logger.log(Level.WARNING, "Executor terminated because of the specified timeout=10minutes");
+					logger.log(Level.WARNING, "Executor terminated at the deadline of the request");
 				
 				for (LocalQueryProcessor qp : queryProcessors) {
 					// INDICATING THIS SUPERCUBE IS READY FOR JOIN
@@ -683,12 +690,11 @@ public class NeighborRequestHandler implements MessageListener {
 									
 									if(cubesLeft == 1) {
 										logger.info("RIKI: ETA HOYCHE");
-										joinExecutors.shutdown();
 										boolean status;
 										try {
-											status = joinExecutors.awaitTermination(10, TimeUnit.MINUTES);
+											status = deadline.await(joinExecutors);
 											if (!status)
-												logger.log(Level.WARNING, "Executor terminated because of the specified timeout=2minutes");
+												logger.log(Level.WARNING, "Executor terminated at the deadline of the request");
 										} catch (InterruptedException e1) {
 											// TODO Auto-generated catch block
 											e1.printStackTrace();
@@ -726,7 +732,7 @@ public class NeighborRequestHandler implements MessageListener {
 		Bitmap queryBitmap = null;
 		
 		if (gq.getPolygon() != null)
-			queryBitmap = QueryTransform.queryToGridBitmap(gq, blockGrid);
+			queryBitmap = QueryPlanCache.getInstance().getGridBitmap(gq, blockGrid);
 		
 		
 	} 
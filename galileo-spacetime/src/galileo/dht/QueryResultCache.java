@@ -0,0 +1,319 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.dht;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import galileo.comm.QueryRequest;
+import galileo.comm.QueryResponse;
+import galileo.dataset.SpatialRange;
+import galileo.util.GeoHash;
+
+/**
+ * Holds the merged responses of recently answered queries on the node that
+ * coordinated them, so that a repeated query is answered without contacting
+ * the rest of the cluster. Aggregate results are cached along with the rest
+ * of the response.
+ * <p>
+ * An entry is dropped as soon as a block is written whose time string and
+ * geohash fall within the time string and polygon of the query; the feature and
+ * metadata queries are not considered, so some entries are dropped that
+ * could have been kept. Writes that happen while a query is running prevent
+ * its response from being cached at all. Compaction drops entries the same
+ * way, since cached responses may list the blocks it replaced. The cache is
+ * bounded both by the number of entries and by the total length of their
+ * responses, and evicts the least recently used entry first.
+ * <p>
+ * Entries also expire a fixed time after they were cached, which bounds how
+ * long a response can be served after an invalidation from another node was
+ * lost.
+ * <p>
+ * Responses that are partial, or whose records are still held by cursors on
+ * the storage nodes, are never cached.
+ *
+ * @author sapmitra
+ */
+public class QueryResultCache {
+
+	public static final int DEFAULT_CAPACITY = 256;
+
+	/** Default bound on the total length, in characters, of cached responses. */
+	public static final long DEFAULT_MAX_SIZE = 32 * 1024 * 1024;
+
+	/** Default time, in milliseconds, for which a response is served. */
+	public static final long DEFAULT_TTL = 60 * 1000;
+
+	/**
+	 * A cached response, or one that will be cached once the query it
+	 * belongs to completes.
+	 */
+	public static class Entry {
+		private final String key;
+		private final String fsName;
+		private final String time;
+		private final SpatialRange bounds;
+		private final boolean dryRun;
+		private String header;
+		private String results;
+		private boolean stale;
+		private long expires;
+
+		private Entry(String key, QueryRequest request) {
+			this.key = key;
+			this.fsName = request.getFilesystemName();
+			this.time = request.getTime();
+			this.bounds = request.isSpatial() ? new SpatialRange(request.getPolygon()) : null;
+			this.dryRun = request.isDryRun();
+		}
+
+		private long size() {
+			return header.length() + results.length();
+		}
+
+		/**
+		 * Determines whether a block written to the given filesystem may
+		 * contain records this query would have returned.
+		 */
+		private boolean covers(String fsName, String time, String geohash) {
+			if (!this.fsName.equals(fsName))
+				return false;
+			if (this.time != null && time != null && !matchesTime(this.time, time))
+				return false;
+			if (this.bounds != null && geohash != null && !intersects(this.bounds, GeoHash.decodeHash(geohash)))
+				return false;
+			return true;
+		}
+	}
+
+	private final int capacity;
+	private final long maxSize;
+	private final long ttl;
+	private final Map<String, Entry> entries;
+	private final Set<Entry> pending = new HashSet<>();
+	private long size;
+	private long hits;
+	private long misses;
+
+	/**
+	 * @param ttl
+	 *            time in milliseconds for which a response is served after it
+	 *            was cached
+	 */
+	public QueryResultCache(int capacity, long maxSize, long ttl) {
+		this.capacity = capacity;
+		this.maxSize = maxSize;
+		this.ttl = ttl;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	}
+
+	/**
+	 * Builds the key under which the response to a request is cached. Two
+	 * requests with the same key return the same results.
+	 */
+	public static String getKey(QueryRequest request) {
+		StringBuilder key = new StringBuilder(request.getFilesystemName());
+		key.append('|').append(request.getTime());
+		key.append('|').append(request.getPolygon());
+		key.append('|').append(request.getFeatureQueryString());
+		key.append('|').append(request.getMetadataQueryString());
+		key.append('|').append(request.getAggregation());
+		key.append('|').append(request.isDryRun());
+		return key.toString();
+	}
+
+	/**
+	 * Retrieves a copy of a cached response, carrying the id of the query it
+	 * now answers.
+	 *
+	 * @return the response, or null if none is cached under the key.
+	 */
+	public synchronized QueryResponse get(String key, String queryId) {
+		Entry entry = lookup(key);
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		JSONObject results = new JSONObject(entry.results);
+		results.put("queryId", queryId);
+		results.put("cached", true);
+		QueryResponse response = new QueryResponse(queryId, new JSONArray(entry.header), results);
+		response.setDryRun(entry.dryRun);
+		return response;
+	}
+
+	/**
+	 * Checks whether a response is cached under the key, without counting a
+	 * hit or a miss.
+	 */
+	public synchronized boolean contains(String key) {
+		return lookup(key) != null;
+	}
+
+	/* Retrieves an entry, dropping it if it has expired */
+	private Entry lookup(String key) {
+		Entry entry = entries.get(key);
+		if (entry != null && System.currentTimeMillis() >= entry.expires) {
+			entries.remove(key);
+			size -= entry.size();
+			return null;
+		}
+		return entry;
+	}
+
+	/**
+	 * Starts tracking a query whose response is to be cached. Blocks written
+	 * from here on that the query covers keep its response out of the cache.
+	 *
+	 * @return the entry to complete once the response is known, or null if
+	 *         caching is disabled.
+	 */
+	public synchronized Entry begin(String key, QueryRequest request) {
+		if (capacity <= 0)
+			return null;
+		Entry entry = new Entry(key, request);
+		pending.add(entry);
+		return entry;
+	}
+
+	/**
+	 * Caches the response to a query started with {@link #begin}, unless a
+	 * block it covers was written in the meantime.
+	 *
+	 * @param response
+	 *            the merged response, or null if the query failed.
+	 */
+	public synchronized void complete(Entry entry, QueryResponse response) {
+		if (!pending.remove(entry) || entry.stale || response == null || !isCacheable(response) || ttl <= 0)
+			return;
+		entry.expires = System.currentTimeMillis() + ttl;
+		entry.header = response.getHeader().toString();
+		entry.results = response.getJSONResults().toString();
+		if (entry.size() > maxSize)
+			return;
+		Entry previous = entries.put(entry.key, entry);
+		if (previous != null)
+			size -= previous.size();
+		size += entry.size();
+		Iterator<Entry> eldest = entries.values().iterator();
+		while ((entries.size() > capacity || size > maxSize) && eldest.hasNext()) {
+			size -= eldest.next().size();
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * Drops the responses that may have changed because a block was written.
+	 *
+	 * @param time
+	 *            time string of the block in the form yyyy-mm-dd-hh, or null
+	 *            if it is not known.
+	 * @param geohash
+	 *            geohash of the block, or null if it is not known.
+	 * @return the number of cached responses dropped.
+	 */
+	public synchronized int invalidate(String fsName, String time, String geohash) {
+		for (Entry entry : pending)
+			if (entry.covers(fsName, time, geohash))
+				entry.stale = true;
+		int dropped = 0;
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (iterator.hasNext()) {
+			Entry entry = iterator.next();
+			if (entry.covers(fsName, time, geohash)) {
+				size -= entry.size();
+				iterator.remove();
+				dropped++;
+			}
+		}
+		return dropped;
+	}
+
+	/**
+	 * Drops every response of a filesystem.
+	 */
+	public synchronized void invalidate(String fsName) {
+		invalidate(fsName, null, null);
+	}
+
+	private static boolean isCacheable(QueryResponse response) {
+		JSONObject results = response.getJSONResults();
+		if (results == null || response.isPartial())
+			return false;
+		JSONArray hostResults = results.optJSONArray("result");
+		if (hostResults != null)
+			for (int i = 0; i < hostResults.length(); i++)
+				if (hostResults.getJSONObject(i).has("cursor"))
+					return false;
+		return true;
+	}
+
+	/**
+	 * Matches two time strings of the form yyyy-mm-dd-hh. Fields that are
+	 * replaced by x in either of them match any value.
+	 */
+	private static boolean matchesTime(String time, String other) {
+		String[] parts = time.split("-");
+		String[] otherParts = other.split("-");
+		for (int i = 0; i < parts.length && i < otherParts.length; i++) {
+			if (parts[i].contains("x") || otherParts[i].contains("x"))
+				continue;
+			try {
+				if (Integer.parseInt(parts[i]) != Integer.parseInt(otherParts[i]))
+					return false;
+			} catch (NumberFormatException e) {
+				return true;
+			}
+		}
+		return true;
+	}
+
+	private static boolean intersects(SpatialRange a, SpatialRange b) {
+		return a.getLowerBoundForLatitude() <= b.getUpperBoundForLatitude()
+				&& b.getLowerBoundForLatitude() <= a.getUpperBoundForLatitude()
+				&& a.getLowerBoundForLongitude() <= b.getUpperBoundForLongitude()
+				&& b.getLowerBoundForLongitude() <= a.getUpperBoundForLongitude();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+}
@@ -0,0 +1,305 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.dht;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import galileo.bmp.Bitmap;
+import galileo.bmp.GeoavailabilityGrid;
+import galileo.bmp.GeoavailabilityQuery;
+import galileo.comm.CursorRequest;
+import galileo.fs.GeospatialFileSystem;
+import galileo.util.Deadline;
+
+/**
+ * Streams the results of a query in batches. The blocks matched by the query
+ * are filtered as the client asks for more records: a few blocks ahead of the
+ * one being handed out are filtered in parallel, so that a storage node only
+ * ever holds the matches of a handful of blocks per query and nothing is
+ * written to disk.
+ * <p>
+ * Every batch comes with the token for the next one. A token can only be
+ * used once, so a batch that is asked for twice is noticed instead of being
+ * silently skipped.
+ * <p>
+ * The blocks of a cursor are pinned (see
+ * {@link GeospatialFileSystem#pinBlocks(java.util.Collection)}) until they
+ * have been filtered or the cursor is closed, so compaction cannot delete them
+ * while the client is still reading. Cursors have to be closed once they are
+ * discarded.
+ * <p>
+ * Once the query's deadline passes, or the query is cancelled, no further
+ * blocks are read: the records already filtered are still handed out, and
+ * the cursor reports its results as partial. Blocks that fail to be read
+ * make the results partial as well.
+ *
+ * @author sapmitra
+ */
+public class ResultCursor {
+
+	private static final Logger logger = Logger.getLogger("galileo");
+
+	/** Largest batch handed out, regardless of what the client asks for. */
+	public static final int MAX_BATCH_SIZE = Integer.getInteger("galileo.dht.ResultCursor.maxBatchSize",
+			CursorRequest.DEFAULT_BATCH_SIZE);
+
+	/** Cursors that have not been read from for this long are discarded. */
+	public static final long TIMEOUT = Long.getLong("galileo.dht.ResultCursor.timeout", 5 * 60 * 1000);
+
+	/** Number of blocks filtered at the same time by a cursor. */
+	public static final int READ_AHEAD = Math.max(1, Integer.getInteger("galileo.dht.ResultCursor.readAhead",
+			Runtime.getRuntime().availableProcessors()));
+
+	private class PendingBlock implements Callable<List<String[]>> {
+		private String blockPath;
+		private GeoavailabilityGrid grid;
+		private Bitmap queryBitmap;
+		private Future<List<String[]>> result;
+
+		private PendingBlock(String blockPath, GeoavailabilityGrid grid, Bitmap queryBitmap) {
+			this.blockPath = blockPath;
+			this.grid = grid;
+			this.queryBitmap = queryBitmap;
+		}
+
+		/* Blocks that were started are unpinned once they have been read */
+		@Override
+		public List<String[]> call() throws Exception {
+			try {
+				return fs.query(blockPath, geoQuery, grid, queryBitmap, deadline);
+			} finally {
+				unpin(blockPath);
+			}
+		}
+	}
+
+	private final String id;
+	private final GeospatialFileSystem fs;
+	private final GeoavailabilityQuery geoQuery;
+	private final Deadline deadline;
+	private final ExecutorService executor;
+	private final Deque<PendingBlock> pending = new ArrayDeque<>();
+	private final Deque<PendingBlock> reading = new ArrayDeque<>();
+
+	/* Matches of the block being handed out, and the next one to hand out */
+	private List<String[]> records = Collections.emptyList();
+	private int position;
+
+	private long batch;
+	private long lastAccess = System.currentTimeMillis();
+	private boolean partial;
+	private boolean closed;
+
+	/**
+	 * @param executor
+	 *            runs the filtering of the cursor's blocks
+	 */
+	public ResultCursor(String id, GeospatialFileSystem fs, GeoavailabilityQuery geoQuery, Deadline deadline,
+			ExecutorService executor) {
+		this.id = id;
+		this.fs = fs;
+		this.geoQuery = geoQuery;
+		this.deadline = deadline;
+		this.executor = executor;
+	}
+
+	/**
+	 * Queues a block to be filtered once the records before it have been
+	 * handed out, pinning it until then.
+	 */
+	public synchronized void addBlock(String blockPath, GeoavailabilityGrid grid, Bitmap queryBitmap) {
+		if (closed)
+			throw new IllegalStateException("Cursor " + id + " is closed");
+		fs.pinBlocks(Collections.singletonList(blockPath));
+		this.pending.add(new PendingBlock(blockPath, grid, queryBitmap));
+	}
+
+	public String getId() {
+		return this.id;
+	}
+
+	/**
+	 * @return the token for the next batch, or null if every record has been
+	 *         handed out.
+	 */
+	public synchronized String getToken() {
+		if (position >= records.size() && pending.isEmpty() && reading.isEmpty())
+			return null;
+		return this.id + ":" + this.batch;
+	}
+
+	/**
+	 * @return the id of the cursor a token belongs to.
+	 */
+	public static String getId(String token) {
+		int separator = token.lastIndexOf(':');
+		return (separator < 0) ? token : token.substring(0, separator);
+	}
+
+	public synchronized boolean isExpired(long now) {
+		return now - this.lastAccess > TIMEOUT;
+	}
+
+	/**
+	 * @return true if blocks were left unread because the query ran past its
+	 *         deadline, was cancelled, or a block could not be read.
+	 */
+	public synchronized boolean isPartial() {
+		return this.partial;
+	}
+
+	/**
+	 * Stops the cursor from reading any more blocks.
+	 */
+	public void cancel() {
+		this.deadline.cancel();
+	}
+
+	/**
+	 * Cancels the cursor and releases the blocks it has not read yet. Blocks
+	 * that are being read are released as soon as they are done.
+	 */
+	public synchronized void close() {
+		if (closed)
+			return;
+		closed = true;
+		/* The deadline may be shared with the query that created the cursor */
+		if (!pending.isEmpty() || !reading.isEmpty())
+			cancel();
+		discardPending();
+		for (PendingBlock block : reading)
+			if (block.result.cancel(false))
+				unpin(block.blockPath);
+		reading.clear();
+		records = Collections.emptyList();
+		position = 0;
+	}
+
+	private void discardPending() {
+		for (PendingBlock block : pending)
+			unpin(block.blockPath);
+		pending.clear();
+	}
+
+	private void unpin(String blockPath) {
+		fs.unpinBlocks(Collections.singletonList(blockPath));
+	}
+
+	/**
+	 * Hands out the next batch of records, as newline separated lines of
+	 * comma separated values. The batch is only smaller than requested if the
+	 * cursor is exhausted.
+	 *
+	 * @return the records, or null if the token is not the current one.
+	 */
+	public synchronized byte[] next(String token, int maxRecords) throws InterruptedException {
+		String current = getToken();
+		if (closed || current == null || !current.equals(token))
+			return null;
+		this.lastAccess = System.currentTimeMillis();
+		this.batch++;
+
+		int limit = Math.min(maxRecords, MAX_BATCH_SIZE);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		StringBuilder line = new StringBuilder();
+		for (int count = 0; count < limit; ++count) {
+			if (position >= records.size() && !nextBlock())
+				break;
+			String[] record = records.get(position++);
+			line.setLength(0);
+			if (count > 0)
+				line.append('\n');
+			for (int i = 0; i < record.length; ++i) {
+				if (i > 0)
+					line.append(',');
+				line.append(record[i]);
+			}
+			byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+			out.write(bytes, 0, bytes.length);
+		}
+		/* Keeps the following blocks filtering while the client takes this batch */
+		readAhead();
+		return out.toByteArray();
+	}
+
+	/**
+	 * Starts filtering pending blocks until {@link #READ_AHEAD} of them are
+	 * being read, unless the deadline has passed.
+	 */
+	private void readAhead() {
+		if (deadline.isExpired()) {
+			if (!pending.isEmpty()) {
+				discardPending();
+				this.partial = true;
+			}
+			return;
+		}
+		while (reading.size() < READ_AHEAD && !pending.isEmpty()) {
+			PendingBlock block = pending.poll();
+			block.result = executor.submit(block);
+			reading.add(block);
+		}
+	}
+
+	/**
+	 * Waits for the next block being filtered that has any matches.
+	 *
+	 * @return false if no block is left.
+	 */
+	private boolean nextBlock() throws InterruptedException {
+		this.records = Collections.emptyList();
+		this.position = 0;
+		while (true) {
+			readAhead();
+			PendingBlock block = reading.poll();
+			if (block == null)
+				return false;
+			try {
+				this.records = block.result.get();
+				if (deadline.isExpired())
+					this.partial = true;
+			} catch (ExecutionException e) {
+				logger.log(Level.WARNING, "Failed to read block " + block.blockPath + " of cursor " + id,
+						e.getCause());
+				this.partial = true;
+				continue;
+			}
+			if (!records.isEmpty())
+				return true;
+		}
+	}
+}
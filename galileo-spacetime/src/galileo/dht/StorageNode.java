@@ -33,6 +33,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Paths;
@@ -56,7 +57,10 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -66,9 +70,12 @@ import org.json.JSONObject;
 import galileo.bmp.Bitmap;
 import galileo.bmp.GeoavailabilityGrid;
 import galileo.bmp.GeoavailabilityQuery;
-import galileo.bmp.QueryTransform;
+import galileo.comm.Aggregation;
 import galileo.comm.BlockRequest;
 import galileo.comm.BlockResponse;
+import galileo.comm.CacheInvalidationEvent;
+import galileo.comm.CursorRequest;
+import galileo.comm.CursorResponse;
 import galileo.comm.DataIntegrationEvent;
 import galileo.comm.DataIntegrationFinalResponse;
 import galileo.comm.DataIntegrationRequest;
@@ -82,6 +89,8 @@ import galileo.comm.MetadataRequest;
 import galileo.comm.MetadataResponse;
 import galileo.comm.NeighborDataEvent;
 import galileo.comm.NeighborDataResponse;
+import galileo.comm.QueryCancelEvent;
+import galileo.comm.QueryCancelRequest;
 import galileo.comm.QueryEvent;
 import galileo.comm.QueryRequest;
 import galileo.comm.QueryResponse;
@@ -109,6 +118,7 @@ import galileo.event.Event;
 import galileo.event.EventContext;
 import galileo.event.EventHandler;
 import galileo.event.EventReactor;
+import galileo.fs.BlockCodec;
 import galileo.fs.FileSystemException;
 import galileo.fs.GeospatialFileSystem;
 import galileo.graph.Path;
@@ -119,8 +129,11 @@ import galileo.net.PortTester;
 import galileo.net.RequestListener;
 import galileo.net.ServerMessageRouter;
 import galileo.query.Query;
+import galileo.query.QueryPlanCache;
 import galileo.serialization.SerializationException;
+import galileo.stat.AggregateStatistics;
 import galileo.util.BorderingProperties;
+import galileo.util.Deadline;
 import galileo.util.GeoHash;
 import galileo.util.PathFragments;
 import galileo.util.PathsAndOrientations;
@@ -145,7 +158,6 @@ public class StorageNode implements RequestListener {
 	private String canonicalHostname; // The fqdn of this host
 	private int port;
 	private String rootDir;
-	private String resultsDir;
 	private String queryResultsDir;
 	private int numCores;
 
@@ -167,6 +179,27 @@ public class StorageNode implements RequestListener {
 
 	private ConcurrentHashMap<String, QueryTracker> queryTrackers = new ConcurrentHashMap<>();
 
+	/* Queries whose results are still being streamed to clients */
+	private ConcurrentHashMap<String, ResultCursor> cursors = new ConcurrentHashMap<>();
+	private AtomicLong cursorSequence = new AtomicLong();
+
+	/* Queries being processed on this node, so that they can be cancelled */
+	private ConcurrentHashMap<String, Deadline> runningQueries = new ConcurrentHashMap<>();
+
+	/* Merged responses of the queries this node coordinated */
+	private QueryResultCache queryCache = new QueryResultCache(
+			Integer.getInteger("galileo.dht.QueryResultCache.capacity", QueryResultCache.DEFAULT_CAPACITY),
+			Long.getLong("galileo.dht.QueryResultCache.maxSize", QueryResultCache.DEFAULT_MAX_SIZE),
+			Long.getLong("galileo.dht.QueryResultCache.ttl", QueryResultCache.DEFAULT_TTL));
+	private ConcurrentHashMap<String, QueryResultCache.Entry> cachedQueries = new ConcurrentHashMap<>();
+
+	/* Blocks written here that the other nodes have not been told about yet */
+	private Map<String, CacheInvalidationEvent> pendingInvalidations = new HashMap<>();
+	private long invalidationInterval = Long.getLong("galileo.dht.QueryResultCache.flushInterval", 1000);
+	private ScheduledExecutorService invalidationExecutor;
+	/* Filters the blocks of result cursors */
+	private ExecutorService cursorExecutor;
+
 	// private String sessionId;
 
 	public StorageNode() throws IOException {
@@ -184,7 +217,6 @@ public class StorageNode implements RequestListener {
 		this.port = NetworkConfig.DEFAULT_PORT;
 		SystemConfig.reload();
 		this.rootDir = SystemConfig.getRootDir();
-		this.resultsDir = this.rootDir + "/.results";
 		this.queryResultsDir = this.rootDir + "/.qresults";
 		this.nodeStatus = new StatusLine(SystemConfig.getRootDir() + "/status.txt");
 		this.fsFile = new File(SystemConfig.getRootDir() + "/storage-node.fs");
@@ -198,6 +230,22 @@ public class StorageNode implements RequestListener {
 		this.requestHandlers = new CopyOnWriteArrayList<ClientRequestHandler>();
 		this.rikiHandlers = new CopyOnWriteArrayList<NeighborRequestHandler>();
 		this.surveyHandlers = new CopyOnWriteArrayList<SurveyRequestHandler>();
+		this.invalidationExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "galileo-cache-invalidation");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.cursorExecutor = Executors.newFixedThreadPool(2 * numCores, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "galileo-cursor");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
 	}
 
 	/**
@@ -238,10 +286,6 @@ public class StorageNode implements RequestListener {
 					+ "hostnames specified in the network configuration files.");
 
 		nodeStatus.set("Restoring filesystems");
-		File resultsDir = new File(this.resultsDir);
-		if (!resultsDir.exists())
-			resultsDir.mkdirs();
-		
 		File qresultsDir = new File(this.queryResultsDir);
 		
 		if (!qresultsDir.exists())
@@ -315,12 +359,29 @@ public class StorageNode implements RequestListener {
 		event.setTemporalUncertaintyPrecision(request.getTemporalUncertaintyPrecision());
 		event.setTemporalHint(request.getTemporalHint());
 		event.setSpatialPartitioningType(request.getSpatialPartitioningType());
+		event.setBlockCodec(request.getBlockCodec());
 		for (NodeInfo node : nodes) {
 			logger.info("Requesting " + node + " to perform a file system action");
 			sendEvent(node, event);
 		}
 	}
 
+	/*
+	 * Codecs are named by the client that created the file system. Blocks of
+	 * a file system whose codec this node does not know are left
+	 * uncompressed.
+	 */
+	private static BlockCodec getBlockCodec(String name) {
+		if (name == null)
+			return BlockCodec.NONE;
+		try {
+			return BlockCodec.fromName(name);
+		} catch (IllegalArgumentException e) {
+			logger.log(Level.WARNING, "Unknown block codec {0}; blocks are stored uncompressed", name);
+			return BlockCodec.NONE;
+		}
+	}
+
 	@EventHandler
 	public void handleFileSystem(FilesystemEvent event, EventContext context) {
 		logger.info("FORWARDED CREATE FS REQUEST");
@@ -339,6 +400,7 @@ public class StorageNode implements RequestListener {
 						fs.setSpatialPartitioningType(2);
 					else
 						fs.setSpatialPartitioningType(event.getSpatialPartitioningType());
+					fs.setBlockCodec(getBlockCodec(event.getBlockCodec()));
 					
 					fsMap.put(event.getName(), fs);
 				} catch (FileSystemException | SerializationException | IOException | PartitionException | HashException
@@ -351,6 +413,7 @@ public class StorageNode implements RequestListener {
 			if (fs != null) {
 				fs.shutdown();
 				fsMap.remove(event.getName());
+				queryCache.invalidate(event.getName());
 				java.nio.file.Path directory = Paths.get(rootDir + File.separator + event.getName());
 				try {
 					Files.walkFileTree(directory, new SimpleFileVisitor<java.nio.file.Path>() {
@@ -415,6 +478,7 @@ public class StorageNode implements RequestListener {
 			//logger.log(Level.INFO, "Storing block " + store.getBlock() + " to filesystem " + fsName);
 			try {
 				fs.storeBlock(store.getBlock());
+				invalidateCachedResults(fs, store.getBlock().getMetadata());
 			} catch (FileSystemException | IOException e) {
 				logger.log(Level.SEVERE, "Something went wrong while storing the block.", e);
 			}
@@ -422,16 +486,85 @@ public class StorageNode implements RequestListener {
 			logger.log(Level.SEVERE, "Requested file system(" + fsName + ") not found. Ignoring the block.");
 		}
 	}
+
+	/**
+	 * Drops the cached query results that a newly written block may have
+	 * changed. Cached results on the other nodes are dropped once the blocks
+	 * written here since the last announcement are broadcast, at most
+	 * galileo.dht.QueryResultCache.flushInterval milliseconds later.
+	 */
+	private void invalidateCachedResults(GeospatialFileSystem fs, Metadata meta) {
+		String time = fs.getTemporalString(meta.getTemporalProperties());
+		String geohash = (meta.getSpatialProperties() != null) ? fs.getSpatialString(meta.getSpatialProperties())
+				: null;
+		queryCache.invalidate(fs.getName(), time, geohash);
+		synchronized (pendingInvalidations) {
+			CacheInvalidationEvent event = pendingInvalidations.get(fs.getName());
+			if (event == null) {
+				event = new CacheInvalidationEvent(fs.getName());
+				pendingInvalidations.put(fs.getName(), event);
+				invalidationExecutor.schedule(new Runnable() {
+					@Override
+					public void run() {
+						flushInvalidations();
+					}
+				}, invalidationInterval, TimeUnit.MILLISECONDS);
+			}
+			event.addBlock(time, geohash);
+		}
+	}
+
+	/**
+	 * Drops the cached query results that may list blocks compaction merged
+	 * into a segment. The blocks share the time and geohash of the segment's
+	 * metadata.
+	 */
+	public void blocksRetired(GeospatialFileSystem fs, Metadata meta) {
+		invalidateCachedResults(fs, meta);
+	}
+
+	private void flushInvalidations() {
+		List<CacheInvalidationEvent> events;
+		synchronized (pendingInvalidations) {
+			events = new ArrayList<>(pendingInvalidations.values());
+			pendingInvalidations.clear();
+		}
+		for (CacheInvalidationEvent event : events) {
+			for (NodeInfo node : network.getAllNodes()) {
+				try {
+					sendEvent(node, event);
+				} catch (IOException e) {
+					logger.log(Level.WARNING, "Failed to invalidate the cached query results on " + node, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drops the cached query results covering the blocks another node wrote.
+	 */
+	@EventHandler
+	public void handleCacheInvalidation(CacheInvalidationEvent event, EventContext context) {
+		List<String> times = event.getTimes();
+		List<String> geohashes = event.getGeohashes();
+		int dropped = 0;
+		for (int i = 0; i < event.size(); i++)
+			dropped += queryCache.invalidate(event.getFilesystemName(), times.get(i), geohashes.get(i));
+		if (dropped > 0)
+			logger.log(Level.FINE, "Dropped {0} cached query results", dropped);
+	}
 	
 	
 	private class ParallelReader implements Runnable {
 		private Block block;
 		private GeospatialFileSystem gfs;
 		private String blockPath;
+		private boolean keepCompressed;
 		
-		public ParallelReader(GeospatialFileSystem gfs, String blockPath){
+		public ParallelReader(GeospatialFileSystem gfs, String blockPath, boolean keepCompressed){
 			this.gfs = gfs;
 			this.blockPath = blockPath;
+			this.keepCompressed = keepCompressed;
 		}
 		
 		public Block getBlock(){
@@ -441,9 +574,7 @@ public class StorageNode implements RequestListener {
 		@Override
 		public void run(){
 			try {
-				this.block = gfs.retrieveBlock(blockPath);
-				if(blockPath.startsWith(resultsDir))
-					new File(blockPath).delete();
+				this.block = gfs.retrieveBlock(blockPath, keepCompressed);
 			} catch (IOException | SerializationException e) {
 				logger.log(Level.SEVERE, "Failed to retrieve the block", e);
 			}
@@ -464,7 +595,7 @@ public class StorageNode implements RequestListener {
 					ExecutorService executor = Executors.newFixedThreadPool(Math.min(blockPaths.size(), 2 * numCores));
 					List<ParallelReader> readers = new ArrayList<>();
 					for(String blockPath : blockPaths){
-						ParallelReader pr = new ParallelReader(fs, blockPath);
+						ParallelReader pr = new ParallelReader(fs, blockPath, blockRequest.acceptsCompressed());
 						readers.add(pr);
 						executor.execute(pr);
 					}
@@ -474,7 +605,7 @@ public class StorageNode implements RequestListener {
 						if(reader.getBlock() != null)
 							blocks.add(reader.getBlock());
 				} else {
-					ParallelReader pr = new ParallelReader(fs, blockPaths.get(0));
+					ParallelReader pr = new ParallelReader(fs, blockPaths.get(0), blockRequest.acceptsCompressed());
 					pr.run();
 					blocks.add(pr.getBlock());
 				}
@@ -497,6 +628,95 @@ public class StorageNode implements RequestListener {
 		}
 	}
 
+	/**
+	 * Hands out the next batch of records of a query whose results are being
+	 * streamed, or closes its cursor.
+	 */
+	@EventHandler
+	public void handleCursorRequest(CursorRequest request, EventContext context) {
+		expireCursors();
+		String id = ResultCursor.getId(request.getCursor());
+		ResultCursor cursor = cursors.get(id);
+		CursorResponse response = null;
+		try {
+			if (cursor != null && request.isClose()) {
+				cursors.remove(id);
+				cursor.close();
+				response = new CursorResponse(new byte[0], null);
+			} else if (cursor != null) {
+				byte[] records = cursor.next(request.getCursor(), request.getMaxRecords());
+				if (records != null) {
+					String next = cursor.getToken();
+					if (next == null) {
+						cursors.remove(id);
+						cursor.close();
+					}
+					response = new CursorResponse(records, next);
+					response.setPartial(cursor.isPartial());
+				}
+			}
+		} catch (InterruptedException e) {
+			logger.log(Level.SEVERE, "Interrupted while reading the results of cursor " + id, e);
+			cursors.remove(id);
+			cursor.close();
+			Thread.currentThread().interrupt();
+		}
+		if (response == null) {
+			logger.log(Level.WARNING, "Unknown or stale cursor requested: {0}", request.getCursor());
+			response = CursorResponse.notFound();
+		}
+		try {
+			context.sendReply(response);
+		} catch (IOException e) {
+			logger.log(Level.SEVERE, "Failed to send response to the original client", e);
+		}
+	}
+
+	private void expireCursors() {
+		long now = System.currentTimeMillis();
+		for (ResultCursor cursor : cursors.values()) {
+			if (cursor.isExpired(now)) {
+				logger.log(Level.INFO, "Discarding idle cursor {0}", cursor.getId());
+				cursors.remove(cursor.getId());
+				cursor.close();
+			}
+		}
+	}
+
+	/**
+	 * Cancels a query on every node of the cluster.
+	 */
+	@EventHandler
+	public void handleQueryCancelRequest(QueryCancelRequest request, EventContext context) {
+		logger.log(Level.INFO, "Cancelling query {0}", request.getQueryId());
+		QueryCancelEvent event = new QueryCancelEvent(request.getQueryId());
+		for (NodeInfo node : network.getAllNodes()) {
+			try {
+				sendEvent(node, event);
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Failed to cancel query " + request.getQueryId() + " on " + node, e);
+			}
+		}
+	}
+
+	/**
+	 * Stops the local work of a query: its scans give up at the next block
+	 * or batch of records, and the cursors holding its results are closed.
+	 */
+	@EventHandler
+	public void handleQueryCancel(QueryCancelEvent event, EventContext context) {
+		String queryId = event.getQueryId();
+		Deadline deadline = runningQueries.get(queryId);
+		if (deadline != null)
+			deadline.cancel();
+		for (ResultCursor cursor : cursors.values()) {
+			if (cursor.getId().startsWith(queryId + "-")) {
+				cursors.remove(cursor.getId());
+				cursor.close();
+			}
+		}
+	}
+
 	/**
 	 * Handles a meta request that seeks information regarding the galileo
 	 * system.
@@ -775,11 +995,23 @@ public class StorageNode implements RequestListener {
 		String metadataQueryString = request.getMetadataQueryString();
 		logger.log(Level.INFO, "Feature query request: {0}", featureQueryString);
 		logger.log(Level.INFO, "Metadata query request: {0}", metadataQueryString);
-		String queryId = String.valueOf(System.currentTimeMillis());
+		String queryId = (request.getQueryId() != null) ? request.getQueryId()
+				: String.valueOf(System.currentTimeMillis());
 		GeospatialFileSystem gfs = this.fsMap.get(request.getFilesystemName());
 		
 		/* POPULATING THE METADATA FOR THE QUERY */
 		if (gfs != null) {
+			String cacheKey = QueryResultCache.getKey(request);
+			QueryResponse cached = request.isExplain() ? null : queryCache.get(cacheKey, queryId);
+			if (cached != null) {
+				logger.log(Level.INFO, "Answering query {0} from the result cache", queryId);
+				try {
+					context.sendReply(cached);
+				} catch (IOException e) {
+					logger.log(Level.SEVERE, "Failed to send response back to original client", e);
+				}
+				return;
+			}
 			QueryResponse response = new QueryResponse(queryId, gfs.getFeaturesRepresentation(), new JSONObject());
 			
 			/* This metadata is simply used to find nodes. 
@@ -823,23 +1055,43 @@ public class StorageNode implements RequestListener {
 								? new QueryEvent(queryId, request.getFilesystemName(), request.getPolygon())
 								: new QueryEvent(queryId, request.getFilesystemName(), request.getTime());
 
-				if (request.isDryRun()) {
+				if (request.isDryRun() && !request.isExplain()) {
 					qEvent.enableDryRun();
 					response.setDryRun(true);
 				}
+				if (request.isExplain()) {
+					/* The plans of the nodes are collected under "result" */
+					qEvent.enableExplain();
+					JSONObject plan = response.getJSONResults();
+					plan.put("queryId", queryId);
+					plan.put("filesystem", request.getFilesystemName());
+					plan.put("explain", true);
+					plan.put("cached", queryCache.contains(cacheKey));
+					plan.put("numNodes", nodes.size());
+					plan.put("result", new JSONArray());
+				}
+				if (request.isAggregate())
+					qEvent.setAggregation(request.getAggregation());
 				if (request.isSpatial())
 					qEvent.setPolygon(request.getPolygon());
 				if (request.isTemporal())
 					qEvent.setTime(request.getTime());
+				qEvent.setDeadline(request.getDeadline());
 
+				QueryResultCache.Entry cacheEntry = request.isExplain() ? null : queryCache.begin(cacheKey, request);
+				if (cacheEntry != null)
+					cachedQueries.put(queryId, cacheEntry);
 				try {
 					ClientRequestHandler reqHandler = new ClientRequestHandler(new ArrayList<NetworkDestination>(nodes),
 							context, this);
+					reqHandler.setDeadline(request.getDeadline());
 					
 					/* Sending out query to all nodes */
 					reqHandler.handleRequest(qEvent, response);
 					this.requestHandlers.add(reqHandler);
 				} catch (IOException ioe) {
+					if (cachedQueries.remove(queryId) != null)
+						queryCache.complete(cacheEntry, null);
 					logger.log(Level.SEVERE,
 							"Failed to initialize a ClientRequestHandler. Sending unfinished response back to client",
 							ioe);
@@ -868,48 +1120,44 @@ public class StorageNode implements RequestListener {
 		}
 	}
 
-	private String getResultFilePrefix(String queryId, String fsName, String blockIdentifier) {
-		return this.resultsDir + "/" + String.format("%s-%s-%s", fsName, queryId, blockIdentifier);
-	}
-
+	/**
+	 * Summarizes the records of a block that match a query.
+	 */
 	private class QueryProcessor implements Runnable {
 		private String blockPath;
-		private String pathPrefix;
 		private GeoavailabilityQuery geoQuery;
 		private GeoavailabilityGrid grid;
 		private GeospatialFileSystem gfs;
 		private Bitmap queryBitmap;
-		private List<String> resultPaths;
-		private long fileSize;
+		private Aggregation aggregation;
+		private AggregateStatistics statistics;
+		private Deadline deadline;
 
 		public QueryProcessor(GeospatialFileSystem gfs, String blockPath, GeoavailabilityQuery gQuery,
-				GeoavailabilityGrid grid, Bitmap queryBitmap, String pathPrefix) {
+				GeoavailabilityGrid grid, Bitmap queryBitmap, Aggregation aggregation, Deadline deadline) {
 			this.gfs = gfs;
 			this.blockPath = blockPath;
 			this.geoQuery = gQuery;
 			this.grid = grid;
 			this.queryBitmap = queryBitmap;
-			this.pathPrefix = pathPrefix;
+			this.aggregation = aggregation;
+			this.deadline = deadline;
 		}
 
 		@Override
 		public void run() {
+			if (this.deadline.isExpired())
+				return;
 			try {
-				this.resultPaths = this.gfs.query(this.blockPath, this.geoQuery, this.grid, this.queryBitmap,
-						this.pathPrefix);
-				for (String resultPath : this.resultPaths)
-					this.fileSize += new File(resultPath).length();
+				this.statistics = this.gfs.aggregate(this.blockPath, this.geoQuery, this.grid, this.queryBitmap,
+						this.aggregation, this.deadline);
 			} catch (IOException | InterruptedException e) {
 				logger.log(Level.SEVERE, "Something went wrong while querying the filesystem. No results obtained.");
 			}
 		}
 
-		public long getFileSize() {
-			return this.fileSize;
-		}
-
-		public List<String> getResultPaths() {
-			return this.resultPaths;
+		public AggregateStatistics getStatistics() {
+			return this.statistics;
 		}
 	}
 
@@ -925,7 +1173,17 @@ public class StorageNode implements RequestListener {
 		JSONArray header = new JSONArray();
 		JSONObject blocksJSON = new JSONObject();
 		JSONArray resultsJSON = new JSONArray();
+		AggregateStatistics statistics = null;
+		String resultRecords = null;
+		String resultCursor = null;
+		boolean partial = false;
 		long processingTime = System.currentTimeMillis();
+		expireCursors();
+		Deadline deadline = new Deadline(event.getDeadline());
+		runningQueries.put(event.getQueryId(), deadline);
+		GeospatialFileSystem pinningFs = null;
+		List<String> pinned = new ArrayList<>();
+		ResultCursor cursor = null;
 		try {
 			logger.info(event.getFeatureQueryString());
 			logger.info(event.getMetadataQueryString());
@@ -933,9 +1191,22 @@ public class StorageNode implements RequestListener {
 			GeospatialFileSystem fs = fsMap.get(fsName);
 			if (fs != null) {
 				header = fs.getFeaturesRepresentation();
+				if (event.isExplain()) {
+					JSONObject plan = fs.explain(event.getTime(), event.getPolygon(), event.getMetadataQuery(),
+							event.getFeatureQuery(), event.getAggregation(), deadline);
+					plan.put("hostName", this.canonicalHostname);
+					plan.put("hostPort", this.port);
+					JSONObject responseJSON = new JSONObject();
+					responseJSON.put("filesystem", event.getFilesystemName());
+					responseJSON.put("queryId", event.getQueryId());
+					responseJSON.put("explain", true);
+					responseJSON.put("result", new JSONArray().put(plan));
+					context.sendReply(new QueryResponse(event.getQueryId(), header, responseJSON));
+					return;
+				}
 				/* Feature Query is not needed to list blocks */
 				Map<String, List<String>> blockMap = fs.listBlocks(event.getTime(), event.getPolygon(),
-						event.getMetadataQuery(), event.isDryRun());
+						event.getMetadataQuery(), event.isDryRun(), deadline);
 				if (event.isDryRun()) {
 					/*
 					 * TODO: Make result of dryRun resemble the format of that
@@ -949,6 +1220,9 @@ public class StorageNode implements RequestListener {
 						blocksJSON.put(blockKey, new JSONArray(blockMap.get(blockKey)));
 					}
 					responseJSON.put("result", blocksJSON);
+					/* Blocks that were not listed by the deadline are missing */
+					if (deadline.isExpired())
+						responseJSON.put("partial", true);
 					QueryResponse response = new QueryResponse(event.getQueryId(), header, responseJSON);
 					response.setDryRun(true);
 					context.sendReply(response);
@@ -963,16 +1237,30 @@ public class StorageNode implements RequestListener {
 						filePaths.put(block);
 						hostFileSize += new File(block).length();
 					}
+					pinned.addAll(blocks);
 				}
-				if (totalBlocks > 0) {
+				/* Blocks merged into a segment meanwhile stay on disk until we are done */
+				fs.pinBlocks(pinned);
+				pinningFs = fs;
+				if (totalBlocks > 0 && event.isAggregate()) {
+					/* Only the statistics leave this node, never the records */
+					hostFileSize = 0;
+					filePaths = new JSONArray();
+					statistics = aggregate(fs, event, blockMap, deadline);
+					blocksProcessed = totalBlocks;
+				} else if (totalBlocks > 0) {
 					if (event.getFeatureQuery() != null || event.getPolygon() != null) {
+						/*
+						 * Matching records are streamed through a cursor: the first
+						 * batch goes out with this response and the client asks for
+						 * the rest, so the blocks are filtered as they are read.
+						 */
 						hostFileSize = 0;
 						filePaths = new JSONArray();
-						// maximum parallelism = 64
-						ExecutorService executor = Executors.newFixedThreadPool(Math.min(totalBlocks, 2 * numCores));
-						List<QueryProcessor> queryProcessors = new ArrayList<>();
 						GeoavailabilityQuery geoQuery = new GeoavailabilityQuery(event.getFeatureQuery(),
 								event.getPolygon());
+						cursor = new ResultCursor(event.getQueryId() + "-" + cursorSequence.incrementAndGet(), fs,
+								geoQuery, deadline, cursorExecutor);
 						for (String blockKey : blockMap.keySet()) {
 							
 							/* Converts the bounds of geohash into a 1024x1024 region */
@@ -980,33 +1268,40 @@ public class StorageNode implements RequestListener {
 									GeoHash.MAX_PRECISION * 2 / 3);
 							Bitmap queryBitmap = null;
 							if (geoQuery.getPolygon() != null)
-								queryBitmap = QueryTransform.queryToGridBitmap(geoQuery, blockGrid);
+								queryBitmap = QueryPlanCache.getInstance().getGridBitmap(geoQuery, blockGrid);
+							/* The polygon only touches the edge of the grid, so no record can fall inside */
+							if (queryBitmap != null && queryBitmap.cardinality() == 0)
+								continue;
 							List<String> blocks = blockMap.get(blockKey);
 							for (String blockPath : blocks) {
-								QueryProcessor qp = new QueryProcessor(fs, blockPath, geoQuery, blockGrid, queryBitmap,
-										getResultFilePrefix(event.getQueryId(), fsName, blockKey + blocksProcessed));
+								/* Blocks whose zone maps rule out the feature query are never read */
+								if (!fs.mayMatch(blockPath, event.getFeatureQuery()))
+									continue;
+								cursor.addBlock(blockPath, blockGrid, queryBitmap);
 								blocksProcessed++;
-								queryProcessors.add(qp);
-								executor.execute(qp);
 							}
 						}
-						executor.shutdown();
-						boolean status = executor.awaitTermination(10, TimeUnit.MINUTES);
-						if (!status)
-							logger.log(Level.WARNING, "Executor terminated because of the specified timeout=10minutes");
-						for (QueryProcessor qp : queryProcessors) {
-							if (qp.getFileSize() > 0) {
-								hostFileSize += qp.getFileSize();
-								for (String resultPath : qp.getResultPaths())
-									filePaths.put(resultPath);
-							}
+						byte[] records = cursor.next(cursor.getToken(), CursorRequest.DEFAULT_BATCH_SIZE);
+						if (records != null && records.length > 0) {
+							hostFileSize = records.length;
+							resultRecords = new String(records, StandardCharsets.UTF_8);
 						}
+						resultCursor = cursor.getToken();
+						if (resultCursor != null)
+							cursors.put(cursor.getId(), cursor);
+						partial = cursor.isPartial();
 					} 
 				}
+				/* Blocks that were listed or summarized after the deadline were left out */
+				partial |= deadline.isExpired();
 				totalProcessingTime = System.currentTimeMillis() - processingTime;
-				totalNumPaths = filePaths.length();
+				totalNumPaths = filePaths.length() + ((resultRecords != null) ? 1 : 0);
 				JSONObject resultJSON = new JSONObject();
 				resultJSON.put("filePath", filePaths);
+				if (resultRecords != null)
+					resultJSON.put("records", resultRecords);
+				if (resultCursor != null)
+					resultJSON.put("cursor", resultCursor);
 				resultJSON.put("numPaths", totalNumPaths);
 				resultJSON.put("fileSize", hostFileSize);
 				resultJSON.put("hostName", this.canonicalHostname);
@@ -1021,11 +1316,20 @@ public class StorageNode implements RequestListener {
 			logger.log(Level.SEVERE,
 					"Something went wrong while querying the filesystem. No results obtained. Sending blank list to the client. Issue details follow:",
 					e);
+		} finally {
+			runningQueries.remove(event.getQueryId(), deadline);
+			if (pinningFs != null)
+				pinningFs.unpinBlocks(pinned);
+			/* Cursors that are not handed to the client hold on to nothing */
+			if (cursor != null && cursors.get(cursor.getId()) != cursor)
+				cursor.close();
 		}
 
 		JSONObject responseJSON = new JSONObject();
 		responseJSON.put("filesystem", event.getFilesystemName());
 		responseJSON.put("queryId", event.getQueryId());
+		if (partial)
+			responseJSON.put("partial", true);
 		if (hostFileSize == 0) {
 			responseJSON.put("result", new JSONArray());
 			responseJSON.put("hostFileSize", new JSONObject());
@@ -1041,6 +1345,11 @@ public class StorageNode implements RequestListener {
 		}
 		responseJSON.put("totalProcessingTime", totalProcessingTime);
 		responseJSON.put("totalBlocksProcessed", blocksProcessed);
+		if (event.isAggregate()) {
+			if (statistics == null)
+				statistics = new AggregateStatistics();
+			responseJSON.put("partialAggregates", statistics.toPartialJSON());
+		}
 		QueryResponse response = new QueryResponse(event.getQueryId(), header, responseJSON);
 		try {
 			context.sendReply(response);
@@ -1049,6 +1358,45 @@ public class StorageNode implements RequestListener {
 		}
 	}
 
+	/**
+	 * Computes the statistics of an aggregate query over the given blocks,
+	 * one block per thread. Blocks not summarized by the deadline are left
+	 * out.
+	 */
+	private AggregateStatistics aggregate(GeospatialFileSystem fs, QueryEvent event,
+			Map<String, List<String>> blockMap, Deadline deadline) throws InterruptedException {
+		int totalBlocks = 0;
+		for (List<String> blocks : blockMap.values())
+			totalBlocks += blocks.size();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(totalBlocks, 2 * numCores));
+		List<QueryProcessor> queryProcessors = new ArrayList<>();
+		GeoavailabilityQuery geoQuery = new GeoavailabilityQuery(event.getFeatureQuery(), event.getPolygon());
+		for (String blockKey : blockMap.keySet()) {
+			GeoavailabilityGrid blockGrid = new GeoavailabilityGrid(blockKey, GeoHash.MAX_PRECISION * 2 / 3);
+			Bitmap queryBitmap = null;
+			if (geoQuery.getPolygon() != null)
+				queryBitmap = QueryPlanCache.getInstance().getGridBitmap(geoQuery, blockGrid);
+			if (queryBitmap != null && queryBitmap.cardinality() == 0)
+				continue;
+			for (String blockPath : blockMap.get(blockKey)) {
+				if (!fs.mayMatch(blockPath, event.getFeatureQuery()))
+					continue;
+				QueryProcessor qp = new QueryProcessor(fs, blockPath, geoQuery, blockGrid, queryBitmap,
+						event.getAggregation(), deadline);
+				queryProcessors.add(qp);
+				executor.execute(qp);
+			}
+		}
+		if (!deadline.await(executor))
+			logger.log(Level.WARNING, "Aggregation of query " + event.getQueryId() + " stopped at its deadline");
+
+		AggregateStatistics statistics = new AggregateStatistics();
+		for (QueryProcessor qp : queryProcessors)
+			if (qp.getStatistics() != null)
+				statistics.merge(qp.getStatistics());
+		return statistics;
+	}
+
 	@EventHandler
 	public void handleQueryResponse(QueryResponse response, EventContext context) throws IOException {
 		QueryTracker tracker = queryTrackers.get(response.getId());
@@ -1068,6 +1416,11 @@ public class StorageNode implements RequestListener {
 			logger.info("Sending collective response to the client");
 			if(requestHandler instanceof ClientRequestHandler) {
 				this.requestHandlers.remove(requestHandler);
+				if (response instanceof QueryResponse) {
+					QueryResultCache.Entry cacheEntry = cachedQueries.remove(((QueryResponse) response).getId());
+					if (cacheEntry != null)
+						queryCache.complete(cacheEntry, (QueryResponse) response);
+				}
 			} else if (requestHandler instanceof NeighborRequestHandler) {
 				this.rikiHandlers.remove(requestHandler);
 				requestHandler = null;
@@ -1170,6 +1523,7 @@ public class StorageNode implements RequestListener {
 				try {
 					ClientRequestHandler reqHandler = new ClientRequestHandler(new ArrayList<NetworkDestination>(nodes),
 							context, this);
+					reqHandler.setDeadline(request.getDeadline());
 					
 					/* Sending out query to all nodes */
 					reqHandler.handleRequest(dintEvent, response);
@@ -1226,6 +1580,8 @@ public class StorageNode implements RequestListener {
 		dintEvent.setLongRelax(request.getLongRelax());
 		dintEvent.setFixedBeta(request.isFixedBeta());
 		dintEvent.setModel(request.getModel());
+		dintEvent.setDeadline(request.getDeadline());
+		dintEvent.setExplain(request.isExplain());
 		
 		return dintEvent;
 	}
@@ -1344,6 +1700,9 @@ public class StorageNode implements RequestListener {
 					
 					// This will come in handy while receiving neighbor responses from requested nodes.
 					Map<Integer, Integer> superCubeNumNodesMap = new HashMap<Integer, Integer>();
+					
+					// Geohashes of FS2 data requested from each node, reported when explaining
+					Map<String, Integer> nodeToFragmentsMap = new HashMap<String, Integer>();
 	
 					Partitioner<Metadata> partitioner = fs2.getPartitioner();
 					Map<String, BorderingProperties> borderMap = fs1.getBorderMap();
@@ -1404,10 +1763,10 @@ public class StorageNode implements RequestListener {
 								if(hasUp && hasDown) {
 									break;
 								}
-								if(bpr.getUpTimeEntries().size() > 0) {
+								if(!bpr.getUpTimeEntries().isEmpty()) {
 									hasUp = true;
 								}
-								if(bpr.getDownTimeEntries().size() > 0) {
+								if(!bpr.getDownTimeEntries().isEmpty()) {
 									hasDown = true;
 								}
 							}
@@ -1475,6 +1834,9 @@ public class StorageNode implements RequestListener {
 								nodeToCubeMap.put(key, cubeIndices);
 	
 								SuperCube.addToCubeNodeMap(supercubeToNodeMap, superCubeNumNodesMap, key, indx);
+								Integer fragments = nodeToFragmentsMap.get(key);
+								nodeToFragmentsMap.put(key,
+										((fragments == null) ? 0 : fragments) + validNeighborsGeohash.length);
 	
 							}
 	
@@ -1486,6 +1848,26 @@ public class StorageNode implements RequestListener {
 					Set<NodeInfo> setNodes = new TreeSet<NodeInfo>(destinations);
 					destinations = new ArrayList<NodeInfo>(setNodes);
 					
+					if (event.isExplain()) {
+						JSONObject plan = explainIntegration(fs1, paths1);
+						plan.put("numSuperCubes", allCubes.size());
+						JSONArray nodePlans = new JSONArray();
+						for (NodeInfo n : destinations) {
+							String nodeKey = n.getHostname() + "-" + n.getPort();
+							JSONObject nodePlan = new JSONObject();
+							nodePlan.put("hostName", n.getHostname());
+							nodePlan.put("hostPort", n.getPort());
+							nodePlan.put("numSuperCubes", nodeToCubeMap.get(nodeKey).size());
+							Integer fragments = nodeToFragmentsMap.get(nodeKey);
+							nodePlan.put("numFragments", (fragments == null) ? 0 : fragments);
+							nodePlans.put(nodePlan);
+						}
+						plan.put("destinations", nodePlans);
+						response.setPlan(plan);
+						context.sendReply(response);
+						return;
+					}
+					
 					logger.log(Level.INFO, "RIKI : FS2 REQUESTS BEING SENT OUT TO :"+ destinations);
 	
 					List<NeighborDataEvent> individualRequests = new ArrayList<NeighborDataEvent>();
@@ -1505,6 +1887,7 @@ public class StorageNode implements RequestListener {
 								fs2.getTemporalUncertaintyPrecision() : fs1.getTemporalUncertaintyPrecision();*/
 						
 						NeighborDataEvent nEvent = createNeighborRequestPerNode(cubeIndices, allCubes, fsName2,fsName1, superPolygon, event.getTime(), event.getFeatureQuery());
+						nEvent.setDeadline(event.getDeadline());
 	
 						/*if (thisNode) {
 							internalEvents.add(nEvent);
@@ -1522,6 +1905,7 @@ public class StorageNode implements RequestListener {
 					NeighborRequestHandler rikiHandler = new NeighborRequestHandler(null, individualRequests, new ArrayList<NetworkDestination>(destinations), context, this,
 							allCubes, superCubeNumNodesMap, numCores, geoQuery, fs1, eventId, queryResultsDir, aPosns, bPosns, epsilons, 
 							hostname, String.valueOf(port), interpolatingFeaturePosn, event.isFixedBeta(), event.getModel());
+					rikiHandler.setDeadline(new Deadline(event.getDeadline()));
 					this.rikiHandlers.add(rikiHandler);
 					rikiHandler.handleRequest(response);
 					logger.log(Level.INFO, "RIKI :FS2 REQUESTS FINISHED SENDING :"+ destinations);
@@ -1529,6 +1913,8 @@ public class StorageNode implements RequestListener {
 				} else {
 					// Empty Response
 					logger.log(Level.INFO, "RIKI :NO MATCHING FS1 PATHS FOUND");
+					if (event.isExplain())
+						response.setPlan(explainIntegration(fs1, new ArrayList<Path<Feature, String>>()));
 					context.sendReply(response);
 				}
 					
@@ -1550,6 +1936,32 @@ public class StorageNode implements RequestListener {
 
 	}
 	
+	/**
+	 * Describes the blocks of the first filesystem an integration would read
+	 * on this node. The nodes holding the second filesystem are added by the
+	 * caller, along with the supercubes and neighboring geohashes each of
+	 * them would be asked for.
+	 */
+	private JSONObject explainIntegration(GeospatialFileSystem fs1, List<Path<Feature, String>> paths) {
+		long blocks = 0, fileSize = 0;
+		for (Path<Feature, String> path : paths) {
+			for (String block : path.getPayload()) {
+				blocks++;
+				fileSize += new File(block).length();
+			}
+		}
+		JSONObject plan = new JSONObject();
+		plan.put("hostName", this.canonicalHostname);
+		plan.put("hostPort", this.port);
+		plan.put("filesystem", fs1.getName());
+		plan.put("numPaths", paths.size());
+		plan.put("numBlocks", blocks);
+		plan.put("fileSize", fileSize);
+		plan.put("numSuperCubes", 0);
+		plan.put("destinations", new JSONArray());
+		return plan;
+	}
+
 	private boolean checkForThisNode(NodeInfo n) {
 		
 		String hname = n.getHostname();
@@ -1628,6 +2040,7 @@ public class StorageNode implements RequestListener {
 		
 		GeospatialFileSystem reqFSystem = fsMap.get(reqfsName);
 		GeospatialFileSystem srcFSystem = fsMap.get(srcfsName);
+		Deadline deadline = new Deadline(event.getDeadline());
 		
 		//Partitioner<Metadata> fsPartitioner = reqFSystem.getPartitioner();
 		try{
@@ -1676,20 +2089,19 @@ public class StorageNode implements RequestListener {
 					GeoavailabilityGrid blockGrid = new GeoavailabilityGrid(geohash, GeoHash.MAX_PRECISION * 2 / 3);
 					Bitmap queryBitmap = null;
 					if (geoQuery.getPolygon() != null)
-						queryBitmap = QueryTransform.queryToGridBitmap(geoQuery, blockGrid);
+						queryBitmap = QueryPlanCache.getInstance().getGridBitmap(geoQuery, blockGrid);
 					logger.log(Level.INFO, "RIKI : QUERY BITMAP:"+path.getPayload()+" "+ queryBitmap);
 					/* The blocks need to be processed part by part */
 					/* Returns a 28 part list for all fragmented records in a single path */
-					NeighborDataQueryProcessor qp = new NeighborDataQueryProcessor(reqFSystem, path, geoQuery, blockGrid, queryBitmap, pathToFragmentsMap.get(path), context, pathIndex, nodeString);
+					NeighborDataQueryProcessor qp = new NeighborDataQueryProcessor(reqFSystem, path, geoQuery, blockGrid, queryBitmap, pathToFragmentsMap.get(path), context, pathIndex, nodeString, deadline);
 					queryProcessors.add(qp);
 					executor.execute(qp);
 					
 				}
-				executor.shutdown();
-				boolean status = executor.awaitTermination(10, TimeUnit.MINUTES);
+				boolean status = deadline.await(executor);
 				
 				if (!status)
-					logger.log(Level.WARNING, "RIKI: handleNeighborData:Executor terminated because of the specified timeout=10minutes");
+					logger.log(Level.WARNING, "RIKI: handleNeighborData:Executor terminated at the deadline of the request");
 				
 				
 			} else {
@@ -0,0 +1,250 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.fs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Compression applied to block data before it is written to disk. The codec
+ * is chosen per file system when it is created. Compressed data is written as
+ * a sequence of independent GZIP members, one per flush, so blocks can still
+ * be appended to and are decoded as a single stream.
+ *
+ * @author sapmitra
+ */
+public enum BlockCodec {
+	NONE, GZIP;
+
+	private static final int GZIP_MAGIC = 0x1f8b;
+	private static final int BUFFER_SIZE = 8192;
+
+	public static BlockCodec fromName(String name) {
+		for (BlockCodec codec : BlockCodec.values())
+			if (codec.name().equalsIgnoreCase(name))
+				return codec;
+		throw new IllegalArgumentException("Unknown block codec: " + name);
+	}
+
+	/**
+	 * Determines the codec of stored data from its leading bytes. Plain CSV
+	 * never starts with the GZIP magic number.
+	 */
+	public static BlockCodec detect(ByteBuffer data) {
+		if (data.limit() >= 2 && (data.getShort(0) & 0xffff) == GZIP_MAGIC)
+			return GZIP;
+		return NONE;
+	}
+
+	public static BlockCodec detect(byte[] data) {
+		return detect(ByteBuffer.wrap(data));
+	}
+
+	public byte[] compress(byte[] data) throws IOException {
+		if (this == NONE)
+			return data;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 4 + 64);
+		try (GZIPOutputStream out = new GZIPOutputStream(bytes, BUFFER_SIZE)) {
+			out.write(data);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Wraps a stream of encoded data so that it is decompressed as it is read.
+	 */
+	public InputStream decode(InputStream in) throws IOException {
+		if (this == NONE)
+			return in;
+		return new GZIPInputStream(in, BUFFER_SIZE);
+	}
+
+	public byte[] decompress(byte[] data) throws IOException {
+		if (this == NONE)
+			return data;
+		return readFully(decode(new ByteArrayInputStream(data)), data.length * 4);
+	}
+
+	public ByteBuffer decompress(ByteBuffer data) throws IOException {
+		if (this == NONE)
+			return data;
+		return ByteBuffer.wrap(readFully(decode(new ByteBufferInputStream(data)), data.remaining() * 4));
+	}
+
+	static byte[] readFully(InputStream in, int sizeHint) throws IOException {
+		try (InputStream stream = in) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(sizeHint, 32));
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int read;
+			while ((read = stream.read(buffer)) > 0)
+				bytes.write(buffer, 0, read);
+			return bytes.toByteArray();
+		}
+	}
+
+	/**
+	 * Decompresses GZIP data one member at a time, so that readers of a block
+	 * only hold the decoded contents of the member they are looking at rather
+	 * than the whole block.
+	 */
+	static class GzipMembers {
+		private static final int FHCRC = 2;
+		private static final int FEXTRA = 4;
+		private static final int FNAME = 8;
+		private static final int FCOMMENT = 16;
+		private static final int TRAILER_SIZE = 8;
+
+		private ByteBuffer data;
+		private Inflater inflater = new Inflater(true);
+		private byte[] input = new byte[BUFFER_SIZE];
+		private byte[] output = new byte[BUFFER_SIZE];
+
+		GzipMembers(ByteBuffer data) {
+			this.data = data.duplicate();
+		}
+
+		/**
+		 * Like {@link GZIPInputStream}, anything following the last member
+		 * that does not start with the GZIP magic number is ignored.
+		 */
+		boolean hasNext() {
+			return data.remaining() >= 2 && (data.getShort(data.position()) & 0xffff) == GZIP_MAGIC;
+		}
+
+		/** Offset of the next member in the data. */
+		int position() {
+			return data.position();
+		}
+
+		void seek(int position) {
+			data.position(position);
+		}
+
+		byte[] next() throws IOException {
+			skipHeader();
+			inflater.reset();
+			CRC32 crc = new CRC32();
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(BUFFER_SIZE);
+			try {
+				while (!inflater.finished()) {
+					if (inflater.needsInput()) {
+						int length = Math.min(input.length, data.remaining());
+						if (length == 0)
+							throw new EOFException("Unexpected end of compressed block");
+						data.get(input, 0, length);
+						inflater.setInput(input, 0, length);
+					}
+					int read = inflater.inflate(output);
+					if (read == 0 && inflater.needsDictionary())
+						throw new ZipException("Compressed block requires a dictionary");
+					crc.update(output, 0, read);
+					bytes.write(output, 0, read);
+				}
+			} catch (DataFormatException e) {
+				throw new ZipException(e.getMessage());
+			}
+			/* Hand back the input the inflater read past the member */
+			data.position(data.position() - inflater.getRemaining());
+			if (data.remaining() < TRAILER_SIZE)
+				throw new EOFException("Unexpected end of compressed block");
+			if (readIntLE() != (int) crc.getValue() || readIntLE() != bytes.size())
+				throw new ZipException("Corrupt compressed block member");
+			return bytes.toByteArray();
+		}
+
+		private void skipHeader() throws IOException {
+			if (data.remaining() < 10 || !hasNext())
+				throw new ZipException("Not a GZIP member");
+			data.position(data.position() + 2);
+			if ((data.get() & 0xff) != Deflater.DEFLATED)
+				throw new ZipException("Unsupported compression method");
+			int flags = data.get() & 0xff;
+			try {
+				/* Modification time, extra flags and OS */
+				data.position(data.position() + 6);
+				if ((flags & FEXTRA) != 0) {
+					int length = (data.get() & 0xff) | (data.get() & 0xff) << 8;
+					data.position(data.position() + length);
+				}
+				if ((flags & FNAME) != 0)
+					while (data.get() != 0)
+						;
+				if ((flags & FCOMMENT) != 0)
+					while (data.get() != 0)
+						;
+				if ((flags & FHCRC) != 0)
+					data.position(data.position() + 2);
+			} catch (BufferUnderflowException | IllegalArgumentException e) {
+				throw new EOFException("Unexpected end of compressed block");
+			}
+		}
+
+		private int readIntLE() {
+			return (data.get() & 0xff) | (data.get() & 0xff) << 8 | (data.get() & 0xff) << 16
+					| (data.get() & 0xff) << 24;
+		}
+	}
+
+	/* Streams a (possibly memory-mapped) buffer without copying it first */
+	static class ByteBufferInputStream extends InputStream {
+		private ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer.duplicate();
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? (buffer.get() & 0xff) : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (!buffer.hasRemaining())
+				return -1;
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
@@ -0,0 +1,229 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.fs;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import galileo.dataset.feature.Feature;
+
+/**
+ * Merges small blocks that share a storage directory into larger segments in
+ * the background. Ingest that names blocks after fine-grained geohashes leaves
+ * many tiny blocks for the same time and space; each of them is a separate
+ * path in the metadata graph and a separate file to open at query time.
+ * <p>
+ * Compaction deletes the blocks it merges, so it is off unless an interval is
+ * configured (galileo.fs.BlockCompactor.interval, in ms). Only blocks that
+ * have not been written to for a while are considered, and only blocks with
+ * the same path in the metadata graph are merged. Compaction runs on a single
+ * low-priority thread, pauses after every directory and handles a bounded
+ * number of directories per run. Merged blocks stay on disk for a grace
+ * period, and after that for as long as a running query or open cursor has
+ * them pinned (see {@link GeospatialFileSystem#pinBlocks(java.util.Collection)}).
+ *
+ * @author sapmitra
+ */
+public class BlockCompactor {
+
+	private static final Logger logger = Logger.getLogger("galileo");
+
+	/* Disabled; 10 minutes is a reasonable interval once enabled */
+	public static final long DEFAULT_INTERVAL = 0;
+	public static final int DEFAULT_MIN_BLOCKS = 8;
+	public static final long DEFAULT_SMALL_BLOCK_BYTES = 256 * 1024;
+	public static final long DEFAULT_MAX_SEGMENT_BYTES = 16 * 1024 * 1024;
+	public static final long DEFAULT_QUIET_PERIOD = 5 * 60 * 1000;
+	public static final long DEFAULT_PAUSE = 200;
+	public static final int DEFAULT_MAX_DIRECTORIES = 64;
+	public static final long DEFAULT_RETIRE_DELAY = 60 * 1000;
+
+	private GeospatialFileSystem fs;
+	private File storageDirectory;
+
+	private long interval;
+	private int minBlocks;
+	private long smallBlockBytes;
+	private long maxSegmentBytes;
+	private long quietPeriod;
+	private long pause;
+	private int maxDirectories;
+	private long retireDelay;
+
+	private ScheduledExecutorService executor;
+	private List<String> retiring = new ArrayList<>();
+
+	public BlockCompactor(GeospatialFileSystem fs, File storageDirectory) {
+		this.fs = fs;
+		this.storageDirectory = storageDirectory;
+		this.interval = Long.getLong("galileo.fs.BlockCompactor.interval", DEFAULT_INTERVAL);
+		this.minBlocks = Integer.getInteger("galileo.fs.BlockCompactor.minBlocks", DEFAULT_MIN_BLOCKS);
+		this.smallBlockBytes = Long.getLong("galileo.fs.BlockCompactor.smallBlockBytes", DEFAULT_SMALL_BLOCK_BYTES);
+		this.maxSegmentBytes = Long.getLong("galileo.fs.BlockCompactor.maxSegmentBytes", DEFAULT_MAX_SEGMENT_BYTES);
+		this.quietPeriod = Long.getLong("galileo.fs.BlockCompactor.quietPeriod", DEFAULT_QUIET_PERIOD);
+		this.pause = Long.getLong("galileo.fs.BlockCompactor.pause", DEFAULT_PAUSE);
+		this.maxDirectories = Integer.getInteger("galileo.fs.BlockCompactor.maxDirectories", DEFAULT_MAX_DIRECTORIES);
+		this.retireDelay = Long.getLong("galileo.fs.BlockCompactor.retireDelay", DEFAULT_RETIRE_DELAY);
+	}
+
+	/**
+	 * Schedules periodic compaction. Setting the interval to 0 disables it.
+	 */
+	public synchronized void start() {
+		if (interval <= 0 || executor != null)
+			return;
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "galileo-compactor");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					compact();
+				} catch (Exception e) {
+					logger.log(Level.SEVERE, "Block compaction failed", e);
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Performs a single compaction pass over the storage directory.
+	 *
+	 * @return number of blocks that were merged into segments
+	 */
+	public int compact() {
+		long cutoff = System.currentTimeMillis() - quietPeriod;
+		List<List<String>> candidates = new ArrayList<>();
+		findCandidates(storageDirectory, cutoff, candidates);
+		if (candidates.isEmpty())
+			return 0;
+
+		Map<String, List<Feature>> paths = fs.indexPathsByBlock();
+		int merged = 0;
+		int directories = 0;
+		for (List<String> blocks : candidates) {
+			if (directories++ >= maxDirectories)
+				break;
+			try {
+				List<String> retired = fs.compactBlocks(blocks, paths, minBlocks, maxSegmentBytes);
+				merged += retired.size();
+				scheduleRetirement(retired);
+			} catch (Exception e) {
+				logger.log(Level.WARNING, "Failed to compact blocks in " + new File(blocks.get(0)).getParent(), e);
+			}
+			try {
+				Thread.sleep(pause);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		if (merged > 0)
+			logger.info("Compacted " + merged + " small blocks");
+		return merged;
+	}
+
+	/*
+	 * Collects, per directory, the blocks that are small and have not been
+	 * modified since the cutoff.
+	 */
+	private void findCandidates(File directory, long cutoff, List<List<String>> candidates) {
+		File[] files = directory.listFiles();
+		if (files == null)
+			return;
+		Arrays.sort(files);
+		List<String> blocks = new ArrayList<>();
+		for (File file : files) {
+			if (file.isDirectory()) {
+				findCandidates(file, cutoff, candidates);
+			} else if (file.getName().endsWith(FileSystem.BLOCK_EXTENSION) && file.length() < smallBlockBytes
+					&& file.lastModified() < cutoff) {
+				String blockPath = file.getAbsolutePath();
+				if (!fs.isRetired(blockPath))
+					blocks.add(blockPath);
+			}
+		}
+		if (blocks.size() >= minBlocks)
+			candidates.add(blocks);
+	}
+
+	private synchronized void scheduleRetirement(final List<String> blocks) {
+		if (blocks.isEmpty())
+			return;
+		if (executor == null || executor.isShutdown()) {
+			/* Run by hand or shutting down; nothing left to wait for */
+			fs.deleteRetiredBlocks(blocks);
+			return;
+		}
+		retiring.addAll(blocks);
+		executor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				fs.deleteRetiredBlocks(blocks);
+				synchronized (BlockCompactor.this) {
+					retiring.removeAll(blocks);
+				}
+			}
+		}, retireDelay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops compaction. Blocks still waiting out their grace period are
+	 * deleted right away since no queries can be running anymore.
+	 */
+	public void shutdown() {
+		List<String> pending;
+		synchronized (this) {
+			if (executor == null)
+				return;
+			executor.shutdownNow();
+			pending = new ArrayList<>(retiring);
+			retiring.clear();
+		}
+		try {
+			executor.awaitTermination(30, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		fs.deleteRetiredBlocks(pending);
+	}
+}
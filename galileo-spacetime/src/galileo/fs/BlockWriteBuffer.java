@@ -0,0 +1,384 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.fs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import galileo.dataset.feature.FeatureType;
+
+/**
+ * Keeps a channel open for each recently written block and writes the appends
+ * made to them. By default every append is written out before
+ * {@link #append(String, byte[], FeatureType[], BlockCodec)} returns, so an
+ * acknowledged append is as durable as it was without the buffer.
+ * <p>
+ * Buffering is enabled by setting a positive flush interval
+ * (galileo.fs.BlockWriteBuffer.flushInterval). Appends are then held in memory
+ * until they exceed a size threshold or the interval elapses, and columnar
+ * blocks receive one row group per flush rather than one per append
+ * (compressed CSV blocks, one compressed member per flush). In that mode an
+ * append is acknowledged before it reaches the disk: up to flushInterval ms of
+ * appends can be lost if the node fails, even though the zone maps and border
+ * indexes already account for them. Nothing is fsynced in either mode.
+ * <p>
+ * Readers must call {@link #flush(String)} before reading a block so that
+ * buffered records are visible.
+ *
+ * @author sapmitra
+ */
+public class BlockWriteBuffer {
+
+	private static final Logger logger = Logger.getLogger("galileo");
+
+	public static final int DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+	public static final long DEFAULT_FLUSH_INTERVAL = 0;
+	public static final int DEFAULT_MAX_OPEN_CHANNELS = 256;
+
+	private int maxBytes;
+	private long flushInterval;
+	private int maxOpenChannels;
+
+	/* Access-ordered so that the coldest block is evicted first */
+	private Map<String, PendingBlock> blocks = new LinkedHashMap<>(16, 0.75f, true);
+	/* Evicted blocks whose buffered appends are still being written out */
+	private Map<String, PendingBlock> closing = new HashMap<>();
+	private ScheduledExecutorService flusher;
+
+	public BlockWriteBuffer() {
+		this(Integer.getInteger("galileo.fs.BlockWriteBuffer.maxBytes", DEFAULT_MAX_BYTES),
+				Long.getLong("galileo.fs.BlockWriteBuffer.flushInterval", DEFAULT_FLUSH_INTERVAL),
+				Integer.getInteger("galileo.fs.BlockWriteBuffer.maxOpenChannels", DEFAULT_MAX_OPEN_CHANNELS));
+	}
+
+	/**
+	 * @param maxBytes
+	 *            buffered bytes per block that trigger a flush
+	 * @param flushInterval
+	 *            maximum time (in ms) an append stays in memory, or 0 to write
+	 *            every append before it is acknowledged
+	 * @param maxOpenChannels
+	 *            number of block channels kept open at once
+	 */
+	public BlockWriteBuffer(int maxBytes, long flushInterval, int maxOpenChannels) {
+		this.maxBytes = maxBytes;
+		this.flushInterval = flushInterval;
+		this.maxOpenChannels = maxOpenChannels;
+		if (flushInterval > 0) {
+			this.flusher = Executors.newSingleThreadScheduledExecutor();
+			this.flusher.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					flushExpired();
+				}
+			}, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public boolean isBuffering() {
+		return flusher != null;
+	}
+
+	/**
+	 * Buffers data to be appended to a block.
+	 *
+	 * @param schema
+	 *            column types used if the block is (or will be) columnar, or
+	 *            null to append plain CSV
+	 * @param codec
+	 *            compression applied to the data when it is written out
+	 */
+	public void append(String blockPath, byte[] data, FeatureType[] schema, BlockCodec codec) throws IOException {
+		List<PendingBlock> evicted = new ArrayList<>();
+		try {
+			while (true) {
+				PendingBlock block = acquire(blockPath, schema, codec, evicted);
+				synchronized (block) {
+					/* Evicted while we were waiting; pick up its replacement */
+					if (block.retired)
+						continue;
+					block.add(data);
+					if (!isBuffering() || block.isNew() || block.size >= maxBytes)
+						block.flush();
+					return;
+				}
+			}
+		} finally {
+			for (PendingBlock block : evicted)
+				retire(block);
+		}
+	}
+
+	/*
+	 * Cold blocks are only unlinked here; they are written out and closed by
+	 * the caller once the buffer is unlocked. Until then they stay in the
+	 * closing map, so that a new append to the same block waits for them
+	 * instead of writing through a second channel.
+	 */
+	private synchronized PendingBlock acquire(String blockPath, FeatureType[] schema, BlockCodec codec,
+			List<PendingBlock> evicted) {
+		PendingBlock block = blocks.get(blockPath);
+		if (block != null)
+			return block;
+		block = closing.get(blockPath);
+		if (block != null && !block.retired)
+			return block;
+
+		block = new PendingBlock(blockPath, schema, codec);
+		blocks.put(blockPath, block);
+		Iterator<PendingBlock> iterator = blocks.values().iterator();
+		while (blocks.size() > maxOpenChannels) {
+			PendingBlock coldest = iterator.next();
+			iterator.remove();
+			closing.put(coldest.blockPath, coldest);
+			evicted.add(coldest);
+		}
+		return block;
+	}
+
+	private void retire(PendingBlock block) {
+		block.close();
+		synchronized (this) {
+			closing.remove(block.blockPath, block);
+		}
+	}
+
+	private synchronized PendingBlock find(String blockPath) {
+		PendingBlock block = blocks.get(blockPath);
+		return (block != null) ? block : closing.get(blockPath);
+	}
+
+	/**
+	 * Writes out any appends buffered for the given block.
+	 */
+	public void flush(String blockPath) throws IOException {
+		PendingBlock block = find(blockPath);
+		if (block != null) {
+			synchronized (block) {
+				block.flush();
+			}
+		}
+	}
+
+	/**
+	 * Writes out any appends buffered for the given block and closes its
+	 * channel. Used before a block is removed from disk.
+	 */
+	public void release(String blockPath) {
+		PendingBlock block;
+		synchronized (this) {
+			block = blocks.remove(blockPath);
+			if (block == null)
+				block = closing.get(blockPath);
+		}
+		if (block != null)
+			retire(block);
+	}
+
+	public void flushAll() throws IOException {
+		for (PendingBlock block : snapshot()) {
+			synchronized (block) {
+				block.flush();
+			}
+		}
+	}
+
+	/**
+	 * Flushes everything that is buffered and releases all open channels.
+	 */
+	public void shutdown() {
+		if (flusher != null) {
+			flusher.shutdown();
+			try {
+				flusher.awaitTermination(flushInterval * 2, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		List<PendingBlock> open;
+		synchronized (this) {
+			open = new ArrayList<>(blocks.values());
+			open.addAll(closing.values());
+			blocks.clear();
+		}
+		for (PendingBlock block : open)
+			retire(block);
+	}
+
+	private synchronized List<PendingBlock> snapshot() {
+		return new ArrayList<>(blocks.values());
+	}
+
+	private void flushExpired() {
+		long now = System.currentTimeMillis();
+		for (PendingBlock block : snapshot()) {
+			try {
+				synchronized (block) {
+					if (block.size > 0 && now - block.firstAppend >= flushInterval)
+						block.flush();
+				}
+			} catch (IOException e) {
+				logger.log(Level.SEVERE, "Failed to flush buffered appends to " + block.blockPath, e);
+			}
+		}
+	}
+
+	private static class PendingBlock {
+		private String blockPath;
+		private FeatureType[] schema;
+		private BlockCodec codec;
+		private FileChannel channel;
+		private boolean columnar;
+		private boolean created;
+		private volatile boolean retired;
+
+		private List<byte[]> chunks = new ArrayList<>();
+		private int size;
+		private long firstAppend;
+
+		private PendingBlock(String blockPath, FeatureType[] schema, BlockCodec codec) {
+			this.blockPath = blockPath;
+			this.schema = schema;
+			this.codec = codec;
+		}
+
+		private void add(byte[] data) {
+			if (chunks.isEmpty())
+				firstAppend = System.currentTimeMillis();
+			chunks.add(data);
+			size += data.length;
+		}
+
+		/*
+		 * The first append to a block that does not exist yet is written
+		 * right away, so the block is on disk as soon as its path is in the
+		 * metadata graph.
+		 */
+		private boolean isNew() throws IOException {
+			open();
+			return channel.size() == 0;
+		}
+
+		private void open() throws IOException {
+			if (channel != null)
+				return;
+			channel = FileChannel.open(Paths.get(blockPath), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.READ);
+			if (!created) {
+				if (channel.size() == 0) {
+					columnar = (schema != null);
+				} else {
+					ByteBuffer magic = ByteBuffer.allocate(4);
+					channel.read(magic, 0);
+					columnar = (schema != null) && magic.getInt(0) == ColumnarBlock.MAGIC;
+				}
+				created = true;
+			}
+		}
+
+		private void flush() throws IOException {
+			if (chunks.isEmpty())
+				return;
+			open();
+			long offset = channel.size();
+			if (columnar) {
+				byte[] rowGroup = ColumnarBlock.encode(join(false), schema, codec);
+				write(ByteBuffer.wrap(rowGroup), offset);
+				ColumnarBlock.appendIndexEntry(blockPath, offset, rowGroup);
+			} else if (codec != BlockCodec.NONE) {
+				/* Members decode as one stream, so the separator goes inside */
+				byte[] csv = join(offset > 0);
+				if (csv.length > 0)
+					write(ByteBuffer.wrap(codec.compress(csv)), offset);
+			} else {
+				byte[] csv = join(offset > 0);
+				if (csv.length > 0) {
+					write(ByteBuffer.wrap(csv), offset);
+					MappedBlockReader.appendLineIndexEntry(blockPath, offset, csv);
+				}
+			}
+			chunks.clear();
+			size = 0;
+		}
+
+		/**
+		 * Joins the pending chunks into newline-separated CSV. Empty chunks
+		 * hold no records and are left out, so that they do not turn into
+		 * empty lines between the records of other chunks.
+		 *
+		 * @param separated
+		 *            whether the block already holds records, which the first
+		 *            chunk has to be separated from.
+		 */
+		private byte[] join(boolean separated) throws IOException {
+			ByteArrayOutputStream csv = new ByteArrayOutputStream(size + chunks.size());
+			for (byte[] chunk : chunks) {
+				if (chunk.length == 0)
+					continue;
+				if (separated || csv.size() > 0)
+					csv.write('\n');
+				csv.write(chunk);
+			}
+			return csv.toByteArray();
+		}
+
+		private void write(ByteBuffer bytes, long position) throws IOException {
+			while (bytes.hasRemaining())
+				position += channel.write(bytes, position);
+		}
+
+		private synchronized void close() {
+			try {
+				flush();
+			} catch (IOException e) {
+				logger.log(Level.SEVERE, "Failed to flush buffered appends to " + blockPath, e);
+			}
+			try {
+				if (channel != null)
+					channel.close();
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Failed to close block channel " + blockPath, e);
+			}
+			channel = null;
+			retired = true;
+		}
+	}
+}
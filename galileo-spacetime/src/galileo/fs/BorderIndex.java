@@ -0,0 +1,206 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.fs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import galileo.serialization.SerializationInputStream;
+import galileo.serialization.SerializationOutputStream;
+import galileo.util.BorderingProperties;
+
+/**
+ * Persists the {@link BorderingProperties} of a block in a binary sidecar file
+ * next to the block. The sidecar starts with a full snapshot and is extended
+ * with one update record per append, each holding only the entries that were
+ * added. Once a sidecar holds more than a few dozen update records, the next
+ * append rewrites it as a single snapshot instead, so sidecars of blocks that
+ * are appended to for a long time stay bounded. Records are checksummed; a
+ * torn record at the end of the file (from a crash mid-write) is ignored when
+ * the sidecar is loaded.
+ *
+ * @author sapmitra
+ */
+public class BorderIndex {
+
+    private static final Logger logger = Logger.getLogger("galileo");
+
+    private static final byte SNAPSHOT = 0;
+    private static final byte UPDATE = 1;
+
+    /* type, payload length, checksum */
+    private static final int RECORD_HEADER_SIZE = 13;
+
+    /** Number of update records after which a sidecar is rewritten. */
+    private static final int COMPACTION_THRESHOLD = 64;
+
+    /* Update records following the snapshot, per sidecar written or loaded */
+    private static Map<String, Integer> updateCounts = new HashMap<>();
+
+    public static String indexPath(String blockPath) {
+        return blockPath.substring(0,
+                blockPath.length() - FileSystem.BLOCK_EXTENSION.length())
+            + FileSystem.BORDER_EXTENSION;
+    }
+
+    /**
+     * Replaces the sidecar of a block with a snapshot of the given
+     * properties.
+     */
+    public static synchronized void create(String blockPath,
+            BorderingProperties properties) throws IOException {
+        File index = new File(indexPath(blockPath));
+        File temp = new File(index.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(frame(SNAPSHOT, properties, 0));
+        }
+        Files.move(temp.toPath(), index.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        updateCounts.put(blockPath, 0);
+    }
+
+    /**
+     * Appends the entries of all records numbered firstRecord or higher to
+     * the sidecar of a block. If the sidecar already holds too many update
+     * records, it is replaced with a snapshot of the given properties, which
+     * must therefore be complete.
+     */
+    public static synchronized void appendUpdate(String blockPath,
+            BorderingProperties properties, long firstRecord)
+    throws IOException {
+        Integer updates = updateCounts.get(blockPath);
+        if (updates != null && updates >= COMPACTION_THRESHOLD) {
+            create(blockPath, properties);
+            return;
+        }
+        try (FileOutputStream out
+                = new FileOutputStream(indexPath(blockPath), true)) {
+            out.write(frame(UPDATE, properties, firstRecord));
+        }
+        if (updates != null) {
+            updateCounts.put(blockPath, updates + 1);
+        }
+    }
+
+    /**
+     * Drops the state kept for a sidecar that was deleted.
+     */
+    public static synchronized void forget(String blockPath) {
+        updateCounts.remove(blockPath);
+    }
+
+    /**
+     * Loads the bordering properties of a block from its sidecar.
+     *
+     * @return the properties, or null if the block has no sidecar.
+     */
+    public static synchronized BorderingProperties load(String blockPath)
+    throws IOException {
+        File index = new File(indexPath(blockPath));
+        if (index.exists() == false) {
+            return null;
+        }
+
+        ByteBuffer records = ByteBuffer.wrap(Files.readAllBytes(index.toPath()));
+        BorderingProperties properties = null;
+        int updates = 0;
+        while (records.remaining() >= RECORD_HEADER_SIZE) {
+            byte type = records.get();
+            int length = records.getInt();
+            long check = records.getLong();
+            if (length < 0 || length > records.remaining()) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            records.get(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if (crc.getValue() != check) {
+                break;
+            }
+
+            SerializationInputStream in = new SerializationInputStream(
+                    new ByteArrayInputStream(payload));
+            if (type == SNAPSHOT) {
+                properties = new BorderingProperties(in);
+            } else if (properties != null) {
+                properties.mergeEntries(in);
+                updates++;
+            }
+        }
+
+        if (properties == null) {
+            logger.log(Level.WARNING, "Unreadable border index: {0}", index);
+            return null;
+        }
+        if (records.hasRemaining()) {
+            logger.log(Level.WARNING, "Ignoring incomplete trailing record "
+                    + "in border index: {0}", index);
+        }
+        if (updates > COMPACTION_THRESHOLD || records.hasRemaining()) {
+            create(blockPath, properties);
+        } else {
+            updateCounts.put(blockPath, updates);
+        }
+        return properties;
+    }
+
+    private static byte[] frame(byte type, BorderingProperties properties,
+            long firstRecord) throws IOException {
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+        SerializationOutputStream out
+            = new SerializationOutputStream(payloadBytes);
+        if (type == SNAPSHOT) {
+            properties.serialize(out);
+        } else {
+            properties.serializeEntriesSince(firstRecord, out);
+        }
+        out.flush();
+        byte[] payload = payloadBytes.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(
+                RECORD_HEADER_SIZE + payload.length);
+        record.put(type);
+        record.putInt(payload.length);
+        record.putLong(crc.getValue());
+        record.put(payload);
+        return record.array();
+    }
+}
@@ -0,0 +1,71 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.fs;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import galileo.util.BorderingProperties;
+
+/**
+ * Maps block paths to their {@link BorderingProperties}. Properties that are
+ * not in memory yet are loaded from the block's {@link BorderIndex} sidecar the
+ * first time they are requested.
+ *
+ * @author sapmitra
+ */
+public class BorderMap extends ConcurrentHashMap<String, BorderingProperties> {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger logger = Logger.getLogger("galileo");
+
+    @Override
+    public BorderingProperties get(Object key) {
+        BorderingProperties properties = super.get(key);
+        if (properties != null || key instanceof String == false) {
+            return properties;
+        }
+
+        String blockPath = (String) key;
+        if (blockPath.endsWith(FileSystem.BLOCK_EXTENSION) == false) {
+            return null;
+        }
+        try {
+            properties = BorderIndex.load(blockPath);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to load border index for "
+                    + blockPath, e);
+        }
+        if (properties == null) {
+            return null;
+        }
+        BorderingProperties existing = putIfAbsent(blockPath, properties);
+        return (existing == null) ? properties : existing;
+    }
+}
@@ -0,0 +1,612 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.fs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import galileo.dataset.feature.FeatureType;
+import galileo.query.ColumnBatch;
+
+/**
+ * Column-oriented on-disk layout for the records of a block. A block file is a
+ * sequence of row groups, one per append, and every row group stores one typed
+ * column for each feature in the file system's feature list. Readers may
+ * project a subset of the columns; the remaining columns are skipped without
+ * being read or decoded.
+ * <p>
+ * A column is stored with its declared type only if every value of the row
+ * group reads back as exactly the text it was given; otherwise (empty values,
+ * "24.30", or an integer in a FLOAT column, for instance) it is stored as a
+ * STRING column for that row group, so that blocks are returned to clients
+ * as they were stored. When the file system uses a {@link BlockCodec}, each
+ * column payload is compressed on its own, so a projection only decompresses
+ * the columns it reads.
+ *
+ * @author sapmitra
+ */
+public class ColumnarBlock implements ColumnBatch {
+
+	/** Leading word of every row group. Never a valid start of UTF-8 text. */
+	public static final int MAGIC = 0xC01B10C5;
+
+	/* magic, record count, column count */
+	private static final int GROUP_HEADER_SIZE = 12;
+	/* type, payload length */
+	private static final int COLUMN_HEADER_SIZE = 5;
+	/* set in the type byte of columns whose payload is GZIP-compressed */
+	private static final int COMPRESSED_COLUMN = 0x80;
+	/* offset, length, record count */
+	static final int INDEX_ENTRY_SIZE = 16;
+
+	private int[] projection;
+	private Column[] columns;
+	private int recordCount;
+
+	private ColumnarBlock(int[] projection) {
+		this.projection = projection;
+		this.columns = new Column[projection.length];
+		for (int i = 0; i < columns.length; ++i)
+			columns[i] = new Column();
+	}
+
+	/**
+	 * Reports whether the block at the given path is stored in the columnar
+	 * format. Blocks written as plain CSV are reported as non-columnar.
+	 */
+	public static boolean isColumnar(String blockPath) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(blockPath), StandardOpenOption.READ)) {
+			if (channel.size() < 4)
+				return false;
+			ByteBuffer word = ByteBuffer.allocate(4);
+			readFully(channel, word, 0);
+			return word.getInt(0) == MAGIC;
+		}
+	}
+
+	/**
+	 * Maps a declared feature type to the type used for its column on disk.
+	 */
+	public static FeatureType storageType(FeatureType type) {
+		switch (type) {
+			case FLOAT:
+			case INT:
+			case LONG:
+			case DOUBLE:
+			case STRING:
+				return type;
+			default:
+				return FeatureType.STRING;
+		}
+	}
+
+	/**
+	 * Converts newline-separated CSV records into a single row group.
+	 *
+	 * @param data
+	 *            raw CSV bytes, as received in a {@link galileo.dataset.Block}
+	 * @param schema
+	 *            the column types, one per feature
+	 */
+	public static byte[] encode(byte[] data, FeatureType[] schema) throws IOException {
+		return encode(data, schema, BlockCodec.NONE);
+	}
+
+	/**
+	 * Converts newline-separated CSV records into a single row group whose
+	 * column payloads are compressed with the given codec.
+	 */
+	public static byte[] encode(byte[] data, FeatureType[] schema, BlockCodec codec) throws IOException {
+		String[] lines = MappedBlockReader.splitRecords(data);
+		String[][] fields = new String[schema.length][lines.length];
+		for (int i = 0; i < lines.length; ++i) {
+			String[] tokens = lines[i].split(",", schema.length);
+			for (int c = 0; c < schema.length; ++c)
+				fields[c][i] = (c < tokens.length) ? tokens[c] : "";
+		}
+
+		FeatureType[] types = new FeatureType[schema.length];
+		byte[][] payloads = new byte[schema.length][];
+		for (int c = 0; c < schema.length; ++c) {
+			types[c] = storageType(schema[c]);
+			payloads[c] = encodeColumn(types[c], fields[c]);
+			if (payloads[c] == null) {
+				types[c] = FeatureType.STRING;
+				payloads[c] = encodeColumn(types[c], fields[c]);
+			}
+			fields[c] = null;
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(lines.length);
+		out.writeInt(schema.length);
+		for (int c = 0; c < schema.length; ++c) {
+			if (codec != BlockCodec.NONE) {
+				payloads[c] = codec.compress(payloads[c]);
+				out.writeByte(types[c].toInt() | COMPRESSED_COLUMN);
+			} else {
+				out.writeByte(types[c].toInt());
+			}
+			out.writeInt(payloads[c].length);
+		}
+		for (byte[] payload : payloads)
+			out.write(payload);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Encodes the values of one column, or returns null if a value cannot be
+	 * represented as the requested type without changing its text.
+	 */
+	private static byte[] encodeColumn(FeatureType type, String[] values) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			for (String value : values) {
+				switch (type) {
+					case FLOAT:
+						float f = Float.parseFloat(value);
+						if (!Float.toString(f).equals(value))
+							return null;
+						out.writeFloat(f);
+						break;
+					case INT:
+						int n = Integer.parseInt(value);
+						if (!Integer.toString(n).equals(value))
+							return null;
+						out.writeInt(n);
+						break;
+					case LONG:
+						long l = Long.parseLong(value);
+						if (!Long.toString(l).equals(value))
+							return null;
+						out.writeLong(l);
+						break;
+					case DOUBLE:
+						double d = Double.parseDouble(value);
+						if (!Double.toString(d).equals(value))
+							return null;
+						out.writeDouble(d);
+						break;
+					default:
+						byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+						out.writeInt(utf8.length);
+						out.write(utf8);
+				}
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Reads every column of a columnar block.
+	 *
+	 * @param numColumns
+	 *            number of features in the file system's feature list
+	 */
+	public static ColumnarBlock readAll(String blockPath, int numColumns) throws IOException {
+		int[] all = new int[numColumns];
+		for (int i = 0; i < numColumns; ++i)
+			all[i] = i;
+		return read(blockPath, all);
+	}
+
+	/**
+	 * Reads only the given columns of a columnar block. Column i of the
+	 * returned block corresponds to feature projection[i].
+	 */
+	public static ColumnarBlock read(String blockPath, int[] projection) throws IOException {
+		ColumnarBlock block = new ColumnarBlock(projection);
+		ByteBuffer buffer = map(blockPath);
+		int position = 0;
+		while (position < buffer.limit()) {
+			RowGroup group = RowGroup.parse(buffer, position, blockPath);
+			for (int p = 0; p < projection.length; ++p) {
+				int c = projection[p];
+				if (c >= group.getColumnCount())
+					block.columns[p].appendMissing(group.records);
+				else
+					block.columns[p].append(group.types[c], group.payload(buffer, c), group.records);
+			}
+			block.recordCount += group.records;
+			position = group.end();
+		}
+		return block;
+	}
+
+	/**
+	 * Maps a block file into memory (read-only). The mapping stays valid after
+	 * the underlying channel is closed.
+	 */
+	static MappedByteBuffer map(String blockPath) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(blockPath), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE)
+				throw new IOException("Block " + blockPath + " is too large to be mapped");
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		}
+	}
+
+	/**
+	 * Path of the record index kept next to a block. Each entry of the index
+	 * describes one row group: its offset, its length in bytes and the number
+	 * of records it holds.
+	 */
+	public static String indexPath(String blockPath) {
+		return blockPath.substring(0, blockPath.length() - FileSystem.BLOCK_EXTENSION.length())
+				+ FileSystem.INDEX_EXTENSION;
+	}
+
+	/**
+	 * Records a row group that was just appended to a block in the block's
+	 * record index.
+	 */
+	public static void appendIndexEntry(String blockPath, long offset, byte[] rowGroup) throws IOException {
+		ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+		entry.putLong(offset);
+		entry.putInt(rowGroup.length);
+		entry.putInt(ByteBuffer.wrap(rowGroup).getInt(4));
+		try (FileOutputStream out = new FileOutputStream(indexPath(blockPath), true)) {
+			out.write(entry.array());
+		}
+	}
+
+	/**
+	 * Re-creates the CSV representation of a columnar block, which is the
+	 * format clients expect when retrieving blocks.
+	 */
+	public static byte[] toCSV(String blockPath, int numColumns) throws IOException {
+		ColumnarBlock block = readAll(blockPath, numColumns);
+		StringBuilder sb = new StringBuilder();
+		for (int row = 0; row < block.recordCount; ++row) {
+			if (row > 0)
+				sb.append("\n");
+			for (int c = 0; c < block.columns.length; ++c) {
+				if (c > 0)
+					sb.append(",");
+				sb.append(block.getString(c, row));
+			}
+		}
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0)
+				throw new EOFException("Unexpected end of block");
+			position += read;
+		}
+		buffer.flip();
+	}
+
+	@Override
+	public int getRecordCount() {
+		return recordCount;
+	}
+
+	public int[] getProjection() {
+		return projection;
+	}
+
+	/**
+	 * Retrieves the type of a projected column. If any row group had to fall
+	 * back to STRING storage, the whole column is reported as STRING.
+	 */
+	@Override
+	public FeatureType getType(int column) {
+		FeatureType type = columns[column].type;
+		return (type == null) ? FeatureType.STRING : type;
+	}
+
+	@Override
+	public int[] getInts(int column) {
+		return columns[column].ints;
+	}
+
+	@Override
+	public long[] getLongs(int column) {
+		return columns[column].longs;
+	}
+
+	@Override
+	public float[] getFloats(int column) {
+		return columns[column].floats;
+	}
+
+	@Override
+	public double[] getDoubles(int column) {
+		return columns[column].doubles;
+	}
+
+	@Override
+	public String getString(int column, int row) {
+		return columns[column].getString(row);
+	}
+
+	/**
+	 * Retrieves a single record, containing only the projected columns.
+	 */
+	public String[] getRecord(int row) {
+		String[] record = new String[columns.length];
+		for (int c = 0; c < columns.length; ++c)
+			record[c] = columns[c].getString(row);
+		return record;
+	}
+
+	public List<String[]> toRecords() {
+		List<String[]> records = new ArrayList<>(recordCount);
+		for (int row = 0; row < recordCount; ++row)
+			records.add(getRecord(row));
+		return records;
+	}
+
+	/**
+	 * Header of a single row group, located within a mapped block.
+	 */
+	static class RowGroup {
+		int records;
+		FeatureType[] types;
+		boolean[] compressed;
+		/* start of each column payload, followed by the end of the group */
+		int[] offsets;
+		/* decompressed payloads of the compressed columns read so far */
+		ByteBuffer[] decoded;
+		/* lazily computed start of each value of STRING columns */
+		int[][] stringOffsets;
+
+		static RowGroup parse(ByteBuffer buffer, int position, String blockPath) throws IOException {
+			if (position + GROUP_HEADER_SIZE > buffer.limit() || buffer.getInt(position) != MAGIC)
+				throw new IOException("Corrupt row group in " + blockPath + " at offset " + position);
+			RowGroup group = new RowGroup();
+			group.records = buffer.getInt(position + 4);
+			int columns = buffer.getInt(position + 8);
+			group.types = new FeatureType[columns];
+			group.compressed = new boolean[columns];
+			group.offsets = new int[columns + 1];
+			group.decoded = new ByteBuffer[columns];
+			group.stringOffsets = new int[columns][];
+			int header = position + GROUP_HEADER_SIZE;
+			long offset = header + (long) columns * COLUMN_HEADER_SIZE;
+			for (int c = 0; c < columns; ++c) {
+				group.offsets[c] = (int) offset;
+				int type = buffer.get(header + c * COLUMN_HEADER_SIZE) & 0xff;
+				group.types[c] = FeatureType.fromInt(type & ~COMPRESSED_COLUMN);
+				group.compressed[c] = (type & COMPRESSED_COLUMN) != 0;
+				offset += buffer.getInt(header + c * COLUMN_HEADER_SIZE + 1);
+			}
+			if (offset > buffer.limit())
+				throw new IOException("Truncated row group in " + blockPath + " at offset " + position);
+			group.offsets[columns] = (int) offset;
+			return group;
+		}
+
+		int getColumnCount() {
+			return types.length;
+		}
+
+		int end() {
+			return offsets[offsets.length - 1];
+		}
+
+		/**
+		 * Retrieves the (decompressed) values of a column, positioned at the
+		 * first value.
+		 */
+		ByteBuffer payload(ByteBuffer buffer, int column) throws IOException {
+			if (decoded[column] != null)
+				return decoded[column].duplicate();
+			ByteBuffer payload = buffer.duplicate();
+			payload.limit(offsets[column + 1]);
+			payload.position(offsets[column]);
+			payload = payload.slice();
+			if (compressed[column]) {
+				decoded[column] = BlockCodec.GZIP.decompress(payload);
+				return decoded[column].duplicate();
+			}
+			return payload;
+		}
+
+		/**
+		 * Decodes a single value without touching the rest of the column.
+		 */
+		String getString(ByteBuffer buffer, int column, int row) throws IOException {
+			ByteBuffer values = payload(buffer, column);
+			switch (types[column]) {
+				case FLOAT:
+					return Float.toString(values.getFloat(row * 4));
+				case INT:
+					return Integer.toString(values.getInt(row * 4));
+				case LONG:
+					return Long.toString(values.getLong(row * 8));
+				case DOUBLE:
+					return Double.toString(values.getDouble(row * 8));
+				default:
+					if (stringOffsets[column] == null) {
+						int[] starts = new int[records];
+						int position = 0;
+						for (int i = 0; i < records; ++i) {
+							starts[i] = position;
+							position += 4 + values.getInt(position);
+						}
+						stringOffsets[column] = starts;
+					}
+					int position = stringOffsets[column][row];
+					byte[] utf8 = new byte[values.getInt(position)];
+					values.position(position + 4);
+					values.get(utf8);
+					return new String(utf8, StandardCharsets.UTF_8);
+			}
+		}
+	}
+
+	/**
+	 * Growable, typed storage for the values of one projected column.
+	 */
+	private static class Column {
+		private FeatureType type;
+		private int size;
+
+		private float[] floats;
+		private int[] ints;
+		private long[] longs;
+		private double[] doubles;
+		private String[] strings;
+
+		private void append(FeatureType groupType, ByteBuffer payload, int count) {
+			if (type == null)
+				type = groupType;
+			else if (type != groupType)
+				toStrings();
+			reserve(count);
+
+			for (int i = 0; i < count; ++i, ++size) {
+				switch (groupType) {
+					case FLOAT:
+						float f = payload.getFloat();
+						if (type == FeatureType.STRING)
+							strings[size] = Float.toString(f);
+						else
+							floats[size] = f;
+						break;
+					case INT:
+						int n = payload.getInt();
+						if (type == FeatureType.STRING)
+							strings[size] = Integer.toString(n);
+						else
+							ints[size] = n;
+						break;
+					case LONG:
+						long l = payload.getLong();
+						if (type == FeatureType.STRING)
+							strings[size] = Long.toString(l);
+						else
+							longs[size] = l;
+						break;
+					case DOUBLE:
+						double d = payload.getDouble();
+						if (type == FeatureType.STRING)
+							strings[size] = Double.toString(d);
+						else
+							doubles[size] = d;
+						break;
+					default:
+						byte[] utf8 = new byte[payload.getInt()];
+						payload.get(utf8);
+						strings[size] = new String(utf8, StandardCharsets.UTF_8);
+				}
+			}
+		}
+
+		private void appendMissing(int count) {
+			if (type != null && type != FeatureType.STRING)
+				toStrings();
+			type = FeatureType.STRING;
+			reserve(count);
+			Arrays.fill(strings, size, size + count, "");
+			size += count;
+		}
+
+		private void reserve(int count) {
+			int capacity = size + count;
+			switch (type) {
+				case FLOAT:
+					if (floats == null || floats.length < capacity)
+						floats = (floats == null) ? new float[capacity] : Arrays.copyOf(floats, grow(floats.length, capacity));
+					break;
+				case INT:
+					if (ints == null || ints.length < capacity)
+						ints = (ints == null) ? new int[capacity] : Arrays.copyOf(ints, grow(ints.length, capacity));
+					break;
+				case LONG:
+					if (longs == null || longs.length < capacity)
+						longs = (longs == null) ? new long[capacity] : Arrays.copyOf(longs, grow(longs.length, capacity));
+					break;
+				case DOUBLE:
+					if (doubles == null || doubles.length < capacity)
+						doubles = (doubles == null) ? new double[capacity]
+								: Arrays.copyOf(doubles, grow(doubles.length, capacity));
+					break;
+				default:
+					if (strings == null || strings.length < capacity)
+						strings = (strings == null) ? new String[capacity]
+								: Arrays.copyOf(strings, grow(strings.length, capacity));
+			}
+		}
+
+		private static int grow(int length, int capacity) {
+			return Math.max(capacity, length + (length >> 1));
+		}
+
+		/* Demotes the values read so far to their string representation */
+		private void toStrings() {
+			if (type == FeatureType.STRING)
+				return;
+			String[] converted = new String[Math.max(size, 1)];
+			for (int i = 0; i < size; ++i)
+				converted[i] = getString(i);
+			strings = converted;
+			floats = null;
+			ints = null;
+			longs = null;
+			doubles = null;
+			type = FeatureType.STRING;
+		}
+
+		private String getString(int row) {
+			switch (type) {
+				case FLOAT:
+					return Float.toString(floats[row]);
+				case INT:
+					return Integer.toString(ints[row]);
+				case LONG:
+					return Long.toString(longs[row]);
+				case DOUBLE:
+					return Double.toString(doubles[row]);
+				default:
+					return strings[row];
+			}
+		}
+	}
+}
@@ -32,6 +32,9 @@ import java.util.ArrayList;
 
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -47,6 +50,10 @@ public abstract class FileSystem implements PhysicalGraph {
 
     public static final String BLOCK_EXTENSION = ".gblock";
     public static final String METADATA_EXTENSION = ".metadata";
+    public static final String INDEX_EXTENSION = ".gindex";
+    public static final String LINE_INDEX_EXTENSION = ".glines";
+    public static final String BORDER_EXTENSION = ".gborder";
+    public static final String ZONE_EXTENSION = ".gzone";
 
     protected String name;
     protected File storageDirectory;
@@ -118,31 +125,51 @@ public abstract class FileSystem implements PhysicalGraph {
      * @return ArrayList of String paths to blocks on disk.
      */
     protected List<String> scanDirectory(File directory) {
-        List<String> blockPaths = new ArrayList<String>();
-        scanSubDirectory(directory, blockPaths);
-        return blockPaths;
+        return ForkJoinPool.commonPool().invoke(new DirectoryScan(directory));
     }
 
     /**
-     * Scans a directory (and its subdirectories) for blocks.
-     *
-     * @param directory
-     *     Directory file descriptor to scan
-     *
-     * @param fileList
-     *     ArrayList of Strings to populate with FileBlock paths.
+     * Scans a directory (and its subdirectories) for blocks.  Subdirectories
+     * are scanned as separate fork/join tasks, so that large directory trees
+     * are walked by several threads at once.
      */
-    private void scanSubDirectory(File directory, List<String> fileList) {
-        for (File file : directory.listFiles()) {
-            if (file.isDirectory()) {
-                scanSubDirectory(file, fileList);
-                continue;
+    private static class DirectoryScan extends RecursiveTask<List<String>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private File directory;
+
+        public DirectoryScan(File directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        protected List<String> compute() {
+            List<String> fileList = new ArrayList<>();
+            File[] files = directory.listFiles();
+            if (files == null) {
+                return fileList;
+            }
+
+            List<DirectoryScan> subScans = new ArrayList<>();
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    DirectoryScan scan = new DirectoryScan(file);
+                    scan.fork();
+                    subScans.add(scan);
+                    continue;
+                }
+
+                String fileName = file.getAbsolutePath();
+                if (fileName.endsWith(FileSystem.BLOCK_EXTENSION)) {
+                    fileList.add(fileName);
+                }
             }
 
-            String fileName = file.getAbsolutePath();
-            if (fileName.endsWith(FileSystem.BLOCK_EXTENSION)) {
-                fileList.add(fileName);
+            for (DirectoryScan scan : subScans) {
+                fileList.addAll(scan.join());
             }
+            return fileList;
         }
     }
 
@@ -182,11 +209,20 @@ public abstract class FileSystem implements PhysicalGraph {
         PerformanceTimer recoveryTimer = new PerformanceTimer();
         recoveryTimer.start();
         logger.info("Recovering metadata and building graph");
+
+        /* Metadata is deserialized in parallel; the graph is built serially */
+        Metadata[] metadata = new Metadata[blockPaths.size()];
+        ForkJoinPool.commonPool().invoke(
+                new MetadataLoader(blockPaths, metadata, 0, metadata.length));
+
         long counter = 0;
-        for (String path : blockPaths) {
+        for (int i = 0; i < metadata.length; ++i) {
+            String path = blockPaths.get(i);
+            if (metadata[i] == null) {
+                continue;
+            }
             try {
-                Metadata metadata = loadMetadata(path);
-                storeMetadata(metadata, path);
+                storeMetadata(metadata[i], path);
                 ++counter;
                 if (counter % 10000 == 0) {
                     logger.info(String.format("%d blocks scanned, " +
@@ -203,6 +239,50 @@ public abstract class FileSystem implements PhysicalGraph {
                 + recoveryTimer.getLastResult() + " ms.");
     }
 
+    /**
+     * Loads the metadata of a range of blocks, splitting the range in half
+     * until it is small enough to be handled by a single task.
+     */
+    private class MetadataLoader extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private static final int THRESHOLD = 256;
+
+        private List<String> blockPaths;
+        private Metadata[] metadata;
+        private int start;
+        private int end;
+
+        public MetadataLoader(List<String> blockPaths, Metadata[] metadata,
+                int start, int end) {
+            this.blockPaths = blockPaths;
+            this.metadata = metadata;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > THRESHOLD) {
+                int middle = (start + end) >>> 1;
+                invokeAll(
+                        new MetadataLoader(blockPaths, metadata, start, middle),
+                        new MetadataLoader(blockPaths, metadata, middle, end));
+                return;
+            }
+
+            for (int i = start; i < end; ++i) {
+                String path = blockPaths.get(i);
+                try {
+                    metadata[i] = loadMetadata(path);
+                } catch (Exception e) {
+                    logger.log(Level.WARNING, "Failed to recover metadata " +
+                            "for block: " + path, e);
+                }
+            }
+        }
+    }
+
     @Override
     public Block loadBlock(String blockPath)
     throws IOException, SerializationException {
@@ -0,0 +1,396 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.fs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import galileo.util.GeoHash;
+
+/**
+ * The set of geohashes a file system holds data for, kept in sorted order so
+ * that the geohashes under a prefix, or within a range of a covering, are
+ * found with a binary search and returned in time proportional to their
+ * number.
+ * <p>
+ * Geohashes of up to 12 characters are encoded as longs: five bits per
+ * character, left aligned, followed by the length. Codes sort the same way
+ * as the geohashes themselves, and the geohashes under a prefix form a
+ * contiguous range of codes. Anything else (such as the placeholder used for
+ * blocks without spatial properties) is kept as a sorted array of Strings.
+ * <p>
+ * The index never changes in place. New geohashes go to a small sorted array
+ * that is merged into the main one once it fills up, and each change
+ * publishes a new {@link Snapshot}, so lookups never block and may run while
+ * blocks are being stored.
+ *
+ * @author sapmitra
+ */
+public class GeohashIndex {
+
+	private static final int MAX_LENGTH = 12;
+
+	/* New geohashes kept apart from the main array before being merged */
+	private static final int RECENT_SIZE = 256;
+
+	private static final int[] CHAR_VALUES = new int[128];
+
+	static {
+		Arrays.fill(CHAR_VALUES, -1);
+		for (int i = 0; i < GeoHash.charMap.length; ++i)
+			CHAR_VALUES[GeoHash.charMap[i]] = i;
+	}
+
+	private static final class Snapshot {
+		final long[] codes;
+		final long[] recent;
+		final String[] others;
+
+		Snapshot(long[] codes, long[] recent, String[] others) {
+			this.codes = codes;
+			this.recent = recent;
+			this.others = others;
+		}
+	}
+
+	private volatile Snapshot snapshot = new Snapshot(new long[0], new long[0], new String[0]);
+
+	public GeohashIndex() {
+	}
+
+	public GeohashIndex(Collection<String> geohashes) {
+		long[] codes = new long[geohashes.size()];
+		int size = 0;
+		List<String> others = new ArrayList<>();
+		for (String geohash : geohashes) {
+			long code = encode(geohash);
+			if (code == -1)
+				others.add(geohash);
+			else
+				codes[size++] = code;
+		}
+		codes = distinct(codes, size);
+		String[] sortedOthers = others.toArray(new String[others.size()]);
+		Arrays.sort(sortedOthers);
+		int distinctOthers = 0;
+		for (int i = 0; i < sortedOthers.length; ++i)
+			if (distinctOthers == 0 || !sortedOthers[distinctOthers - 1].equals(sortedOthers[i]))
+				sortedOthers[distinctOthers++] = sortedOthers[i];
+		this.snapshot = new Snapshot(codes, new long[0], Arrays.copyOf(sortedOthers, distinctOthers));
+	}
+
+	private static long[] distinct(long[] codes, int size) {
+		Arrays.sort(codes, 0, size);
+		int distinct = 0;
+		for (int i = 0; i < size; ++i)
+			if (distinct == 0 || codes[distinct - 1] != codes[i])
+				codes[distinct++] = codes[i];
+		return Arrays.copyOf(codes, distinct);
+	}
+
+	/**
+	 * Adds a geohash to the index.
+	 *
+	 * @return true if the geohash was not in the index already.
+	 */
+	public boolean add(String geohash) {
+		if (contains(geohash))
+			return false;
+		synchronized (this) {
+			Snapshot current = snapshot;
+			long code = encode(geohash);
+			if (code == -1) {
+				int position = Arrays.binarySearch(current.others, geohash);
+				if (position >= 0)
+					return false;
+				snapshot = new Snapshot(current.codes, current.recent, insert(current.others, -position - 1, geohash));
+				return true;
+			}
+			if (Arrays.binarySearch(current.codes, code) >= 0)
+				return false;
+			int position = Arrays.binarySearch(current.recent, code);
+			if (position >= 0)
+				return false;
+
+			long[] recent = new long[current.recent.length + 1];
+			position = -position - 1;
+			System.arraycopy(current.recent, 0, recent, 0, position);
+			recent[position] = code;
+			System.arraycopy(current.recent, position, recent, position + 1, current.recent.length - position);
+			if (recent.length < RECENT_SIZE) {
+				snapshot = new Snapshot(current.codes, recent, current.others);
+			} else {
+				snapshot = new Snapshot(merge(current.codes, recent), new long[0], current.others);
+			}
+			return true;
+		}
+	}
+
+	private static String[] insert(String[] values, int position, String value) {
+		String[] inserted = new String[values.length + 1];
+		System.arraycopy(values, 0, inserted, 0, position);
+		inserted[position] = value;
+		System.arraycopy(values, position, inserted, position + 1, values.length - position);
+		return inserted;
+	}
+
+	private static long[] merge(long[] a, long[] b) {
+		long[] merged = new long[a.length + b.length];
+		int i = 0, j = 0, k = 0;
+		while (i < a.length && j < b.length)
+			merged[k++] = (a[i] <= b[j]) ? a[i++] : b[j++];
+		while (i < a.length)
+			merged[k++] = a[i++];
+		while (j < b.length)
+			merged[k++] = b[j++];
+		return merged;
+	}
+
+	public boolean contains(String geohash) {
+		Snapshot current = snapshot;
+		long code = encode(geohash);
+		if (code == -1)
+			return Arrays.binarySearch(current.others, geohash) >= 0;
+		return Arrays.binarySearch(current.codes, code) >= 0 || Arrays.binarySearch(current.recent, code) >= 0;
+	}
+
+	/**
+	 * Determines whether any geohash in the index starts with the given
+	 * prefix.
+	 */
+	public boolean containsPrefix(String prefix) {
+		return !getGeohashes(prefix, 1).isEmpty();
+	}
+
+	/**
+	 * Retrieves the geohashes in the index that start with the given prefix,
+	 * in sorted order.
+	 */
+	public List<String> getGeohashes(String prefix) {
+		return getGeohashes(prefix, Integer.MAX_VALUE);
+	}
+
+	private List<String> getGeohashes(String prefix, int limit) {
+		Snapshot current = snapshot;
+		List<String> geohashes = new ArrayList<>();
+		long low = encode(prefix);
+		if (low != -1) {
+			/* Everything that follows the prefix may be set */
+			int free = (MAX_LENGTH - prefix.length()) * GeoHash.BITS_PER_CHAR + 4;
+			long high = (free == 64) ? Long.MAX_VALUE : low | ((1L << free) - 1);
+			collect(current, low, high, geohashes, limit);
+		}
+		int encoded = geohashes.size();
+		for (String other : current.others) {
+			if (geohashes.size() >= limit)
+				break;
+			if (other.startsWith(prefix))
+				geohashes.add(other);
+		}
+		if (geohashes.size() > encoded)
+			Collections.sort(geohashes);
+		return geohashes;
+	}
+
+	/**
+	 * Retrieves the geohashes in the index that fall within a range, such as
+	 * one of the ranges of a covering, in sorted order. Both ends are
+	 * inclusive.
+	 */
+	public List<String> getGeohashes(String low, String high) {
+		return getGeohashes(low, high, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Determines whether any geohash in the index falls within a range. Both
+	 * ends are inclusive.
+	 */
+	public boolean intersects(String low, String high) {
+		return !getGeohashes(low, high, 1).isEmpty();
+	}
+
+	private List<String> getGeohashes(String low, String high, int limit) {
+		Snapshot current = snapshot;
+		List<String> geohashes = new ArrayList<>();
+		long lowCode = encode(low);
+		long highCode = encode(high);
+		if (lowCode != -1 && highCode != -1)
+			collect(current, lowCode, highCode, geohashes, limit);
+		else
+			collect(current, low, high, geohashes, limit);
+		int encoded = geohashes.size();
+		for (String other : current.others) {
+			if (geohashes.size() >= limit)
+				break;
+			if (other.compareTo(low) >= 0 && other.compareTo(high) <= 0)
+				geohashes.add(other);
+		}
+		if (geohashes.size() > encoded)
+			Collections.sort(geohashes);
+		return geohashes;
+	}
+
+	/**
+	 * Retrieves the geohashes in the index that lie under any of the given
+	 * geohashes, such as those returned by
+	 * {@link GeoHash#getIntersectingGeohashes(List)} for a polygon.
+	 */
+	public List<String> getIntersecting(Collection<String> prefixes) {
+		String[] sorted = prefixes.toArray(new String[prefixes.size()]);
+		Arrays.sort(sorted);
+		List<String> geohashes = new ArrayList<>();
+		String previous = null;
+		for (String prefix : sorted) {
+			/* Prefixes under one already collected add nothing */
+			if (previous != null && prefix.startsWith(previous))
+				continue;
+			geohashes.addAll(getGeohashes(prefix));
+			previous = prefix;
+		}
+		return geohashes;
+	}
+
+	/**
+	 * Adds the geohashes with codes in [low, high] to a list, merging the
+	 * main and recent arrays so that they stay in order.
+	 */
+	private static void collect(Snapshot snapshot, long low, long high, List<String> geohashes, int limit) {
+		long[] codes = snapshot.codes;
+		long[] recent = snapshot.recent;
+		int i = lowerBound(codes, low);
+		int j = lowerBound(recent, low);
+		while (geohashes.size() < limit) {
+			boolean fromCodes = i < codes.length && codes[i] <= high;
+			boolean fromRecent = j < recent.length && recent[j] <= high;
+			if (fromCodes && (!fromRecent || codes[i] < recent[j]))
+				geohashes.add(decode(codes[i++]));
+			else if (fromRecent)
+				geohashes.add(decode(recent[j++]));
+			else
+				break;
+		}
+	}
+
+	/**
+	 * Adds the geohashes within [low, high] to a list when either end cannot
+	 * be encoded, comparing the geohashes themselves instead of their codes.
+	 */
+	private static void collect(Snapshot snapshot, String low, String high, List<String> geohashes, int limit) {
+		long[] codes = snapshot.codes;
+		long[] recent = snapshot.recent;
+		int i = lowerBound(codes, low);
+		int j = lowerBound(recent, low);
+		while (geohashes.size() < limit) {
+			String fromCodes = (i < codes.length) ? decode(codes[i]) : null;
+			String fromRecent = (j < recent.length) ? decode(recent[j]) : null;
+			if (fromCodes != null && fromCodes.compareTo(high) > 0)
+				fromCodes = null;
+			if (fromRecent != null && fromRecent.compareTo(high) > 0)
+				fromRecent = null;
+			if (fromCodes != null && (fromRecent == null || codes[i] < recent[j])) {
+				geohashes.add(fromCodes);
+				i++;
+			} else if (fromRecent != null) {
+				geohashes.add(fromRecent);
+				j++;
+			} else {
+				break;
+			}
+		}
+	}
+
+	private static int lowerBound(long[] codes, String value) {
+		int low = 0;
+		int high = codes.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (decode(codes[mid]).compareTo(value) < 0)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	private static int lowerBound(long[] codes, long value) {
+		int low = 0;
+		int high = codes.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (codes[mid] < value)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Retrieves every geohash in the index, in sorted order.
+	 */
+	public List<String> toList() {
+		return getGeohashes("");
+	}
+
+	public int size() {
+		Snapshot current = snapshot;
+		return current.codes.length + current.recent.length + current.others.length;
+	}
+
+	/**
+	 * Encodes a geohash as a long that sorts the same way, or returns -1 if
+	 * it cannot be encoded. The top bit is flipped so that codes compare
+	 * correctly as signed values.
+	 */
+	private static long encode(String geohash) {
+		if (geohash.length() > MAX_LENGTH)
+			return -1;
+		long code = 0;
+		for (int i = 0; i < geohash.length(); ++i) {
+			char c = geohash.charAt(i);
+			int value = (c < CHAR_VALUES.length) ? CHAR_VALUES[c] : -1;
+			if (value == -1)
+				return -1;
+			code = (code << GeoHash.BITS_PER_CHAR) | value;
+		}
+		code <<= (MAX_LENGTH - geohash.length()) * GeoHash.BITS_PER_CHAR;
+		return ((code << 4) | geohash.length()) ^ Long.MIN_VALUE;
+	}
+
+	private static String decode(long code) {
+		code ^= Long.MIN_VALUE;
+		int length = (int) (code & 0xF);
+		char[] geohash = new char[length];
+		for (int i = 0; i < length; ++i) {
+			int shift = 4 + (MAX_LENGTH - 1 - i) * GeoHash.BITS_PER_CHAR;
+			geohash[i] = GeoHash.charMap[(int) ((code >>> shift) & 0x1F)];
+		}
+		return new String(geohash);
+	}
+}
@@ -27,30 +27,38 @@ package galileo.fs;
 
 import java.awt.Polygon;
 import java.awt.Rectangle;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -63,6 +71,7 @@ import galileo.bmp.GeoavailabilityGrid;
 import galileo.bmp.GeoavailabilityMap;
 import galileo.bmp.GeoavailabilityQuery;
 import galileo.bmp.QueryTransform;
+import galileo.comm.Aggregation;
 import galileo.comm.SpatialGrid;
 import galileo.comm.TemporalType;
 import galileo.dataset.Block;
@@ -74,6 +83,7 @@ import galileo.dataset.SpatialProperties;
 import galileo.dataset.SpatialRange;
 import galileo.dataset.TemporalProperties;
 import galileo.dataset.feature.Feature;
+import galileo.dataset.feature.FeatureInterner;
 import galileo.dataset.feature.FeatureSet;
 import galileo.dataset.feature.FeatureType;
 import galileo.dht.GroupInfo;
@@ -92,14 +102,19 @@ import galileo.dht.hash.TemporalHash;
 import galileo.graph.FeaturePath;
 import galileo.graph.MetadataGraph;
 import galileo.graph.Path;
+import galileo.query.CompiledQuery;
 import galileo.query.Expression;
 import galileo.query.Operation;
 import galileo.query.Operator;
 import galileo.query.Query;
+import galileo.query.QueryPlanCache;
 import galileo.serialization.SerializationException;
 import galileo.serialization.Serializer;
+import galileo.stat.AggregateStatistics;
+import galileo.stat.RunningStatistics;
 import galileo.util.PathFragments;
 import galileo.util.BorderingProperties;
+import galileo.util.Deadline;
 import galileo.util.GeoHash;
 import galileo.util.Math;
 import galileo.util.OrientationManager;
@@ -123,6 +138,11 @@ public class GeospatialFileSystem extends FileSystem {
 	private static final String DEFAULT_TIME_FORMAT = "yyyy" + File.separator + "M" + File.separator + "d";
 	private static final int DEFAULT_GEOHASH_PRECISION = 4;
 	private static final int MIN_GRID_POINTS = 5000;
+	/* Number of records a query processor handles between deadline checks */
+	private static final int DEADLINE_CHECK_INTERVAL = 1024;
+	/* Whether checkpoints move the metadata graph into its compact form */
+	private static final boolean COMPACT_GRAPH = Boolean.parseBoolean(
+			System.getProperty("galileo.fs.GeospatialFileSystem.compactGraph", "true"));
 	private int numCores;
 
 	private static final String pathStore = "metadata.paths";
@@ -143,6 +163,36 @@ public class GeospatialFileSystem extends FileSystem {
 	private MetadataGraph metadataGraph;
 
 	private PathJournal pathJournal;
+	/* Shares the Features of the paths in the metadata graph */
+	private final FeatureInterner featureInterner = new FeatureInterner();
+	private BlockWriteBuffer writeBuffer;
+	private BlockCodec blockCodec = BlockCodec.NONE;
+	private BlockCompactor compactor;
+	private GraphCheckpointer checkpointer;
+	/* Told about blocks replaced by compaction; null when running standalone */
+	private StorageNode storageNode;
+
+	private static final String SEGMENT_PREFIX = "_segment-";
+	private static final AtomicLong segmentSequence = new AtomicLong();
+	/*
+	 * Appends take the read lock; merging blocks into a segment and copying
+	 * the graph for a snapshot take the write lock
+	 */
+	private final ReentrantReadWriteLock compactionLock = new ReentrantReadWriteLock();
+	/* Blocks merged into segments that are still on disk */
+	private final Set<String> retiredBlocks = ConcurrentHashMap.newKeySet();
+	/*
+	 * Number of running queries and open cursors that may read each block,
+	 * and the retired blocks whose deletion waits for them. Both are guarded
+	 * by retiredBlocks.
+	 */
+	private final Map<String, Integer> pinnedBlocks = new HashMap<>();
+	private final Set<String> pendingDeletion = new HashSet<>();
+	/*
+	 * Blocks that take the appends for a retired block while it is pinned,
+	 * also guarded by retiredBlocks
+	 */
+	private final Map<String, String> successorBlocks = new HashMap<>();
 
 	private SimpleDateFormat timeFormatter;
 	private String timeFormat;
@@ -151,7 +201,7 @@ public class GeospatialFileSystem extends FileSystem {
 	private TemporalProperties earliestTime;
 	private String latestSpace;
 	private String earliestSpace;
-	private Set<String> geohashIndex;
+	private GeohashIndex geohashIndex;
 	private int temporalPosn;
 	private int spatialPosn1;
 	private int spatialPosn2;
@@ -164,8 +214,28 @@ public class GeospatialFileSystem extends FileSystem {
 	private static final String SPATIAL_FEATURE = "x__spatial__x";
 	private static final String SPATIAL_BORDER_FEATURE = "x__spatialborder__x";
 	private static final String TEMPORAL_BORDER_FEATURE = "x__temporalborder__x";
+
+	private static final int ZONE_MAP_CACHE_SIZE = Integer
+			.getInteger("galileo.fs.GeospatialFileSystem.zoneMapCacheSize", 4096);
+	private static final int ZONE_MAP_LOCKS = 64;
 	
 	private Map<String, BorderingProperties> borderMap;
+	/* Zone maps of the blocks that have recently been queried or written to; see ZoneMap */
+	private final Map<String, ZoneMap> zoneMaps = Collections.synchronizedMap(
+			new LinkedHashMap<String, ZoneMap>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, ZoneMap> e) {
+					return size() > ZONE_MAP_CACHE_SIZE;
+				}
+			});
+	/* Sidecar updates and loads of a block are serialized on one of these */
+	private final Object[] zoneMapLocks = new Object[ZONE_MAP_LOCKS];
+	{
+		for (int i = 0; i < zoneMapLocks.length; ++i)
+			zoneMapLocks[i] = new Object();
+	}
 	//private Map<String, SpatialGrid> spatialGridsMap;
 	
 	private int spatialUncertaintyPrecision;
@@ -180,13 +250,14 @@ public class GeospatialFileSystem extends FileSystem {
 			throws FileSystemException, IOException, SerializationException, PartitionException, HashException,
 			HashTopologyException {
 		super(storageDirectory, name, ignoreIfPresent);
+		this.storageNode = sn;
 
 		this.spatialPartitioningType = spatialPartitioningType;
 		this.nodesPerGroup = nodesPerGroup;
-		this.geohashIndex = new HashSet<>();
+		this.geohashIndex = new GeohashIndex();
 		
 		//logger.log(Level.INFO, "RIKI: GROUPS: "+networkInfo.getGroups());
-		this.borderMap = new HashMap<String, BorderingProperties>();
+		this.borderMap = new BorderMap();
 		//this.spatialGridsMap = new HashMap<String, SpatialGrid>();
 		/* featurelist is a comma separated list of feature names: type(int) */
 		if (featureList != null) {
@@ -248,9 +319,14 @@ public class GeospatialFileSystem extends FileSystem {
 		this.timeFormatter = new SimpleDateFormat();
 		this.timeFormatter.setTimeZone(TimeZone.getTimeZone("GMT"));
 		this.timeFormatter.applyPattern(timeFormat);
-		this.pathJournal = new PathJournal(this.storageDirectory + File.separator + pathStore);
+		this.pathJournal = new PathJournal(this.storageDirectory + File.separator + pathStore, featureInterner);
+		this.writeBuffer = new BlockWriteBuffer();
 
 		createMetadataGraph();
+		this.compactor = new BlockCompactor(this, this.storageDirectory);
+		this.compactor.start();
+		this.checkpointer = new GraphCheckpointer(this, this.pathJournal);
+		this.checkpointer.start();
 	}
 	
 	/**
@@ -282,8 +358,9 @@ public class GeospatialFileSystem extends FileSystem {
 			throws FileSystemException, IOException, SerializationException, PartitionException, HashException,
 			HashTopologyException {
 		super(storageDirectory, name, ignoreIfPresent);
+		this.storageNode = sn;
 		
-		this.borderMap = new HashMap<String, BorderingProperties>();
+		this.borderMap = new BorderMap();
 		//this.spatialGridsMap = new HashMap<String, SpatialGrid>();
 		
 		this.spatialPartitioningType = spatialPartitioningType;
@@ -291,7 +368,7 @@ public class GeospatialFileSystem extends FileSystem {
 		this.temporalUncertaintyPrecision = temporalUncertainty;
 		this.isRasterized = isRasterized;
 		this.nodesPerGroup = nodesPerGroup;
-		this.geohashIndex = new HashSet<>();
+		this.geohashIndex = new GeohashIndex();
 		
 		/* featurelist is a comma separated list of feature names: type(int) */
 		if (featureList != null) {
@@ -361,9 +438,14 @@ public class GeospatialFileSystem extends FileSystem {
 		this.timeFormatter = new SimpleDateFormat();
 		this.timeFormatter.setTimeZone(TimeZone.getTimeZone("GMT"));
 		this.timeFormatter.applyPattern(timeFormat);
-		this.pathJournal = new PathJournal(this.storageDirectory + File.separator + pathStore);
+		this.pathJournal = new PathJournal(this.storageDirectory + File.separator + pathStore, featureInterner);
+		this.writeBuffer = new BlockWriteBuffer();
 
 		createMetadataGraph();
+		this.compactor = new BlockCompactor(this, this.storageDirectory);
+		this.compactor.start();
+		this.checkpointer = new GraphCheckpointer(this, this.pathJournal);
+		this.checkpointer.start();
 	}
 
 	public JSONArray getFeaturesRepresentation() {
@@ -403,29 +485,97 @@ public class GeospatialFileSystem extends FileSystem {
 	private void createMetadataGraph() throws IOException {
 		metadataGraph = new MetadataGraph();
 
-		/* Recover the path index from the PathJournal */
+		/*
+		 * Recover the path index from the latest snapshot, and the paths that
+		 * were added to the PathJournal since
+		 */
+		MetadataGraph snapshot = null;
 		List<FeaturePath<String>> graphPaths = new ArrayList<>();
-		boolean recoveryOk = pathJournal.recover(graphPaths);
+		Set<String> removedPaths = new HashSet<>();
+		boolean recoveryOk;
+		try {
+			snapshot = pathJournal.recoverSnapshot(numCores);
+			recoveryOk = pathJournal.recover(graphPaths, removedPaths);
+		} catch (IOException | SerializationException e) {
+			logger.log(Level.WARNING, "Failed to load metadata graph snapshot", e);
+			recoveryOk = false;
+		}
 		pathJournal.start();
 
 		if (recoveryOk == true) {
-			for (FeaturePath<String> path : graphPaths) {
-				try {
-					metadataGraph.addPath(path);
-				} catch (Exception e) {
-					logger.log(Level.WARNING, "Failed to add path", e);
-					recoveryOk = false;
-					break;
+			try {
+				if (snapshot == null) {
+					metadataGraph = MetadataGraph.fromPaths(graphPaths, numCores);
+				} else {
+					snapshot.removePayloads(removedPaths);
+					for (FeaturePath<String> path : graphPaths)
+						snapshot.addPath(path);
+					metadataGraph = snapshot;
 				}
+			} catch (Exception e) {
+				logger.log(Level.WARNING, "Failed to add path", e);
+				recoveryOk = false;
 			}
 		}
 
+		if (recoveryOk == true)
+			deleteRetiredLeftovers(removedPaths, graphPaths);
+
 		if (recoveryOk == false) {
 			logger.log(Level.SEVERE, "Failed to recover path journal!");
+			metadataGraph = new MetadataGraph();
 			pathJournal.erase();
 			pathJournal.start();
 			fullRecovery();
 		}
+
+		if (COMPACT_GRAPH)
+			metadataGraph.compact();
+	}
+
+	/*
+	 * Blocks merged into a segment are recorded as removed in the path
+	 * journal. Those still on disk were pinned, or not deleted yet, when the
+	 * node went down. Nothing refers to them any more, so they are deleted
+	 * before a new block can be appended to under the same name. Blocks that
+	 * were written to again after they were merged are recovered as paths
+	 * and left alone.
+	 */
+	private void deleteRetiredLeftovers(Set<String> removed, List<FeaturePath<String>> paths) {
+		Set<String> leftovers = new HashSet<>(removed);
+		for (FeaturePath<String> path : paths)
+			leftovers.removeAll(path.getPayload());
+		for (String blockPath : leftovers) {
+			if (new File(blockPath).exists()) {
+				logger.log(Level.INFO, "Deleting block {0} that was merged into a segment", blockPath);
+				deleteBlockFiles(blockPath);
+			}
+		}
+	}
+
+	/**
+	 * Writes a snapshot of the metadata graph and starts a new path journal.
+	 * Appends are held off only while the current state of the graph is
+	 * captured and the journal is rolled over; the paths are listed and
+	 * written out afterwards, and the graph is then folded into its compact
+	 * form.
+	 */
+	void checkpoint() throws FileSystemException, IOException {
+		MetadataGraph snapshot;
+		compactionLock.writeLock().lock();
+		try {
+			snapshot = metadataGraph.snapshot();
+			pathJournal.rollover();
+			/* Merged blocks that are still on disk stay recorded as removed */
+			List<String> retired = new ArrayList<>(retiredBlocks);
+			if (!retired.isEmpty())
+				pathJournal.persistRemoval(retired);
+		} finally {
+			compactionLock.writeLock().unlock();
+		}
+		pathJournal.writeSnapshot(snapshot.getFeatureHierarchy(), snapshot.getAllPaths());
+		if (COMPACT_GRAPH)
+			metadataGraph.compact();
 	}
 
 	public synchronized JSONObject obtainState() {
@@ -434,7 +584,7 @@ public class GeospatialFileSystem extends FileSystem {
 		state.put("storageRoot", this.storageRoot);
 		state.put("precision", this.geohashPrecision);
 		state.put("nodesPerGroup", this.nodesPerGroup);
-		state.put("geohashIndex", this.geohashIndex);
+		state.put("geohashIndex", this.geohashIndex.toList());
 		StringBuffer features = new StringBuffer();
 		if (this.featureList != null) {
 			for (Pair<String, FeatureType> pair : this.featureList)
@@ -464,19 +614,12 @@ public class GeospatialFileSystem extends FileSystem {
 		state.put("spatialPosn1", this.spatialPosn1);
 		state.put("spatialPosn2", this.spatialPosn2);
 		state.put("spatialPartitioningType", this.spatialPartitioningType);
+		state.put("blockCodec", this.blockCodec.name());
 		
 		//logger.log(Level.INFO, "RIKI: BORDERMAP" + borderMap.keySet().size());
 		//logger.log(Level.INFO, "RIKI: BORDERMAP" + borderMap.size());
 		
-		if(borderMap.size() > 0) {
-			JSONArray bMaps = new JSONArray();
-			for(String path : borderMap.keySet()) {
-				JSONObject bpJSON = borderMap.get(path).getJsonStringRepresentation(path);
-				bMaps.put(bpJSON);
-			}
-			
-			state.put("borderMaps", bMaps);
-		}
+		/* Bordering properties live in a sidecar next to each block (see BorderIndex) */
 		/*if(spatialGridsMap.size() > 0) {
 			JSONArray sMaps = new JSONArray();
 			for(String path : spatialGridsMap.keySet()) {
@@ -516,10 +659,10 @@ public class GeospatialFileSystem extends FileSystem {
 		gfs.latestTime = (state.get("latestTime") != JSONObject.NULL)
 				? new TemporalProperties(state.getLong("latestTime")) : null;
 		gfs.latestSpace = (state.get("latestSpace") != JSONObject.NULL) ? state.getString("latestSpace") : null;
-		Set<String> geohashIndex = new HashSet<String>();
+		List<String> geohashIndex = new ArrayList<>(geohashIndices.length());
 		for (int i = 0; i < geohashIndices.length(); i++)
 			geohashIndex.add(geohashIndices.getString(i));
-		gfs.geohashIndex = geohashIndex;
+		gfs.geohashIndex = new GeohashIndex(geohashIndex);
 		gfs.numCores = Runtime.getRuntime().availableProcessors();
 		
 		gfs.spatialUncertaintyPrecision = state.getInt("spatialUncertaintyPrecision");
@@ -528,9 +671,12 @@ public class GeospatialFileSystem extends FileSystem {
 		gfs.temporalPosn = state.getInt("temporalPosn");
 		gfs.spatialPosn1 = state.getInt("spatialPosn1");
 		gfs.spatialPosn2 = state.getInt("spatialPosn2");
+		if (state.has("blockCodec"))
+			gfs.blockCodec = BlockCodec.fromName(state.getString("blockCodec"));
 		
 		
-		gfs.borderMap = new HashMap<String, BorderingProperties>();
+		gfs.borderMap = new BorderMap();
+		/* Older states carry the bordering properties; move them into sidecars */
 		if(state.has("borderMaps")) {
 			JSONArray bMaps = state.getJSONArray("borderMaps");
 			if(bMaps != null && bMaps.length() > 0) {
@@ -540,6 +686,8 @@ public class GeospatialFileSystem extends FileSystem {
 					BorderingProperties bp = new BorderingProperties(); 
 					bp.populateObject(jsonObject);
 					gfs.borderMap.put(key, bp);
+					if (new File(key).exists())
+						BorderIndex.create(key, bp);
 				}
 			}
 		}
@@ -588,17 +736,21 @@ public class GeospatialFileSystem extends FileSystem {
 		return this.geohashPrecision;
 	}
 	
-	private String getTemporalString(TemporalProperties tp) {
+	public String getTemporalString(TemporalProperties tp) {
 		if (tp == null)
 			return "xxxx-xx-xx-xx";
 		Calendar c = Calendar.getInstance();
 		c.setTimeZone(TemporalHash.TIMEZONE);
 		c.setTimeInMillis(tp.getStart());
+		return getTemporalString(c, this.temporalType);
+	}
+
+	private static String getTemporalString(Calendar c, TemporalType temporalType) {
 		int hour = c.get(Calendar.HOUR_OF_DAY);
 		int day = c.get(Calendar.DAY_OF_MONTH);
 		int month = c.get(Calendar.MONTH) + 1;
 		int year = c.get(Calendar.YEAR);
-		switch (this.temporalType) {
+		switch (temporalType) {
 		case HOUR_OF_DAY:
 			return String.format("%d-%d-%d-%d", year, month, day, hour);
 		case DAY_OF_MONTH:
@@ -611,7 +763,7 @@ public class GeospatialFileSystem extends FileSystem {
 		return String.format("%d-%d-%d-xx", year, month, day);
 	}
 
-	private String getSpatialString(SpatialProperties sp) {
+	public String getSpatialString(SpatialProperties sp) {
 		char[] hash = new char[this.geohashPrecision];
 		Arrays.fill(hash, 'o');
 		String geohash = new String(hash);
@@ -655,6 +807,15 @@ public class GeospatialFileSystem extends FileSystem {
 	 */
 	@Override
 	public String storeBlock(Block block) throws FileSystemException, IOException {
+		compactionLock.readLock().lock();
+		try {
+			return storeBlockData(block);
+		} finally {
+			compactionLock.readLock().unlock();
+		}
+	}
+
+	private String storeBlockData(Block block) throws FileSystemException, IOException {
 		Metadata meta = block.getMetadata();
 		/* RETURNS A STRING OF THE FORMAT year-month-day-hour */
 		String time = getTemporalString(meta.getTemporalProperties());
@@ -665,8 +826,8 @@ public class GeospatialFileSystem extends FileSystem {
 		if (meta.getName() != null && meta.getName().trim() != "")
 			name = meta.getName();
 		String blockDirPath = this.storageDirectory + File.separator + getStorageDirectory(block);
-		String blockPath = blockDirPath + File.separator + name + FileSystem.BLOCK_EXTENSION;
-		String metadataPath = blockDirPath + File.separator + name + FileSystem.METADATA_EXTENSION;
+		String blockPath = resolveBlockPath(blockDirPath + File.separator + name + FileSystem.BLOCK_EXTENSION);
+		String metadataPath = blockPath.replace(BLOCK_EXTENSION, METADATA_EXTENSION);
 
 		/* Ensure the storage directory is there. */
 		File blockDirectory = new File(blockDirPath);
@@ -692,7 +853,6 @@ public class GeospatialFileSystem extends FileSystem {
 			newfs.put(feature);
 		meta.setAttributes(newfs);
 
-		Serializer.persist(block.getMetadata(), metadataPath);
 		File gblock = new File(blockPath);
 		boolean newLine = gblock.exists();
 		
@@ -702,10 +862,16 @@ public class GeospatialFileSystem extends FileSystem {
 		
 		/* ADDING METADATA TO METADATA GRAPH */
 		if (!newLine) {
+			/* The metadata file only needs to be written when the block is created */
+			Serializer.persist(block.getMetadata(), metadataPath);
+			
 			/* Creating a bordering property for this block with alist of all neighboring
 			 * geohashes and times */
 			BorderingProperties bp = GeoHash.getBorderingGeohashHeuristic(geohash, spatialUncertaintyPrecision, temporalUncertaintyPrecision , meta.getTemporalProperties(), this.temporalType);
-			borderMap.put(blockPath, bp);
+			if (bp != null) {
+				borderMap.put(blockPath, bp);
+				BorderIndex.create(blockPath, bp);
+			}
 			
 			//SpatialGrid sg = new SpatialGrid(geohash, spatialUncertaintyPrecision);
 			//spatialGridsMap.put(blockPath, sg);
@@ -719,16 +885,29 @@ public class GeospatialFileSystem extends FileSystem {
 		 * - whether to overwrite blocks, or append content. When it is append,
 		 * ask for any delimiter to separate the existing data.
 		 **/
-		try (FileOutputStream blockData = new FileOutputStream(blockPath, true)) {
-			if (newLine)
-				blockData.write("\n".getBytes("UTF-8"));
-			blockData.write(block.getData());
+		/*
+		 * Appends go through the write buffer, which writes them out before
+		 * returning unless buffering was enabled. New blocks are written in
+		 * the columnar format whenever the feature list is known;
+		 * blocks that already exist as CSV keep their format.
+		 */
+		try {
+			if (this.featureList != null)
+				updateZoneMap(blockPath, block.getData(), !newLine);
+			writeBuffer.append(blockPath, block.getData(), (this.featureList == null) ? null : getColumnTypes(),
+					this.blockCodec);
 		} catch (Exception e) {
 			throw new FileSystemException("Error storing block: " + e.getClass().getCanonicalName(), e);
 		}
 		
 		/* RIKI */
-		readBlockData(block.getData(), borderMap.get(blockPath));
+		/* Blocks whose bordering geohashes could not be determined have none */
+		BorderingProperties borderingProperties = borderMap.get(blockPath);
+		if (borderingProperties != null) {
+			long firstRecord = borderingProperties.getTotalRecords();
+			readBlockData(block.getData(), borderingProperties);
+			BorderIndex.appendUpdate(blockPath, borderingProperties, firstRecord);
+		}
 		//readBlockData(block.getData(), borderMap.get(blockPath), spatialGridsMap.get(blockPath));
 
 		if (latestTime == null || latestTime.getEnd() < meta.getTemporalProperties().getEnd()) {
@@ -746,6 +925,94 @@ public class GeospatialFileSystem extends FileSystem {
 		return blockPath;
 	}
 	
+	/**
+	 * Extends the zone map of a block with data that is about to be appended
+	 * to it. The sidecar is written first so that it never describes less
+	 * than the block.
+	 */
+	private void updateZoneMap(String blockPath, byte[] data, boolean created) throws IOException {
+		ZoneMap update = new ZoneMap(this.featureList, this.temporalPosn);
+		update.add(data);
+		synchronized (zoneMapLock(blockPath)) {
+			if (!ZoneMap.append(blockPath, update, created)) {
+				zoneMaps.remove(blockPath);
+				return;
+			}
+			ZoneMap zoneMap = zoneMaps.get(blockPath);
+			if (zoneMap != null)
+				zoneMap.merge(update);
+		}
+	}
+
+	/**
+	 * Checks the zone map of a block to determine whether any of its records
+	 * could satisfy a feature query, without reading the block itself.
+	 *
+	 * @return false only if the block cannot hold a matching record. Blocks
+	 *         without a zone map always may.
+	 */
+	public boolean mayMatch(String blockPath, Query query) {
+		if (query == null)
+			return true;
+		ZoneMap zoneMap = getZoneMap(blockPath);
+		return zoneMap == null || zoneMap.mayMatch(query);
+	}
+
+	private Object zoneMapLock(String blockPath) {
+		return zoneMapLocks[(blockPath.hashCode() & Integer.MAX_VALUE) % zoneMapLocks.length];
+	}
+
+	/**
+	 * @return the zone map of a block, or null if it has none. Zone maps that
+	 *         were evicted from the cache are loaded again from their sidecar.
+	 */
+	private ZoneMap getZoneMap(String blockPath) {
+		return getZoneMap(blockPath, true);
+	}
+
+	/**
+	 * @param cache
+	 *            whether a zone map loaded from its sidecar is kept in the
+	 *            cache. Loading never writes to the sidecar either way.
+	 * @return the zone map of a block, or null if it has none.
+	 */
+	private ZoneMap getZoneMap(String blockPath, boolean cache) {
+		if (this.featureList == null)
+			return null;
+		ZoneMap zoneMap = zoneMaps.get(blockPath);
+		if (zoneMap == null) {
+			/* Loaded under the lock so that no append slips in between */
+			synchronized (zoneMapLock(blockPath)) {
+				zoneMap = zoneMaps.get(blockPath);
+				if (zoneMap == null) {
+					try {
+						zoneMap = ZoneMap.load(blockPath, this.featureList, this.temporalPosn);
+					} catch (IOException e) {
+						logger.log(Level.WARNING, "Failed to load zone map for " + blockPath, e);
+					}
+					if (zoneMap != null && cache)
+						zoneMaps.put(blockPath, zoneMap);
+				}
+			}
+		}
+		return zoneMap;
+	}
+
+	/**
+	 * Column types used for columnar blocks. The temporal column is kept as
+	 * text since it is interpreted by {@link #reformatDatetime(String)}.
+	 */
+	private FeatureType[] getColumnTypes() {
+		FeatureType[] types = new FeatureType[this.featureList.size()];
+		for (int i = 0; i < types.length; i++)
+			types[i] = (i == this.temporalPosn) ? FeatureType.STRING : this.featureList.get(i).b;
+		return types;
+	}
+
+	private boolean isColumnar(String blockPath) throws IOException {
+		return this.featureList != null && ColumnarBlock.isColumnar(blockPath);
+	}
+
 	public static long reformatDatetime(String date){
 		String tmp = date.replace(".", "").replace("E9", "");
 		while(tmp.length()<13){
@@ -772,9 +1039,8 @@ public class GeospatialFileSystem extends FileSystem {
 	 */
 	
 	private void readBlockData(byte[] data, BorderingProperties borderingProperties/*, SpatialGrid sg*/) {
-		// TODO Auto-generated method stub
-		String blockString = new String(data);
-		String[] records = blockString.split("\n");
+		/* Counted the way the block's readers count them, so record numbers line up */
+		String[] records = MappedBlockReader.splitRecords(data);
 		long currentRecordsCount = records.length;
 		
 		long recordCount = borderingProperties.getTotalRecords();
@@ -860,13 +1126,48 @@ public class GeospatialFileSystem extends FileSystem {
 	}
 
 	public Block retrieveBlock(String blockPath) throws IOException, SerializationException {
+		return retrieveBlock(blockPath, false);
+	}
+
+	/**
+	 * Blocks only hold their records; the metadata of a block is read from the
+	 * metadata file that was written next to it when it was created.
+	 */
+	@Override
+	public Metadata loadMetadata(String blockPath) throws IOException, SerializationException {
+		String metadataPath = blockPath.replace(BLOCK_EXTENSION, METADATA_EXTENSION);
+		return Serializer.deserialize(Metadata.class, Files.readAllBytes(Paths.get(metadataPath)));
+	}
+
+	/**
+	 * Retrieves a block, decompressing it unless keepCompressed is set and
+	 * its stored bytes can be shipped as they are (see
+	 * {@link Block#isCompressed()}).
+	 */
+	public Block retrieveBlock(String blockPath, boolean keepCompressed) throws IOException, SerializationException {
+		writeBuffer.flush(blockPath);
 		Metadata metadata = null;
-		byte[] blockBytes = Files.readAllBytes(Paths.get(blockPath));
+		byte[] blockBytes;
+		boolean compressed = false;
+		if (isColumnar(blockPath)) {
+			blockBytes = ColumnarBlock.toCSV(blockPath, this.featureList.size());
+		} else {
+			/* Compressed blocks are decoded straight from the mapped file */
+			ByteBuffer stored = ColumnarBlock.map(blockPath);
+			BlockCodec codec = BlockCodec.detect(stored);
+			if (codec != BlockCodec.NONE && !keepCompressed) {
+				blockBytes = codec.decompress(stored).array();
+			} else {
+				blockBytes = new byte[stored.remaining()];
+				stored.get(blockBytes);
+				compressed = (codec == BlockCodec.GZIP);
+			}
+		}
 		String metadataPath = blockPath.replace(BLOCK_EXTENSION, METADATA_EXTENSION);
 		File metadataFile = new File(metadataPath);
 		if (metadataFile.exists())
 			metadata = Serializer.deserialize(Metadata.class, Files.readAllBytes(Paths.get(metadataPath)));
-		return new Block(this.name, metadata, blockBytes);
+		return new Block(this.name, metadata, blockBytes, compressed);
 	}
 
 	/**
@@ -1128,6 +1429,71 @@ public class GeospatialFileSystem extends FileSystem {
 		return getSpatialString(null);
 	}
 
+	/**
+	 * Builds the spatial part of a query: one Operation for each geohash range
+	 * that covers the polygon and holds data, within the two character
+	 * geohashes that hold data. Coverings are kept in the node's
+	 * {@link QueryPlanCache}; the returned Operations are shared and must be
+	 * copied before being extended.
+	 */
+	private List<Operation> getSpatialOperations(List<Coordinates> geometry) {
+		return getSpatialOperations(geometry, true);
+	}
+
+	/**
+	 * @param cache
+	 *            whether the coverings are taken from and kept in the
+	 *            {@link QueryPlanCache}.
+	 */
+	private List<Operation> getSpatialOperations(List<Coordinates> geometry, boolean cache) {
+		QueryPlanCache planCache = QueryPlanCache.getInstance();
+		List<String> hashLocations = new ArrayList<>();
+		for (String baseHash : planCache.getBaseHashes(geometry, cache))
+			if (this.geohashIndex.containsPrefix(baseHash))
+				hashLocations.add(baseHash);
+		logger.info("baseLocations: " + hashLocations);
+		List<Operation> operations = new ArrayList<>();
+		for (String geohash : hashLocations)
+			for (Operation operation : planCache.getCovering(geometry, geohash, this.geohashPrecision, SPATIAL_FEATURE,
+					cache))
+				if (holdsData(operation))
+					operations.add(operation);
+		return operations;
+	}
+
+	/**
+	 * Determines whether the geohash range of a covering Operation contains
+	 * any geohash this file system has stored data for.
+	 */
+	private boolean holdsData(Operation operation) {
+		List<Expression> expressions = operation.getOperand(SPATIAL_FEATURE);
+		if (expressions == null)
+			return true;
+		String low = null;
+		String high = null;
+		for (Expression expression : expressions) {
+			String value = expression.getValue().getString();
+			if (expression.getOperator() == Operator.EQUAL) {
+				low = value;
+				high = value;
+			} else if (expression.getOperator() == Operator.GREATEREQUAL) {
+				low = value;
+			} else if (expression.getOperator() == Operator.LESSEQUAL) {
+				high = value;
+			}
+		}
+		if (low == null || high == null)
+			return true;
+		return this.geohashIndex.intersects(low, high);
+	}
+
+	/**
+	 * Retrieves the index of the geohashes this file system holds data for.
+	 */
+	public GeohashIndex getGeohashIndex() {
+		return this.geohashIndex;
+	}
+
 	private Query queryIntersection(Query q1, Query q2) {
 		if (q1 != null && q2 != null) {
 			Query query = new Query();
@@ -1152,9 +1518,11 @@ public class GeospatialFileSystem extends FileSystem {
 	private class ParallelQueryEvaluator implements Runnable {
 		private List<Operation> operations;
 		private List<Path<Feature, String>> resultPaths;
+		private Deadline deadline;
 
-		public ParallelQueryEvaluator(List<Operation> operations) {
+		public ParallelQueryEvaluator(List<Operation> operations, Deadline deadline) {
 			this.operations = operations;
+			this.deadline = deadline;
 		}
 
 		public List<Path<Feature, String>> getResults() {
@@ -1163,6 +1531,9 @@ public class GeospatialFileSystem extends FileSystem {
 
 		@Override
 		public void run() {
+			/* Evaluators that start after the deadline leave their operations out */
+			if (deadline.isExpired())
+				return;
 			Query query = new Query();
 			query.addAllOperations(operations);
 			this.resultPaths = metadataGraph.evaluateQuery(query);
@@ -1170,6 +1541,11 @@ public class GeospatialFileSystem extends FileSystem {
 	}
 
 	private List<Path<Feature, String>> executeParallelQuery(Query finalQuery) throws InterruptedException {
+		return executeParallelQuery(finalQuery, Deadline.none());
+	}
+
+	private List<Path<Feature, String>> executeParallelQuery(Query finalQuery, Deadline deadline)
+			throws InterruptedException {
 		//logger.info("Query: " + finalQuery.toString());
 		List<Path<Feature, String>> paths = new ArrayList<>();
 		List<Operation> operations = finalQuery.getOperations();
@@ -1186,15 +1562,13 @@ public class GeospatialFileSystem extends FileSystem {
 					int from = i * subsetSize;
 					int to = (i + 1 != numCores) ? (i + 1) * subsetSize : size;
 					List<Operation> subset = new ArrayList<>(operations.subList(from, to));
-					ParallelQueryEvaluator pqe = new ParallelQueryEvaluator(subset);
+					ParallelQueryEvaluator pqe = new ParallelQueryEvaluator(subset, deadline);
 					queryEvaluators.add(pqe);
 					executor.execute(pqe);
 				}
 				operations.clear();
-				executor.shutdown();
-				boolean termination = executor.awaitTermination(10, TimeUnit.MINUTES);
-				if (!termination)
-					logger.severe("Query failed to process in 10 minutes");
+				if (!deadline.await(executor))
+					logger.severe("Query failed to process before its deadline");
 				paths = new ArrayList<>();
 				for (ParallelQueryEvaluator pqe : queryEvaluators)
 					if (pqe.getResults() != null)
@@ -1219,23 +1593,31 @@ public class GeospatialFileSystem extends FileSystem {
 	
 	public Map<String, List<String>> listBlocks(String temporalProperties, List<Coordinates> spatialProperties,
 			Query metaQuery, boolean group) throws InterruptedException {
-		 Map<String, List<String>> blockMap = new HashMap<String, List<String>>();
-		String space = null;
+		return listBlocks(temporalProperties, spatialProperties, metaQuery, group, Deadline.none());
+	}
+
+	/**
+	 * Evaluates the temporal, spatial and metadata conditions of a query
+	 * against the metadata graph until the query's deadline. A query that is
+	 * already past its deadline, or cancelled, matches nothing.
+	 *
+	 * @param cache
+	 *            whether the coverings of the polygon are taken from and kept
+	 *            in the {@link QueryPlanCache}.
+	 */
+	private List<Path<Feature, String>> findPaths(String temporalProperties, List<Coordinates> spatialProperties,
+			Query metaQuery, Deadline deadline, boolean cache) throws InterruptedException {
+		if (deadline.isExpired())
+			return new ArrayList<>();
 		List<Path<Feature, String>> paths = null;
-		List<String> blocks = new ArrayList<String>();
 		/* temporal and spatial properties from the query event */
 		if (temporalProperties != null && spatialProperties != null) {
 			SpatialProperties sp = new SpatialProperties(new SpatialRange(spatialProperties));
 			List<Coordinates> geometry = sp.getSpatialRange().hasPolygon() ? sp.getSpatialRange().getPolygon()
 					: sp.getSpatialRange().getBounds();
-			/* Tries to get the geohash for the center-point of the MBR for the polygon */
-			space = getSpatialString(sp);
-			
-			/* Returns all 2 char geohashes that intersect with the searched polygon */
-			List<String> hashLocations = new ArrayList<>(Arrays.asList(GeoHash.getIntersectingGeohashes(geometry)));
+			/* Geohash ranges covering the searched polygon, one Operation per range */
+			List<Operation> spatialOperations = getSpatialOperations(geometry, cache);
 			
-			hashLocations.retainAll(this.geohashIndex);
-			logger.info("baseLocations: " + hashLocations);
 			Query query = new Query();
 			
 			/* Builds an expression for the temporal query asking the top level temporal levels to be 
@@ -1243,36 +1625,14 @@ public class GeospatialFileSystem extends FileSystem {
 			// temporalProperties is a string of the format YEAR-MONTH-DAY-HOUR
 			List<Expression> temporalExpressions = buildTemporalExpression(temporalProperties);
 			
-			Polygon polygon = GeoHash.buildAwtPolygon(geometry);
-			for (String geohash : hashLocations) {
-				Set<GeoHash> intersections = new HashSet<>();
-				String pattern = "%" + (geohash.length() * GeoHash.BITS_PER_CHAR) + "s";
-				
-				// gets a 111000000 like binary representation of the geohash
-				String binaryHash = String.format(pattern, Long.toBinaryString(GeoHash.hashToLong(geohash)));
-				GeoHash.getGeohashPrefixes(polygon, new GeoHash(binaryHash.replace(" ", "0")),
-						this.geohashPrecision * GeoHash.BITS_PER_CHAR, intersections);
-				logger.info("baseHash: " + geohash + ", intersections: " + intersections.size());
-				for (GeoHash gh : intersections) {
-					String[] hashRange = gh.getValues(this.geohashPrecision);
-					if (hashRange != null) {
-						Operation op = new Operation(temporalExpressions);
-						if (hashRange.length == 1)
-							op.addExpressions(
-									new Expression(Operator.EQUAL, new Feature(SPATIAL_FEATURE, hashRange[0])));
-						else {
-							op.addExpressions(
-									new Expression(Operator.GREATEREQUAL, new Feature(SPATIAL_FEATURE, hashRange[0])));
-							op.addExpressions(
-									new Expression(Operator.LESSEQUAL, new Feature(SPATIAL_FEATURE, hashRange[1])));
-						}
-						query.addOperation(op);
-					}
-				}
+			for (Operation spatialOp : spatialOperations) {
+				Operation op = new Operation(temporalExpressions);
+				op.addExpressions(spatialOp.getExpressions());
+				query.addOperation(op);
 			}
 			/* query intersection merges the query with metadata query */
 			/* returns a list of paths matching the query */
-			paths = executeParallelQuery(queryIntersection(query, metaQuery));
+			paths = executeParallelQuery(queryIntersection(query, metaQuery), deadline);
 		} else if (temporalProperties != null) {
 			List<Expression> temporalExpressions = buildTemporalExpression(temporalProperties);
 			Query query = new Query(
@@ -1282,42 +1642,31 @@ public class GeospatialFileSystem extends FileSystem {
 			SpatialProperties sp = new SpatialProperties(new SpatialRange(spatialProperties));
 			List<Coordinates> geometry = sp.getSpatialRange().hasPolygon() ? sp.getSpatialRange().getPolygon()
 					: sp.getSpatialRange().getBounds();
-			space = getSpatialString(sp);
-			List<String> hashLocations = new ArrayList<>(Arrays.asList(GeoHash.getIntersectingGeohashes(geometry)));
-			hashLocations.retainAll(this.geohashIndex);
-			logger.info("baseLocations: " + hashLocations);
+			List<Operation> spatialOperations = getSpatialOperations(geometry, cache);
 			Query query = new Query();
-			Polygon polygon = GeoHash.buildAwtPolygon(geometry);
-			for (String geohash : hashLocations) {
-				Set<GeoHash> intersections = new HashSet<>();
-				String pattern = "%" + (geohash.length() * GeoHash.BITS_PER_CHAR) + "s";
-				String binaryHash = String.format(pattern, Long.toBinaryString(GeoHash.hashToLong(geohash)));
-				GeoHash.getGeohashPrefixes(polygon, new GeoHash(binaryHash.replace(" ", "0")),
-						this.geohashPrecision * GeoHash.BITS_PER_CHAR, intersections);
-				logger.info("baseHash: " + geohash + ", intersections: " + intersections.size());
-				for (GeoHash gh : intersections) {
-					String[] hashRange = gh.getValues(this.geohashPrecision);
-					if (hashRange != null) {
-						Operation op = new Operation();
-						if (hashRange.length == 1)
-							op.addExpressions(
-									new Expression(Operator.EQUAL, new Feature(SPATIAL_FEATURE, hashRange[0])));
-						else {
-							op.addExpressions(
-									new Expression(Operator.GREATEREQUAL, new Feature(SPATIAL_FEATURE, hashRange[0])));
-							op.addExpressions(
-									new Expression(Operator.LESSEQUAL, new Feature(SPATIAL_FEATURE, hashRange[1])));
-						}
-						query.addOperation(op);
-					}
-				}
-			}
+			for (Operation spatialOp : spatialOperations)
+				query.addOperation(new Operation(spatialOp.getExpressions()));
 			/* Queryintersection combines the normal and metadata query */
-			paths = executeParallelQuery(queryIntersection(query, metaQuery));
+			paths = executeParallelQuery(queryIntersection(query, metaQuery), deadline);
 		} else {
 			// non-chronal non-spatial
-			paths = (metaQuery == null) ? metadataGraph.getAllPaths() : executeParallelQuery(metaQuery);
+			paths = (metaQuery == null) ? metadataGraph.getAllPaths() : executeParallelQuery(metaQuery, deadline);
 		}
+		return paths;
+	}
+
+	/**
+	 * Lists the blocks matching a query, evaluating the metadata graph only
+	 * until the query's deadline.
+	 */
+	public Map<String, List<String>> listBlocks(String temporalProperties, List<Coordinates> spatialProperties,
+			Query metaQuery, boolean group, Deadline deadline) throws InterruptedException {
+		 Map<String, List<String>> blockMap = new HashMap<String, List<String>>();
+		List<String> blocks = new ArrayList<String>();
+		/* Tries to get the geohash for the center-point of the MBR for the polygon */
+		String space = (spatialProperties != null)
+				? getSpatialString(new SpatialProperties(new SpatialRange(spatialProperties))) : null;
+		List<Path<Feature, String>> paths = findPaths(temporalProperties, spatialProperties, metaQuery, deadline, true);
 		
 		// Paths look like Path((root,f1,f2,f3,...),payload). Each path represents each DFS traversal of a tree
 		
@@ -1332,6 +1681,83 @@ public class GeospatialFileSystem extends FileSystem {
 		}
 		return blockMap;
 	}
+
+	/**
+	 * Describes the work a query would do on this node without reading any
+	 * block: the graph paths and blocks it matches, the blocks the zone maps
+	 * and the query polygon would skip, the blocks an aggregation could
+	 * answer from zone maps alone, and the number of records left to filter,
+	 * estimated from the record counts in the zone maps and the fraction of
+	 * each block's grid the polygon covers. Nothing is written, and neither
+	 * the zone map cache nor the {@link QueryPlanCache} is changed.
+	 */
+	public JSONObject explain(String temporalProperties, List<Coordinates> spatialProperties, Query metaQuery,
+			Query featureQuery, Aggregation aggregation, Deadline deadline) throws InterruptedException {
+		long planningTime = System.currentTimeMillis();
+		List<Path<Feature, String>> paths = findPaths(temporalProperties, spatialProperties, metaQuery, deadline, false);
+		GeoavailabilityQuery geoQuery = new GeoavailabilityQuery(featureQuery, spatialProperties);
+		Map<String, GeoavailabilityGrid> grids = new HashMap<>();
+		long blocks = 0, bytes = 0, zoneMapPruned = 0, zoneMapPrunedBytes = 0, polygonPruned = 0,
+				polygonPrunedBytes = 0, unindexed = 0, synopsis = 0, blocksToRead = 0, bytesToRead = 0;
+		double estimatedRecords = 0;
+		for (Path<Feature, String> path : paths) {
+			String spaceKey = getSpaceKey(path);
+			GeoavailabilityGrid grid = grids.get(spaceKey);
+			if (grid == null) {
+				grid = new GeoavailabilityGrid(spaceKey, GeoHash.MAX_PRECISION * 2 / 3);
+				grids.put(spaceKey, grid);
+			}
+			double coverage = 1;
+			if (spatialProperties != null) {
+				Bitmap queryBitmap = QueryPlanCache.getInstance().getGridBitmap(geoQuery, grid, false);
+				coverage = (double) queryBitmap.cardinality() / (grid.getWidth() * grid.getHeight());
+			}
+			for (String blockPath : path.getPayload()) {
+				long length = new File(blockPath).length();
+				blocks++;
+				bytes += length;
+				if (coverage == 0) {
+					polygonPruned++;
+					polygonPrunedBytes += length;
+					continue;
+				}
+				ZoneMap zoneMap = getZoneMap(blockPath, false);
+				if (featureQuery != null && zoneMap != null && !zoneMap.mayMatch(featureQuery)) {
+					zoneMapPruned++;
+					zoneMapPrunedBytes += length;
+					continue;
+				}
+				if (zoneMap == null)
+					unindexed++;
+				else
+					estimatedRecords += zoneMap.getRecordCount() * java.lang.Math.min(coverage, 1);
+				if (aggregation != null && featureQuery == null
+						&& (spatialProperties == null || isGridInsidePolygon(grid, geoQuery))
+						&& summarize(zoneMap, aggregation) != null) {
+					synopsis++;
+					continue;
+				}
+				blocksToRead++;
+				bytesToRead += length;
+			}
+		}
+		JSONObject plan = new JSONObject();
+		plan.put("filesystem", this.name);
+		plan.put("numPaths", paths.size());
+		plan.put("numBlocks", blocks);
+		plan.put("fileSize", bytes);
+		plan.put("polygonPrunedBlocks", polygonPruned);
+		plan.put("polygonPrunedSize", polygonPrunedBytes);
+		plan.put("zoneMapPrunedBlocks", zoneMapPruned);
+		plan.put("zoneMapPrunedSize", zoneMapPrunedBytes);
+		plan.put("synopsisBlocks", synopsis);
+		plan.put("unindexedBlocks", unindexed);
+		plan.put("blocksToRead", blocksToRead);
+		plan.put("sizeToRead", bytesToRead);
+		plan.put("estimatedRecords", java.lang.Math.round(estimatedRecords));
+		plan.put("planningTime", System.currentTimeMillis() - planningTime);
+		return plan;
+	}
 	
 
 	/**
@@ -1366,39 +1792,15 @@ public class GeospatialFileSystem extends FileSystem {
 			
 			List<Coordinates> geometry = sp.getSpatialRange().hasPolygon() ? sp.getSpatialRange().getPolygon() : sp.getSpatialRange().getBounds();
 			
-			List<String> hashLocations = new ArrayList<>(Arrays.asList(GeoHash.getIntersectingGeohashes(geometry)));
-			hashLocations.retainAll(this.geohashIndex);
+			List<Operation> spatialOperations = getSpatialOperations(geometry);
 			
 			Query query = new Query();
 			
-			Polygon polygon = GeoHash.buildAwtPolygon(geometry);
-			
 			for(List<Expression> temporalExpressions : temporalExpressionList) {
-				for (String geohash : hashLocations) {
-					Set<GeoHash> intersections = new HashSet<>();
-					String pattern = "%" + (geohash.length() * GeoHash.BITS_PER_CHAR) + "s";
-					
-					// gets a 111000000 like binary representation of the geohash
-					String binaryHash = String.format(pattern, Long.toBinaryString(GeoHash.hashToLong(geohash)));
-					GeoHash.getGeohashPrefixes(polygon, new GeoHash(binaryHash.replace(" ", "0")),
-							this.geohashPrecision * GeoHash.BITS_PER_CHAR, intersections);
-					//logger.info("baseHash: " + geohash + ", intersections: " + intersections.size());
-					for (GeoHash gh : intersections) {
-						String[] hashRange = gh.getValues(this.geohashPrecision);
-						if (hashRange != null) {
-							Operation op = new Operation(temporalExpressions);
-							if (hashRange.length == 1)
-								op.addExpressions(
-										new Expression(Operator.EQUAL, new Feature(SPATIAL_FEATURE, hashRange[0])));
-							else {
-								op.addExpressions(
-										new Expression(Operator.GREATEREQUAL, new Feature(SPATIAL_FEATURE, hashRange[0])));
-								op.addExpressions(
-										new Expression(Operator.LESSEQUAL, new Feature(SPATIAL_FEATURE, hashRange[1])));
-							}
-							query.addOperation(op);
-						}
-					}
+				for (Operation spatialOp : spatialOperations) {
+					Operation op = new Operation(temporalExpressions);
+					op.addExpressions(spatialOp.getExpressions());
+					query.addOperation(op);
 				}
 			}
 			/* query intersection merges the query with metadata query */
@@ -1417,35 +1819,10 @@ public class GeospatialFileSystem extends FileSystem {
 			SpatialProperties sp = new SpatialProperties(new SpatialRange(superPolygon));
 			List<Coordinates> geometry = sp.getSpatialRange().hasPolygon() ? sp.getSpatialRange().getPolygon()
 					: sp.getSpatialRange().getBounds();
-			List<String> hashLocations = new ArrayList<>(Arrays.asList(GeoHash.getIntersectingGeohashes(geometry)));
-			hashLocations.retainAll(this.geohashIndex);
-			//logger.info("baseLocations: " + hashLocations);
+			List<Operation> spatialOperations = getSpatialOperations(geometry);
 			Query query = new Query();
-			Polygon polygon = GeoHash.buildAwtPolygon(geometry);
-			for (String geohash : hashLocations) {
-				Set<GeoHash> intersections = new HashSet<>();
-				String pattern = "%" + (geohash.length() * GeoHash.BITS_PER_CHAR) + "s";
-				String binaryHash = String.format(pattern, Long.toBinaryString(GeoHash.hashToLong(geohash)));
-				GeoHash.getGeohashPrefixes(polygon, new GeoHash(binaryHash.replace(" ", "0")),
-						this.geohashPrecision * GeoHash.BITS_PER_CHAR, intersections);
-				//logger.info("baseHash: " + geohash + ", intersections: " + intersections.size());
-				for (GeoHash gh : intersections) {
-					String[] hashRange = gh.getValues(this.geohashPrecision);
-					if (hashRange != null) {
-						Operation op = new Operation();
-						if (hashRange.length == 1)
-							op.addExpressions(
-									new Expression(Operator.EQUAL, new Feature(SPATIAL_FEATURE, hashRange[0])));
-						else {
-							op.addExpressions(
-									new Expression(Operator.GREATEREQUAL, new Feature(SPATIAL_FEATURE, hashRange[0])));
-							op.addExpressions(
-									new Expression(Operator.LESSEQUAL, new Feature(SPATIAL_FEATURE, hashRange[1])));
-						}
-						query.addOperation(op);
-					}
-				}
-			}
+			for (Operation spatialOp : spatialOperations)
+				query.addOperation(new Operation(spatialOp.getExpressions()));
 			/* Queryintersection combines the normal and metadata query */
 			paths = executeParallelQuery(queryIntersection(query, metaQuery));
 			
@@ -1742,12 +2119,11 @@ public class GeospatialFileSystem extends FileSystem {
 					: sp.getSpatialRange().getBounds();
 			/* Tries to get the geohash for the center-point of the MBR for the polygon */
 			
-			/* Returns all 2 char geohashes that intersect with the searched polygon */
-			List<String> hashLocations = new ArrayList<>(Arrays.asList(GeoHash.getIntersectingGeohashes(geometry)));
+			/* Geohash ranges covering the searched polygon, one Operation per range */
+			List<Operation> spatialOperations = getSpatialOperations(geometry);
 			
 			//logger.info("RIKI: MATCHING PATHS: "+hashLocations);
 			//logger.info("RIKI: HASH LOCATIONS: "+this.geohashIndex);
-			hashLocations.retainAll(this.geohashIndex);
 			logger.info("RIKI: AFTER RETAINALL");
 			Query query = new Query();
 			
@@ -1755,32 +2131,10 @@ public class GeospatialFileSystem extends FileSystem {
 			 * equal to whatever is in the time string */
 			List<Expression> temporalExpressions = buildTemporalExpression(temporalProperties);
 			
-			Polygon polygon = GeoHash.buildAwtPolygon(geometry);
-			for (String geohash : hashLocations) {
-				Set<GeoHash> intersections = new HashSet<>();
-				String pattern = "%" + (geohash.length() * GeoHash.BITS_PER_CHAR) + "s";
-				
-				// gets a 111000000 like binary representation of the geohash
-				String binaryHash = String.format(pattern, Long.toBinaryString(GeoHash.hashToLong(geohash)));
-				GeoHash.getGeohashPrefixes(polygon, new GeoHash(binaryHash.replace(" ", "0")),
-						this.geohashPrecision * GeoHash.BITS_PER_CHAR, intersections);
-				logger.info("baseHash: " + geohash + ", intersections: " + intersections.size());
-				for (GeoHash gh : intersections) {
-					String[] hashRange = gh.getValues(this.geohashPrecision);
-					if (hashRange != null) {
-						Operation op = new Operation(temporalExpressions);
-						if (hashRange.length == 1)
-							op.addExpressions(
-									new Expression(Operator.EQUAL, new Feature(SPATIAL_FEATURE, hashRange[0])));
-						else {
-							op.addExpressions(
-									new Expression(Operator.GREATEREQUAL, new Feature(SPATIAL_FEATURE, hashRange[0])));
-							op.addExpressions(
-									new Expression(Operator.LESSEQUAL, new Feature(SPATIAL_FEATURE, hashRange[1])));
-						}
-						query.addOperation(op);
-					}
-				}
+			for (Operation spatialOp : spatialOperations) {
+				Operation op = new Operation(temporalExpressions);
+				op.addExpressions(spatialOp.getExpressions());
+				query.addOperation(op);
 			}
 			/* query intersection merges the query with metadata query */
 			/* returns a list of paths matching the query */
@@ -1794,35 +2148,10 @@ public class GeospatialFileSystem extends FileSystem {
 			SpatialProperties sp = new SpatialProperties(new SpatialRange(spatialProperties));
 			List<Coordinates> geometry = sp.getSpatialRange().hasPolygon() ? sp.getSpatialRange().getPolygon()
 					: sp.getSpatialRange().getBounds();
-			List<String> hashLocations = new ArrayList<>(Arrays.asList(GeoHash.getIntersectingGeohashes(geometry)));
-			hashLocations.retainAll(this.geohashIndex);
-			logger.info("baseLocations: " + hashLocations);
+			List<Operation> spatialOperations = getSpatialOperations(geometry);
 			Query query = new Query();
-			Polygon polygon = GeoHash.buildAwtPolygon(geometry);
-			for (String geohash : hashLocations) {
-				Set<GeoHash> intersections = new HashSet<>();
-				String pattern = "%" + (geohash.length() * GeoHash.BITS_PER_CHAR) + "s";
-				String binaryHash = String.format(pattern, Long.toBinaryString(GeoHash.hashToLong(geohash)));
-				GeoHash.getGeohashPrefixes(polygon, new GeoHash(binaryHash.replace(" ", "0")),
-						this.geohashPrecision * GeoHash.BITS_PER_CHAR, intersections);
-				logger.info("baseHash: " + geohash + ", intersections: " + intersections.size());
-				for (GeoHash gh : intersections) {
-					String[] hashRange = gh.getValues(this.geohashPrecision);
-					if (hashRange != null) {
-						Operation op = new Operation();
-						if (hashRange.length == 1)
-							op.addExpressions(
-									new Expression(Operator.EQUAL, new Feature(SPATIAL_FEATURE, hashRange[0])));
-						else {
-							op.addExpressions(
-									new Expression(Operator.GREATEREQUAL, new Feature(SPATIAL_FEATURE, hashRange[0])));
-							op.addExpressions(
-									new Expression(Operator.LESSEQUAL, new Feature(SPATIAL_FEATURE, hashRange[1])));
-						}
-						query.addOperation(op);
-					}
-				}
-			}
+			for (Operation spatialOp : spatialOperations)
+				query.addOperation(new Operation(spatialOp.getExpressions()));
 			/* Queryintersection combines the normal and metadata query */
 			paths = executeParallelQuery(queryIntersection(query, metaQuery));
 		} else {
@@ -1958,7 +2287,9 @@ public class GeospatialFileSystem extends FileSystem {
 	 * created for insertion into the Metadata Graph.
 	 */
 	protected FeaturePath<String> createPath(String physicalPath, Metadata meta) {
-		FeaturePath<String> path = new FeaturePath<String>(physicalPath, meta.getAttributes().toArray());
+		FeaturePath<String> path = new FeaturePath<String>(physicalPath);
+		for (Feature feature : meta.getAttributes())
+			path.add(featureInterner.intern(feature));
 		return path;
 	}
 
@@ -1985,6 +2316,319 @@ public class GeospatialFileSystem extends FileSystem {
 		}
 	}
 
+	/**
+	 * Maps every block in the metadata graph to the features of its path.
+	 */
+	Map<String, List<Feature>> indexPathsByBlock() {
+		Map<String, List<Feature>> index = new HashMap<>();
+		for (Path<Feature, String> path : metadataGraph.getAllPaths()) {
+			List<Feature> labels = path.getLabels();
+			for (String blockPath : new ArrayList<>(path.getPayload()))
+				index.put(blockPath, labels);
+		}
+		return index;
+	}
+
+	/**
+	 * Merges blocks of the same directory that are stored under the same path
+	 * of the metadata graph (and so the same time and geohash) into segments
+	 * of at most maxSegmentBytes. Groups with fewer than minBlocks blocks are
+	 * left alone.
+	 *
+	 * @param paths
+	 *            path features of each block, see {@link #indexPathsByBlock()}
+	 * @return the blocks that were merged. They are no longer referenced and
+	 *         should be removed with {@link #deleteRetiredBlocks(List)} once
+	 *         running queries are done with them.
+	 */
+	List<String> compactBlocks(List<String> blockPaths, Map<String, List<Feature>> paths, int minBlocks,
+			long maxSegmentBytes) throws FileSystemException, IOException, SerializationException {
+		Map<String, List<String>> groups = new LinkedHashMap<>();
+		for (String blockPath : blockPaths) {
+			List<Feature> labels = paths.get(blockPath);
+			if (labels == null || retiredBlocks.contains(blockPath))
+				continue;
+			String key = getCompactionKey(labels);
+			if (key == null)
+				continue;
+			List<String> group = groups.get(key);
+			if (group == null) {
+				group = new ArrayList<>();
+				groups.put(key, group);
+			}
+			group.add(blockPath);
+		}
+
+		List<String> retired = new ArrayList<>();
+		for (List<String> group : groups.values()) {
+			if (group.size() < minBlocks)
+				continue;
+			List<String> sources = new ArrayList<>();
+			long segmentBytes = 0;
+			for (String blockPath : group) {
+				long size = new File(blockPath).length();
+				if (!sources.isEmpty() && segmentBytes + size > maxSegmentBytes) {
+					retired.addAll(mergeBlocks(sources, paths.get(sources.get(0))));
+					sources = new ArrayList<>();
+					segmentBytes = 0;
+				}
+				sources.add(blockPath);
+				segmentBytes += size;
+			}
+			retired.addAll(mergeBlocks(sources, paths.get(sources.get(0))));
+		}
+		return retired;
+	}
+
+	/*
+	 * Blocks can only be merged if their paths in the metadata graph are the
+	 * same, so that the segment's single path describes all of them. Blocks
+	 * without a geohash are never merged.
+	 */
+	private String getCompactionKey(List<Feature> labels) {
+		StringBuilder key = new StringBuilder();
+		boolean spatial = false;
+		for (Feature label : labels) {
+			String name = label.getName();
+			key.append(name).append('=').append(label.getType()).append(':').append(label.getString()).append(';');
+			spatial |= name.equals(SPATIAL_FEATURE);
+		}
+		return spatial ? key.toString() : null;
+	}
+
+	/**
+	 * Writes the records of the given blocks into a new segment and replaces
+	 * the blocks with the segment in the path journal and the metadata graph.
+	 * The segment takes over the metadata of the first block, the same way a
+	 * block keeps the metadata of its first append.
+	 * <p>
+	 * The segment is written without holding the compaction lock, so appends
+	 * carry on meanwhile. It only replaces the blocks if none of them was
+	 * written to in the meantime; otherwise it is discarded.
+	 */
+	private List<String> mergeBlocks(List<String> sources, List<Feature> labels)
+			throws FileSystemException, IOException, SerializationException {
+		if (sources.size() < 2)
+			return Collections.emptyList();
+
+		String first = sources.get(0);
+		String segmentPath = new File(first).getParent() + File.separator + SEGMENT_PREFIX
+				+ System.currentTimeMillis() + "-" + segmentSequence.incrementAndGet() + FileSystem.BLOCK_EXTENSION;
+		String metadataPath = first.replace(BLOCK_EXTENSION, METADATA_EXTENSION);
+		Metadata meta = Serializer.deserialize(Metadata.class, Files.readAllBytes(Paths.get(metadataPath)));
+		BorderingProperties bp = GeoHash.getBorderingGeohashHeuristic(getSpatialString(meta.getSpatialProperties()),
+				spatialUncertaintyPrecision, temporalUncertaintyPrecision, meta.getTemporalProperties(),
+				this.temporalType);
+		ZoneMap zoneMap = (this.featureList == null) ? null : new ZoneMap(this.featureList, this.temporalPosn);
+
+		/* Size of each block when it was read; blocks only ever grow */
+		long[] lengths = new long[sources.size()];
+		try {
+			try (FileOutputStream out = new FileOutputStream(segmentPath)) {
+				long offset = 0;
+				ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+				for (int i = 0; i < sources.size(); ++i) {
+					String source = sources.get(i);
+					writeBuffer.flush(source);
+					lengths[i] = new File(source).length();
+					byte[] data = retrieveBlock(source).getData();
+					if (data.length == 0)
+						continue;
+					if (bp != null)
+						readBlockData(data, bp);
+					if (zoneMap != null)
+						zoneMap.add(data);
+					if (chunk.size() > 0)
+						chunk.write('\n');
+					chunk.write(data);
+					if (chunk.size() >= BlockWriteBuffer.DEFAULT_MAX_BYTES) {
+						offset += writeSegmentChunk(out, segmentPath, offset, chunk.toByteArray());
+						chunk.reset();
+					}
+				}
+				if (chunk.size() > 0)
+					writeSegmentChunk(out, segmentPath, offset, chunk.toByteArray());
+				out.getFD().sync();
+			}
+			Files.copy(Paths.get(metadataPath), Paths.get(segmentPath.replace(BLOCK_EXTENSION, METADATA_EXTENSION)));
+			if (bp != null)
+				BorderIndex.create(segmentPath, bp);
+			if (zoneMap != null)
+				ZoneMap.create(segmentPath, zoneMap);
+		} catch (IOException e) {
+			deleteBlockFiles(segmentPath);
+			throw e;
+		}
+
+		compactionLock.writeLock().lock();
+		try {
+			for (int i = 0; i < sources.size(); ++i) {
+				String source = sources.get(i);
+				writeBuffer.flush(source);
+				if (retiredBlocks.contains(source) || new File(source).length() != lengths[i]) {
+					logger.log(Level.FINE, "Block {0} changed while it was being merged", source);
+					deleteBlockFiles(segmentPath);
+					return Collections.emptyList();
+				}
+			}
+			if (bp != null)
+				borderMap.put(segmentPath, bp);
+			if (zoneMap != null)
+				zoneMaps.put(segmentPath, zoneMap);
+
+			FeaturePath<String> segment = new FeaturePath<String>(segmentPath, labels.toArray(new Feature[labels.size()]));
+			pathJournal.replacePaths(sources, segment);
+			storePath(segment);
+			metadataGraph.removePayloads(sources);
+			for (String source : sources) {
+				writeBuffer.release(source);
+				retiredBlocks.add(source);
+			}
+		} finally {
+			compactionLock.writeLock().unlock();
+		}
+		/* Cached responses may still list the merged blocks */
+		if (storageNode != null)
+			storageNode.blocksRetired(this, meta);
+		return sources;
+	}
+
+	/**
+	 * Writes a batch of records to a segment in the same layout the write
+	 * buffer would have used.
+	 *
+	 * @return number of bytes written
+	 */
+	private int writeSegmentChunk(FileOutputStream out, String segmentPath, long offset, byte[] data)
+			throws IOException {
+		byte[] bytes;
+		if (this.featureList != null) {
+			bytes = ColumnarBlock.encode(data, getColumnTypes(), this.blockCodec);
+			out.write(bytes);
+			ColumnarBlock.appendIndexEntry(segmentPath, offset, bytes);
+			return bytes.length;
+		}
+		if (offset > 0) {
+			ByteArrayOutputStream csv = new ByteArrayOutputStream(data.length + 1);
+			csv.write('\n');
+			csv.write(data);
+			data = csv.toByteArray();
+		}
+		if (this.blockCodec == BlockCodec.NONE) {
+			out.write(data);
+			MappedBlockReader.appendLineIndexEntry(segmentPath, offset, data);
+			return data.length;
+		}
+		bytes = this.blockCodec.compress(data);
+		out.write(bytes);
+		return bytes.length;
+	}
+
+	boolean isRetired(String blockPath) {
+		return retiredBlocks.contains(blockPath);
+	}
+
+	/**
+	 * Removes blocks that were merged into segments from disk, unless they have
+	 * been written to again in the meantime. Blocks that are pinned by a
+	 * running query or an open cursor are removed once they are unpinned.
+	 */
+	void deleteRetiredBlocks(List<String> blockPaths) {
+		synchronized (retiredBlocks) {
+			for (String blockPath : blockPaths) {
+				if (pinnedBlocks.containsKey(blockPath))
+					pendingDeletion.add(blockPath);
+				else
+					reclaimBlock(blockPath);
+			}
+		}
+	}
+
+	/*
+	 * Picks the file that appends to the given block go to. A block that was
+	 * merged into a segment starts over under its old name, but only once
+	 * nothing reads its old files any more; until then its appends go to a
+	 * block of a fresh name, which is an ordinary block of its own from then
+	 * on.
+	 */
+	private String resolveBlockPath(String blockPath) {
+		synchronized (retiredBlocks) {
+			while (retiredBlocks.contains(blockPath)) {
+				if (!pinnedBlocks.containsKey(blockPath)) {
+					reclaimBlock(blockPath);
+					break;
+				}
+				String successor = successorBlocks.get(blockPath);
+				if (successor == null) {
+					successor = blockPath.substring(0, blockPath.length() - BLOCK_EXTENSION.length()) + "-"
+							+ System.currentTimeMillis() + "-" + segmentSequence.incrementAndGet() + BLOCK_EXTENSION;
+					successorBlocks.put(blockPath, successor);
+				}
+				blockPath = successor;
+			}
+			return blockPath;
+		}
+	}
+
+	private void reclaimBlock(String blockPath) {
+		synchronized (retiredBlocks) {
+			pendingDeletion.remove(blockPath);
+			successorBlocks.remove(blockPath);
+			if (retiredBlocks.remove(blockPath))
+				deleteBlockFiles(blockPath);
+		}
+	}
+
+	/**
+	 * Keeps the given blocks on disk even if they are merged into a segment,
+	 * for a query or cursor that is going to read them. Every call must be
+	 * matched by a call to {@link #unpinBlocks(Collection)}.
+	 */
+	public void pinBlocks(Collection<String> blockPaths) {
+		synchronized (retiredBlocks) {
+			for (String blockPath : blockPaths) {
+				Integer pins = pinnedBlocks.get(blockPath);
+				pinnedBlocks.put(blockPath, (pins == null) ? 1 : pins + 1);
+			}
+		}
+	}
+
+	public void unpinBlocks(Collection<String> blockPaths) {
+		synchronized (retiredBlocks) {
+			for (String blockPath : blockPaths) {
+				Integer pins = pinnedBlocks.get(blockPath);
+				if (pins == null)
+					continue;
+				if (pins > 1) {
+					pinnedBlocks.put(blockPath, pins - 1);
+				} else {
+					pinnedBlocks.remove(blockPath);
+					if (pendingDeletion.contains(blockPath))
+						reclaimBlock(blockPath);
+				}
+			}
+		}
+	}
+
+	private void deleteBlockFiles(String blockPath) {
+		String[] files = { blockPath, blockPath.replace(BLOCK_EXTENSION, METADATA_EXTENSION),
+				ColumnarBlock.indexPath(blockPath), MappedBlockReader.lineIndexPath(blockPath),
+				BorderIndex.indexPath(blockPath), ZoneMap.indexPath(blockPath) };
+		/* Keeps a concurrent load from caching the zone map of a deleted block */
+		synchronized (zoneMapLock(blockPath)) {
+			for (String file : files) {
+				try {
+					Files.deleteIfExists(Paths.get(file));
+				} catch (IOException e) {
+					logger.log(Level.WARNING, "Failed to delete " + file, e);
+				}
+			}
+			zoneMaps.remove(blockPath);
+		}
+		borderMap.remove(blockPath);
+		BorderIndex.forget(blockPath);
+	}
+
 	public MetadataGraph getMetadataGraph() {
 		return metadataGraph;
 	}
@@ -1994,37 +2638,56 @@ public class GeospatialFileSystem extends FileSystem {
 	}
 
 	private List<String[]> getFeaturePaths(String blockPath) throws IOException {
-		byte[] blockBytes = Files.readAllBytes(Paths.get(blockPath));
-		String blockData = new String(blockBytes, "UTF-8");
-		List<String[]> paths = new ArrayList<String[]>();
-		String[] lines = blockData.split("\\r?\\n");
-		int splitLimit = this.featureList.size();
-		for (String line : lines)
-			paths.add(line.split(",", splitLimit));
-		blockBytes = null;
-		blockData = null;
-		return paths;
+		writeBuffer.flush(blockPath);
+		return new MappedBlockReader(blockPath, this.featureList.size()).getRecords();
+	}
+
+	/**
+	 * Retrieves the records of a columnar block that match a query. Only the
+	 * columns the query refers to are read in full; the query is evaluated
+	 * over them in a batch and just the matching records are decoded.
+	 *
+	 * @param query
+	 *            the query, or null to retrieve every record
+	 */
+	private List<String[]> getFeaturePaths(String blockPath, CompiledQuery query) throws IOException {
+		if (query == null)
+			return getFeaturePaths(blockPath);
+		writeBuffer.flush(blockPath);
+		MappedBlockReader reader = new MappedBlockReader(blockPath, this.featureList.size());
+		BitSet selected = query.select(ColumnarBlock.read(blockPath, query.getColumns()));
+		List<String[]> records = new ArrayList<>(selected.cardinality());
+		for (int row = selected.nextSetBit(0); row >= 0 && row < reader.getRecordCount(); row = selected
+				.nextSetBit(row + 1))
+			records.add(reader.getRecord(row));
+		return records;
 	}
 	
 	private void getFeaturePathsWithSpecificIndex(String blockPath, int latInd, int lonInd, int temporalInd, int featureInd,
 			List<Integer> recordsToRead, List<String[]> featurePathsA, List<String[]> featurePathsB) throws IOException {
 		
-		byte[] blockBytes = Files.readAllBytes(Paths.get(blockPath));
-		String blockData = new String(blockBytes, "UTF-8");
-		String[] lines = blockData.split("\\r?\\n");
-		int splitLimit = this.featureList.size();
-		int lineNum = 0;
-		for (String line : lines) {
-			String[] tokens = line.split(",", splitLimit);
+		writeBuffer.flush(blockPath);
+		Set<Integer> selected = new HashSet<Integer>(recordsToRead);
+		if (isColumnar(blockPath)) {
+			/* Only the four columns of interest are read off the disk */
+			ColumnarBlock block = ColumnarBlock.read(blockPath, new int[] { latInd, lonInd, temporalInd, featureInd });
+			for (int lineNum = 0; lineNum < block.getRecordCount(); lineNum++) {
+				if (selected.contains(lineNum))
+					featurePathsA.add(block.getRecord(lineNum));
+				else
+					featurePathsB.add(block.getRecord(lineNum));
+			}
+			return;
+		}
+		MappedBlockReader reader = new MappedBlockReader(blockPath, this.featureList.size());
+		for (int lineNum = 0; lineNum < reader.getRecordCount(); lineNum++) {
+			String[] tokens = reader.getRecord(lineNum);
 			String[] choppedFeatures = {tokens[latInd],tokens[lonInd],tokens[temporalInd],tokens[featureInd]};
-			if(recordsToRead.contains(lineNum))
+			if(selected.contains(lineNum))
 				featurePathsA.add(choppedFeatures);
 			else
 				featurePathsB.add(choppedFeatures);
-			lineNum++;
 		}
-		blockBytes = null;
-		blockData = null;
 	}
 
 	private boolean isGridInsidePolygon(GeoavailabilityGrid grid, GeoavailabilityQuery geoQuery) {
@@ -2051,15 +2714,26 @@ public class GeospatialFileSystem extends FileSystem {
 		private Query query;
 		private GeoavailabilityGrid grid;
 		private Bitmap queryBitmap;
-		private String storagePath;
+		private Aggregation aggregation;
+		private AggregateStatistics statistics;
+		private Deadline deadline;
 
 		public ParallelQueryProcessor(List<String[]> featurePaths, Query query, GeoavailabilityGrid grid,
-				Bitmap queryBitmap, String storagePath) {
+				Bitmap queryBitmap, Deadline deadline) {
 			this.featurePaths = featurePaths;
 			this.query = query;
 			this.grid = grid;
 			this.queryBitmap = queryBitmap;
-			this.storagePath = storagePath + BLOCK_EXTENSION;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Summarizes the matching records instead of writing them out.
+		 */
+		public ParallelQueryProcessor(List<String[]> featurePaths, Query query, GeoavailabilityGrid grid,
+				Bitmap queryBitmap, Aggregation aggregation, Deadline deadline) {
+			this(featurePaths, query, grid, queryBitmap, deadline);
+			this.aggregation = aggregation;
 		}
 		
 
@@ -2080,7 +2754,12 @@ public class GeospatialFileSystem extends FileSystem {
 
 					GeoavailabilityMap<String[]> geoMap = new GeoavailabilityMap<String[]>(grid);
 					Iterator<String[]> pathIterator = this.featurePaths.iterator();
+					int count = 0;
 					while (pathIterator.hasNext()) {
+						if (++count % DEADLINE_CHECK_INTERVAL == 0 && deadline.isExpired()) {
+							this.featurePaths.clear();
+							break;
+						}
 						String[] features = pathIterator.next();
 						float lat = Math.getFloat(features[latOrder]);
 						float lon = Math.getFloat(features[lngOrder]);
@@ -2091,78 +2770,137 @@ public class GeospatialFileSystem extends FileSystem {
 					for (List<String[]> paths : geoMap.query(queryBitmap).values())
 						this.featurePaths.addAll(paths);
 				}
-				if (query != null && this.featurePaths.size() > 0) {
-					MetadataGraph temporaryGraph = new MetadataGraph();
-					Iterator<String[]> pathIterator = this.featurePaths.iterator();
-					while (pathIterator.hasNext()) {
-						String[] features = pathIterator.next();
-						try {
-							Metadata metadata = new Metadata();
-							FeatureSet featureset = new FeatureSet();
-							for (int i = 0; i < features.length; i++) {
-								Pair<String, FeatureType> pair = GeospatialFileSystem.this.featureList.get(i);
-								if (pair.b == FeatureType.FLOAT)
-									featureset.put(new Feature(pair.a, Math.getFloat(features[i])));
-								if (pair.b == FeatureType.INT)
-									featureset.put(new Feature(pair.a, Math.getInteger(features[i])));
-								if (pair.b == FeatureType.LONG)
-									featureset.put(new Feature(pair.a, Math.getLong(features[i])));
-								if (pair.b == FeatureType.DOUBLE)
-									featureset.put(new Feature(pair.a, Math.getDouble(features[i])));
-								if (pair.b == FeatureType.STRING)
-									featureset.put(new Feature(pair.a, features[i]));
-							}
-							metadata.setAttributes(featureset);
-							Path<Feature, String> featurePath = createPath("/nopath", metadata);
-							temporaryGraph.addPath(featurePath);
-						} catch (Exception e) {
-							logger.warning(e.getMessage());
-						}
-						pathIterator.remove();
-					}
-					List<Path<Feature, String>> evaluatedPaths = temporaryGraph.evaluateQuery(query);
-					for (Path<Feature, String> path : evaluatedPaths) {
-						String[] featureValues = new String[path.size()];
-						int index = 0;
-						for (Feature feature : path.getLabels())
-							featureValues[index++] = feature.getString();
-						this.featurePaths.add(featureValues);
-					}
-				}
-				
-				/* THE RESULTS OF THE QUERY GETS WRITTEN TO A LOCAL FILE AND JUST THE PATH TO THAT FILE IS RETURNED FOR SUBSEQUENT FETCHING */
-				
-				if (featurePaths.size() > 0) {
-					try (FileOutputStream fos = new FileOutputStream(this.storagePath)) {
-						Iterator<String[]> pathIterator = featurePaths.iterator();
-						while (pathIterator.hasNext()) {
-							String[] path = pathIterator.next();
-							StringBuffer pathSB = new StringBuffer();
-							for (int j = 0; j < path.length; j++) {
-								pathSB.append(path[j]);
-								if (j + 1 != path.length)
-									pathSB.append(",");
-							}
-							fos.write(pathSB.toString().getBytes("UTF-8"));
-							pathIterator.remove();
-							if (pathIterator.hasNext())
-								fos.write("\n".getBytes("UTF-8"));
-						}
-					}
-				} else {
-					this.storagePath = null;
+				if (query != null && this.featurePaths.size() > 0 && !deadline.isExpired())
+					this.featurePaths = CompiledQuery.compile(query, GeospatialFileSystem.this.featureList, true)
+							.filter(this.featurePaths);
+
+				if (aggregation != null) {
+					this.statistics = summarize(this.featurePaths, aggregation);
+					this.featurePaths.clear();
 				}
-				
-			} catch (IOException | BitmapException e) {
+			} catch (BitmapException e) {
 				logger.log(Level.SEVERE, "Something went wrong while querying the filesystem.", e);
-				this.storagePath = null;
+				this.featurePaths = new ArrayList<>();
 			}
 		}
 
-		public String getStoragePath() {
-			return this.storagePath;
+		public List<String[]> getRecords() {
+			return this.featurePaths;
+		}
+
+		public AggregateStatistics getStatistics() {
+			return this.statistics;
+		}
+
+	}
+
+	/**
+	 * Adds the aggregated features of each record to the statistics of the
+	 * record's group. Values that are not numbers, and records that cannot be
+	 * placed in a group, are left out.
+	 */
+	private AggregateStatistics summarize(List<String[]> records, Aggregation aggregation) {
+		AggregateStatistics statistics = new AggregateStatistics();
+		List<String> features = aggregation.getFeatures();
+		int[] columns = new int[features.size()];
+		for (int i = 0; i < columns.length; ++i) {
+			columns[i] = -1;
+			for (int j = 0; j < this.featureList.size(); ++j)
+				if (this.featureList.get(j).a.equals(features.get(i)))
+					columns[i] = j;
+		}
+
+		Calendar c = Calendar.getInstance();
+		c.setTimeZone(TemporalHash.TIMEZONE);
+		for (String[] record : records) {
+			String group = Aggregation.ALL;
+			try {
+				if (aggregation.getGrouping() == Aggregation.Grouping.GEOHASH) {
+					float lat = Math.getFloat(record[spatialPosn1]);
+					float lon = Math.getFloat(record[spatialPosn2]);
+					if (Float.isNaN(lat) || Float.isNaN(lon))
+						continue;
+					group = GeoHash.encode(lat, lon, aggregation.getGeohashPrecision());
+				} else if (aggregation.getGrouping() == Aggregation.Grouping.TIME) {
+					c.setTimeInMillis(reformatDatetime(record[temporalPosn]));
+					group = getTemporalString(c, aggregation.getTemporalType());
+				}
+			} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+				continue;
+			}
+
+			for (int i = 0; i < columns.length; ++i) {
+				if (columns[i] < 0 || columns[i] >= record.length)
+					continue;
+				double value = Math.getDouble(record[columns[i]]);
+				if (!Double.isNaN(value) && !Double.isInfinite(value))
+					statistics.put(group, features.get(i), value);
+			}
 		}
+		return statistics;
+	}
+
+	/**
+	 * Summarizes every record of a block from the statistics in its zone map,
+	 * without reading the block. Grouped aggregations can only be answered
+	 * this way if all the records of the block fall into the same group.
+	 *
+	 * @return the statistics, or null if the zone map cannot provide them.
+	 */
+	private AggregateStatistics summarize(String blockPath, Aggregation aggregation) {
+		return summarize(getZoneMap(blockPath), aggregation);
+	}
 
+	private AggregateStatistics summarize(ZoneMap zoneMap, Aggregation aggregation) {
+		if (zoneMap == null || !zoneMap.hasSynopsis())
+			return null;
+		AggregateStatistics statistics = new AggregateStatistics();
+		if (zoneMap.getRecordCount() == 0)
+			return statistics;
+
+		String group = Aggregation.ALL;
+		if (aggregation.getGrouping() == Aggregation.Grouping.GEOHASH) {
+			/*
+			 * Geohashes are rectangles, so if opposite corners of the bounding
+			 * box share one, every record does. Only FLOAT columns are read
+			 * exactly as the records are grouped.
+			 */
+			if (this.featureList.get(spatialPosn1).b != FeatureType.FLOAT
+					|| this.featureList.get(spatialPosn2).b != FeatureType.FLOAT
+					|| zoneMap.getNullCount(spatialPosn1) > 0 || zoneMap.getNullCount(spatialPosn2) > 0)
+				return null;
+			int precision = aggregation.getGeohashPrecision();
+			group = GeoHash.encode((float) zoneMap.getMin(spatialPosn1), (float) zoneMap.getMin(spatialPosn2),
+					precision);
+			if (!group.equals(GeoHash.encode((float) zoneMap.getMax(spatialPosn1),
+					(float) zoneMap.getMax(spatialPosn2), precision)))
+				return null;
+		} else if (aggregation.getGrouping() == Aggregation.Grouping.TIME) {
+			if (zoneMap.getUnparsedTimeCount() > 0)
+				return null;
+			Calendar c = Calendar.getInstance();
+			c.setTimeZone(TemporalHash.TIMEZONE);
+			c.setTimeInMillis(zoneMap.getFirstTime());
+			group = getTemporalString(c, aggregation.getTemporalType());
+			c.setTimeInMillis(zoneMap.getLastTime());
+			if (!group.equals(getTemporalString(c, aggregation.getTemporalType())))
+				return null;
+		}
+
+		for (String feature : aggregation.getFeatures()) {
+			int column = -1;
+			for (int i = 0; i < this.featureList.size(); ++i)
+				if (this.featureList.get(i).a.equals(feature))
+					column = i;
+			if (column < 0)
+				continue;
+			RunningStatistics featureStatistics = zoneMap.getStatistics(column);
+			if (featureStatistics == null)
+				return null;
+			if (featureStatistics.n() > 0)
+				statistics.put(group, feature, featureStatistics);
+		}
+		return statistics;
 	}
 
 	/**
@@ -2216,10 +2954,9 @@ public class GeospatialFileSystem extends FileSystem {
 			
 			/* In case we need to process in fragments */
 			
-			byte[] blockBytes = Files.readAllBytes(Paths.get(blockPath));
-			String blockData = new String(blockBytes, "UTF-8");
-			String[] lines = blockData.split("\\r?\\n");
-			int splitLimit = this.featureList.size();
+			/* Only the records named by the bordering properties are decoded */
+			writeBuffer.flush(blockPath);
+			MappedBlockReader reader = new MappedBlockReader(blockPath, this.featureList.size());
 			
 			BorderingProperties borderingProperties = borderMap.get(blockPath);
 			//logger.log(Level.INFO, "RIKI: BORDERING PROPERTIES FOUND " +borderingProperties +" "+ blockPaths);
@@ -2229,18 +2966,18 @@ public class GeospatialFileSystem extends FileSystem {
 			/* Gets the actual records numbers needed in a 28 length list of list representing each fragment*/
 			for(int i : chunks) {
 				//logger.log(Level.INFO, i+ "RIKI: BEFORE OM ");
-				List<Long> recordsToRead = OrientationManager.getRecordNumbersFromBlock(i, borderingProperties);
+				Bitmap recordsToRead = OrientationManager.getRecordNumbersFromBlock(i, borderingProperties);
 				//logger.log(Level.INFO, i+ "RIKI: AFTER OM ");
 				//logger.log(Level.INFO, "RIKI: LINE NOS TO READ " + recordsToRead +" "+blockPaths);
-				if(recordsToRead == null || recordsToRead.size() == 0)
+				if(recordsToRead == null || recordsToRead.isEmpty())
 					continue;
 				
 				List<String[]> paths = new ArrayList<String[]>();
 				
-				for (long l : recordsToRead) {
-					String line = lines[(int)l];
-					paths.add(line.split(",", splitLimit));
-				}
+				/* Records past the end were lost with unflushed appends; skip them */
+				for (int l : recordsToRead)
+					if (l < reader.getRecordCount())
+						paths.add(reader.getRecord(l));
 				
 				if(records.get(i) == null) {
 					
@@ -2294,65 +3031,125 @@ public class GeospatialFileSystem extends FileSystem {
 		return records;
 	}
 	
-	public List<String> query(String blockPath, GeoavailabilityQuery geoQuery, GeoavailabilityGrid grid,
-			Bitmap queryBitmap, String pathPrefix) throws IOException, InterruptedException {
-		List<String> resultFiles = new ArrayList<>();
+	/**
+	 * Retrieves the records of a block that match a query. Only one block is
+	 * held in memory at a time, so callers that stream results can bound
+	 * their memory use by the size of a block.
+	 */
+	public List<String[]> query(String blockPath, GeoavailabilityQuery geoQuery, GeoavailabilityGrid grid,
+			Bitmap queryBitmap, Deadline deadline) throws IOException, InterruptedException {
+		List<ParallelQueryProcessor> queryProcessors = processBlock(blockPath, geoQuery, grid, queryBitmap, null,
+				deadline);
+		if (queryProcessors == null)
+			return getFeaturePaths(blockPath);
+		if (queryProcessors.size() == 1)
+			return queryProcessors.get(0).getRecords();
+		List<String[]> records = new ArrayList<>();
+		for (ParallelQueryProcessor pqp : queryProcessors)
+			records.addAll(pqp.getRecords());
+		return records;
+	}
+
+	/**
+	 * Computes statistics over the records of a block that match a query,
+	 * without writing the records out. Past the deadline the block is left
+	 * out and the statistics are empty.
+	 */
+	public AggregateStatistics aggregate(String blockPath, GeoavailabilityQuery geoQuery, GeoavailabilityGrid grid,
+			Bitmap queryBitmap, Aggregation aggregation, Deadline deadline) throws IOException, InterruptedException {
+		if (deadline.isExpired())
+			return new AggregateStatistics();
+		/* Blocks the query covers entirely are answered from their zone maps */
+		if (geoQuery.getQuery() == null
+				&& (geoQuery.getPolygon() == null || isGridInsidePolygon(grid, geoQuery))) {
+			AggregateStatistics statistics = summarize(blockPath, aggregation);
+			if (statistics != null)
+				return statistics;
+		}
+
+		AggregateStatistics statistics = new AggregateStatistics();
+		for (ParallelQueryProcessor pqp : processBlock(blockPath, geoQuery, grid, queryBitmap, aggregation, deadline))
+			if (pqp.getStatistics() != null)
+				statistics.merge(pqp.getStatistics());
+		return statistics;
+	}
+
+	/**
+	 * Filters the records of a block in parallel, either keeping the matches
+	 * or, if an aggregation is given, summarizing them.
+	 *
+	 * Processors that have not finished by the deadline are interrupted and
+	 * keep whatever they had gathered.
+	 *
+	 * @return the processors that ran, or null if every record of the block
+	 *         matches and no aggregation was requested.
+	 */
+	private List<ParallelQueryProcessor> processBlock(String blockPath, GeoavailabilityQuery geoQuery,
+			GeoavailabilityGrid grid, Bitmap queryBitmap, Aggregation aggregation, Deadline deadline)
+			throws IOException, InterruptedException {
+		if (deadline.isExpired())
+			return new ArrayList<>();
 		List<String[]> featurePaths = null;
 		boolean skipGridProcessing = false;
+
+		/* Columnar blocks are filtered a column at a time, before records are decoded */
+		Query featureQuery = geoQuery.getQuery();
+		CompiledQuery batchQuery = null;
+		if (featureQuery != null && isColumnar(blockPath)) {
+			batchQuery = CompiledQuery.compile(featureQuery, this.featureList, true);
+			featureQuery = null;
+		}
+
 		if (geoQuery.getPolygon() != null && geoQuery.getQuery() != null) {
 			skipGridProcessing = isGridInsidePolygon(grid, geoQuery);
 			
 			// THIS READS THE ACTUAL BLOCK
 			// Creates a path graph from block data
-			featurePaths = getFeaturePaths(blockPath);
+			featurePaths = getFeaturePaths(blockPath, batchQuery);
 		} else if (geoQuery.getPolygon() != null) {
 			/* If grid lies completely inside polygon */
 			skipGridProcessing = isGridInsidePolygon(grid, geoQuery);
 			if (!skipGridProcessing)
 				featurePaths = getFeaturePaths(blockPath);
 		} else if (geoQuery.getQuery() != null) {
-			featurePaths = getFeaturePaths(blockPath);
-		} else {
-			resultFiles.add(blockPath);
-			return resultFiles;
+			featurePaths = getFeaturePaths(blockPath, batchQuery);
 		}
 
 		if (featurePaths == null) {
-			resultFiles.add(blockPath);
-			return resultFiles;
+			/* The whole block matches; only an aggregation has to read it */
+			if (aggregation == null)
+				return null;
+			featurePaths = getFeaturePaths(blockPath);
+			skipGridProcessing = true;
 		}
 
 		queryBitmap = skipGridProcessing ? null : queryBitmap;
+		List<ParallelQueryProcessor> queryProcessors = new ArrayList<>();
 		int size = featurePaths.size();
 		int partition = java.lang.Math.max(size / numCores, MIN_GRID_POINTS);
 		int parallelism = java.lang.Math.min(size / partition, numCores);
 		if (parallelism > 1) {
 			ExecutorService executor = Executors.newFixedThreadPool(parallelism);
-			List<ParallelQueryProcessor> queryProcessors = new ArrayList<>();
 			for (int i = 0; i < parallelism; i++) {
 				int from = i * partition;
 				int to = (i + 1 != parallelism) ? (i + 1) * partition : size;
 				List<String[]> subset = new ArrayList<>(featurePaths.subList(from, to));
-				ParallelQueryProcessor pqp = new ParallelQueryProcessor(subset, geoQuery.getQuery(), grid, queryBitmap,
-						pathPrefix + "-" + i);
+				ParallelQueryProcessor pqp = (aggregation != null)
+						? new ParallelQueryProcessor(subset, featureQuery, grid, queryBitmap, aggregation, deadline)
+						: new ParallelQueryProcessor(subset, featureQuery, grid, queryBitmap, deadline);
 				queryProcessors.add(pqp);
 				executor.execute(pqp);
 			}
 			featurePaths.clear();
-			executor.shutdown();
-			executor.awaitTermination(10, TimeUnit.MINUTES);
-			for (ParallelQueryProcessor pqp : queryProcessors)
-				if (pqp.getStoragePath() != null)
-					resultFiles.add(pqp.getStoragePath());
+			deadline.await(executor);
 		} else {
-			ParallelQueryProcessor pqp = new ParallelQueryProcessor(featurePaths, geoQuery.getQuery(), grid,
-					queryBitmap, pathPrefix);
+			ParallelQueryProcessor pqp = (aggregation != null)
+					? new ParallelQueryProcessor(featurePaths, featureQuery, grid, queryBitmap, aggregation, deadline)
+					: new ParallelQueryProcessor(featurePaths, featureQuery, grid, queryBitmap, deadline);
 			pqp.run(); // to avoid another thread creation
-			if (pqp.getStoragePath() != null)
-				resultFiles.add(pqp.getStoragePath());
+			queryProcessors.add(pqp);
 		}
-
-		return resultFiles;
+		return queryProcessors;
 	}
 
 	public JSONArray getFeaturesJSON() {
@@ -2362,6 +3159,9 @@ public class GeospatialFileSystem extends FileSystem {
 	@Override
 	public void shutdown() {
 		logger.info("FileSystem shutting down");
+		compactor.shutdown();
+		checkpointer.shutdown();
+		writeBuffer.shutdown();
 		try {
 			pathJournal.shutdown();
 		} catch (Exception e) {
@@ -2435,8 +3235,12 @@ public class GeospatialFileSystem extends FileSystem {
 	 * @throws IOException
 	 * @throws InterruptedException
 	 */
-	public List<String> queryFragments(List<String> blocks, GeoavailabilityQuery geoQuery, GeoavailabilityGrid grid, Bitmap queryBitmap, PathFragments fragments) 
-			throws IOException, InterruptedException {
+	public List<String> queryFragments(List<String> blocks, GeoavailabilityQuery geoQuery, GeoavailabilityGrid grid, Bitmap queryBitmap, PathFragments fragments,
+			Deadline deadline) throws IOException, InterruptedException {
+		
+		/* Past the deadline nothing is read, and the path is reported as empty */
+		if (deadline.isExpired())
+			return null;
 		
 		/* Represents all possible fragments. Only the fields representing the required fragments will be populated */
 		List<List<String[]>> featurePaths = new ArrayList<List<String[]>>();
@@ -2510,10 +3314,9 @@ public class GeospatialFileSystem extends FileSystem {
 				i++;
 			}
 			
-			executor.shutdown();
-			boolean status = executor.awaitTermination(10, TimeUnit.MINUTES);
+			boolean status = deadline.await(executor);
 			if (!status)
-				logger.log(Level.WARNING, "queryFragments: Executor terminated because of the specified timeout=10minutes");
+				logger.log(Level.WARNING, "queryFragments: Executor terminated at the deadline of the request");
 			
 			fullyEmpty = true;
 			for(NeighborDataParallelQueryProcessor nqp : queryProcessors) {
@@ -2548,11 +3351,13 @@ public class GeospatialFileSystem extends FileSystem {
 	 */
 	
 	// gets called once per supercube
-	public List<String[]> queryLocal(List<String> blocks, GeoavailabilityQuery geoQuery, GeoavailabilityGrid grid, Bitmap queryBitmap) 
-			throws IOException, InterruptedException {
+	public List<String[]> queryLocal(List<String> blocks, GeoavailabilityQuery geoQuery, GeoavailabilityGrid grid, Bitmap queryBitmap,
+			Deadline deadline) throws IOException, InterruptedException {
 		
 		List<String[]> featurePaths = new ArrayList<String[]>();
 		List<String[]> returnPaths = new ArrayList<String[]>();
+		if (deadline.isExpired())
+			return returnPaths;
 		
 		// THIS READS THE ACTUAL BLOCKS
 		
@@ -2606,10 +3411,9 @@ public class GeospatialFileSystem extends FileSystem {
 				}
 			}
 			
-			executor.shutdown();
-			boolean status = executor.awaitTermination(10, TimeUnit.MINUTES);
+			boolean status = deadline.await(executor);
 			if (!status)
-				logger.log(Level.WARNING, "queryFragments: Executor terminated because of the specified timeout=10minutes");
+				logger.log(Level.WARNING, "queryLocal: Executor terminated at the deadline of the request");
 			
 			for(LocalParallelQueryProcessor nqp : queryProcessors) {
 				//logger.log(Level.INFO, "RIKI: LocalParallelQueryProcessor PATHS6"+nqp.getFeaturePaths());
@@ -2879,7 +3683,7 @@ public class GeospatialFileSystem extends FileSystem {
 		
 		List<Integer> list = new ArrayList<Integer>();
 		for (int i = 1; i < range; i++) {
-			if(!bp.getUpTimeEntries().contains((long)i) && !bp.getDownTimeEntries().contains((long)i))
+			if(!bp.getUpTimeEntries().get(i) && !bp.getDownTimeEntries().get(i))
 				list.add(i);
 		}
 		Collections.shuffle(list);
@@ -2958,6 +3762,14 @@ public class GeospatialFileSystem extends FileSystem {
 	public void setSpatialPartitioningType(int spatialPartitioningType) {
 		this.spatialPartitioningType = spatialPartitioningType;
 	}
+
+	public BlockCodec getBlockCodec() {
+		return blockCodec;
+	}
+
+	public void setBlockCodec(BlockCodec blockCodec) {
+		this.blockCodec = (blockCodec == null) ? BlockCodec.NONE : blockCodec;
+	}
 	
 	
 	
@@ -0,0 +1,108 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.fs;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodically writes a snapshot of the metadata graph so that the path
+ * journal only has to be replayed from the last snapshot on startup. A
+ * snapshot is only taken once enough entries have been added to the journal
+ * since the previous one.
+ *
+ * @author sapmitra
+ */
+public class GraphCheckpointer {
+
+	private static final Logger logger = Logger.getLogger("galileo");
+
+	public static final long DEFAULT_INTERVAL = 5 * 60 * 1000;
+	public static final long DEFAULT_MIN_ENTRIES = 10000;
+
+	private GeospatialFileSystem fs;
+	private PathJournal journal;
+
+	private long interval;
+	private long minEntries;
+
+	private ScheduledExecutorService executor;
+
+	public GraphCheckpointer(GeospatialFileSystem fs, PathJournal journal) {
+		this.fs = fs;
+		this.journal = journal;
+		this.interval = Long.getLong("galileo.fs.GraphCheckpointer.interval", DEFAULT_INTERVAL);
+		this.minEntries = Long.getLong("galileo.fs.GraphCheckpointer.minEntries", DEFAULT_MIN_ENTRIES);
+	}
+
+	/**
+	 * Schedules periodic snapshots. Setting the interval to 0 disables them.
+	 */
+	public synchronized void start() {
+		if (interval <= 0 || executor != null)
+			return;
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "galileo-checkpointer");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				if (journal.getEntryCount() < minEntries)
+					return;
+				try {
+					fs.checkpoint();
+				} catch (Exception e) {
+					logger.log(Level.SEVERE, "Failed to write metadata graph snapshot", e);
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops taking snapshots, waiting for one that is being written to
+	 * complete.
+	 */
+	public synchronized void shutdown() {
+		if (executor == null)
+			return;
+		executor.shutdown();
+		try {
+			executor.awaitTermination(5, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
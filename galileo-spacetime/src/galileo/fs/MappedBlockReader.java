@@ -0,0 +1,432 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.fs;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Provides random access to the records of a block through a read-only memory
+ * mapping of the block file, so that only the records that are requested are
+ * decoded. Columnar blocks are located through their record index (see
+ * {@link ColumnarBlock#indexPath(String)}); if the index is missing or does
+ * not cover the whole block, the row group headers are walked instead. Plain
+ * CSV blocks are located through their line index (see
+ * {@link #lineIndexPath(String)}) in the same way; only the part of the block
+ * the index does not cover is scanned for line boundaries.
+ * <p>
+ * Compressed CSV blocks are a sequence of GZIP members, one per flush, each
+ * holding whole records. They are decompressed one member at a time: reading
+ * every record streams through the block once, and random access decodes only
+ * the member holding the record (the last decoded member is kept). Blocks
+ * whose records span members are decompressed as a whole.
+ *
+ * @author sapmitra
+ */
+public class MappedBlockReader {
+
+	/* offset, length, number of line starts */
+	private static final int LINE_ENTRY_HEADER_SIZE = 16;
+
+	private String blockPath;
+	private int numColumns;
+	private ByteBuffer buffer;
+	private int recordCount;
+
+	/* Columnar blocks: row group offsets and the first record of each group */
+	private int[] groupOffsets;
+	private int[] firstRecords;
+	private ColumnarBlock.RowGroup[] groups;
+
+	/* CSV blocks: start of each line, followed by the end of the last line */
+	private int[] lineOffsets;
+
+	/* Compressed CSV blocks: member offsets and the first record of each */
+	private ByteBuffer compressed;
+	private BlockCodec.GzipMembers members;
+	private int[] memberOffsets;
+	private int[] memberFirstRecords;
+	private int cachedMember = -1;
+
+	/**
+	 * @param numColumns
+	 *            number of features in the file system's feature list
+	 */
+	public MappedBlockReader(String blockPath, int numColumns) throws IOException {
+		this.blockPath = blockPath;
+		this.numColumns = numColumns;
+		this.buffer = ColumnarBlock.map(blockPath);
+		if (buffer.limit() >= 4 && buffer.getInt(0) == ColumnarBlock.MAGIC) {
+			if (!loadIndex())
+				scanRowGroups();
+			this.groups = new ColumnarBlock.RowGroup[groupOffsets.length];
+			this.recordCount = firstRecords[groupOffsets.length];
+		} else if (BlockCodec.detect(buffer) == BlockCodec.GZIP) {
+			this.compressed = buffer;
+			this.members = new BlockCodec.GzipMembers(compressed);
+			this.buffer = null;
+		} else {
+			loadLines();
+		}
+	}
+
+	/**
+	 * Splits CSV block data into records the same way the reader finds them:
+	 * on \n or \r\n, leaving out trailing empty lines. Empty data holds no
+	 * records at all.
+	 */
+	public static String[] splitRecords(byte[] data) {
+		if (data.length == 0)
+			return new String[0];
+		return new String(data, StandardCharsets.UTF_8).split("\\r?\\n");
+	}
+
+	/**
+	 * Path of the line index kept next to a plain CSV block. Each entry of
+	 * the index describes one write to the block: its offset, its length in
+	 * bytes and where the lines that start within it begin.
+	 */
+	public static String lineIndexPath(String blockPath) {
+		return blockPath.substring(0, blockPath.length() - FileSystem.BLOCK_EXTENSION.length())
+				+ FileSystem.LINE_INDEX_EXTENSION;
+	}
+
+	/**
+	 * Records the lines of CSV data that was just written to a block at the
+	 * given offset, including the line break that separates it from what
+	 * came before, in the block's line index.
+	 */
+	public static void appendLineIndexEntry(String blockPath, long offset, byte[] data) throws IOException {
+		int lines = 0;
+		for (byte b : data)
+			if (b == '\n')
+				lines++;
+		ByteBuffer entry = ByteBuffer.allocate(LINE_ENTRY_HEADER_SIZE + lines * 4);
+		entry.putLong(offset);
+		entry.putInt(data.length);
+		entry.putInt(lines);
+		for (int i = 0; i < data.length; ++i)
+			if (data[i] == '\n')
+				entry.putInt(i + 1);
+		try (FileOutputStream out = new FileOutputStream(lineIndexPath(blockPath), true)) {
+			out.write(entry.array());
+		}
+	}
+
+	/**
+	 * Loads the line starts of a CSV block from its line index and scans the
+	 * rest of the block, if any, for the others. Entries that were appended
+	 * after the block was mapped are ignored; an index that does not match
+	 * the block is ignored altogether.
+	 */
+	private void loadLines() throws IOException {
+		int limit = buffer.limit();
+		int[] offsets = new int[1024];
+		int count = 0;
+		int start = 0;
+		int expected = 0;
+		File indexFile = new File(lineIndexPath(blockPath));
+		if (indexFile.exists()) {
+			ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(indexFile.toPath()));
+			while (index.remaining() >= LINE_ENTRY_HEADER_SIZE) {
+				long offset = index.getLong();
+				int length = index.getInt();
+				int lines = index.getInt();
+				if (offset != expected || lines < 0 || index.remaining() < lines * 4L) {
+					count = 0;
+					start = 0;
+					expected = 0;
+					break;
+				}
+				if (offset + length > limit)
+					break;
+				for (int i = 0; i < lines; ++i) {
+					if (count + 2 > offsets.length)
+						offsets = Arrays.copyOf(offsets, offsets.length * 2);
+					offsets[count++] = start;
+					start = (int) offset + index.getInt();
+				}
+				expected = (int) offset + length;
+			}
+		}
+		this.recordCount = scanLines(offsets, count, start, expected);
+	}
+
+	/**
+	 * Walks the members of a compressed block, recording where each one
+	 * starts and, if records is not null, collecting their records along the
+	 * way.
+	 */
+	private void scanMembers(List<String[]> records) throws IOException {
+		int[] offsets = new int[16];
+		int[] first = new int[17];
+		int count = 0;
+		boolean endsWithNewline = false;
+		members.seek(0);
+		while (members.hasNext()) {
+			int offset = members.position();
+			ByteBuffer member = ByteBuffer.wrap(members.next());
+			/*
+			 * Every member but the first starts with the line break that
+			 * separates it from the previous one. Anything else means records
+			 * cross member boundaries.
+			 */
+			if (member.limit() == 0 || (count > 0 && (endsWithNewline || member.get(0) != '\n'))) {
+				if (records != null)
+					records.clear();
+				decompressAll();
+				return;
+			}
+			endsWithNewline = member.get(member.limit() - 1) == '\n';
+			int lines = loadMember(count, member);
+			if (count == offsets.length) {
+				offsets = Arrays.copyOf(offsets, offsets.length * 2);
+				first = Arrays.copyOf(first, offsets.length + 1);
+			}
+			offsets[count] = offset;
+			first[count + 1] = first[count] + lines;
+			count++;
+			if (records != null)
+				for (int i = 0; i < lines; ++i)
+					records.add(readLine(i));
+		}
+		this.memberOffsets = Arrays.copyOf(offsets, count);
+		this.memberFirstRecords = Arrays.copyOf(first, count + 1);
+		this.recordCount = memberFirstRecords[count];
+	}
+
+	/**
+	 * Makes a decoded member the buffer that lines are read from.
+	 *
+	 * @return number of records in the member
+	 */
+	private int loadMember(int index, ByteBuffer member) {
+		this.buffer = member;
+		this.cachedMember = index;
+		return scanLines(index == 0 ? 0 : 1);
+	}
+
+	private void decompressAll() throws IOException {
+		this.buffer = BlockCodec.GZIP.decompress(compressed);
+		this.compressed = null;
+		this.members = null;
+		this.cachedMember = -1;
+		scanLines();
+	}
+
+	private boolean isIndexed() {
+		return compressed == null || memberOffsets != null;
+	}
+
+	private void index() throws IOException {
+		if (!isIndexed())
+			scanMembers(null);
+	}
+
+	/**
+	 * Loads the row group locations from the block's record index. Entries
+	 * that were appended after the block was mapped are ignored.
+	 *
+	 * @return false if the index does not describe the mapped block exactly.
+	 */
+	private boolean loadIndex() throws IOException {
+		File indexFile = new File(ColumnarBlock.indexPath(blockPath));
+		if (!indexFile.exists())
+			return false;
+		ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(indexFile.toPath()));
+		int entries = index.limit() / ColumnarBlock.INDEX_ENTRY_SIZE;
+		int[] offsets = new int[entries];
+		int[] first = new int[entries + 1];
+		long expected = 0;
+		int count = 0;
+		for (int i = 0; i < entries; ++i) {
+			long offset = index.getLong();
+			int length = index.getInt();
+			int records = index.getInt();
+			if (offset != expected)
+				return false;
+			if (offset + length > buffer.limit())
+				break;
+			offsets[count] = (int) offset;
+			first[count + 1] = first[count] + records;
+			count++;
+			expected = offset + length;
+		}
+		if (expected != buffer.limit())
+			return false;
+		this.groupOffsets = Arrays.copyOf(offsets, count);
+		this.firstRecords = Arrays.copyOf(first, count + 1);
+		return true;
+	}
+
+	private void scanRowGroups() throws IOException {
+		List<ColumnarBlock.RowGroup> found = new ArrayList<>();
+		List<Integer> offsets = new ArrayList<>();
+		int position = 0;
+		while (position < buffer.limit()) {
+			ColumnarBlock.RowGroup group = ColumnarBlock.RowGroup.parse(buffer, position, blockPath);
+			found.add(group);
+			offsets.add(position);
+			position = group.end();
+		}
+		this.groupOffsets = new int[found.size()];
+		this.firstRecords = new int[found.size() + 1];
+		for (int i = 0; i < found.size(); ++i) {
+			groupOffsets[i] = offsets.get(i);
+			firstRecords[i + 1] = firstRecords[i] + found.get(i).records;
+		}
+	}
+
+	/**
+	 * Finds line boundaries the same way {@code split("\\r?\\n")} would,
+	 * without decoding the block.
+	 */
+	private void scanLines() {
+		this.recordCount = scanLines(0);
+	}
+
+	/**
+	 * @return number of lines found
+	 */
+	private int scanLines(int start) {
+		return scanLines(new int[1024], 0, start, start);
+	}
+
+	/**
+	 * Carries on finding line boundaries from a given position.
+	 *
+	 * @param offsets
+	 *            starts of the lines found so far
+	 * @param count
+	 *            number of lines found so far
+	 * @param start
+	 *            start of the line that the position is in
+	 * @return number of lines found
+	 */
+	private int scanLines(int[] offsets, int count, int start, int from) {
+		int limit = buffer.limit();
+		for (int i = from; i < limit; ++i) {
+			if (buffer.get(i) == '\n') {
+				if (count + 2 > offsets.length)
+					offsets = Arrays.copyOf(offsets, offsets.length * 2);
+				offsets[count++] = start;
+				start = i + 1;
+			}
+		}
+		if (start < limit) {
+			if (count + 2 > offsets.length)
+				offsets = Arrays.copyOf(offsets, offsets.length + 2);
+			offsets[count++] = start;
+			start = limit + 1;
+		}
+		offsets[count] = start;
+
+		/* Trailing empty lines are dropped, just like String.split does */
+		while (count > 0 && lineLength(offsets[count - 1], offsets[count]) == 0)
+			count--;
+		this.lineOffsets = offsets;
+		return count;
+	}
+
+	/* Length of a line, excluding its terminating \r\n or \n */
+	private int lineLength(int start, int next) {
+		int end = next - 1;
+		if (end > start && buffer.get(end - 1) == '\r')
+			end--;
+		return end - start;
+	}
+
+	private String[] readLine(int line) {
+		int start = lineOffsets[line];
+		byte[] bytes = new byte[lineLength(start, lineOffsets[line + 1])];
+		ByteBuffer view = buffer.duplicate();
+		view.position(start);
+		view.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8).split(",", numColumns);
+	}
+
+	public int getRecordCount() throws IOException {
+		index();
+		return recordCount;
+	}
+
+	public String[] getRecord(long recordNumber) throws IOException {
+		index();
+		if (recordNumber < 0 || recordNumber >= recordCount)
+			throw new IOException("Record " + recordNumber + " does not exist in " + blockPath);
+		int record = (int) recordNumber;
+		if (compressed != null) {
+			int m = Arrays.binarySearch(memberFirstRecords, 0, memberOffsets.length, record);
+			if (m < 0)
+				m = -m - 2;
+			while (memberFirstRecords[m + 1] <= record)
+				m++;
+			if (m != cachedMember) {
+				members.seek(memberOffsets[m]);
+				loadMember(m, ByteBuffer.wrap(members.next()));
+			}
+			return readLine(record - memberFirstRecords[m]);
+		}
+		if (lineOffsets != null)
+			return readLine(record);
+
+		int g = Arrays.binarySearch(firstRecords, 0, groupOffsets.length, record);
+		if (g < 0)
+			g = -g - 2;
+		/* Skip over empty row groups that share the same first record */
+		while (firstRecords[g + 1] <= record)
+			g++;
+		if (groups[g] == null)
+			groups[g] = ColumnarBlock.RowGroup.parse(buffer, groupOffsets[g], blockPath);
+		ColumnarBlock.RowGroup group = groups[g];
+		int row = record - firstRecords[g];
+		String[] values = new String[numColumns];
+		for (int c = 0; c < numColumns; ++c)
+			values[c] = (c < group.getColumnCount()) ? group.getString(buffer, c, row) : "";
+		return values;
+	}
+
+	public List<String[]> getRecords() throws IOException {
+		if (!isIndexed()) {
+			/* A single pass over the members, decoding each one once */
+			List<String[]> records = new ArrayList<>();
+			scanMembers(records);
+			if (compressed != null)
+				return records;
+		}
+		List<String[]> records = new ArrayList<>(recordCount);
+		for (int i = 0; i < recordCount; ++i)
+			records.add(getRecord(i));
+		return records;
+	}
+}
@@ -35,22 +35,44 @@ import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
 
 import galileo.dataset.feature.Feature;
+import galileo.dataset.feature.FeatureInterner;
 import galileo.dataset.feature.FeatureType;
+import galileo.graph.FeatureHierarchy;
 import galileo.graph.FeaturePath;
+import galileo.graph.MetadataGraph;
+import galileo.graph.Path;
 import galileo.graph.Vertex;
 import galileo.serialization.SerializationException;
 import galileo.serialization.SerializationInputStream;
@@ -64,8 +86,11 @@ public class PathJournal {
 
     private String pathFile;
     private String indexFile;
+    private String previousFile;
+    private String snapshotFile;
 
     private DataOutputStream pathStore;
+    private FileChannel pathChannel;
     private DataOutputStream indexStore;
 
     private Map<String, Integer> featureNames = new HashMap<>();
@@ -74,10 +99,41 @@ public class PathJournal {
     private int nextId = 1;
 
     private boolean running = false;
+    private long entryCount = 0;
+
+    /* Shares the Features of recovered paths */
+    private FeatureInterner interner;
+
+    /*
+     * A journal entry starts with the number of vertices of the path it
+     * holds, or with one of the (negative) entry kinds below.
+     */
+    private static final int REMOVAL_ENTRY = -1;
+
+    private static final int SNAPSHOT_MAGIC = 0x47534E50;
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int SNAPSHOT_BUFFER_SIZE = 1 << 16;
+
+    /* Number of journal entries handed to a recovery thread at a time */
+    private static final int RECOVERY_BATCH_SIZE = 4096;
+    private int recoveryThreads = Math.max(1, Integer.getInteger(
+            "galileo.fs.PathJournal.recoveryThreads",
+            Runtime.getRuntime().availableProcessors()));
 
     public PathJournal(String pathFile) {
+        this(pathFile, new FeatureInterner());
+    }
+
+    /**
+     * Creates a PathJournal whose recovered paths share their Features
+     * through the given interning table.
+     */
+    public PathJournal(String pathFile, FeatureInterner interner) {
+        this.interner = interner;
         this.pathFile = pathFile;
         this.indexFile = pathFile + ".index";
+        this.previousFile = pathFile + ".prev";
+        this.snapshotFile = pathFile + ".snapshot";
     }
 
     /**
@@ -89,12 +145,31 @@ public class PathJournal {
      * issues with the journal files (possible corruption).
      */
     public boolean recover(List<FeaturePath<String>> paths)
+    throws IOException {
+        return recover(paths, new HashSet<String>());
+    }
+
+    /**
+     * Recovers the Path Journal from disk.  Entries that were written before
+     * the last call to {@link #rollover()} and are not covered by a snapshot
+     * yet are recovered first.
+     *
+     * @param paths A list that will be populated with all the recovered paths.
+     * @param removed A set that will be populated with payloads the journal
+     * removed from paths it no longer holds (see {@link #recoverSnapshot}).
+     *
+     * @return true if the recovery was completed cleanly; if false, there were
+     * issues with the journal files (possible corruption).
+     */
+    public boolean recover(List<FeaturePath<String>> paths,
+            Set<String> removed)
     throws IOException {
         PerformanceTimer timer = new PerformanceTimer();
         timer.start();
         boolean clean = true;
 
-        if (new File(pathFile).exists() == false
+        boolean previous = new File(previousFile).exists();
+        if ((new File(pathFile).exists() == false && previous == false)
                 || new File(indexFile).exists() == false) {
             erase();
             return false;
@@ -114,14 +189,22 @@ public class PathJournal {
         }
         logger.log(Level.INFO, "Features read: {0}", featureNames.size());
 
+        List<JournalEntry> entries = new ArrayList<>();
         try {
-            recoverPaths(paths);
+            if (previous) {
+                recoverPaths(previousFile, entries);
+            }
+            if (new File(pathFile).exists()) {
+                recoverPaths(pathFile, entries);
+            }
         } catch (EOFException e) {
             logger.info("Reached end of path journal.");
         } catch (NullPointerException | SerializationException e) {
             logger.log(Level.WARNING, "Error deserializing path!", e);
             clean = false;
         }
+        entryCount = entries.size();
+        applyRemovals(entries, paths, removed);
         logger.log(Level.INFO, "Recovered {0} paths.", paths.size());
         timer.stop();
         logger.log(Level.INFO, "Finished PathJournal recovery in "
@@ -129,6 +212,66 @@ public class PathJournal {
         return clean;
     }
 
+    /**
+     * An entry of the journal: a path that was added to the graph, payloads
+     * that were removed from it, or both at once (see {@link #replacePaths}).
+     */
+    private static class JournalEntry {
+        private FeaturePath<String> path;
+        private List<String> removed;
+
+        private JournalEntry(FeaturePath<String> path) {
+            this.path = path;
+        }
+
+        private JournalEntry(List<String> removed, FeaturePath<String> path) {
+            this.removed = removed;
+            this.path = path;
+        }
+
+        private boolean isRemoval() {
+            return removed != null;
+        }
+    }
+
+    /**
+     * Resolves removal entries.  A removal applies to all the entries that
+     * precede it, as well as to the snapshot the journal is replayed on, but
+     * not to a path recorded along with it.
+     */
+    private void applyRemovals(List<JournalEntry> entries,
+            List<FeaturePath<String>> paths, Set<String> removed) {
+        Map<String, Integer> lastRemoval = new HashMap<>();
+        for (int i = 0; i < entries.size(); ++i) {
+            JournalEntry entry = entries.get(i);
+            if (entry.isRemoval()) {
+                for (String payload : entry.removed) {
+                    lastRemoval.put(payload, i);
+                }
+            }
+        }
+
+        for (int i = 0; i < entries.size(); ++i) {
+            FeaturePath<String> entry = entries.get(i).path;
+            if (entry == null) {
+                continue;
+            }
+            if (lastRemoval.isEmpty() == false) {
+                Iterator<String> it = entry.getPayload().iterator();
+                while (it.hasNext()) {
+                    Integer removal = lastRemoval.get(it.next());
+                    if (removal != null && removal > i) {
+                        it.remove();
+                    }
+                }
+            }
+            if (entry.hasPayload()) {
+                paths.add(entry);
+            }
+        }
+        removed.addAll(lastRemoval.keySet());
+    }
+
     /**
      * Recovers the Feature index.  The index contains a mapping from feature
      * identification numbers (used in this class only) to FeatureTypes and
@@ -176,49 +319,117 @@ public class PathJournal {
     }
 
     /**
-     * Recovers Paths stored in the Path Journal.
+     * Recovers Paths stored in the Path Journal.  The journal is read
+     * sequentially, and batches of raw entries are checksummed and
+     * deserialized on a pool of threads.  Paths are returned in journal order.
      */
-    private void recoverPaths(List<FeaturePath<String>> paths)
+    private void recoverPaths(String file, List<JournalEntry> paths)
     throws IOException, SerializationException {
-        DataInputStream pathIn = new DataInputStream(
-                new BufferedInputStream(
-                    new FileInputStream(pathFile)));
-
-        while (true) {
-            long check = pathIn.readLong();
-            int pathSize = pathIn.readInt();
-
-            byte[] pathBytes = new byte[pathSize];
-            int read = pathIn.read(pathBytes);
-            if (read != pathSize) {
-                logger.info("Reached end of path index");
-                break;
+        ExecutorService executor = Executors.newFixedThreadPool(
+                recoveryThreads);
+        List<Future<List<JournalEntry>>> batches = new ArrayList<>();
+
+        try (DataInputStream pathIn = new DataInputStream(
+                    new BufferedInputStream(
+                        new FileInputStream(file)))) {
+
+            PathBatch batch = new PathBatch();
+            while (true) {
+                long check;
+                byte[] pathBytes;
+                try {
+                    check = pathIn.readLong();
+                    int pathSize = pathIn.readInt();
+                    if (pathSize < 0) {
+                        logger.info("Reached end of path index");
+                        break;
+                    }
+                    pathBytes = new byte[pathSize];
+                    pathIn.readFully(pathBytes);
+                } catch (EOFException e) {
+                    /* Either the end of the journal or a partial entry */
+                    logger.info("Reached end of path index");
+                    break;
+                }
+
+                batch.add(check, pathBytes);
+                if (batch.size() == RECOVERY_BATCH_SIZE) {
+                    batches.add(executor.submit(batch));
+                    batch = new PathBatch();
+                }
+            }
+            if (batch.size() > 0) {
+                batches.add(executor.submit(batch));
             }
 
-            CRC32 crc = new CRC32();
-            crc.update(pathBytes);
-            if (crc.getValue() != check) {
-                logger.warning("Detected checksum mismatch; ignoring path.");
-                continue;
+            for (Future<List<JournalEntry>> future : batches) {
+                try {
+                    paths.addAll(future.get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(
+                            "Interrupted during path journal recovery");
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof SerializationException) {
+                        throw (SerializationException) cause;
+                    } else if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw (RuntimeException) cause;
+                }
             }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * A batch of raw journal entries that are verified and deserialized
+     * together.
+     */
+    private class PathBatch implements Callable<List<JournalEntry>> {
+
+        private long[] checks = new long[RECOVERY_BATCH_SIZE];
+        private byte[][] entries = new byte[RECOVERY_BATCH_SIZE][];
+        private int size = 0;
 
-            FeaturePath<String> fp = deserializePath(pathBytes);
-            paths.add(fp);
+        public void add(long check, byte[] pathBytes) {
+            checks[size] = check;
+            entries[size] = pathBytes;
+            size++;
         }
 
-        pathIn.close();
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public List<JournalEntry> call()
+        throws IOException, SerializationException {
+            List<JournalEntry> paths = new ArrayList<>(size);
+            for (int i = 0; i < size; ++i) {
+                CRC32 crc = new CRC32();
+                crc.update(entries[i]);
+                if (crc.getValue() != checks[i]) {
+                    logger.warning("Detected checksum mismatch; "
+                            + "ignoring path.");
+                    continue;
+                }
+                paths.add(deserializeEntry(entries[i]));
+            }
+            return paths;
+        }
     }
 
     /**
      * Prepares the journal files and allows new entries to be written.
      */
-    public void start()
+    public synchronized void start()
     throws IOException {
-        OutputStream out = Files.newOutputStream(Paths.get(pathFile),
-                StandardOpenOption.CREATE,
-                StandardOpenOption.WRITE,
-                StandardOpenOption.APPEND);
-        pathStore = new DataOutputStream(new BufferedOutputStream(out));
+        openPathStore();
 
         OutputStream indexOut = Files.newOutputStream(Paths.get(indexFile),
                 StandardOpenOption.CREATE,
@@ -230,6 +441,16 @@ public class PathJournal {
         running = true;
     }
 
+    private void openPathStore()
+    throws IOException {
+        pathChannel = FileChannel.open(Paths.get(pathFile),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        pathStore = new DataOutputStream(new BufferedOutputStream(
+                    Channels.newOutputStream(pathChannel)));
+    }
+
     /**
      * Determines whether the specified Feature information is in the index.  If
      * the feature is not present, it is added to the index.
@@ -310,22 +531,208 @@ public class PathJournal {
      *
      * @param path The FeaturePath to add to the journal.
      */
-    public void persistPath(FeaturePath<String> path)
+    public synchronized void persistPath(FeaturePath<String> path)
     throws FileSystemException, IOException {
         if (running == false) {
             throw new FileSystemException("Path Journal has not been started!");
         }
 
-        byte[] pathBytes = serializePath(path);
+        writePath(pathStore, serializePath(path));
+        pathStore.flush();
+        entryCount++;
+    }
 
+    private void writePath(DataOutputStream out, byte[] pathBytes)
+    throws IOException {
         CRC32 crc = new CRC32();
         crc.update(pathBytes);
         long check = crc.getValue();
 
-        pathStore.writeLong(check);
-        pathStore.writeInt(pathBytes.length);
-        pathStore.write(pathBytes);
+        out.writeLong(check);
+        out.writeInt(pathBytes.length);
+        out.write(pathBytes);
+    }
+
+    /**
+     * Appends a single entry that removes the given payloads from every path
+     * recorded before it and adds the given path, so that recovery sees
+     * either both changes or neither.  Used when blocks are merged into a
+     * segment.  The entry is forced to disk before this method returns, since
+     * the merged blocks are deleted afterwards.
+     *
+     * @param removed payloads (block paths) to remove from the journal
+     * @param added new path to add to the journal
+     */
+    public synchronized void replacePaths(Collection<String> removed,
+            FeaturePath<String> added)
+    throws FileSystemException, IOException {
+        if (running == false) {
+            throw new FileSystemException("Path Journal has not been started!");
+        }
+
+        writePath(pathStore, serializeReplacement(removed, added));
+        pathStore.flush();
+        pathChannel.force(false);
+        entryCount++;
+    }
+
+    /**
+     * Appends an entry that removes the given payloads from every path
+     * recorded before it, as well as from the snapshot.  The entry is forced
+     * to disk before this method returns.
+     *
+     * @param removed payloads (block paths) to remove from the journal
+     */
+    public synchronized void persistRemoval(Collection<String> removed)
+    throws FileSystemException, IOException {
+        if (running == false) {
+            throw new FileSystemException("Path Journal has not been started!");
+        }
+
+        writePath(pathStore, serializeRemoval(removed));
         pathStore.flush();
+        pathChannel.force(false);
+        entryCount++;
+    }
+
+    /**
+     * Retrieves the number of entries in the journal that are not covered by
+     * a snapshot yet.
+     */
+    public synchronized long getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Moves the entries written so far out of the way and starts an empty
+     * journal.  The old entries are kept until {@link #writeSnapshot} has
+     * stored a snapshot that covers them, so this must be called while the
+     * graph matches the journal exactly.
+     */
+    public synchronized void rollover()
+    throws FileSystemException, IOException {
+        if (running == false) {
+            throw new FileSystemException("Path Journal has not been started!");
+        }
+
+        pathStore.close();
+        if (new File(previousFile).exists()) {
+            /* The last snapshot was never completed; keep its entries too */
+            try (FileChannel in = FileChannel.open(Paths.get(pathFile),
+                        StandardOpenOption.READ);
+                    FileChannel out = FileChannel.open(Paths.get(previousFile),
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND)) {
+                long position = 0;
+                long size = in.size();
+                while (position < size) {
+                    position += in.transferTo(position, size - position, out);
+                }
+                out.force(true);
+            }
+            Files.delete(Paths.get(pathFile));
+        } else {
+            Files.move(Paths.get(pathFile), Paths.get(previousFile),
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+        openPathStore();
+        entryCount = 0;
+    }
+
+    /**
+     * Atomically replaces the snapshot with the given graph contents, and
+     * drops the journal entries that were moved aside by the last
+     * {@link #rollover()}.  The snapshot holds a {@link MetadataGraph} in its
+     * serialized form between a short header and a trailing checksum.
+     *
+     * @param hierarchy Feature hierarchy of the graph.
+     * @param paths Paths of the graph at the time of the last rollover.
+     */
+    public void writeSnapshot(FeatureHierarchy hierarchy,
+            List<? extends Path<Feature, String>> paths)
+    throws IOException {
+        PerformanceTimer timer = new PerformanceTimer();
+        timer.start();
+        String tempFile = snapshotFile + ".tmp";
+        try (FileOutputStream fileOut = new FileOutputStream(tempFile)) {
+            BufferedOutputStream out = new BufferedOutputStream(fileOut,
+                    SNAPSHOT_BUFFER_SIZE);
+            DataOutputStream dataOut = new DataOutputStream(out);
+            dataOut.writeInt(SNAPSHOT_MAGIC);
+            dataOut.writeInt(SNAPSHOT_VERSION);
+
+            CRC32 crc = new CRC32();
+            SerializationOutputStream sOut = new SerializationOutputStream(
+                    new CheckedOutputStream(out, crc));
+            MetadataGraph.serialize(hierarchy, paths, sOut);
+            sOut.flush();
+
+            dataOut.writeLong(crc.getValue());
+            dataOut.flush();
+            fileOut.getFD().sync();
+        }
+        Files.move(Paths.get(tempFile), Paths.get(snapshotFile),
+                StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+
+        synchronized (this) {
+            Files.deleteIfExists(Paths.get(previousFile));
+        }
+        timer.stop();
+        logger.log(Level.INFO, "Wrote snapshot of {0} paths in {1} ms.",
+                new Object[] { paths.size(), timer.getLastResult() });
+    }
+
+    /**
+     * Loads the latest snapshot written by {@link #writeSnapshot}.  The
+     * snapshot is read sequentially through a memory mapping.  The journal
+     * must be replayed on top of the snapshot with
+     * {@link #recover(List, Set)}.
+     *
+     * @param threads number of threads to rebuild the graph with.
+     *
+     * @return the graph stored in the snapshot, or null if there is none.
+     */
+    public MetadataGraph recoverSnapshot(int threads)
+    throws IOException, SerializationException {
+        if (new File(snapshotFile).exists() == false) {
+            return null;
+        }
+
+        PerformanceTimer timer = new PerformanceTimer();
+        timer.start();
+        MetadataGraph graph;
+        try (FileChannel channel = FileChannel.open(Paths.get(snapshotFile),
+                    StandardOpenOption.READ)) {
+            long size = channel.size();
+            InputStream in;
+            if (size <= Integer.MAX_VALUE) {
+                in = new BlockCodec.ByteBufferInputStream(channel.map(
+                            FileChannel.MapMode.READ_ONLY, 0, size));
+            } else {
+                in = new BufferedInputStream(Channels.newInputStream(channel),
+                        SNAPSHOT_BUFFER_SIZE);
+            }
+
+            DataInputStream dataIn = new DataInputStream(in);
+            if (dataIn.readInt() != SNAPSHOT_MAGIC
+                    || dataIn.readInt() != SNAPSHOT_VERSION) {
+                throw new SerializationException("Unrecognized metadata "
+                        + "graph snapshot");
+            }
+
+            CRC32 crc = new CRC32();
+            graph = MetadataGraph.deserialize(new SerializationInputStream(
+                        new CheckedInputStream(in, crc)), threads, interner);
+            if (dataIn.readLong() != crc.getValue()) {
+                throw new SerializationException("Detected checksum "
+                        + "mismatch in metadata graph snapshot");
+            }
+        }
+        timer.stop();
+        logger.log(Level.INFO, "Loaded metadata graph snapshot in "
+                + timer.getLastResult() + " ms.");
+        return graph;
     }
 
     /**
@@ -336,6 +743,14 @@ public class PathJournal {
     throws IOException {
         ByteArrayOutputStream bOut = new ByteArrayOutputStream();
         SerializationOutputStream sOut = new SerializationOutputStream(bOut);
+        writePath(sOut, path);
+        sOut.close();
+        return bOut.toByteArray();
+    }
+
+    private void writePath(SerializationOutputStream sOut,
+            FeaturePath<String> path)
+    throws IOException {
         sOut.writeInt(path.size());
         for (Vertex<Feature, String> v : path.getVertices()) {
             Feature f = v.getLabel();
@@ -348,19 +763,72 @@ public class PathJournal {
         for (String s : path.getPayload()) {
             sOut.writeString(s);
         }
+    }
+
+    /**
+     * Serializes an entry recording that the given payloads were removed from
+     * the graph.
+     */
+    private byte[] serializeRemoval(Collection<String> payloads)
+    throws IOException {
+        return serializeReplacement(payloads, null);
+    }
+
+    /**
+     * Serializes a removal entry that is followed by the path that replaces
+     * the removed payloads, if there is one.
+     */
+    private byte[] serializeReplacement(Collection<String> payloads,
+            FeaturePath<String> added)
+    throws IOException {
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+        SerializationOutputStream sOut = new SerializationOutputStream(bOut);
+        sOut.writeInt(REMOVAL_ENTRY);
+        sOut.writeInt(payloads.size());
+        for (String s : payloads) {
+            sOut.writeString(s);
+        }
+        if (added != null) {
+            writePath(sOut, added);
+        }
         sOut.close();
         return bOut.toByteArray();
     }
 
     /**
-     * Deserializes a {@link FeaturePath} from a byte array.
+     * Deserializes a journal entry from a byte array.
      */
-    private FeaturePath<String> deserializePath(byte[] pathBytes)
+    private JournalEntry deserializeEntry(byte[] pathBytes)
     throws IOException, SerializationException {
         SerializationInputStream sIn = new SerializationInputStream(
                 new ByteArrayInputStream(pathBytes));
 
         int vertices = sIn.readInt();
+        if (vertices == REMOVAL_ENTRY) {
+            int payloads = sIn.readInt();
+            List<String> removed = new ArrayList<>(payloads);
+            for (int i = 0; i < payloads; ++i) {
+                removed.add(sIn.readString());
+            }
+            FeaturePath<String> added = null;
+            if (sIn.available() > 0) {
+                added = readPath(sIn, sIn.readInt());
+            }
+            sIn.close();
+            return new JournalEntry(removed, added);
+        } else if (vertices < 0) {
+            throw new SerializationException("Unknown path journal entry "
+                    + "kind: " + vertices);
+        }
+
+        FeaturePath<String> fp = readPath(sIn, vertices);
+        sIn.close();
+        return new JournalEntry(fp);
+    }
+
+    private FeaturePath<String> readPath(SerializationInputStream sIn,
+            int vertices)
+    throws IOException, SerializationException {
         FeaturePath<String> fp = new FeaturePath<>();
         for (int i = 0; i < vertices; ++i) {
             int featureId = sIn.readInt();
@@ -368,7 +836,7 @@ public class PathJournal {
                 = featureIndex.get(featureId);
 
             Feature f = new Feature(featureInfo.a, featureInfo.b, sIn);
-            fp.add(f);
+            fp.add(interner.intern(f));
         }
 
         int payloads = sIn.readInt();
@@ -376,7 +844,6 @@ public class PathJournal {
             String payload = sIn.readString();
             fp.addPayload(payload);
         }
-        sIn.close();
         return fp;
     }
 
@@ -390,12 +857,14 @@ public class PathJournal {
 
         new File(indexFile).delete();
         new File(pathFile).delete();
+        new File(previousFile).delete();
+        new File(snapshotFile).delete();
     }
 
     /**
      * Closes open journal files and stops accepting new FeaturePaths.
      */
-    public void shutdown()
+    public synchronized void shutdown()
     throws IOException {
         if (running == false) {
             return;
@@ -0,0 +1,569 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.fs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import galileo.dataset.feature.Feature;
+import galileo.dataset.feature.FeatureType;
+import galileo.query.Expression;
+import galileo.query.Operation;
+import galileo.query.Query;
+import galileo.serialization.ByteSerializable;
+import galileo.serialization.SerializationException;
+import galileo.serialization.SerializationInputStream;
+import galileo.serialization.SerializationOutputStream;
+import galileo.stat.RunningStatistics;
+import galileo.util.Math;
+import galileo.util.Pair;
+
+/**
+ * Keeps the smallest and largest value of each numeric feature in a block,
+ * along with the number of records whose value could not be parsed, so that
+ * blocks which cannot satisfy a feature query are skipped without being read.
+ * <p>
+ * Zone maps also serve as a synopsis of the block: they keep the running
+ * statistics of each numeric feature, and the range of the record timestamps,
+ * so that aggregations over whole blocks can be answered without reading
+ * them.
+ * <p>
+ * Zone maps are persisted in a sidecar next to the block (see
+ * {@link #indexPath(String)}). Every append adds a checksummed record
+ * describing only the appended data; the records are merged when the sidecar
+ * is loaded, and rewritten as one once there are too many of them. For
+ * pruning, a zone map only has to cover the block, so a sidecar that describes
+ * more data than the block holds is harmless, while one that may have lost
+ * records is not used at all. The statistics are only approximate in the
+ * former case: they include appends that never reached the block because the
+ * node failed while writing them.
+ * <p>
+ * Serialized zone maps carry a version. Sidecars written before versions and
+ * synopses were introduced are still read and used for pruning; they are
+ * marked as having no synopsis (see {@link #hasSynopsis()}) until compaction
+ * rebuilds them from the data of the block.
+ *
+ * @author sapmitra
+ */
+public class ZoneMap implements ByteSerializable {
+
+	private static final Logger logger = Logger.getLogger("galileo");
+
+	/* payload length, checksum */
+	private static final int RECORD_HEADER_SIZE = 12;
+
+	/** Number of records after which a sidecar is rewritten. */
+	private static final int COMPACTION_THRESHOLD = 64;
+
+	/*
+	 * Serialized zone maps start with a magic number and a version. Zone maps
+	 * written before the header was introduced start with their column count
+	 * instead, and hold no synopsis.
+	 */
+	private static final int MAGIC = 0x475A4D50;
+	private static final int VERSION = 2;
+
+	private String[] names;
+	private FeatureType[] types;
+	private double[] min;
+	private double[] max;
+	private long[] nulls;
+	private RunningStatistics[] statistics;
+	private long records;
+
+	/* Column holding the record timestamps, or -1 */
+	private int timeColumn;
+	private long firstTime = Long.MAX_VALUE;
+	private long lastTime = Long.MIN_VALUE;
+	private long unparsedTimes;
+
+	/* False if any part of the zone map was written without a synopsis */
+	private boolean synopsis = true;
+
+	/**
+	 * Creates an empty zone map for the given feature list. Only the INT,
+	 * LONG, FLOAT and DOUBLE features are tracked.
+	 *
+	 * @param timeColumn
+	 *            column holding the timestamps read by
+	 *            {@link GeospatialFileSystem#reformatDatetime(String)}, or -1
+	 */
+	public ZoneMap(List<Pair<String, FeatureType>> featureList, int timeColumn) {
+		int columns = featureList.size();
+		this.names = new String[columns];
+		this.types = new FeatureType[columns];
+		for (int i = 0; i < columns; ++i) {
+			this.names[i] = featureList.get(i).a;
+			this.types[i] = featureList.get(i).b;
+		}
+		this.min = new double[columns];
+		this.max = new double[columns];
+		this.nulls = new long[columns];
+		this.statistics = new RunningStatistics[columns];
+		Arrays.fill(this.min, Double.POSITIVE_INFINITY);
+		Arrays.fill(this.max, Double.NEGATIVE_INFINITY);
+		for (int i = 0; i < columns; ++i)
+			if (isNumeric(this.types[i]))
+				this.statistics[i] = new RunningStatistics();
+		this.timeColumn = timeColumn;
+	}
+
+	/**
+	 * Adds the records of a chunk of CSV block data. Lines and values are
+	 * split the same way {@link MappedBlockReader} splits them.
+	 */
+	public void add(byte[] data) {
+		for (String line : MappedBlockReader.splitRecords(data))
+			add(line.split(",", names.length));
+	}
+
+	public void add(String[] values) {
+		for (int i = 0; i < names.length; ++i) {
+			if (!isNumeric(types[i]))
+				continue;
+			if (i >= values.length) {
+				nulls[i]++;
+				continue;
+			}
+			/* Statistics hold the values an aggregation would read */
+			double number = Math.getDouble(values[i]);
+			if (!Double.isNaN(number) && !Double.isInfinite(number))
+				statistics[i].put(number);
+
+			double value = parse(types[i], values[i]);
+			if (Double.isNaN(value)) {
+				nulls[i]++;
+				continue;
+			}
+			if (Double.compare(value, min[i]) < 0)
+				min[i] = value;
+			if (Double.compare(value, max[i]) > 0)
+				max[i] = value;
+		}
+		if (timeColumn >= 0) {
+			try {
+				long time = GeospatialFileSystem.reformatDatetime(values[timeColumn]);
+				firstTime = java.lang.Math.min(firstTime, time);
+				lastTime = java.lang.Math.max(lastTime, time);
+			} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+				unparsedTimes++;
+			}
+		}
+		records++;
+	}
+
+	/*
+	 * Values are only tracked if the query path reads them back unchanged;
+	 * anything it would replace with a default is counted as a null.
+	 */
+	private static double parse(FeatureType type, String value) {
+		try {
+			switch (type) {
+				case INT:
+					return Integer.parseInt(value);
+				case LONG:
+					return Long.parseLong(value);
+				case FLOAT:
+					return Float.parseFloat(value);
+				case DOUBLE:
+					return Double.parseDouble(value);
+				default:
+					return Double.NaN;
+			}
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+
+	private static boolean isNumeric(FeatureType type) {
+		return type == FeatureType.INT || type == FeatureType.LONG || type == FeatureType.FLOAT
+				|| type == FeatureType.DOUBLE;
+	}
+
+	/**
+	 * Folds another zone map of the same features into this one.
+	 */
+	public synchronized void merge(ZoneMap other) {
+		for (int i = 0; i < names.length; ++i) {
+			if (Double.compare(other.min[i], min[i]) < 0)
+				min[i] = other.min[i];
+			if (Double.compare(other.max[i], max[i]) > 0)
+				max[i] = other.max[i];
+			nulls[i] += other.nulls[i];
+			if (statistics[i] != null)
+				statistics[i].merge(other.statistics[i]);
+		}
+		records += other.records;
+		synopsis &= other.synopsis;
+		firstTime = java.lang.Math.min(firstTime, other.firstTime);
+		lastTime = java.lang.Math.max(lastTime, other.lastTime);
+		unparsedTimes += other.unparsedTimes;
+	}
+
+	private boolean describes(List<Pair<String, FeatureType>> featureList, int timeColumn) {
+		if (featureList.size() != names.length || (synopsis && this.timeColumn != timeColumn))
+			return false;
+		for (int i = 0; i < names.length; ++i)
+			if (!names[i].equals(featureList.get(i).a) || types[i] != featureList.get(i).b)
+				return false;
+		return true;
+	}
+
+	public long getRecordCount() {
+		return records;
+	}
+
+	/**
+	 * @return the number of records without a valid value for a column.
+	 */
+	public long getNullCount(int column) {
+		return nulls[column];
+	}
+
+	public double getMin(int column) {
+		return min[column];
+	}
+
+	public double getMax(int column) {
+		return max[column];
+	}
+
+	/**
+	 * Determines whether the zone map holds a synopsis of the block: the
+	 * statistics and the timestamp range. Sidecars written before synopses
+	 * were kept still prune blocks, but lack one until the block is rewritten.
+	 */
+	public synchronized boolean hasSynopsis() {
+		return synopsis;
+	}
+
+	/**
+	 * @return statistics of the finite values of a numeric column, as read by
+	 *         {@link Math#getDouble(String)}, or null if the column is not
+	 *         numeric or the zone map has no synopsis.
+	 */
+	public synchronized RunningStatistics getStatistics(int column) {
+		if (!synopsis || statistics[column] == null)
+			return null;
+		return new RunningStatistics(statistics[column]);
+	}
+
+	/**
+	 * @return the earliest timestamp in the block, or Long.MAX_VALUE if it
+	 *         has none.
+	 */
+	public long getFirstTime() {
+		return firstTime;
+	}
+
+	/**
+	 * @return the latest timestamp in the block, or Long.MIN_VALUE if it has
+	 *         none.
+	 */
+	public long getLastTime() {
+		return lastTime;
+	}
+
+	/**
+	 * @return the number of records whose timestamp could not be read.
+	 */
+	public long getUnparsedTimeCount() {
+		return unparsedTimes;
+	}
+
+	/**
+	 * Determines whether any record of the block could satisfy the query. A
+	 * query matches if any of its operations does, and an operation only if
+	 * all of its expressions can; expressions on features that are not
+	 * tracked, or that have unparsable values in this block, always can.
+	 *
+	 * @return false only if no record in the block can match.
+	 */
+	public synchronized boolean mayMatch(Query query) {
+		if (records == 0)
+			return false;
+		if (query.getOperations().isEmpty())
+			return true;
+		for (Operation operation : query.getOperations())
+			if (mayMatch(operation))
+				return true;
+		return false;
+	}
+
+	private boolean mayMatch(Operation operation) {
+		for (Expression expression : operation.getExpressions())
+			if (!mayMatch(expression))
+				return false;
+		return true;
+	}
+
+	private boolean mayMatch(Expression expression) {
+		Feature operand = expression.getValue();
+		int column = -1;
+		for (int i = 0; i < names.length; ++i) {
+			if (names[i].equals(operand.getName())) {
+				column = i;
+				break;
+			}
+		}
+		/* Mismatched types are compared differently (or not at all) by the query */
+		if (column < 0 || !isNumeric(types[column]) || operand.getType() != types[column] || nulls[column] > 0)
+			return true;
+
+		double value = operand.getDouble();
+		int toMin = Double.compare(min[column], value);
+		int toMax = Double.compare(max[column], value);
+		/*
+		 * Longs beyond 2^53 share doubles with their neighbours, so a tie only
+		 * proves anything for the other types.
+		 */
+		boolean exact = types[column] != FeatureType.LONG;
+		switch (expression.getOperator()) {
+			case EQUAL:
+				return toMin <= 0 && toMax >= 0;
+			case NOTEQUAL:
+				return !exact || toMin != 0 || toMax != 0;
+			case LESS:
+				return exact ? toMin < 0 : toMin <= 0;
+			case LESSEQUAL:
+				return toMin <= 0;
+			case GREATER:
+				return exact ? toMax > 0 : toMax >= 0;
+			case GREATEREQUAL:
+				return toMax >= 0;
+			default:
+				return true;
+		}
+	}
+
+	public static String indexPath(String blockPath) {
+		return blockPath.substring(0, blockPath.length() - FileSystem.BLOCK_EXTENSION.length())
+				+ FileSystem.ZONE_EXTENSION;
+	}
+
+	/**
+	 * Replaces the sidecar of a block with the given zone map. Like the other
+	 * sidecar operations, this does not synchronize: callers have to serialize
+	 * the calls made for the same block.
+	 */
+	public static void create(String blockPath, ZoneMap zoneMap) throws IOException {
+		File index = new File(indexPath(blockPath));
+		File temp = new File(index.getPath() + ".tmp");
+		try (FileOutputStream out = new FileOutputStream(temp)) {
+			out.write(frame(zoneMap));
+		}
+		Files.move(temp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Records data that is about to be appended to a block. This has to happen
+	 * before the data is written, so that the sidecar never describes less
+	 * than the block. Blocks that already hold data but have no sidecar are
+	 * left without one, since it could not cover their existing records.
+	 * Sidecars that have grown to about {@link #COMPACTION_THRESHOLD} records
+	 * are rewritten as a single record; if they turn out to be unusable at
+	 * that point, they are removed.
+	 *
+	 * @param created
+	 *            true if the block does not hold any data yet
+	 * @return false if the block has no sidecar after the call
+	 */
+	public static boolean append(String blockPath, ZoneMap zoneMap, boolean created) throws IOException {
+		File index = new File(indexPath(blockPath));
+		if (!index.exists()) {
+			if (!created)
+				return false;
+			create(blockPath, zoneMap);
+			return true;
+		}
+		byte[] record = frame(zoneMap);
+		/* Records of a block all have about the same size */
+		if (index.length() >= (long) COMPACTION_THRESHOLD * record.length) {
+			ZoneMap existing = read(index);
+			if (existing == null) {
+				Files.deleteIfExists(index.toPath());
+				return false;
+			}
+			existing.merge(zoneMap);
+			create(blockPath, existing);
+			return true;
+		}
+		try (FileOutputStream out = new FileOutputStream(index, true)) {
+			out.write(record);
+		}
+		return true;
+	}
+
+	/**
+	 * Loads the zone map of a block from its sidecar. The sidecar is only
+	 * read, never rewritten.
+	 *
+	 * @return the zone map, or null if the block has no usable sidecar.
+	 */
+	public static ZoneMap load(String blockPath, List<Pair<String, FeatureType>> featureList, int timeColumn)
+			throws IOException {
+		File index = new File(indexPath(blockPath));
+		if (!index.exists())
+			return null;
+		ZoneMap zoneMap = read(index);
+		if (zoneMap == null || !zoneMap.describes(featureList, timeColumn))
+			return null;
+		return zoneMap;
+	}
+
+	/**
+	 * Merges the records of a sidecar.
+	 *
+	 * @return the zone map, or null if the sidecar is empty or may have lost
+	 *         records.
+	 */
+	private static ZoneMap read(File index) throws IOException {
+		ByteBuffer frames = ByteBuffer.wrap(Files.readAllBytes(index.toPath()));
+		ZoneMap zoneMap = null;
+		while (frames.remaining() >= RECORD_HEADER_SIZE) {
+			int length = frames.getInt();
+			long check = frames.getLong();
+			if (length < 0 || length > frames.remaining())
+				break;
+			byte[] payload = new byte[length];
+			frames.get(payload);
+			CRC32 crc = new CRC32();
+			crc.update(payload);
+			if (crc.getValue() != check)
+				break;
+
+			ZoneMap update;
+			try {
+				update = new ZoneMap(new SerializationInputStream(new ByteArrayInputStream(payload)));
+			} catch (SerializationException e) {
+				logger.log(Level.WARNING, "Discarding zone map: {0}", e.getMessage());
+				return null;
+			}
+			if (zoneMap == null)
+				zoneMap = update;
+			else
+				zoneMap.merge(update);
+		}
+
+		/* A lost record may have held the only values outside the range */
+		if (frames.hasRemaining()) {
+			logger.log(Level.WARNING, "Discarding zone map with an incomplete record: {0}", index);
+			return null;
+		}
+		return zoneMap;
+	}
+
+	private static byte[] frame(ZoneMap zoneMap) throws IOException {
+		ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+		SerializationOutputStream out = new SerializationOutputStream(payloadBytes);
+		synchronized (zoneMap) {
+			zoneMap.serialize(out);
+		}
+		out.flush();
+		byte[] payload = payloadBytes.toByteArray();
+
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+		record.putInt(payload.length);
+		record.putLong(crc.getValue());
+		record.put(payload);
+		return record.array();
+	}
+
+	@Deserialize
+	public ZoneMap(SerializationInputStream in) throws IOException, SerializationException {
+		int columns = in.readInt();
+		boolean legacy = (columns != MAGIC);
+		if (!legacy) {
+			int version = in.readInt();
+			if (version != VERSION)
+				throw new SerializationException("Unsupported zone map version: " + version);
+			this.synopsis = in.readBoolean();
+			columns = in.readInt();
+		} else {
+			this.synopsis = false;
+		}
+		this.names = new String[columns];
+		this.types = new FeatureType[columns];
+		this.min = new double[columns];
+		this.max = new double[columns];
+		this.nulls = new long[columns];
+		this.statistics = new RunningStatistics[columns];
+		for (int i = 0; i < columns; ++i) {
+			this.names[i] = in.readString();
+			this.types[i] = FeatureType.fromInt(in.readInt());
+			this.min[i] = in.readDouble();
+			this.max[i] = in.readDouble();
+			this.nulls[i] = in.readLong();
+			if (isNumeric(this.types[i]))
+				this.statistics[i] = legacy ? new RunningStatistics() : new RunningStatistics(in);
+		}
+		this.records = in.readLong();
+		if (!legacy) {
+			this.timeColumn = in.readInt();
+			this.firstTime = in.readLong();
+			this.lastTime = in.readLong();
+			this.unparsedTimes = in.readLong();
+		} else {
+			this.timeColumn = -1;
+		}
+	}
+
+	@Override
+	public void serialize(SerializationOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeBoolean(synopsis);
+		out.writeInt(names.length);
+		for (int i = 0; i < names.length; ++i) {
+			out.writeString(names[i]);
+			out.writeInt(types[i].toInt());
+			out.writeDouble(min[i]);
+			out.writeDouble(max[i]);
+			out.writeLong(nulls[i]);
+			if (statistics[i] != null)
+				statistics[i].serialize(out);
+		}
+		out.writeLong(records);
+		out.writeInt(timeColumn);
+		out.writeLong(firstTime);
+		out.writeLong(lastTime);
+		out.writeLong(unparsedTimes);
+	}
+}
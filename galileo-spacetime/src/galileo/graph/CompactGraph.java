@@ -0,0 +1,1009 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.graph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import galileo.dataset.feature.Feature;
+import galileo.dataset.feature.FeatureType;
+import galileo.query.Expression;
+import galileo.query.Operation;
+import galileo.query.Query;
+import galileo.util.Pair;
+
+/**
+ * An immutable, array-backed graph of Feature paths.  Each level of the
+ * hierarchy interns its Feature values in a sorted dictionary, and the
+ * vertices of a level are stored as dictionary ids in an int array.  Vertices
+ * are laid out so that the children of a vertex occupy a contiguous, sorted
+ * range of the next level (compressed sparse row form), which lets range
+ * queries binary search the children instead of walking a TreeMap.  Payloads
+ * are interned as well and referenced by id from each vertex.
+ * <p>
+ * A path matches an Operation if it reaches the deepest level the Operation
+ * constrains and every Feature along the way satisfies its Expressions.  A
+ * CompactGraph never changes once built, so any number of threads may query it.  Removing payloads
+ * produces a new graph that shares the arrays of this one; vertices left
+ * without a payload remain in the arrays but are no longer returned.
+ *
+ * @author sapmitra
+ */
+public class CompactGraph<T> {
+
+    /** Feature names, in hierarchical order. */
+    private final String[] names;
+    private final Map<String, Integer> order = new HashMap<>();
+
+    /** Sorted, distinct Feature values of each level. */
+    private final Feature[][] dictionary;
+
+    /** Dictionary id of each vertex, per level. */
+    private final int[][] keys;
+
+    /** Index of the parent of each vertex in the previous level. */
+    private final int[][] parents;
+
+    /**
+     * Children of vertex i at level l are the vertices
+     * [childStart[l][i], childStart[l][i + 1]) of level l + 1.
+     */
+    private final int[][] childStart;
+
+    /**
+     * Payloads of vertex i at level l are
+     * payloadIds[l][payloadStart[l][i]] to payloadIds[l][payloadStart[l][i + 1] - 1].
+     */
+    private final int[][] payloadStart;
+    private final int[][] payloadIds;
+
+    private final Object[] payloads;
+    private final BitSet removed;
+
+    /**
+     * Id of each payload, built the first time payloads are removed and
+     * shared with the graphs derived by removing them.
+     */
+    private volatile Map<Object, Integer> payloadIndex;
+
+    /** Number of vertices that carried a payload when the graph was built. */
+    private final int numPaths;
+
+    /**
+     * Builds a graph from a list of paths, such as the ones returned by
+     * {@link #getAllPaths()}.  Features that are not part of
+     * the hierarchy are placed below it in the order they are first seen.
+     */
+    public CompactGraph(FeatureHierarchy hierarchy,
+            List<? extends Path<Feature, T>> paths) {
+        this(featureNames(hierarchy), paths);
+    }
+
+    /**
+     * Builds a graph from a list of paths, with levels for the given Feature
+     * names in order.  Features that are not among them are placed below the
+     * others in the order they are first seen.
+     */
+    public CompactGraph(List<String> hierarchy,
+            List<? extends Path<Feature, T>> paths) {
+        this(Rows.fromPaths(hierarchy, paths));
+    }
+
+    /**
+     * Builds a graph from rows of labels that are already laid out by level,
+     * such as the rows of a {@link MetadataGraph}, without converting them
+     * to paths first.  A row holds null or a NULL Feature on the levels it
+     * has no value for, and may stop short of the last level.
+     *
+     * @param payloads the payload of each row.
+     */
+    static <T> CompactGraph<T> fromRows(String[] names, Feature[][] labels,
+            List<? extends Collection<T>> payloads) {
+        return new CompactGraph<>(new Rows<T>(names, labels, payloads));
+    }
+
+    /**
+     * The labels of the paths a graph is built from, one per level, along
+     * with their payloads.
+     */
+    private static class Rows<T> {
+        final String[] names;
+        final Feature[][] labels;
+        final List<? extends Collection<T>> payloads;
+
+        Rows(String[] names, Feature[][] labels,
+                List<? extends Collection<T>> payloads) {
+            this.names = names;
+            this.labels = labels;
+            this.payloads = payloads;
+        }
+
+        static <T> Rows<T> fromPaths(List<String> hierarchy,
+                List<? extends Path<Feature, T>> paths) {
+            Map<String, Integer> order = new HashMap<>();
+            List<String> names = new ArrayList<>();
+            for (String name : hierarchy) {
+                addLevel(order, names, name);
+            }
+            List<List<Feature>> pathLabels = new ArrayList<>(paths.size());
+            for (Path<Feature, T> path : paths) {
+                List<Feature> labels = path.getLabels();
+                for (Feature feature : labels) {
+                    addLevel(order, names, feature.getName());
+                }
+                pathLabels.add(labels);
+            }
+
+            Feature[][] labels = new Feature[paths.size()][];
+            List<Set<T>> payloads = new ArrayList<>(paths.size());
+            for (int p = 0; p < labels.length; ++p) {
+                Feature[] row = new Feature[names.size()];
+                for (Feature feature : pathLabels.get(p)) {
+                    row[order.get(feature.getName())] = feature;
+                }
+                labels[p] = row;
+                payloads.add(paths.get(p).getPayload());
+            }
+            return new Rows<T>(names.toArray(new String[names.size()]),
+                    labels, payloads);
+        }
+
+        private static void addLevel(Map<String, Integer> order,
+                List<String> names, String name) {
+            if (order.containsKey(name) == false) {
+                order.put(name, names.size());
+                names.add(name);
+            }
+        }
+    }
+
+    private CompactGraph(Rows<T> source) {
+        names = source.names;
+        for (int l = 0; l < names.length; ++l) {
+            order.put(names[l], l);
+        }
+        int numLevels = names.length;
+        Feature[][] labels = source.labels;
+
+        /* Each row becomes an array of dictionary ids with NULL gaps;
+         * trailing NULLs are dropped */
+        int[][] rows = new int[labels.length][];
+        for (int p = 0; p < labels.length; ++p) {
+            int depth = java.lang.Math.min(labels[p].length, numLevels);
+            while (depth > 0 && isWildcard(labels[p][depth - 1])) {
+                --depth;
+            }
+            rows[p] = new int[depth];
+        }
+
+        /* Intern the values of each level.  Missing values are represented
+         * by NULL features, which sort before everything else. */
+        dictionary = new Feature[numLevels][];
+        for (int l = 0; l < numLevels; ++l) {
+            Map<Feature, Integer> ids = new HashMap<>();
+            List<Feature> values = new ArrayList<>();
+            values.add(new Feature(names[l]));
+            for (int p = 0; p < labels.length; ++p) {
+                if (l >= rows[p].length || isWildcard(labels[p][l])) {
+                    continue;
+                }
+                Feature label = labels[p][l];
+                Integer id = ids.get(label);
+                if (id == null) {
+                    id = values.size();
+                    ids.put(label, id);
+                    values.add(label);
+                }
+                rows[p][l] = id;
+            }
+
+            /* Number the values in sorted order */
+            final Feature[] unsorted = values.toArray(new Feature[values.size()]);
+            Integer[] sorted = new Integer[unsorted.length];
+            for (int i = 0; i < sorted.length; ++i) {
+                sorted[i] = i;
+            }
+            Arrays.sort(sorted, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return unsorted[a].compareTo(unsorted[b]);
+                }
+            });
+            Feature[] level = new Feature[unsorted.length];
+            int[] renumber = new int[unsorted.length];
+            for (int i = 0; i < sorted.length; ++i) {
+                level[i] = unsorted[sorted[i]];
+                renumber[sorted[i]] = i;
+            }
+            dictionary[l] = level;
+            for (int p = 0; p < rows.length; ++p) {
+                if (l < rows[p].length) {
+                    rows[p][l] = renumber[rows[p][l]];
+                }
+            }
+        }
+
+        Map<T, Integer> payloadMap = new HashMap<>();
+        List<Object> payloadList = new ArrayList<>();
+        int[][] rowPayloads = new int[rows.length][];
+        for (int p = 0; p < rows.length; ++p) {
+            Collection<T> payload = source.payloads.get(p);
+            int[] ids = new int[payload.size()];
+            int i = 0;
+            for (T item : payload) {
+                Integer id = payloadMap.putIfAbsent(item, payloadList.size());
+                if (id == null) {
+                    id = payloadList.size();
+                    payloadList.add(item);
+                }
+                ids[i++] = id;
+            }
+            rowPayloads[p] = ids;
+        }
+        payloads = payloadList.toArray();
+        payloadMap = null;
+
+        Integer[] sorted = new Integer[rows.length];
+        for (int i = 0; i < sorted.length; ++i) {
+            sorted[i] = i;
+        }
+        final int[][] r = rows;
+        Arrays.parallelSort(sorted, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return compareRows(r[a], r[b]);
+            }
+        });
+
+        /* Rows sharing a prefix are adjacent once sorted, so each distinct
+         * prefix becomes one vertex and the children of a vertex end up next
+         * to each other, in key order. */
+        IntList[] levelKeys = new IntList[numLevels];
+        IntList[] levelParents = new IntList[numLevels];
+        IntList[] levelPayloadStart = new IntList[numLevels];
+        IntList[] levelPayloads = new IntList[numLevels];
+        for (int l = 0; l < numLevels; ++l) {
+            levelKeys[l] = new IntList();
+            levelParents[l] = new IntList();
+            levelPayloadStart[l] = new IntList();
+            levelPayloads[l] = new IntList();
+        }
+        int[] previous = new int[0];
+        Set<Integer> seen = new HashSet<>();
+        for (int s = 0; s < sorted.length; ++s) {
+            int[] row = rows[sorted[s]];
+            int shared = 0;
+            while (shared < row.length && shared < previous.length
+                    && row[shared] == previous[shared]) {
+                ++shared;
+            }
+            for (int l = shared; l < row.length; ++l) {
+                levelKeys[l].add(row[l]);
+                levelParents[l].add(l == 0 ? 0 : levelKeys[l - 1].size() - 1);
+                levelPayloadStart[l].add(levelPayloads[l].size());
+            }
+            if (row.length == 0) {
+                /* Paths made up of NULL features only have nowhere to go */
+                continue;
+            }
+
+            int l = row.length - 1;
+            if (shared < row.length) {
+                seen.clear();
+            }
+            for (int id : rowPayloads[sorted[s]]) {
+                if (seen.add(id)) {
+                    levelPayloads[l].add(id);
+                }
+            }
+            previous = row;
+        }
+
+        keys = new int[numLevels][];
+        parents = new int[numLevels][];
+        payloadStart = new int[numLevels][];
+        payloadIds = new int[numLevels][];
+        for (int l = 0; l < numLevels; ++l) {
+            keys[l] = levelKeys[l].toArray();
+            parents[l] = levelParents[l].toArray();
+            levelPayloadStart[l].add(levelPayloads[l].size());
+            payloadStart[l] = levelPayloadStart[l].toArray();
+            payloadIds[l] = levelPayloads[l].toArray();
+        }
+        childStart = childStart(keys, parents);
+        numPaths = countPaths(payloadStart);
+        removed = new BitSet();
+    }
+
+    /**
+     * Creates a graph from arrays that have already been laid out, as they
+     * are by {@link #merge(List, List)}.
+     */
+    private CompactGraph(String[] names, Feature[][] dictionary, int[][] keys,
+            int[][] parents, int[][] payloadStart, int[][] payloadIds,
+            Object[] payloads) {
+        this.names = names;
+        for (int l = 0; l < names.length; ++l) {
+            order.put(names[l], l);
+        }
+        this.dictionary = dictionary;
+        this.keys = keys;
+        this.parents = parents;
+        this.childStart = childStart(keys, parents);
+        this.payloadStart = payloadStart;
+        this.payloadIds = payloadIds;
+        this.payloads = payloads;
+        this.numPaths = countPaths(payloadStart);
+        this.removed = new BitSet();
+    }
+
+    /**
+     * Creates a copy of a graph that shares its arrays, with a different set
+     * of removed payloads.
+     */
+    private CompactGraph(CompactGraph<T> graph, BitSet removed) {
+        this.names = graph.names;
+        this.order.putAll(graph.order);
+        this.dictionary = graph.dictionary;
+        this.keys = graph.keys;
+        this.parents = graph.parents;
+        this.childStart = graph.childStart;
+        this.payloadStart = graph.payloadStart;
+        this.payloadIds = graph.payloadIds;
+        this.payloads = graph.payloads;
+        this.payloadIndex = graph.payloadIndex;
+        this.numPaths = graph.numPaths;
+        this.removed = removed;
+    }
+
+    /**
+     * Merges several graphs into one, as if it had been built from all of
+     * their paths.  The graphs must have been built with the given hierarchy
+     * or a prefix of it, as the segments of a {@link MetadataGraph} are;
+     * other graphs are rebuilt from their paths instead.  The dictionaries
+     * and the children of each vertex are already sorted, so they are merged
+     * rather than sorted again.  Removed payloads, and vertices that have
+     * nothing left below them, are dropped.
+     */
+    public static <T> CompactGraph<T> merge(List<String> hierarchy,
+            List<CompactGraph<T>> graphs) {
+        String[] names = hierarchy.toArray(new String[hierarchy.size()]);
+        for (CompactGraph<T> graph : graphs) {
+            if (graph.names.length > names.length || hierarchy.subList(0,
+                        graph.names.length).equals(graph.getFeatureNames())
+                    == false) {
+                List<Path<Feature, T>> paths = new ArrayList<>();
+                for (CompactGraph<T> g : graphs) {
+                    paths.addAll(g.getAllPaths());
+                }
+                return new CompactGraph<>(hierarchy, paths);
+            }
+        }
+        int numLevels = names.length;
+        int numGraphs = graphs.size();
+
+        /* Merge the dictionaries, and map the ids of each graph onto them */
+        Feature[][] dictionary = new Feature[numLevels][];
+        int[][][] ids = new int[numGraphs][numLevels][];
+        for (int l = 0; l < numLevels; ++l) {
+            Feature[][] dictionaries = new Feature[numGraphs + 1][];
+            dictionaries[numGraphs] = new Feature[] { new Feature(names[l]) };
+            for (int g = 0; g < numGraphs; ++g) {
+                CompactGraph<T> graph = graphs.get(g);
+                dictionaries[g] = (l < graph.names.length)
+                    ? graph.dictionary[l] : new Feature[0];
+            }
+            int[][] maps = new int[numGraphs + 1][];
+            dictionary[l] = mergeSorted(dictionaries, 0, numGraphs + 1, maps);
+            for (int g = 0; g < numGraphs; ++g) {
+                ids[g][l] = maps[g];
+            }
+        }
+
+        BitSet[][] live = new BitSet[numGraphs][];
+        for (int g = 0; g < numGraphs; ++g) {
+            live[g] = graphs.get(g).liveVertices();
+        }
+
+        /* Walk the levels top down.  Each merged vertex keeps track of the
+         * vertices it was merged from (its sources), which lead to the
+         * children of the next level; the virtual root is made up of the
+         * roots of every graph. */
+        int numPayloads = 0;
+        for (CompactGraph<T> graph : graphs) {
+            numPayloads += graph.payloads.length;
+        }
+        Map<Object, Integer> payloadMap = new HashMap<>(numPayloads * 4 / 3 + 1);
+        List<Object> payloadList = new ArrayList<>();
+        int[][] keys = new int[numLevels][];
+        int[][] parents = new int[numLevels][];
+        int[][] payloadStart = new int[numLevels][];
+        int[][] payloadIds = new int[numLevels][];
+        int[] sourceStart = new int[] { 0, numGraphs };
+        int[] sourceGraph = new int[numGraphs];
+        int[] sourceVertex = new int[numGraphs];
+        for (int g = 0; g < numGraphs; ++g) {
+            sourceGraph[g] = g;
+            sourceVertex[g] = -1;
+        }
+        Set<Integer> seen = new HashSet<>();
+        for (int l = 0; l < numLevels; ++l) {
+            IntList levelKeys = new IntList();
+            IntList levelParents = new IntList();
+            IntList levelPayloadStart = new IntList();
+            IntList levelPayloads = new IntList();
+            IntList nextStart = new IntList();
+            IntList nextGraph = new IntList();
+            IntList nextVertex = new IntList();
+            IntList childGraph = new IntList();
+            IntList childVertex = new IntList();
+            for (int p = 0; p + 1 < sourceStart.length; ++p) {
+                childGraph.clear();
+                childVertex.clear();
+                for (int s = sourceStart[p]; s < sourceStart[p + 1]; ++s) {
+                    CompactGraph<T> graph = graphs.get(sourceGraph[s]);
+                    if (l >= graph.names.length) {
+                        continue;
+                    }
+                    int v = sourceVertex[s];
+                    int from = (v < 0) ? 0 : graph.childStart[l - 1][v];
+                    int to = (v < 0)
+                        ? graph.keys[0].length : graph.childStart[l - 1][v + 1];
+                    for (int c = from; c < to; ++c) {
+                        if (live[sourceGraph[s]][l].get(c)) {
+                            childGraph.add(sourceGraph[s]);
+                            childVertex.add(c);
+                        }
+                    }
+                }
+
+                /* Children of each source are sorted already; sorting the
+                 * merged ids interleaves them */
+                long[] sorted = new long[childGraph.size()];
+                for (int i = 0; i < sorted.length; ++i) {
+                    int g = childGraph.get(i);
+                    int key = ids[g][l][graphs.get(g).keys[l][childVertex.get(i)]];
+                    sorted[i] = ((long) key << 32) | i;
+                }
+                Arrays.sort(sorted);
+                for (int i = 0; i < sorted.length; ++i) {
+                    int key = (int) (sorted[i] >>> 32);
+                    if (i == 0 || (int) (sorted[i - 1] >>> 32) != key) {
+                        levelKeys.add(key);
+                        levelParents.add(p);
+                        levelPayloadStart.add(levelPayloads.size());
+                        nextStart.add(nextGraph.size());
+                        seen.clear();
+                    }
+                    int child = (int) sorted[i];
+                    int g = childGraph.get(child);
+                    int c = childVertex.get(child);
+                    nextGraph.add(g);
+                    nextVertex.add(c);
+
+                    CompactGraph<T> graph = graphs.get(g);
+                    for (int j = graph.payloadStart[l][c];
+                            j < graph.payloadStart[l][c + 1]; ++j) {
+                        int id = graph.payloadIds[l][j];
+                        if (graph.removed.get(id)) {
+                            continue;
+                        }
+                        Object payload = graph.payloads[id];
+                        Integer mergedId = payloadMap.putIfAbsent(payload,
+                                payloadList.size());
+                        if (mergedId == null) {
+                            mergedId = payloadList.size();
+                            payloadList.add(payload);
+                        }
+                        if (seen.add(mergedId)) {
+                            levelPayloads.add(mergedId);
+                        }
+                    }
+                }
+            }
+            levelPayloadStart.add(levelPayloads.size());
+            nextStart.add(nextGraph.size());
+
+            keys[l] = levelKeys.toArray();
+            parents[l] = levelParents.toArray();
+            payloadStart[l] = levelPayloadStart.toArray();
+            payloadIds[l] = levelPayloads.toArray();
+            sourceStart = nextStart.toArray();
+            sourceGraph = nextGraph.toArray();
+            sourceVertex = nextVertex.toArray();
+        }
+        return new CompactGraph<>(names, dictionary, keys, parents,
+                payloadStart, payloadIds, payloadList.toArray());
+    }
+
+    /**
+     * Merges sorted arrays of distinct Features, keeping one of each value.
+     * Pairs of arrays are merged until one is left, so each value is compared
+     * a logarithmic number of times.
+     *
+     * @param maps receives, for each array in [from, to), the index of each
+     *             of its values in the merged array.
+     */
+    private static Feature[] mergeSorted(Feature[][] arrays, int from, int to,
+            int[][] maps) {
+        if (to - from == 1) {
+            int[] map = new int[arrays[from].length];
+            for (int i = 0; i < map.length; ++i) {
+                map[i] = i;
+            }
+            maps[from] = map;
+            return arrays[from];
+        }
+        int mid = (from + to) >>> 1;
+        Feature[] a = mergeSorted(arrays, from, mid, maps);
+        Feature[] b = mergeSorted(arrays, mid, to, maps);
+
+        Feature[] merged = new Feature[a.length + b.length];
+        int[] mapA = new int[a.length];
+        int[] mapB = new int[b.length];
+        int i = 0;
+        int j = 0;
+        int size = 0;
+        while (i < a.length || j < b.length) {
+            int compare;
+            if (i == a.length) {
+                compare = 1;
+            } else if (j == b.length) {
+                compare = -1;
+            } else {
+                /* Interned Features are often the very same object */
+                compare = (a[i] == b[j]) ? 0 : a[i].compareTo(b[j]);
+            }
+            if (compare <= 0) {
+                mapA[i++] = size;
+                if (compare == 0) {
+                    mapB[j++] = size;
+                }
+                merged[size++] = a[i - 1];
+            } else {
+                mapB[j++] = size;
+                merged[size++] = b[j - 1];
+            }
+        }
+
+        for (int g = from; g < to; ++g) {
+            int[] map = maps[g];
+            int[] outer = (g < mid) ? mapA : mapB;
+            for (int k = 0; k < map.length; ++k) {
+                map[k] = outer[map[k]];
+            }
+        }
+        return Arrays.copyOf(merged, size);
+    }
+
+    /**
+     * Finds the vertices that carry a payload that has not been removed, or
+     * have such a vertex below them.
+     */
+    private BitSet[] liveVertices() {
+        BitSet[] live = new BitSet[names.length];
+        for (int l = names.length - 1; l >= 0; --l) {
+            live[l] = new BitSet(keys[l].length);
+            for (int v = 0; v < keys[l].length; ++v) {
+                boolean below = false;
+                if (l + 1 < names.length) {
+                    int child = live[l + 1].nextSetBit(childStart[l][v]);
+                    below = child >= 0 && child < childStart[l][v + 1];
+                }
+                if (below || hasPayload(l, v, removed)) {
+                    live[l].set(v);
+                }
+            }
+        }
+        return live;
+    }
+
+    private static int[][] childStart(int[][] keys, int[][] parents) {
+        int numLevels = keys.length;
+        int[][] childStart = new int[numLevels][];
+        for (int l = 0; l < numLevels; ++l) {
+            int numChildren = (l + 1 < numLevels) ? keys[l + 1].length : 0;
+            int[] start = new int[keys[l].length + 1];
+            int child = 0;
+            for (int v = 0; v < keys[l].length; ++v) {
+                start[v] = child;
+                while (child < numChildren && parents[l + 1][child] == v) {
+                    ++child;
+                }
+            }
+            start[keys[l].length] = child;
+            childStart[l] = start;
+        }
+        return childStart;
+    }
+
+    /**
+     * Counts the vertices that carry a payload.
+     */
+    private static int countPaths(int[][] payloadStart) {
+        int withPayload = 0;
+        for (int[] start : payloadStart) {
+            for (int v = 0; v + 1 < start.length; ++v) {
+                if (start[v + 1] > start[v]) {
+                    ++withPayload;
+                }
+            }
+        }
+        return withPayload;
+    }
+
+    private static List<String> featureNames(FeatureHierarchy hierarchy) {
+        List<String> names = new ArrayList<>();
+        for (Pair<String, FeatureType> feature : hierarchy) {
+            names.add(feature.a);
+        }
+        return names;
+    }
+
+    private static boolean isWildcard(Feature label) {
+        return label == null || label.getType() == FeatureType.NULL;
+    }
+
+    private static int compareRows(int[] a, int[] b) {
+        int length = java.lang.Math.min(a.length, b.length);
+        for (int i = 0; i < length; ++i) {
+            if (a[i] != b[i]) {
+                return a[i] < b[i] ? -1 : 1;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * Index of the first dictionary value that is not less than the given
+     * value.
+     */
+    private static int lowerBound(Feature[] dictionary, Feature value) {
+        int low = 0;
+        int high = dictionary.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (value.compareTo(dictionary[mid]) > 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Index of the first dictionary value that is greater than the given
+     * value.
+     */
+    private static int upperBound(Feature[] dictionary, Feature value) {
+        int low = 0;
+        int high = dictionary.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (value.compareTo(dictionary[mid]) >= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Index of the first key in [from, to) of a level that is not less than
+     * the given dictionary id.
+     */
+    private static int search(int[] keys, int from, int to, int key) {
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (keys[mid] < key) {
+                from = mid + 1;
+            } else {
+                to = mid;
+            }
+        }
+        return from;
+    }
+
+    /**
+     * Retrieves the Feature names of this graph, in hierarchical order.
+     */
+    public List<String> getFeatureNames() {
+        return Arrays.asList(names);
+    }
+
+    public List<Path<Feature, T>> evaluateQuery(Query query) {
+        List<Path<Feature, T>> paths = new ArrayList<>();
+        for (Operation operation : query.getOperations()) {
+            paths.addAll(evaluateOperation(operation));
+        }
+        return paths;
+    }
+
+    /**
+     * Evaluates an Operation level by level: only vertices at or below the
+     * deepest level with an Expression are part of the result, provided they
+     * carry a payload.
+     */
+    public List<Path<Feature, T>> evaluateOperation(Operation operation) {
+        List<Path<Feature, T>> results = new ArrayList<>();
+
+        /* The root is the only vertex above level 0 */
+        IntList frontier = new IntList();
+        frontier.add(0);
+        for (int l = 0; l < names.length; ++l) {
+            List<Expression> expressions = operation.getOperand(names[l]);
+            if (frontier.size() == 0) {
+                /* Nothing left to traverse, but an Expression further down
+                 * still rules out the results found so far */
+                if (expressions != null) {
+                    results.clear();
+                }
+                continue;
+            }
+
+            int[] start = (l == 0)
+                ? new int[] { 0, keys[0].length } : childStart[l - 1];
+            int low = 0;
+            int high = dictionary[l].length;
+            IntList excluded = new IntList();
+            if (expressions != null) {
+                /* Results above this level are not part of the answer */
+                results.clear();
+
+                /* Translate the interval into a range of dictionary ids */
+                Feature[] values = dictionary[l];
+                FeatureInterval interval = new FeatureInterval(expressions);
+                if (interval.low != null) {
+                    low = interval.lowInclusive
+                        ? lowerBound(values, interval.low)
+                        : upperBound(values, interval.low);
+                }
+                if (interval.high != null) {
+                    high = interval.highInclusive
+                        ? upperBound(values, interval.high)
+                        : lowerBound(values, interval.high);
+                }
+                if (interval.excludeWildcard
+                        && values[0].getType() == FeatureType.NULL) {
+                    low = java.lang.Math.max(low, 1);
+                }
+                if (interval.empty) {
+                    high = low;
+                }
+                for (Feature value : interval.excluded) {
+                    for (int id = lowerBound(values, value);
+                            id < upperBound(values, value); ++id) {
+                        excluded.add(id);
+                    }
+                }
+            }
+            if (high <= low) {
+                frontier = new IntList();
+                continue;
+            }
+
+            IntList next = new IntList();
+            for (int f = 0; f < frontier.size(); ++f) {
+                int from = start[frontier.get(f)];
+                int to = start[frontier.get(f) + 1];
+                if (low > 0) {
+                    from = search(keys[l], from, to, low);
+                }
+                if (high < dictionary[l].length) {
+                    to = search(keys[l], from, to, high);
+                }
+                for (int v = from; v < to; ++v) {
+                    if (excluded.size() > 0 && excluded.contains(keys[l][v])) {
+                        continue;
+                    }
+                    next.add(v);
+                    if (hasPayload(l, v, removed)) {
+                        results.add(buildPath(l, v, removed));
+                    }
+                }
+            }
+            frontier = next;
+        }
+        return results;
+    }
+
+    public List<Path<Feature, T>> getAllPaths() {
+        List<Path<Feature, T>> paths = new ArrayList<>();
+        for (int l = 0; l < names.length; ++l) {
+            for (int v = 0; v < keys[l].length; ++v) {
+                if (hasPayload(l, v, removed)) {
+                    paths.add(buildPath(l, v, removed));
+                }
+            }
+        }
+        return paths;
+    }
+
+    private boolean hasPayload(int level, int vertex, BitSet removed) {
+        for (int i = payloadStart[level][vertex];
+                i < payloadStart[level][vertex + 1]; ++i) {
+            if (removed.get(payloadIds[level][i]) == false) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Path<Feature, T> buildPath(int level, int vertex, BitSet removed) {
+        Set<T> payload = new HashSet<>();
+        for (int i = payloadStart[level][vertex];
+                i < payloadStart[level][vertex + 1]; ++i) {
+            int id = payloadIds[level][i];
+            if (removed.get(id) == false) {
+                payload.add((T) payloads[id]);
+            }
+        }
+
+        List<Feature> labels = new ArrayList<>(level + 1);
+        for (int l = level, v = vertex; l >= 0; v = parents[l][v], --l) {
+            Feature label = dictionary[l][keys[l][v]];
+            if (label.getType() != FeatureType.NULL) {
+                labels.add(label);
+            }
+        }
+        Feature[] features = new Feature[labels.size()];
+        for (int i = 0; i < features.length; ++i) {
+            features[i] = labels.get(features.length - 1 - i);
+        }
+        return new FeaturePath<T>(payload, features);
+    }
+
+    /**
+     * Creates a copy of this graph without the given payloads.  The copy
+     * shares the arrays of this graph, which is left as it is.
+     */
+    public CompactGraph<T> removePayloads(Set<T> items) {
+        BitSet updated = null;
+        if (items.size() >= payloads.length) {
+            for (int id = 0; id < payloads.length; ++id) {
+                if (removed.get(id) == false && items.contains(payloads[id])) {
+                    if (updated == null) {
+                        updated = (BitSet) removed.clone();
+                    }
+                    updated.set(id);
+                }
+            }
+        } else {
+            /* Fewer items than payloads; look each of them up instead */
+            Map<Object, Integer> index = payloadIndex();
+            for (T item : items) {
+                Integer id = index.get(item);
+                if (id != null && removed.get(id) == false) {
+                    if (updated == null) {
+                        updated = (BitSet) removed.clone();
+                    }
+                    updated.set(id);
+                }
+            }
+        }
+        return (updated == null) ? this : new CompactGraph<>(this, updated);
+    }
+
+    private Map<Object, Integer> payloadIndex() {
+        Map<Object, Integer> index = payloadIndex;
+        if (index == null) {
+            index = new HashMap<>(payloads.length * 4 / 3 + 1);
+            for (int id = 0; id < payloads.length; ++id) {
+                index.put(payloads[id], id);
+            }
+            payloadIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * Retrieves the number of paths this graph was built with.  Paths that
+     * have since lost all their payloads are still counted.
+     */
+    public int numPaths() {
+        return numPaths;
+    }
+
+    public long numVertices() {
+        long total = 0;
+        for (int[] level : keys) {
+            total += level.length;
+        }
+        return total;
+    }
+
+    /**
+     * Counts edges the same way {@link Vertex#numDescendantEdges()} does,
+     * including the links between siblings.
+     */
+    public long numEdges() {
+        long total = 0;
+        if (keys.length > 0 && keys[0].length > 0) {
+            total += 2 * keys[0].length - 1;
+        }
+        for (int l = 0; l + 1 < keys.length; ++l) {
+            for (int v = 0; v < keys[l].length; ++v) {
+                int children = childStart[l][v + 1] - childStart[l][v];
+                if (children > 0) {
+                    total += 2 * children - 1;
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Growable list of primitive ints, used while the graph is being built.
+     */
+    private static class IntList {
+
+        private int[] values = new int[16];
+        private int size = 0;
+
+        public void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        public int get(int index) {
+            return values[index];
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public boolean contains(int value) {
+            for (int i = 0; i < size; ++i) {
+                if (values[i] == value) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public void clear() {
+            size = 0;
+        }
+
+        public int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
@@ -50,7 +50,7 @@ public class FeatureGraph extends MetadataGraph {
     public void addPath(Path<Feature, String> path)
     throws FeatureTypeMismatchException, GraphException {
         Path<Feature, String> qPath = quantizePath(path);
-        graph.addPath(qPath);
+        super.addPath(qPath);
     }
 
     private Path<Feature, String> quantizePath(Path<Feature, String> path) {
@@ -0,0 +1,178 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.graph;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import galileo.dataset.feature.Feature;
+import galileo.dataset.feature.FeatureType;
+import galileo.query.Expression;
+
+/**
+ * The Feature values selected by the query {@link Expression}s on one level
+ * of a graph hierarchy.  Rather than evaluating each Expression separately and
+ * intersecting the results, the Expressions are merged into a single interval
+ * over the sorted values, along with the values ruled out by NOTEQUAL
+ * Expressions.  Graphs can then read the matching neighbors of a vertex
+ * straight from a range of their sorted labels.
+ *
+ * @author sapmitra
+ */
+class FeatureInterval {
+
+    private static final Logger logger = Logger.getLogger("galileo");
+
+    /** Lower bound of the interval, or null if it is open. */
+    Feature low;
+    boolean lowInclusive;
+
+    /** Upper bound of the interval, or null if it is open. */
+    Feature high;
+    boolean highInclusive;
+
+    /** Values ruled out by NOTEQUAL Expressions. */
+    List<Feature> excluded = new ArrayList<>();
+
+    /**
+     * When a path does not contain a particular Feature, we use a null feature
+     * (FeatureType.NULL) to act as a "wildcard" in the graph so that the path
+     * stays linked together.  NULL features sort before all others, so 'less
+     * than' comparisons would match them; they are skipped when this is set.
+     */
+    boolean excludeWildcard = false;
+
+    /** Set when no value can satisfy the Expressions. */
+    boolean empty = false;
+
+    public FeatureInterval(List<Expression> expressions) {
+        for (Expression expression : expressions) {
+            Feature value = expression.getValue();
+
+            switch (expression.getOperator()) {
+                case EQUAL:
+                    raiseLow(value, true);
+                    lowerHigh(value, true);
+                    break;
+
+                case NOTEQUAL:
+                    excluded.add(value);
+                    break;
+
+                case LESS:
+                    lowerHigh(value, false);
+                    excludeWildcard = true;
+                    break;
+
+                case LESSEQUAL:
+                    lowerHigh(value, true);
+                    excludeWildcard = true;
+                    break;
+
+                case GREATER:
+                    raiseLow(value, false);
+                    break;
+
+                case GREATEREQUAL:
+                    raiseLow(value, true);
+                    break;
+
+                case UNKNOWN:
+                default:
+                    logger.log(java.util.logging.Level.WARNING,
+                            "Invalid operator ({0}) in expression: {1}",
+                            new Object[] {
+                                expression.getOperator(),
+                                expression.toString()} );
+                    empty = true;
+            }
+        }
+
+        if (low != null && high != null) {
+            int compare = low.compareTo(high);
+            if (compare > 0 || (compare == 0
+                        && (lowInclusive == false
+                            || highInclusive == false))) {
+                empty = true;
+            }
+        }
+    }
+
+    private void raiseLow(Feature value, boolean inclusive) {
+        int compare = (low == null) ? 1 : value.compareTo(low);
+        if (compare > 0) {
+            low = value;
+            lowInclusive = inclusive;
+        } else if (compare == 0) {
+            lowInclusive = lowInclusive && inclusive;
+        }
+    }
+
+    private void lowerHigh(Feature value, boolean inclusive) {
+        int compare = (high == null) ? -1 : value.compareTo(high);
+        if (compare < 0) {
+            high = value;
+            highInclusive = inclusive;
+        } else if (compare == 0) {
+            highInclusive = highInclusive && inclusive;
+        }
+    }
+
+    /**
+     * Determines whether a single value falls within the interval.
+     */
+    public boolean contains(Feature label) {
+        if (empty) {
+            return false;
+        }
+        if (excludeWildcard && label.getType() == FeatureType.NULL) {
+            return false;
+        }
+        if (low != null) {
+            int compare = label.compareTo(low);
+            if (compare < 0 || (compare == 0 && lowInclusive == false)) {
+                return false;
+            }
+        }
+        if (high != null) {
+            int compare = label.compareTo(high);
+            if (compare > 0 || (compare == 0 && highInclusive == false)) {
+                return false;
+            }
+        }
+        return isExcluded(label) == false;
+    }
+
+    public boolean isExcluded(Feature label) {
+        for (Feature value : excluded) {
+            if (value.compareTo(label) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -26,13 +26,30 @@ software, even if advised of the possibility of such damage.
 package galileo.graph;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.json.JSONArray;
+import org.json.JSONObject;
 
 import galileo.dataset.feature.Feature;
+import galileo.dataset.feature.FeatureInterner;
 import galileo.dataset.feature.FeatureType;
+import galileo.query.Expression;
+import galileo.query.Operation;
 import galileo.query.PayloadFilter;
 import galileo.query.Query;
 import galileo.serialization.ByteSerializable;
@@ -41,21 +58,440 @@ import galileo.serialization.SerializationInputStream;
 import galileo.serialization.SerializationOutputStream;
 import galileo.util.Pair;
 
+/**
+ * Indexes block paths by their Features.  The graph is a series of immutable
+ * {@link Version}s: every change publishes a new one, and queries run against
+ * whichever Version was current when they started, so they never block and
+ * never see a change half-done.  Writers are serialized with each other.
+ * <p>
+ * A Version holds its paths in up to three kinds of layers.  New paths are
+ * appended to a short tail of rows that is scanned directly.  Once it fills
+ * up, the tail is sealed into an array-backed {@link CompactGraph} segment,
+ * and trailing segments of similar size are merged.  {@link #compact()}
+ * periodically folds everything into a single base CompactGraph.  Queries
+ * are answered from all of the layers, and paths that appear in more than
+ * one of them are merged.
+ */
 public class MetadataGraph implements ByteSerializable {
 
-    HierarchicalGraph<String> graph;
+    /* Below this many paths per thread, a parallel build is not worth it */
+    private static final int MIN_PATHS_PER_THREAD = 10000;
+
+    /* Number of rows in the tail before it is sealed into a segment */
+    private static final int SEGMENT_SIZE = Integer.getInteger(
+            "galileo.graph.MetadataGraph.segmentSize", 1024);
+
+    /* Number of segments of a similar size that are merged into one */
+    private static final int MERGE_FACTOR = 4;
+
+    /* Segments are not merged past this many paths; compaction folds them */
+    private static final int MAX_MERGE_SIZE = SEGMENT_SIZE * 64;
+
+    /**
+     * A path normalized to the hierarchy of a Version: one label per level,
+     * with NULL Features filling the gaps and trailing NULLs trimmed.
+     * Neither the labels nor the payload change once a Row is published.
+     */
+    private static final class Row {
+        final Feature[] labels;
+        final Set<String> payload;
+
+        Row(Feature[] labels, Set<String> payload) {
+            this.labels = labels;
+            this.payload = payload;
+        }
+
+        Path<Feature, String> toPath() {
+            FeaturePath<String> path = new FeaturePath<>();
+            for (Feature label : labels) {
+                if (label.getType() != FeatureType.NULL) {
+                    path.add(new Vertex<Feature, String>(label));
+                }
+            }
+            path.setPayload(new HashSet<>(payload));
+            return path;
+        }
+    }
+
+    /**
+     * An immutable state of the graph.  The tail array is shared between
+     * Versions; rows are only ever written past the tailSize of every
+     * published Version, so each one sees a fixed set of rows.
+     */
+    private static final class Version {
+        final String[] names;
+        final FeatureType[] types;
+        final Feature[] wildcards;
+
+        /** Paths as of the last compaction, if any. */
+        final CompactGraph<String> base;
+
+        /** Sealed tails, oldest first. */
+        final List<CompactGraph<String>> segments;
+
+        /** Number of leading segments that a running compaction covers. */
+        final int frozenSegments;
+
+        final Row[] tail;
+        final int tailSize;
+
+        Version(String[] names, FeatureType[] types, Feature[] wildcards,
+                CompactGraph<String> base, List<CompactGraph<String>> segments,
+                int frozenSegments, Row[] tail, int tailSize) {
+            this.names = names;
+            this.types = types;
+            this.wildcards = wildcards;
+            this.base = base;
+            this.segments = segments;
+            this.frozenSegments = frozenSegments;
+            this.tail = tail;
+            this.tailSize = tailSize;
+        }
+
+        Version(String[] names, FeatureType[] types) {
+            this(names, types, wildcards(names), null,
+                    Collections.<CompactGraph<String>>emptyList(), 0,
+                    new Row[SEGMENT_SIZE], 0);
+        }
+
+        private static Feature[] wildcards(String[] names) {
+            Feature[] wildcards = new Feature[names.length];
+            for (int l = 0; l < names.length; ++l) {
+                wildcards[l] = new Feature(names[l]);
+            }
+            return wildcards;
+        }
+
+        int level(String name) {
+            for (int l = 0; l < names.length; ++l) {
+                if (names[l].equals(name)) {
+                    return l;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Returns a Version whose hierarchy can hold the given path.
+         * Features the hierarchy does not know yet are placed below it in the
+         * order they appear in the path.
+         */
+        Version extend(Path<Feature, String> path)
+        throws FeatureTypeMismatchException {
+            String[] names = this.names;
+            FeatureType[] types = this.types;
+            for (Feature feature : path.getLabels()) {
+                int level = -1;
+                for (int l = 0; l < names.length; ++l) {
+                    if (names[l].equals(feature.getName())) {
+                        level = l;
+                        break;
+                    }
+                }
+                if (level == -1) {
+                    names = Arrays.copyOf(names, names.length + 1);
+                    types = Arrays.copyOf(types, types.length + 1);
+                    names[names.length - 1] = feature.getName();
+                    types[types.length - 1] = feature.getType();
+                } else if (feature.getType() != FeatureType.NULL
+                        && feature.getType() != types[level]) {
+                    if (types[level] != FeatureType.NULL) {
+                        throw new FeatureTypeMismatchException(
+                                "Feature insertion at graph level " + level
+                                + " is not possible due to a FeatureType "
+                                + "mismatch. Expected: " + types[level] + ", "
+                                + "found: " + feature.getType() + "; "
+                                + "Feature: <" + feature + ">");
+                    }
+                    /* The level had only seen NULL values until now */
+                    if (types == this.types) {
+                        types = types.clone();
+                    }
+                    types[level] = feature.getType();
+                }
+            }
+            if (names == this.names && types == this.types) {
+                return this;
+            }
+
+            Feature[] wildcards = Arrays.copyOf(this.wildcards, names.length);
+            for (int l = this.names.length; l < names.length; ++l) {
+                wildcards[l] = new Feature(names[l]);
+            }
+            return new Version(names, types, wildcards, base, segments,
+                    frozenSegments, tail, tailSize);
+        }
+
+        /**
+         * Normalizes a path to this Version's hierarchy, which must already
+         * contain all of its Features.
+         */
+        Row toRow(Path<Feature, String> path) throws GraphException {
+            Feature[] labels = new Feature[names.length];
+            int depth = 0;
+            for (Feature feature : path.getLabels()) {
+                if (feature.getType() != FeatureType.NULL) {
+                    int level = level(feature.getName());
+                    labels[level] = feature;
+                    depth = java.lang.Math.max(depth, level + 1);
+                }
+            }
+            if (depth == 0) {
+                throw new GraphException("Attempted to add a path with only "
+                        + "NULL Features!");
+            }
+            labels = Arrays.copyOf(labels, depth);
+            for (int l = 0; l < depth; ++l) {
+                if (labels[l] == null) {
+                    labels[l] = wildcards[l];
+                }
+            }
+            return new Row(labels, new HashSet<>(path.getPayload()));
+        }
+
+        Version append(Row row) {
+            if (tailSize < tail.length) {
+                tail[tailSize] = row;
+                Version appended = new Version(names, types, wildcards, base,
+                        segments, frozenSegments, tail, tailSize + 1);
+                return tailSize + 1 < tail.length ? appended : appended.seal(true);
+            }
+            return seal(true).append(row);
+        }
+
+        /**
+         * Moves the tail into a new segment.
+         *
+         * @param merge whether to merge trailing segments of similar size.
+         */
+        Version seal(boolean merge) {
+            if (tailSize == 0) {
+                return this;
+            }
+            List<CompactGraph<String>> sealed = new ArrayList<>(segments);
+            sealed.add(build(names, Arrays.asList(tail).subList(0, tailSize)));
+
+            while (merge && sealed.size() - frozenSegments >= MERGE_FACTOR) {
+                List<CompactGraph<String>> run = sealed.subList(
+                        sealed.size() - MERGE_FACTOR, sealed.size());
+                int tier = tier(run.get(run.size() - 1));
+                int size = 0;
+                for (CompactGraph<String> segment : run) {
+                    if (tier(segment) != tier) {
+                        size = Integer.MAX_VALUE;
+                        break;
+                    }
+                    size += segment.numPaths();
+                }
+                if (size > MAX_MERGE_SIZE) {
+                    break;
+                }
+                CompactGraph<String> merged = CompactGraph.merge(
+                        Arrays.asList(names), run);
+                run.clear();
+                sealed.add(merged);
+            }
+            return new Version(names, types, wildcards, base,
+                    Collections.unmodifiableList(sealed), frozenSegments,
+                    new Row[SEGMENT_SIZE], 0);
+        }
+
+        /**
+         * Builds a segment straight from rows, which are already laid out
+         * by level.
+         */
+        static CompactGraph<String> build(String[] names, List<Row> rows) {
+            Feature[][] labels = new Feature[rows.size()][];
+            List<Set<String>> payloads = new ArrayList<>(rows.size());
+            for (int i = 0; i < labels.length; ++i) {
+                labels[i] = rows.get(i).labels;
+                payloads.add(rows.get(i).payload);
+            }
+            return CompactGraph.fromRows(names, labels, payloads);
+        }
+
+        /**
+         * Groups segments by size, in powers of {@link #MERGE_FACTOR}
+         * sealed tails.
+         */
+        private static int tier(CompactGraph<String> segment) {
+            int tier = 0;
+            for (long size = segment.numPaths() / SEGMENT_SIZE;
+                    size >= MERGE_FACTOR; size /= MERGE_FACTOR) {
+                ++tier;
+            }
+            return tier;
+        }
+
+        Version removePayloads(Set<String> items) {
+            CompactGraph<String> pruned = null;
+            if (base != null) {
+                pruned = base.removePayloads(items);
+            }
+            List<CompactGraph<String>> remaining = new ArrayList<>(segments.size());
+            for (CompactGraph<String> segment : segments) {
+                remaining.add(segment.removePayloads(items));
+            }
+
+            Row[] rows = new Row[tail.length];
+            int size = 0;
+            for (int i = 0; i < tailSize; ++i) {
+                Row row = tail[i];
+                if (Collections.disjoint(row.payload, items)) {
+                    rows[size++] = row;
+                } else {
+                    Set<String> payload = new HashSet<>(row.payload);
+                    payload.removeAll(items);
+                    if (payload.isEmpty() == false) {
+                        rows[size++] = new Row(row.labels, payload);
+                    }
+                }
+            }
+            return new Version(names, types, wildcards, pruned,
+                    Collections.unmodifiableList(remaining), frozenSegments,
+                    rows, size);
+        }
+
+        List<Path<Feature, String>> evaluateOperation(Operation operation) {
+            List<String> features = Arrays.asList(names);
+            List<List<Path<Feature, String>>> results = new ArrayList<>();
+            if (base != null && covers(operation, base.getFeatureNames(),
+                        features)) {
+                results.add(base.evaluateOperation(operation));
+            }
+            for (CompactGraph<String> segment : segments) {
+                if (covers(operation, segment.getFeatureNames(), features)) {
+                    results.add(segment.evaluateOperation(operation));
+                }
+            }
+            results.add(evaluateTail(operation));
+            return mergePaths(results);
+        }
+
+        /**
+         * Scans the tail for rows that reach at least as deep as the last
+         * level the Operation constrains, and satisfy every constraint along
+         * the way.  This matches what the CompactGraph layers return.
+         */
+        private List<Path<Feature, String>> evaluateTail(Operation operation) {
+            FeatureInterval[] intervals = new FeatureInterval[names.length];
+            int farthest = 0;
+            for (int l = 0; l < names.length; ++l) {
+                List<Expression> expressions = operation.getOperand(names[l]);
+                if (expressions != null) {
+                    intervals[l] = new FeatureInterval(expressions);
+                    farthest = l + 1;
+                }
+            }
+
+            List<Row> rows = new ArrayList<>();
+            for (int i = 0; i < tailSize; ++i) {
+                Row row = tail[i];
+                if (row.labels.length < farthest) {
+                    continue;
+                }
+                boolean matches = true;
+                for (int l = 0; l < farthest && matches; ++l) {
+                    matches = intervals[l] == null
+                        || intervals[l].contains(row.labels[l]);
+                }
+                if (matches) {
+                    rows.add(row);
+                }
+            }
+            return toPaths(rows);
+        }
+
+        /**
+         * Converts rows to paths.  The tail may hold several rows with the
+         * same labels; their payloads are combined into one path, as they
+         * would be in a single vertex of a graph.
+         */
+        private static List<Path<Feature, String>> toPaths(List<Row> rows) {
+            Map<List<Feature>, Path<Feature, String>> paths
+                = new LinkedHashMap<>();
+            for (Row row : rows) {
+                List<Feature> labels = Arrays.asList(row.labels);
+                Path<Feature, String> path = paths.get(labels);
+                if (path == null) {
+                    paths.put(labels, row.toPath());
+                } else {
+                    path.getPayload().addAll(row.payload);
+                }
+            }
+            return new ArrayList<>(paths.values());
+        }
+
+        List<Path<Feature, String>> getAllPaths() {
+            List<List<Path<Feature, String>>> paths = new ArrayList<>();
+            if (base != null) {
+                paths.add(base.getAllPaths());
+            }
+            for (CompactGraph<String> segment : segments) {
+                paths.add(segment.getAllPaths());
+            }
+            paths.add(toPaths(Arrays.asList(tail).subList(0, tailSize)));
+            return mergePaths(paths);
+        }
+
+        FeatureHierarchy getFeatureHierarchy() {
+            FeatureHierarchy hierarchy = new FeatureHierarchy();
+            for (int l = 0; l < names.length; ++l) {
+                if (types[l] == FeatureType.NULL) {
+                    /* Only ever seen without a value; nothing to order by */
+                    continue;
+                }
+                try {
+                    hierarchy.addFeature(names[l], types[l]);
+                } catch (GraphException e) {
+                    /* Not reachable: NULL levels are skipped above */
+                }
+            }
+            return hierarchy;
+        }
+    }
+
+    private volatile Version version;
+
+    /** Payloads removed while a compaction is running. */
+    private Set<String> pendingRemovals;
+
+    /** Incremented whenever the graph is rebuilt from scratch. */
+    private long epoch;
+
+    /** Held while the graph is being compacted. */
+    private final Object compactionLock = new Object();
 
     public MetadataGraph() {
-        graph = new HierarchicalGraph<>();
+        version = new Version(new String[0], new FeatureType[0]);
     }
 
     public MetadataGraph(FeatureHierarchy hierarchy) {
-        graph = new HierarchicalGraph<>(hierarchy);
+        version = emptyVersion(hierarchy);
+    }
+
+    private static Version emptyVersion(FeatureHierarchy hierarchy) {
+        String[] names = new String[hierarchy.size()];
+        FeatureType[] types = new FeatureType[hierarchy.size()];
+        int level = 0;
+        for (Pair<String, FeatureType> feature : hierarchy) {
+            names[level] = feature.a;
+            types[level] = feature.b;
+            ++level;
+        }
+        return new Version(names, types);
     }
 
-    public void addPath(Path<Feature, String> path)
+    public synchronized void addPath(Path<Feature, String> path)
     throws FeatureTypeMismatchException, GraphException {
-        graph.addPath(path);
+        if (path.size() == 0) {
+            throw new GraphException("Attempted to add empty path!");
+        }
+        Version extended = version.extend(path);
+        if (path.hasPayload() == false) {
+            throw new GraphException("Attempted to add Path with no payload!");
+        }
+        version = extended.append(extended.toRow(path));
     }
 
     /**
@@ -66,31 +502,127 @@ public class MetadataGraph implements ByteSerializable {
      *
      * @param hierarchy the new FeatureHierarchy this graph should take on.
      */
-    public void reorient(FeatureHierarchy hierarchy)
+    public synchronized void reorient(FeatureHierarchy hierarchy)
     throws FeatureTypeMismatchException, GraphException {
-        List<Path<Feature, String>> paths = graph.getAllPaths();
-        graph = new HierarchicalGraph<>(hierarchy);
-        for(Path<Feature, String> path : paths) {
-            addPath(path);
+        List<Path<Feature, String>> paths = getAllPaths();
+        Version reoriented = emptyVersion(hierarchy);
+        List<Row> rows = new ArrayList<>(paths.size());
+        for (Path<Feature, String> path : paths) {
+            reoriented = reoriented.extend(path);
+            rows.add(reoriented.toRow(path));
+        }
+        if (rows.isEmpty() == false) {
+            reoriented = new Version(reoriented.names, reoriented.types,
+                    reoriented.wildcards,
+                    Version.build(reoriented.names, rows),
+                    reoriented.segments, 0, reoriented.tail, 0);
         }
+        pendingRemovals = null;
+        ++epoch;
+        version = reoriented;
     }
 
     public List<Path<Feature, String>> evaluateQuery(Query query) {
-        return graph.evaluateQuery(query);
+        Version version = this.version;
+        List<Path<Feature, String>> paths = new ArrayList<>();
+        for (Operation operation : query.getOperations()) {
+            paths.addAll(version.evaluateOperation(operation));
+        }
+        return paths;
     }
-    
-    
-    public JSONArray getFeaturesJSON(){
-    	return graph.getFeaturesJSON();
+
+    public JSONArray getFeaturesJSON() {
+        Version version = this.version;
+        JSONArray features = new JSONArray();
+        for (int l = 0; l < version.names.length; ++l) {
+            JSONObject feature = new JSONObject();
+            feature.put("name", version.names[l]);
+            feature.put("type", version.types[l].name());
+            feature.put("order", l);
+            features.put(feature);
+        }
+        return features;
     }
-    
-    public FeatureHierarchy getFeatureHierarchy(){
-    	return graph.getFeatureHierarchy();
+
+    public FeatureHierarchy getFeatureHierarchy() {
+        return version.getFeatureHierarchy();
     }
 
     public List<Path<Feature, String>> evaluateQuery(Query query,
             PayloadFilter<String> filter) {
-        return graph.evaluateQuery(query, filter);
+        List<Path<Feature, String>> paths = evaluateQuery(query);
+        Iterator<Path<Feature, String>> it = paths.iterator();
+        while (it.hasNext()) {
+            Set<String> payload = it.next().getPayload();
+            if (filter.excludesItems() == false) {
+                payload.retainAll(filter.getItems());
+            } else {
+                payload.removeAll(filter.getItems());
+            }
+            if (payload.isEmpty()) {
+                it.remove();
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Determines whether a layer of the graph can answer an Operation.  A
+     * layer built before a Feature was added to the hierarchy cannot match an
+     * Expression on that Feature; in a single graph, its paths would end above
+     * the level of the Feature.
+     *
+     * @param layerFeatures the Features known to the layer.
+     * @param features the Features known to the graph as a whole.
+     */
+    private static boolean covers(Operation operation,
+            Collection<String> layerFeatures, Collection<String> features) {
+        for (Expression expression : operation.getExpressions()) {
+            String operand = expression.getOperand();
+            if (features.contains(operand)
+                    && layerFeatures.contains(operand) == false) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Combines the paths found in several layers of the graph.  Paths with the
+     * same Features are merged into one carrying the payloads of all of them,
+     * as they would be in a single graph.  Every layer returns new Path
+     * objects, so their payloads can be modified.
+     */
+    private static List<Path<Feature, String>> mergePaths(
+            List<List<Path<Feature, String>>> layers) {
+        List<Path<Feature, String>> nonEmpty = null;
+        int count = 0;
+        for (List<Path<Feature, String>> layer : layers) {
+            if (layer.isEmpty() == false) {
+                nonEmpty = layer;
+                ++count;
+            }
+        }
+        if (count == 0) {
+            return new ArrayList<>();
+        } else if (count == 1) {
+            return nonEmpty;
+        }
+
+        Map<List<Feature>, Path<Feature, String>> merged
+            = new LinkedHashMap<>();
+        for (List<Path<Feature, String>> layer : layers) {
+            for (Path<Feature, String> path : layer) {
+                List<Feature> labels = path.getLabels();
+                Path<Feature, String> existing = merged.get(labels);
+                if (existing == null) {
+                    merged.put(labels, path);
+                } else {
+                    existing.getPayload().addAll(path.getPayload());
+                }
+            }
+        }
+        return new ArrayList<>(merged.values());
     }
 
     public static MetadataGraph fromPaths(List<Path<Feature, String>> paths) {
@@ -106,26 +638,260 @@ public class MetadataGraph implements ByteSerializable {
         return m;
     }
 
+    /**
+     * Builds a graph from a list of paths on several threads.  The hierarchy
+     * follows the order in which Features first appear in the paths; each
+     * thread then builds a compact segment from a contiguous range of them.
+     *
+     * @param threads maximum number of segments to build at once.
+     */
+    public static MetadataGraph fromPaths(
+            List<? extends Path<Feature, String>> paths, int threads)
+    throws FeatureTypeMismatchException, GraphException, InterruptedException {
+        return fromPaths(new FeatureHierarchy(), paths, threads);
+    }
+
+    /**
+     * Builds a graph with the given hierarchy from a list of paths on several
+     * threads.  Features that are not part of the hierarchy are placed below
+     * it in the order they are first seen.
+     */
+    private static MetadataGraph fromPaths(FeatureHierarchy hierarchy,
+            List<? extends Path<Feature, String>> paths, int threads)
+    throws FeatureTypeMismatchException, GraphException, InterruptedException {
+        Version version = emptyVersion(hierarchy);
+        final List<Row> rows = new ArrayList<>(paths.size());
+        for (Path<Feature, String> path : paths) {
+            if (path.size() == 0) {
+                throw new GraphException("Attempted to add empty path!");
+            }
+            version = version.extend(path);
+            if (path.hasPayload() == false) {
+                throw new GraphException(
+                        "Attempted to add Path with no payload!");
+            }
+            rows.add(version.toRow(path));
+        }
+
+        final String[] names = version.names;
+        List<CompactGraph<String>> segments = new ArrayList<>();
+        int ranges = java.lang.Math.min(threads,
+                rows.size() / MIN_PATHS_PER_THREAD);
+        if (ranges <= 1) {
+            if (rows.isEmpty() == false) {
+                segments.add(Version.build(names, rows));
+            }
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(ranges);
+            try {
+                List<Future<CompactGraph<String>>> futures = new ArrayList<>();
+                for (int i = 0; i < ranges; ++i) {
+                    final List<Row> range = rows.subList(
+                            (int) ((long) rows.size() * i / ranges),
+                            (int) ((long) rows.size() * (i + 1) / ranges));
+                    futures.add(executor.submit(
+                                new Callable<CompactGraph<String>>() {
+                        @Override
+                        public CompactGraph<String> call() {
+                            return Version.build(names, range);
+                        }
+                    }));
+                }
+                for (Future<CompactGraph<String>> future : futures) {
+                    try {
+                        segments.add(future.get());
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof Error) {
+                            throw (Error) cause;
+                        }
+                        throw (RuntimeException) cause;
+                    }
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        MetadataGraph graph = new MetadataGraph();
+        graph.version = new Version(version.names, version.types,
+                version.wildcards, null,
+                Collections.unmodifiableList(segments), 0, version.tail, 0);
+        return graph;
+    }
+
     public List<Path<Feature, String>> getAllPaths() {
-        return graph.getAllPaths();
+        return version.getAllPaths();
+    }
+
+    /**
+     * Copies the graph as it is now.  The copy shares the immutable layers of
+     * this graph and only duplicates the references in its tail, so it can be
+     * taken while additions are held off and read at leisure afterwards.
+     */
+    public MetadataGraph snapshot() {
+        Version version = this.version;
+        MetadataGraph graph = new MetadataGraph();
+        graph.version = new Version(version.names, version.types,
+                version.wildcards, version.base, version.segments, 0,
+                Arrays.copyOf(version.tail, version.tail.length),
+                version.tailSize);
+        return graph;
+    }
+
+    /**
+     * Removes the given payloads (block paths) from the graph, along with any
+     * paths that no longer lead to a payload.
+     */
+    public synchronized void removePayloads(Collection<String> payloads) {
+        Set<String> items = new HashSet<>(payloads);
+        version = version.removePayloads(items);
+        if (pendingRemovals != null) {
+            pendingRemovals.addAll(items);
+        }
+    }
+
+    /**
+     * Folds the paths currently in the graph into a single base
+     * {@link CompactGraph}.  The layers are merged without holding up queries
+     * or additions; paths added in the meantime are kept apart from them, and
+     * payloads removed in the meantime are removed from the result before it
+     * is published.
+     */
+    public void compact() {
+        synchronized (compactionLock) {
+            Version frozen;
+            long epoch;
+            synchronized (this) {
+                Version sealed = version.seal(false);
+                frozen = new Version(sealed.names, sealed.types,
+                        sealed.wildcards, sealed.base, sealed.segments,
+                        sealed.segments.size(), sealed.tail, sealed.tailSize);
+                version = frozen;
+                epoch = this.epoch;
+                pendingRemovals = new HashSet<>();
+            }
+
+            List<CompactGraph<String>> layers = new ArrayList<>();
+            if (frozen.base != null) {
+                layers.add(frozen.base);
+            }
+            layers.addAll(frozen.segments);
+            CompactGraph<String> compacted = CompactGraph.merge(
+                    Arrays.asList(frozen.names), layers);
+
+            synchronized (this) {
+                Set<String> removed = pendingRemovals;
+                pendingRemovals = null;
+                if (this.epoch != epoch) {
+                    /* The graph was rebuilt in the meantime */
+                    return;
+                }
+                compacted = compacted.removePayloads(removed);
+
+                /* Only segments sealed since the merge began remain */
+                Version current = version;
+                List<CompactGraph<String>> segments = new ArrayList<>(
+                        current.segments.subList(current.frozenSegments,
+                            current.segments.size()));
+                version = new Version(current.names, current.types,
+                        current.wildcards, compacted,
+                        Collections.unmodifiableList(segments), 0,
+                        current.tail, current.tailSize);
+            }
+        }
     }
 
     public long numVertices() {
-        return graph.getRoot().numDescendants();
+        Version version = this.version;
+        long total = 0;
+        if (version.base != null) {
+            total += version.base.numVertices();
+        }
+        for (CompactGraph<String> segment : version.segments) {
+            total += segment.numVertices();
+        }
+        for (int i = 0; i < version.tailSize; ++i) {
+            total += version.tail[i].labels.length;
+        }
+        return total;
     }
 
     public long numEdges() {
-        return graph.getRoot().numDescendantEdges();
+        Version version = this.version;
+        long total = 0;
+        if (version.base != null) {
+            total += version.base.numEdges();
+        }
+        for (CompactGraph<String> segment : version.segments) {
+            total += segment.numEdges();
+        }
+        for (int i = 0; i < version.tailSize; ++i) {
+            total += version.tail[i].labels.length;
+        }
+        return total;
     }
 
     @Override
     public String toString() {
-        return graph.toString();
+        return getAllPaths().toString();
     }
 
     @Deserialize
     public MetadataGraph(SerializationInputStream in)
     throws GraphException, IOException, SerializationException {
+        this(readHierarchy(in));
+
+        FeatureInterner interner = new FeatureInterner();
+        int numPaths = in.readInt();
+        for (int path = 0; path < numPaths; ++path) {
+            try {
+                this.addPath(readPath(in, interner));
+            } catch (FeatureTypeMismatchException e) {
+                throw new SerializationException("Could not add deserialized "
+                        + "path to the MetadataGraph.", e);
+            }
+        }
+    }
+
+    /**
+     * Reads a graph in its serialized form and rebuilds it on several
+     * threads (see {@link #fromPaths(List, int)}).
+     */
+    public static MetadataGraph deserialize(SerializationInputStream in,
+            int threads)
+    throws IOException, SerializationException {
+        return deserialize(in, threads, new FeatureInterner());
+    }
+
+    /**
+     * Reads a graph in its serialized form and rebuilds it on several
+     * threads, sharing the Features of its paths through the given interning
+     * table.
+     */
+    public static MetadataGraph deserialize(SerializationInputStream in,
+            int threads, FeatureInterner interner)
+    throws IOException, SerializationException {
+        try {
+            FeatureHierarchy hierarchy = readHierarchy(in);
+            int numPaths = in.readInt();
+            List<FeaturePath<String>> paths = new ArrayList<>(numPaths);
+            for (int path = 0; path < numPaths; ++path) {
+                paths.add(readPath(in, interner));
+            }
+            return fromPaths(hierarchy, paths, threads);
+        } catch (FeatureTypeMismatchException | GraphException e) {
+            throw new SerializationException("Could not add deserialized "
+                    + "path to the MetadataGraph.", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SerializationException("Interrupted while rebuilding "
+                    + "the MetadataGraph.", e);
+        }
+    }
+
+    private static FeatureHierarchy readHierarchy(SerializationInputStream in)
+    throws GraphException, IOException {
         FeatureHierarchy hierarchy = new FeatureHierarchy();
         int numLevels = in.readInt();
         for (int level = 0; level < numLevels; ++level) {
@@ -133,45 +899,50 @@ public class MetadataGraph implements ByteSerializable {
             FeatureType type = FeatureType.fromInt(in.readInt());
             hierarchy.addFeature(name, type);
         }
+        return hierarchy;
+    }
 
-        graph = new HierarchicalGraph<String>(hierarchy);
-
-        int numPaths = in.readInt();
-        for (int path = 0; path < numPaths; ++path) {
-            FeaturePath<String> p = new FeaturePath<>();
-            int numVertices = in.readInt();
-            for (int vertex = 0; vertex < numVertices; ++vertex) {
-                Feature f = new Feature(in);
-                Vertex<Feature, String> v = new Vertex<>(f);
-                p.add(v);
-            }
-
-            int numPayloads = in.readInt();
-            for (int payload = 0; payload < numPayloads; ++payload) {
-                String pay = in.readString();
-                p.addPayload(pay);
-            }
+    private static FeaturePath<String> readPath(SerializationInputStream in,
+            FeatureInterner interner)
+    throws IOException, SerializationException {
+        FeaturePath<String> p = new FeaturePath<>();
+        int numVertices = in.readInt();
+        for (int vertex = 0; vertex < numVertices; ++vertex) {
+            Feature f = interner.intern(new Feature(in));
+            Vertex<Feature, String> v = new Vertex<>(f);
+            p.add(v);
+        }
 
-            try {
-                this.addPath(p);
-            } catch (FeatureTypeMismatchException e) {
-                throw new SerializationException("Could not add deserialized "
-                        + "path to the MetadataGraph.", e);
-            }
+        int numPayloads = in.readInt();
+        for (int payload = 0; payload < numPayloads; ++payload) {
+            String pay = in.readString();
+            p.addPayload(pay);
         }
+        return p;
     }
 
     @Override
     public void serialize(SerializationOutputStream out)
     throws IOException {
-        FeatureHierarchy hierarchy = graph.getFeatureHierarchy();
+        Version version = this.version;
+        serialize(version.getFeatureHierarchy(), version.getAllPaths(), out);
+    }
+
+    /**
+     * Writes a graph made up of the given hierarchy and paths in the same
+     * form {@link #serialize(SerializationOutputStream)} does.  This allows a
+     * copy of the paths to be written out while the graph itself changes.
+     */
+    public static void serialize(FeatureHierarchy hierarchy,
+            List<? extends Path<Feature, String>> paths,
+            SerializationOutputStream out)
+    throws IOException {
         out.writeInt(hierarchy.size());
         for (Pair<String, FeatureType> level : hierarchy) {
             out.writeString(level.a);
             out.writeInt(level.b.toInt());
         }
 
-        List<Path<Feature, String>> paths = graph.getAllPaths();
         out.writeInt(paths.size());
         for (Path<Feature, String> path : paths) {
             List<Vertex<Feature, String>> vertices = path.getVertices();
@@ -0,0 +1,58 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.query;
+
+import galileo.dataset.feature.FeatureType;
+
+/**
+ * A batch of records held column by column, as evaluated by
+ * {@link CompiledQuery#select(ColumnBatch)}. Columns stored in a numeric type
+ * expose their values as a primitive array; the arrays may be longer than the
+ * batch, in which case only the first {@link #getRecordCount()} values are
+ * used.
+ *
+ * @author sapmitra
+ */
+public interface ColumnBatch {
+
+    public int getRecordCount();
+
+    /**
+     * Retrieves the type a column is stored in. Only the primitive array of
+     * that type is available for the column.
+     */
+    public FeatureType getType(int column);
+
+    public int[] getInts(int column);
+
+    public long[] getLongs(int column);
+
+    public float[] getFloats(int column);
+
+    public double[] getDoubles(int column);
+
+    public String getString(int column, int row);
+}
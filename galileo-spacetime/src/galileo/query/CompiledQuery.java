@@ -0,0 +1,721 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.TreeSet;
+
+import galileo.dataset.feature.Feature;
+import galileo.dataset.feature.FeatureType;
+import galileo.util.Pair;
+
+/**
+ * A {@link Query} compiled against the columns of a record layout, so that
+ * records can be filtered one at a time without inserting them into a
+ * temporary {@link galileo.graph.MetadataGraph}. Each {@link Expression} is
+ * resolved to a column and a typed operand once; evaluating a record only
+ * parses the columns the query refers to.
+ * <p>
+ * Records are matched the same way the graph would match them: operations
+ * are ORed, the expressions of an operation are ANDed, and expressions on
+ * features that are not in the layout are ignored. Values are compared using
+ * the ordering of the corresponding {@link Comparable} (so NaN is greater than
+ * every other float). Numeric operands are compared exactly against integral
+ * columns, and as doubles against floating point columns; an operand whose
+ * type cannot be compared with its column (a string against a numeric column,
+ * or the other way around) never matches, where the graph would have failed
+ * the query.
+ * <p>
+ * Records that are already held in typed columns can be filtered a batch at
+ * a time with {@link #select(ColumnBatch)}: every expression is run over a
+ * whole column and produces a selection bitmap, and the bitmaps are combined
+ * a word at a time.
+ *
+ * @author sapmitra
+ */
+public class CompiledQuery {
+
+    private Term[][] operations;
+    private int[] columns;
+
+    /* Types of every column of the layout if records are parsed strictly */
+    private FeatureType[] strictTypes;
+
+    private CompiledQuery(Term[][] operations, int[] columns,
+            FeatureType[] strictTypes) {
+        this.operations = operations;
+        this.columns = columns;
+        this.strictTypes = strictTypes;
+    }
+
+    /**
+     * Compiles a query for records laid out according to the given columns.
+     *
+     * @param lenient if true, unparsable numeric values are read the way
+     * {@link galileo.util.Math} reads them (0 for integers, NaN for floating
+     * point values); otherwise a record that has an unparsable numeric value
+     * in any column, or more values than there are columns, does not match.
+     */
+    public static CompiledQuery compile(Query query,
+            List<Pair<String, FeatureType>> columns, boolean lenient) {
+        Term[][] operations = new Term[query.getOperations().size()][];
+        TreeSet<Integer> referenced = new TreeSet<>();
+        int o = 0;
+        for (Operation operation : query.getOperations()) {
+            List<Term> terms = new ArrayList<>();
+            for (Expression expression : operation.getExpressions()) {
+                for (int i = 0; i < columns.size(); ++i) {
+                    Pair<String, FeatureType> column = columns.get(i);
+                    if (column.a.equals(expression.getOperand())) {
+                        terms.add(compile(expression, i, column.b, lenient));
+                        referenced.add(i);
+                        break;
+                    }
+                }
+            }
+            operations[o++] = terms.toArray(new Term[terms.size()]);
+        }
+
+        int[] batchColumns = new int[referenced.size()];
+        int c = 0;
+        for (int column : referenced) {
+            batchColumns[c++] = column;
+        }
+        for (Term[] terms : operations) {
+            for (Term term : terms) {
+                term.position = Arrays.binarySearch(batchColumns, term.column);
+            }
+        }
+
+        FeatureType[] strictTypes = null;
+        if (lenient == false) {
+            strictTypes = new FeatureType[columns.size()];
+            for (int i = 0; i < strictTypes.length; ++i) {
+                strictTypes[i] = columns.get(i).b;
+            }
+        }
+        return new CompiledQuery(operations, batchColumns, strictTypes);
+    }
+
+    private static Term compile(Expression expression, int column,
+            FeatureType type, boolean lenient) {
+        Operator operator = expression.getOperator();
+        Feature value = expression.getValue();
+        boolean numeric = isNumeric(value.getType());
+        switch (type) {
+            case INT:
+                return numeric ? new IntTerm(column, operator, value, lenient)
+                    : new MismatchTerm(column, operator);
+            case LONG:
+                return numeric ? new LongTerm(column, operator, value, lenient)
+                    : new MismatchTerm(column, operator);
+            case FLOAT:
+                return numeric ? new FloatTerm(column, operator,
+                        value.getDouble(), lenient)
+                    : new MismatchTerm(column, operator);
+            case DOUBLE:
+                return numeric ? new DoubleTerm(column, operator,
+                        value.getDouble(), lenient)
+                    : new MismatchTerm(column, operator);
+            default:
+                return (value.getType() == FeatureType.STRING)
+                    ? new StringTerm(column, operator, value.getString())
+                    : new MismatchTerm(column, operator);
+        }
+    }
+
+    private static boolean isNumeric(FeatureType type) {
+        return type == FeatureType.INT || type == FeatureType.LONG
+            || type == FeatureType.FLOAT || type == FeatureType.DOUBLE;
+    }
+
+    /**
+     * Determines whether every value of a record can be read in the type of
+     * its column, as the graph required when records were inserted into it.
+     */
+    private boolean parses(String[] record) {
+        if (record.length > strictTypes.length) {
+            return false;
+        }
+        try {
+            for (int i = 0; i < record.length; ++i) {
+                switch (strictTypes[i]) {
+                    case INT:
+                        Integer.parseInt(record[i]);
+                        break;
+                    case LONG:
+                        Long.parseLong(record[i]);
+                        break;
+                    case FLOAT:
+                        Float.parseFloat(record[i]);
+                        break;
+                    case DOUBLE:
+                        Double.parseDouble(record[i]);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if any operation of the query matches the record.
+     */
+    public boolean matches(String[] record) {
+        if (strictTypes != null && parses(record) == false) {
+            return false;
+        }
+        for (Term[] terms : operations) {
+            if (matchesAll(terms, record)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean matchesAll(Term[] terms, String[] record) {
+        for (Term term : terms) {
+            if (term.column >= record.length
+                    || term.matches(record[term.column]) == false) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the records that match the query, in their original order.
+     */
+    public List<String[]> filter(List<String[]> records) {
+        List<String[]> results = new ArrayList<>();
+        for (String[] record : records) {
+            if (matches(record)) {
+                results.add(record);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Retrieves the columns the query refers to, in ascending order. Column
+     * i of a {@link ColumnBatch} passed to {@link #select(ColumnBatch)} holds
+     * the values of column getColumns()[i].
+     */
+    public int[] getColumns() {
+        return columns.clone();
+    }
+
+    /**
+     * Evaluates the query over a batch of records. Only the queried columns
+     * are available in a batch, so unlike {@link #matches(String[])} this
+     * does not check the other columns of a strictly compiled query.
+     *
+     * @return the rows of the batch that match the query.
+     */
+    public BitSet select(ColumnBatch batch) {
+        int size = batch.getRecordCount();
+        int length = (size + 63) >>> 6;
+        long[] result = new long[length];
+        long[] selected = new long[length];
+        long[] words = new long[length];
+
+        for (Term[] terms : operations) {
+            fill(selected, size);
+            for (Term term : terms) {
+                Arrays.fill(words, 0L);
+                term.select(batch, size, words);
+                long any = 0;
+                for (int w = 0; w < length; ++w) {
+                    selected[w] &= words[w];
+                    any |= selected[w];
+                }
+                if (any == 0) {
+                    break;
+                }
+            }
+            for (int w = 0; w < length; ++w) {
+                result[w] |= selected[w];
+            }
+        }
+        return BitSet.valueOf(result);
+    }
+
+    /* Sets the first size bits of a bitmap */
+    private static void fill(long[] words, int size) {
+        Arrays.fill(words, -1L);
+        if ((size & 63) != 0) {
+            words[words.length - 1] = (1L << size) - 1;
+        }
+    }
+
+    private static void invert(long[] words, int size) {
+        for (int w = 0; w < words.length; ++w) {
+            words[w] = ~words[w];
+        }
+        if ((size & 63) != 0) {
+            words[words.length - 1] &= (1L << size) - 1;
+        }
+    }
+
+    private abstract static class Term {
+        protected int column;
+        protected int position;
+        protected Operator operator;
+        protected boolean lenient;
+
+        protected Term(int column, Operator operator, boolean lenient) {
+            this.column = column;
+            this.operator = operator;
+            this.lenient = lenient;
+        }
+
+        protected abstract boolean matches(String value);
+
+        /**
+         * Sets the bits of the rows in the batch that satisfy this term. The
+         * default implementation goes through the string form of each
+         * value, for columns that are not stored in the term's type.
+         */
+        protected void select(ColumnBatch batch, int size, long[] words) {
+            for (int i = 0; i < size; ++i) {
+                if (matches(batch.getString(position, i))) {
+                    words[i >>> 6] |= 1L << i;
+                }
+            }
+        }
+
+        /**
+         * @param comparison result of comparing the record's value to the
+         * operand.
+         */
+        protected boolean test(int comparison) {
+            switch (operator) {
+                case EQUAL:
+                    return comparison == 0;
+                case NOTEQUAL:
+                    return comparison != 0;
+                case LESS:
+                    return comparison < 0;
+                case LESSEQUAL:
+                    return comparison <= 0;
+                case GREATER:
+                    return comparison > 0;
+                case GREATEREQUAL:
+                    return comparison >= 0;
+                case UNKNOWN:
+                default:
+                    return false;
+            }
+        }
+    }
+
+    /**
+     * Base for integral terms. Every operator is turned into an inclusive
+     * range of values (negated for NOTEQUAL), so that a whole column is
+     * filtered with a single branch-free comparison per value. Floating point
+     * operands are turned into the range of integers that satisfy the
+     * comparison, so that no operand is truncated.
+     */
+    private abstract static class RangeTerm extends Term {
+        protected long low;
+        protected long high;
+        protected boolean negate;
+
+        protected RangeTerm(int column, Operator operator, Feature operand,
+                long min, long max, boolean lenient) {
+            super(column, operator, lenient);
+            /* An empty range is represented by low > high */
+            this.low = 1;
+            this.high = 0;
+            this.negate = (operator == Operator.NOTEQUAL);
+
+            long floor, ceil;
+            FeatureType type = operand.getType();
+            if (type == FeatureType.INT || type == FeatureType.LONG) {
+                floor = ceil = operand.getLong();
+            } else {
+                double x = operand.getDouble();
+                if (x < -0x1p63) {
+                    /* Every value is greater */
+                    if (operator == Operator.GREATER
+                            || operator == Operator.GREATEREQUAL
+                            || operator == Operator.NOTEQUAL) {
+                        low = min;
+                        high = max;
+                        negate = false;
+                    }
+                    return;
+                }
+                if (x >= 0x1p63 || Double.isNaN(x)) {
+                    /* Every value is less (NaN sorts above everything) */
+                    if (operator == Operator.LESS
+                            || operator == Operator.LESSEQUAL
+                            || operator == Operator.NOTEQUAL) {
+                        low = min;
+                        high = max;
+                        negate = false;
+                    }
+                    return;
+                }
+                floor = (long) Math.floor(x);
+                ceil = (long) Math.ceil(x);
+            }
+
+            switch (operator) {
+                case EQUAL:
+                case NOTEQUAL:
+                    if (floor == ceil) {
+                        low = floor;
+                        high = floor;
+                    }
+                    break;
+                case LESS:
+                    if (ceil != Long.MIN_VALUE) {
+                        low = min;
+                        high = ceil - 1;
+                    }
+                    break;
+                case LESSEQUAL:
+                    low = min;
+                    high = floor;
+                    break;
+                case GREATER:
+                    if (floor != Long.MAX_VALUE) {
+                        low = floor + 1;
+                        high = max;
+                    }
+                    break;
+                case GREATEREQUAL:
+                    low = ceil;
+                    high = max;
+                    break;
+                default:
+                    negate = false;
+                    break;
+            }
+        }
+
+        protected boolean matches(long value) {
+            return (value >= low & value <= high) != negate;
+        }
+    }
+
+    private static class IntTerm extends RangeTerm {
+
+        private IntTerm(int column, Operator operator, Feature operand,
+                boolean lenient) {
+            super(column, operator, operand, Integer.MIN_VALUE,
+                    Integer.MAX_VALUE, lenient);
+        }
+
+        @Override
+        protected boolean matches(String value) {
+            try {
+                return matches(Integer.parseInt(value));
+            } catch (NumberFormatException e) {
+                return lenient && matches(0);
+            }
+        }
+
+        @Override
+        protected void select(ColumnBatch batch, int size, long[] words) {
+            if (batch.getType(position) != FeatureType.INT) {
+                super.select(batch, size, words);
+                return;
+            }
+            int[] values = batch.getInts(position);
+            for (int i = 0; i < size; ++i) {
+                long value = values[i];
+                if (value >= low & value <= high) {
+                    words[i >>> 6] |= 1L << i;
+                }
+            }
+            if (negate) {
+                invert(words, size);
+            }
+        }
+    }
+
+    private static class LongTerm extends RangeTerm {
+
+        private LongTerm(int column, Operator operator, Feature operand,
+                boolean lenient) {
+            super(column, operator, operand, Long.MIN_VALUE, Long.MAX_VALUE,
+                    lenient);
+        }
+
+        @Override
+        protected boolean matches(String value) {
+            try {
+                return matches(Long.parseLong(value));
+            } catch (NumberFormatException e) {
+                return lenient && matches(0);
+            }
+        }
+
+        @Override
+        protected void select(ColumnBatch batch, int size, long[] words) {
+            if (batch.getType(position) != FeatureType.LONG) {
+                super.select(batch, size, words);
+                return;
+            }
+            long[] values = batch.getLongs(position);
+            for (int i = 0; i < size; ++i) {
+                if (values[i] >= low & values[i] <= high) {
+                    words[i >>> 6] |= 1L << i;
+                }
+            }
+            if (negate) {
+                invert(words, size);
+            }
+        }
+    }
+
+    /**
+     * Base for floating point terms. Plain comparisons only agree with the
+     * {@link Comparable} ordering when neither side is NaN and -0.0 is not
+     * told apart from 0.0; the fast paths are used where that holds, and NaN
+     * values (which sort above everything) are added back where needed.
+     */
+    private abstract static class FloatingTerm extends Term {
+        /* Plain comparisons are exact for finite, non-zero operands */
+        protected boolean plain;
+
+        protected FloatingTerm(int column, Operator operator, double operand,
+                boolean lenient) {
+            super(column, operator, lenient);
+            this.plain = operand != 0 && Double.isInfinite(operand) == false
+                && Double.isNaN(operand) == false;
+        }
+    }
+
+    private static class FloatTerm extends FloatingTerm {
+        private double operand;
+
+        private FloatTerm(int column, Operator operator, double operand,
+                boolean lenient) {
+            super(column, operator, operand, lenient);
+            this.operand = operand;
+        }
+
+        @Override
+        protected boolean matches(String value) {
+            try {
+                return test(Double.compare(Float.parseFloat(value), operand));
+            } catch (NumberFormatException e) {
+                return lenient && test(Double.compare(Float.NaN, operand));
+            }
+        }
+
+        @Override
+        protected void select(ColumnBatch batch, int size, long[] words) {
+            if (batch.getType(position) != FeatureType.FLOAT) {
+                super.select(batch, size, words);
+                return;
+            }
+            float[] values = batch.getFloats(position);
+            if (plain == false) {
+                for (int i = 0; i < size; ++i) {
+                    if (test(Double.compare(values[i], operand))) {
+                        words[i >>> 6] |= 1L << i;
+                    }
+                }
+                return;
+            }
+            double x = operand;
+            switch (operator) {
+                case EQUAL:
+                    for (int i = 0; i < size; ++i) {
+                        if (values[i] == x) {
+                            words[i >>> 6] |= 1L << i;
+                        }
+                    }
+                    break;
+                case NOTEQUAL:
+                    for (int i = 0; i < size; ++i) {
+                        if (values[i] != x) {
+                            words[i >>> 6] |= 1L << i;
+                        }
+                    }
+                    break;
+                case LESS:
+                    for (int i = 0; i < size; ++i) {
+                        if (values[i] < x) {
+                            words[i >>> 6] |= 1L << i;
+                        }
+                    }
+                    break;
+                case LESSEQUAL:
+                    for (int i = 0; i < size; ++i) {
+                        if (values[i] <= x) {
+                            words[i >>> 6] |= 1L << i;
+                        }
+                    }
+                    break;
+                case GREATER:
+                    for (int i = 0; i < size; ++i) {
+                        if (values[i] > x | values[i] != values[i]) {
+                            words[i >>> 6] |= 1L << i;
+                        }
+                    }
+                    break;
+                case GREATEREQUAL:
+                    for (int i = 0; i < size; ++i) {
+                        if (values[i] >= x | values[i] != values[i]) {
+                            words[i >>> 6] |= 1L << i;
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private static class DoubleTerm extends FloatingTerm {
+        private double operand;
+
+        private DoubleTerm(int column, Operator operator, double operand,
+                boolean lenient) {
+            super(column, operator, operand, lenient);
+            this.operand = operand;
+        }
+
+        @Override
+        protected boolean matches(String value) {
+            try {
+                return test(Double.compare(Double.parseDouble(value),
+                            operand));
+            } catch (NumberFormatException e) {
+                return lenient && test(Double.compare(Double.NaN, operand));
+            }
+        }
+
+        @Override
+        protected void select(ColumnBatch batch, int size, long[] words) {
+            if (batch.getType(position) != FeatureType.DOUBLE) {
+                super.select(batch, size, words);
+                return;
+            }
+            double[] values = batch.getDoubles(position);
+            if (plain == false) {
+                for (int i = 0; i < size; ++i) {
+                    if (test(Double.compare(values[i], operand))) {
+                        words[i >>> 6] |= 1L << i;
+                    }
+                }
+                return;
+            }
+            double x = operand;
+            switch (operator) {
+                case EQUAL:
+                    for (int i = 0; i < size; ++i) {
+                        if (values[i] == x) {
+                            words[i >>> 6] |= 1L << i;
+                        }
+                    }
+                    break;
+                case NOTEQUAL:
+                    for (int i = 0; i < size; ++i) {
+                        if (values[i] != x) {
+                            words[i >>> 6] |= 1L << i;
+                        }
+                    }
+                    break;
+                case LESS:
+                    for (int i = 0; i < size; ++i) {
+                        if (values[i] < x) {
+                            words[i >>> 6] |= 1L << i;
+                        }
+                    }
+                    break;
+                case LESSEQUAL:
+                    for (int i = 0; i < size; ++i) {
+                        if (values[i] <= x) {
+                            words[i >>> 6] |= 1L << i;
+                        }
+                    }
+                    break;
+                case GREATER:
+                    for (int i = 0; i < size; ++i) {
+                        if (values[i] > x | values[i] != values[i]) {
+                            words[i >>> 6] |= 1L << i;
+                        }
+                    }
+                    break;
+                case GREATEREQUAL:
+                    for (int i = 0; i < size; ++i) {
+                        if (values[i] >= x | values[i] != values[i]) {
+                            words[i >>> 6] |= 1L << i;
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * A term whose operand cannot be compared with the values of its column.
+     */
+    private static class MismatchTerm extends Term {
+
+        private MismatchTerm(int column, Operator operator) {
+            super(column, operator, false);
+        }
+
+        @Override
+        protected boolean matches(String value) {
+            return false;
+        }
+
+        @Override
+        protected void select(ColumnBatch batch, int size, long[] words) {
+        }
+    }
+
+    private static class StringTerm extends Term {
+        private String operand;
+
+        private StringTerm(int column, Operator operator, String operand) {
+            super(column, operator, false);
+            this.operand = operand;
+        }
+
+        @Override
+        protected boolean matches(String value) {
+            return test(value.compareTo(operand));
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.query;
+
+import java.awt.Polygon;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import galileo.bmp.Bitmap;
+import galileo.bmp.GeoavailabilityGrid;
+import galileo.bmp.GeoavailabilityQuery;
+import galileo.bmp.QueryTransform;
+import galileo.dataset.Coordinates;
+import galileo.dataset.feature.Feature;
+import galileo.util.GeoHash;
+
+/**
+ * Node-local cache of the spatial parts of query plans. Clients tend to send
+ * the same polygons over and over, so the work that depends only on the
+ * polygon is kept here: the base geohashes it intersects, the geohash ranges
+ * covering it within each base geohash (as spatial {@link Operation}s), and
+ * its rasterization onto each {@link GeoavailabilityGrid}.
+ * <p>
+ * The cache holds a bounded number of entries and evicts the least recently
+ * used one first. Entries are computed outside the cache lock, so two threads
+ * missing on the same entry may both compute it.
+ *
+ * @author sapmitra
+ */
+public class QueryPlanCache {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static final QueryPlanCache instance = new QueryPlanCache(
+            Integer.getInteger("galileo.query.QueryPlanCache.capacity",
+                DEFAULT_CAPACITY));
+
+    private final Map<Key, Object> entries;
+    private long hits;
+    private long misses;
+
+    public QueryPlanCache(final int capacity) {
+        this.entries = new LinkedHashMap<Key, Object>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Object> e) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    public static QueryPlanCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Retrieves the base (two character) geohashes that intersect a polygon.
+     */
+    public List<String> getBaseHashes(List<Coordinates> polygon) {
+        return getBaseHashes(polygon, true);
+    }
+
+    /**
+     * @param cache whether the cache is used at all. If not, the geohashes
+     * are computed afresh and the cache, including its statistics, is left
+     * as it was.
+     */
+    @SuppressWarnings("unchecked")
+    public List<String> getBaseHashes(List<Coordinates> polygon,
+            boolean cache) {
+        Key key = cache ? new Key("base", polygon, null, 0) : null;
+        List<String> hashes = cache ? (List<String>) lookup(key) : null;
+        if (hashes == null) {
+            hashes = Collections.unmodifiableList(Arrays.asList(
+                        GeoHash.getIntersectingGeohashes(polygon)));
+            store(key, hashes);
+        }
+        return hashes;
+    }
+
+    /**
+     * Retrieves the geohash ranges, at the given precision, that cover the
+     * part of a polygon lying within a base geohash. Each range is returned
+     * as an Operation on the given spatial feature; the Operations are shared
+     * and must not be modified.
+     */
+    public List<Operation> getCovering(List<Coordinates> polygon,
+            String baseHash, int precision, String spatialFeature) {
+        return getCovering(polygon, baseHash, precision, spatialFeature,
+                true);
+    }
+
+    /**
+     * @param cache whether the cache is used at all, as in
+     * {@link #getBaseHashes(List, boolean)}.
+     */
+    @SuppressWarnings("unchecked")
+    public List<Operation> getCovering(List<Coordinates> polygon,
+            String baseHash, int precision, String spatialFeature,
+            boolean cache) {
+        Key key = cache ? new Key("covering:" + spatialFeature, polygon,
+                baseHash, precision) : null;
+        List<Operation> covering = cache ? (List<Operation>) lookup(key)
+            : null;
+        if (covering == null) {
+            covering = Collections.unmodifiableList(computeCovering(polygon,
+                        baseHash, precision, spatialFeature));
+            store(key, covering);
+        }
+        return covering;
+    }
+
+    private static List<Operation> computeCovering(List<Coordinates> polygon,
+            String baseHash, int precision, String spatialFeature) {
+        Set<GeoHash> intersections = new HashSet<>();
+        String pattern = "%" + (baseHash.length() * GeoHash.BITS_PER_CHAR)
+            + "s";
+
+        /* gets a 111000000 like binary representation of the geohash */
+        String binaryHash = String.format(pattern,
+                Long.toBinaryString(GeoHash.hashToLong(baseHash)));
+        Polygon awtPolygon = GeoHash.buildAwtPolygon(polygon);
+        GeoHash.getGeohashPrefixes(awtPolygon,
+                new GeoHash(binaryHash.replace(" ", "0")),
+                precision * GeoHash.BITS_PER_CHAR, intersections);
+
+        List<Operation> covering = new ArrayList<>();
+        for (GeoHash gh : intersections) {
+            String[] hashRange = gh.getValues(precision);
+            if (hashRange == null) {
+                continue;
+            }
+            Operation op = new Operation();
+            if (hashRange.length == 1) {
+                op.addExpressions(new Expression(Operator.EQUAL,
+                            new Feature(spatialFeature, hashRange[0])));
+            } else {
+                op.addExpressions(new Expression(Operator.GREATEREQUAL,
+                            new Feature(spatialFeature, hashRange[0])));
+                op.addExpressions(new Expression(Operator.LESSEQUAL,
+                            new Feature(spatialFeature, hashRange[1])));
+            }
+            covering.add(op);
+        }
+        return covering;
+    }
+
+    /**
+     * Retrieves the bitmap of a query polygon on a grid (see
+     * {@link QueryTransform#queryToGridBitmap}). The bitmap is shared and
+     * must not be modified.
+     */
+    public Bitmap getGridBitmap(GeoavailabilityQuery query,
+            GeoavailabilityGrid grid) {
+        return getGridBitmap(query, grid, true);
+    }
+
+    /**
+     * @param cache whether the cache is used at all, as in
+     * {@link #getBaseHashes(List, boolean)}.
+     */
+    public Bitmap getGridBitmap(GeoavailabilityQuery query,
+            GeoavailabilityGrid grid, boolean cache) {
+        Key key = cache ? new Key("bitmap:" + grid.getWidth() + "x"
+                + grid.getHeight(), query.getPolygon(), grid.getBaseHash(), 0)
+            : null;
+        Bitmap bitmap = cache ? (Bitmap) lookup(key) : null;
+        if (bitmap == null) {
+            bitmap = QueryTransform.queryToGridBitmap(query, grid);
+            store(key, bitmap);
+        }
+        return bitmap;
+    }
+
+    private synchronized Object lookup(Key key) {
+        Object value = entries.get(key);
+        if (value == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return value;
+    }
+
+    private synchronized void store(Key key, Object value) {
+        if (key != null && value != null) {
+            entries.put(key, value);
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "QueryPlanCache(entries=" + entries.size() + ", hits=" + hits
+            + ", misses=" + misses + ")";
+    }
+
+    private static final class Key {
+        private String kind;
+        private int[] polygon;
+        private String hash;
+        private int precision;
+        private int hashCode;
+
+        private Key(String kind, List<Coordinates> coordinates, String hash,
+                int precision) {
+            this.kind = kind;
+            this.hash = hash;
+            this.precision = precision;
+            this.polygon = new int[coordinates.size() * 2];
+            int i = 0;
+            for (Coordinates c : coordinates) {
+                polygon[i++] = Float.floatToIntBits(c.getLatitude());
+                polygon[i++] = Float.floatToIntBits(c.getLongitude());
+            }
+            this.hashCode = 31 * (31 * (31 * kind.hashCode()
+                        + Arrays.hashCode(polygon))
+                    + (hash == null ? 0 : hash.hashCode())) + precision;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof Key == false) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hashCode == other.hashCode
+                && precision == other.precision
+                && kind.equals(other.kind)
+                && (hash == null ? other.hash == null : hash.equals(other.hash))
+                && Arrays.equals(polygon, other.polygon);
+        }
+    }
+}
@@ -25,6 +25,7 @@ software, even if advised of the possibility of such damage.
 
 package galileo.serialization;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
@@ -59,9 +60,12 @@ public class SerializationInputStream extends DataInputStream {
         boolean compressed = readBoolean();
 
         if (compressed) {
-            int dataSize = readInt();
+            /* Read the field first so the GZIP stream cannot read past it */
+            byte[] field = readField();
+            int dataSize = Math.max(field.length, 512);
 
-            GZIPInputStream gIn = new GZIPInputStream(this);
+            GZIPInputStream gIn = new GZIPInputStream(
+                    new ByteArrayInputStream(field));
             ByteArrayOutputStream outStream = new ByteArrayOutputStream();
 
             int size = 0;
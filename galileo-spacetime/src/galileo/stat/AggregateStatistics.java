@@ -0,0 +1,181 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.stat;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.json.JSONObject;
+
+/**
+ * Collects {@link RunningStatistics} for each feature of each group of an
+ * aggregate query.  Storage nodes summarize the records they hold into partial
+ * statistics, which are merged by the node coordinating the query; only the
+ * summaries travel over the network.
+ *
+ * @author sapmitra
+ */
+public class AggregateStatistics {
+
+    private Map<String, Map<String, RunningStatistics>> groups
+        = new TreeMap<>();
+
+    /**
+     * Adds a value of a feature to the statistics of a group.
+     */
+    public void put(String group, String feature, double value) {
+        Map<String, RunningStatistics> features = getFeatures(group);
+        RunningStatistics stats = features.get(feature);
+        if (stats == null) {
+            stats = new RunningStatistics();
+            features.put(feature, stats);
+        }
+        stats.put(value);
+    }
+
+    /**
+     * Adds statistics that were computed elsewhere for a feature to the
+     * statistics of a group.
+     */
+    public void put(String group, String feature, RunningStatistics other) {
+        Map<String, RunningStatistics> features = getFeatures(group);
+        RunningStatistics stats = features.get(feature);
+        if (stats == null) {
+            features.put(feature, new RunningStatistics(other));
+        } else {
+            stats.merge(other);
+        }
+    }
+
+    /**
+     * Folds the statistics of another instance into this one.
+     */
+    public void merge(AggregateStatistics other) {
+        for (String group : other.groups.keySet()) {
+            Map<String, RunningStatistics> otherFeatures
+                = other.groups.get(group);
+            for (String feature : otherFeatures.keySet()) {
+                put(group, feature, otherFeatures.get(feature));
+            }
+        }
+    }
+
+    private Map<String, RunningStatistics> getFeatures(String group) {
+        Map<String, RunningStatistics> features = groups.get(group);
+        if (features == null) {
+            features = new TreeMap<>();
+            groups.put(group, features);
+        }
+        return features;
+    }
+
+    public Set<String> getGroups() {
+        return Collections.unmodifiableSet(groups.keySet());
+    }
+
+    /**
+     * @return statistics of a feature within a group, or null if no values
+     * were added for it.
+     */
+    public RunningStatistics get(String group, String feature) {
+        Map<String, RunningStatistics> features = groups.get(group);
+        return (features == null) ? null : features.get(feature);
+    }
+
+    public boolean isEmpty() {
+        return groups.isEmpty();
+    }
+
+    /**
+     * Encodes the statistics so that they can be merged after being sent to
+     * another node.  Unlike {@link #toJSON()}, this keeps the intermediate
+     * moments rather than the variance.
+     */
+    public JSONObject toPartialJSON() {
+        JSONObject json = new JSONObject();
+        for (String group : groups.keySet()) {
+            JSONObject features = new JSONObject();
+            Map<String, RunningStatistics> stats = groups.get(group);
+            for (String feature : stats.keySet()) {
+                RunningStatistics rs = stats.get(feature);
+                features.put(feature, new JSONObject()
+                        .put("n", rs.n())
+                        .put("mean", rs.mean())
+                        .put("m2", rs.m2())
+                        .put("min", rs.min())
+                        .put("max", rs.max()));
+            }
+            json.put(group, features);
+        }
+        return json;
+    }
+
+    /**
+     * Decodes statistics encoded by {@link #toPartialJSON()}.
+     */
+    public static AggregateStatistics fromPartialJSON(JSONObject json) {
+        AggregateStatistics aggregate = new AggregateStatistics();
+        for (String group : json.keySet()) {
+            Map<String, RunningStatistics> features = new TreeMap<>();
+            JSONObject groupJSON = json.getJSONObject(group);
+            for (String feature : groupJSON.keySet()) {
+                JSONObject rs = groupJSON.getJSONObject(feature);
+                features.put(feature, new RunningStatistics(rs.getLong("n"),
+                            rs.getDouble("mean"), rs.getDouble("m2"),
+                            rs.getDouble("min"), rs.getDouble("max")));
+            }
+            aggregate.groups.put(group, features);
+        }
+        return aggregate;
+    }
+
+    /**
+     * Summarizes the statistics for clients: the count, sum, mean, sample
+     * variance, minimum and maximum of each feature in each group.  The
+     * variance of a single value is reported as 0.
+     */
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        for (String group : groups.keySet()) {
+            JSONObject features = new JSONObject();
+            Map<String, RunningStatistics> stats = groups.get(group);
+            for (String feature : stats.keySet()) {
+                RunningStatistics rs = stats.get(feature);
+                features.put(feature, new JSONObject()
+                        .put("count", rs.n())
+                        .put("sum", rs.sum())
+                        .put("mean", rs.mean())
+                        .put("var", (rs.n() > 1) ? rs.var() : 0.0)
+                        .put("min", rs.min())
+                        .put("max", rs.max()));
+            }
+            json.put(group, features);
+        }
+        return json;
+    }
+}
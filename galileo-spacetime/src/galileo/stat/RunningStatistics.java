@@ -46,8 +46,8 @@ public class RunningStatistics implements ByteSerializable {
     private double mean;
     private double M2;
 
-    private double max;
-    private double min;
+    private double max = Double.NEGATIVE_INFINITY;
+    private double min = Double.POSITIVE_INFINITY;
 
     public static class WelchResult {
         /** T-statistic */
@@ -92,6 +92,18 @@ public class RunningStatistics implements ByteSerializable {
         }
     }
 
+    /**
+     * Recreates a RunningStatistics instance from its moments, as exchanged by
+     * {@link AggregateStatistics}.
+     */
+    RunningStatistics(long n, double mean, double M2, double min, double max) {
+        this.n = n;
+        this.mean = mean;
+        this.M2 = M2;
+        this.min = min;
+        this.max = max;
+    }
+
     /**
      * Copies statistics from another RunningStatistics instance.
      */
@@ -103,7 +115,19 @@ public class RunningStatistics implements ByteSerializable {
         this.min = that.min;
     }
 
+    /**
+     * Folds the samples observed by another RunningStatistics instance into
+     * this one, as if they had been added here.  Partial statistics computed
+     * separately (on different nodes, for instance) can be combined this way
+     * without revisiting the samples.
+     */
     public void merge(RunningStatistics that) {
+        if (that.n == 0) {
+            return;
+        }
+        max = FastMath.max(this.max, that.max);
+        min = FastMath.min(this.min, that.min);
+
         long newN = n + that.n;
         double delta = this.mean - that.mean;
         mean = (this.n * this.mean + that.n * that.mean) / newN;
@@ -172,6 +196,8 @@ public class RunningStatistics implements ByteSerializable {
         n = 0;
         mean = 0;
         M2 = 0;
+        max = Double.NEGATIVE_INFINITY;
+        min = Double.POSITIVE_INFINITY;
     }
 
     /**
@@ -183,6 +209,23 @@ public class RunningStatistics implements ByteSerializable {
         return mean;
     }
 
+    /**
+     * Calculates the sum of the values observed thus far.
+     *
+     * @return sum of all the samples observed thus far.
+     */
+    public double sum() {
+        return mean * n;
+    }
+
+    /**
+     * Sum of squared differences from the mean, from which the variance is
+     * derived.
+     */
+    double m2() {
+        return M2;
+    }
+
     /**
      * Calculates the running sample variance.
      *
@@ -320,6 +363,8 @@ public class RunningStatistics implements ByteSerializable {
         n = in.readLong();
         mean = in.readDouble();
         M2 = in.readDouble();
+        max = in.readDouble();
+        min = in.readDouble();
     }
 
     @Override
@@ -328,5 +373,7 @@ public class RunningStatistics implements ByteSerializable {
         out.writeLong(n);
         out.writeDouble(mean);
         out.writeDouble(M2);
+        out.writeDouble(max);
+        out.writeDouble(min);
     }
 }
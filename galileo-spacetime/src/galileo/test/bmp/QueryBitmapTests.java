@@ -0,0 +1,144 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.test.bmp;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Polygon;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.util.BitSet;
+import java.util.Random;
+
+import galileo.bmp.Bitmap;
+import galileo.bmp.QueryTransform;
+
+import org.junit.Test;
+
+/**
+ * Compares the scanline polygon fill used for query bitmaps against what AWT
+ * draws for the same polygon.
+ */
+public class QueryBitmapTests {
+
+    private static final int[][] GRID_SIZES = {
+        { 1024, 1024 }, { 1024, 512 }, { 64, 32 }, { 32, 32 }, { 16, 8 }
+    };
+
+    /**
+     * Random polygons, including self-intersecting ones and ones that extend
+     * past the grid, must fill the same cells as Graphics2D. The only cells
+     * allowed to differ are those whose sample point lies exactly on an edge,
+     * which AWT rounds either way.
+     */
+    @Test
+    public void testMatchesAwt() {
+        Random random = new Random(1024);
+        for (int i = 0; i < 500; ++i) {
+            int width = GRID_SIZES[i % GRID_SIZES.length][0];
+            int height = GRID_SIZES[i % GRID_SIZES.length][1];
+            int points = 3 + random.nextInt(8);
+            int[] xs = new int[points];
+            int[] ys = new int[points];
+            /* Every other polygon spills over the edges of the grid */
+            int scale = (i % 2 == 0) ? 1 : 3;
+            for (int j = 0; j < points; ++j) {
+                xs[j] = random.nextInt(width * scale) - width * (scale - 1) / 2;
+                ys[j] = random.nextInt(height * scale) - height * (scale - 1) / 2;
+            }
+
+            Raster expected = drawPolygon(xs, ys, width, height);
+            BitSet cells = new BitSet();
+            for (int cell : QueryTransform.fillPolygon(xs, ys, width, height)) {
+                cells.set(cell);
+            }
+            for (int y = 0; y < height; ++y) {
+                for (int x = 0; x < width; ++x) {
+                    boolean awt = expected.getSample(x, y, 0) != 0;
+                    if (awt != cells.get(y * width + x)) {
+                        assertTrue("Cell (" + x + ", " + y + ") differs",
+                                onEdge(xs, ys, x, y));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testOutsideGrid() {
+        int[] xs = { -300, -10, -150 };
+        int[] ys = { 10, 20, 900 };
+        Bitmap bitmap = QueryTransform.fillPolygon(xs, ys, 1024, 1024);
+        assertTrue(bitmap.isEmpty());
+
+        xs = new int[] { 2000, 2100, 2100, 2000 };
+        ys = new int[] { 0, 0, 100, 100 };
+        bitmap = QueryTransform.fillPolygon(xs, ys, 1024, 1024);
+        assertTrue(bitmap.isEmpty());
+    }
+
+    @Test
+    public void testCoversGrid() {
+        int[] xs = { -5000, 5000, 5000, -5000 };
+        int[] ys = { -5000, -5000, 5000, 5000 };
+        Bitmap bitmap = QueryTransform.fillPolygon(xs, ys, 1024, 512);
+        assertEquals(1024 * 512, bitmap.cardinality());
+        assertFalse(bitmap.get(1024 * 512));
+    }
+
+    private static Raster drawPolygon(int[] xs, int[] ys, int width, int height) {
+        BufferedImage img = new BufferedImage(width, height,
+                BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g = img.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillPolygon(new Polygon(xs, ys, xs.length));
+        g.dispose();
+        return img.getData();
+    }
+
+    /**
+     * Determines whether the sample point of a cell, a quarter of the way into
+     * it, lies on one of the polygon's edges. Coordinates are scaled by four
+     * so that the test is exact.
+     */
+    private static boolean onEdge(int[] xs, int[] ys, int x, int y) {
+        long sx = 4L * x + 1;
+        long sy = 4L * y + 1;
+        for (int i = 0; i < xs.length; ++i) {
+            int j = (i + 1) % xs.length;
+            long x1 = 4L * xs[i], y1 = 4L * ys[i];
+            long x2 = 4L * xs[j], y2 = 4L * ys[j];
+            boolean collinear = (x2 - x1) * (sy - y1) == (y2 - y1) * (sx - x1);
+            if (collinear && sx >= Math.min(x1, x2) && sx <= Math.max(x1, x2)
+                    && sy >= Math.min(y1, y2) && sy <= Math.max(y1, y2)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
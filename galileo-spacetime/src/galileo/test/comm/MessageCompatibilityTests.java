@@ -0,0 +1,113 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.test.comm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import galileo.comm.BlockRequest;
+import galileo.comm.FilesystemAction;
+import galileo.comm.FilesystemEvent;
+import galileo.comm.FilesystemRequest;
+import galileo.serialization.Serializer;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Checks that messages gained fields in a way that older peers, which send
+ * the messages without them, can still be understood.
+ */
+public class MessageCompatibilityTests {
+
+    /* Length prefix of a serialized string */
+    private static final int STRING_HEADER = 4;
+
+    private byte[] withoutLast(byte[] bytes, int count) {
+        return Arrays.copyOf(bytes, bytes.length - count);
+    }
+
+    @Test
+    public void testBlockRequest() throws Exception {
+        BlockRequest request = new BlockRequest("test-fs", "/a.gblock");
+        byte[] bytes = Serializer.serialize(request);
+        assertTrue(Serializer.deserialize(BlockRequest.class, bytes)
+                .acceptsCompressed());
+
+        request.setAcceptsCompressed(false);
+        assertFalse(Serializer.deserialize(BlockRequest.class,
+                    Serializer.serialize(request)).acceptsCompressed());
+
+        /* Older clients cannot decompress the blocks they get back */
+        BlockRequest old = Serializer.deserialize(BlockRequest.class,
+                withoutLast(bytes, 1));
+        assertEquals(Arrays.asList("/a.gblock"), old.getFilePaths());
+        assertFalse(old.acceptsCompressed());
+    }
+
+    @Test
+    public void testFilesystemRequest() throws Exception {
+        FilesystemRequest request = new FilesystemRequest("test-fs",
+                FilesystemAction.CREATE, null, null);
+        request.setTemporalHint("time");
+        assertNull(Serializer.deserialize(FilesystemRequest.class,
+                    Serializer.serialize(request)).getBlockCodec());
+
+        request.setBlockCodec("gzip");
+        byte[] bytes = Serializer.serialize(request);
+        FilesystemRequest copy = Serializer.deserialize(
+                FilesystemRequest.class, bytes);
+        assertEquals("gzip", copy.getBlockCodec());
+        assertEquals("test-fs", copy.getName());
+
+        FilesystemRequest old = Serializer.deserialize(
+                FilesystemRequest.class,
+                withoutLast(bytes, STRING_HEADER + "gzip".length()));
+        assertEquals("test-fs", old.getName());
+        assertEquals("time", old.getTemporalHint());
+        assertNull(old.getBlockCodec());
+    }
+
+    @Test
+    public void testFilesystemEvent() throws Exception {
+        FilesystemEvent event = new FilesystemEvent("test-fs",
+                FilesystemAction.CREATE, null, null);
+        event.setTemporalHint("time");
+        event.setSpatialPartitioningType(2);
+        event.setBlockCodec("gzip");
+        byte[] bytes = Serializer.serialize(event);
+        assertEquals("gzip", Serializer.deserialize(FilesystemEvent.class,
+                    bytes).getBlockCodec());
+
+        FilesystemEvent old = Serializer.deserialize(FilesystemEvent.class,
+                withoutLast(bytes, STRING_HEADER + "gzip".length()));
+        assertEquals(2, old.getSpatialPartitioningType());
+        assertNull(old.getBlockCodec());
+    }
+}
@@ -0,0 +1,154 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.test.dataset.feature;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import galileo.dataset.feature.Feature;
+import galileo.dataset.feature.FeatureInterner;
+import galileo.dataset.feature.FeatureType;
+
+/**
+ * Tests sharing of Feature instances by FeatureInterner.
+ */
+public class Interning {
+
+    @Test
+    public void testEqualFeatures() {
+        FeatureInterner interner = new FeatureInterner();
+        Feature first = new Feature("geohash", "9xjq");
+        assertSame(first, interner.intern(first));
+
+        /* Equal Features built separately resolve to the first one */
+        assertSame(first, interner.intern(new Feature("geohash", "9xjq")));
+        assertSame(first, interner.intern(new Feature("geohash",
+                        new String("9xjq"))));
+        assertEquals(1, interner.size("geohash"));
+
+        Feature other = new Feature("geohash", "9xjr");
+        assertSame(other, interner.intern(other));
+        assertSame(other, interner.intern(new Feature("geohash", "9xjr")));
+        assertEquals(2, interner.size("geohash"));
+
+        /* The same value under another name is a different Feature */
+        Feature region = new Feature("region", "9xjq");
+        assertSame(region, interner.intern(region));
+        assertEquals(1, interner.size("region"));
+        assertEquals(0, interner.size("missing"));
+    }
+
+    @Test
+    public void testTypesAreKept() {
+        FeatureInterner interner = new FeatureInterner();
+        Feature intFeature = new Feature("v", 0);
+        Feature longFeature = new Feature("v", 0L);
+        assertSame(intFeature, interner.intern(intFeature));
+
+        /* Equal, but an interned int must not stand in for a long */
+        Feature interned = interner.intern(longFeature);
+        assertSame(longFeature, interned);
+        assertEquals(FeatureType.LONG, interned.getType());
+        assertSame(intFeature, interner.intern(new Feature("v", 0)));
+    }
+
+    @Test
+    public void testMaxValues() {
+        FeatureInterner interner = new FeatureInterner(4);
+        List<Feature> retained = new ArrayList<>();
+        for (int i = 0; i < 4; ++i) {
+            Feature feature = new Feature("time", i);
+            retained.add(feature);
+            assertSame(feature, interner.intern(feature));
+        }
+
+        /* Past the limit new values are passed through, not retained */
+        Feature extra = new Feature("time", 4);
+        assertSame(extra, interner.intern(extra));
+        assertNotSame(extra, interner.intern(new Feature("time", 4)));
+        assertEquals(4, interner.size("time"));
+
+        /* Values retained earlier are still shared */
+        for (int i = 0; i < 4; ++i) {
+            assertSame(retained.get(i),
+                    interner.intern(new Feature("time", i)));
+        }
+    }
+
+    @Test
+    public void testConcurrentInterning() throws Exception {
+        final FeatureInterner interner = new FeatureInterner();
+        final int threads = 8;
+        final int values = 2000;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Feature[]>> results = new ArrayList<>();
+        for (int t = 0; t < threads; ++t) {
+            final int offset = t;
+            results.add(executor.submit(new Callable<Feature[]>() {
+                @Override
+                public Feature[] call() throws Exception {
+                    Feature[] interned = new Feature[values];
+                    start.await();
+                    /* Each thread builds its own Features, in its own order */
+                    for (int i = 0; i < values; ++i) {
+                        int value = (i * 7 + offset * 131) % values;
+                        interned[value] = interner.intern(
+                                new Feature("name" + (value % 3), value));
+                    }
+                    return interned;
+                }
+            }));
+        }
+        start.countDown();
+
+        Feature[] first = results.get(0).get();
+        for (Future<Feature[]> result : results) {
+            Feature[] interned = result.get();
+            for (int i = 0; i < values; ++i) {
+                assertEquals(new Feature("name" + (i % 3), i), interned[i]);
+                /* Every thread ended up with the same instance */
+                assertSame(first[i], interned[i]);
+            }
+        }
+        executor.shutdown();
+
+        int retained = 0;
+        for (int i = 0; i < 3; ++i) {
+            retained += interner.size("name" + i);
+        }
+        assertEquals(values, retained);
+    }
+}
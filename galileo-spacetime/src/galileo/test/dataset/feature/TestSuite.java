@@ -34,6 +34,7 @@ import org.junit.runners.Suite.SuiteClasses;
     ArraySet.class,
     ArrayTest.class,
     Casts.class,
+    Interning.class,
     Serialization.class,
 })
 public class TestSuite { }
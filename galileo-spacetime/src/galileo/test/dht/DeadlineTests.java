@@ -0,0 +1,256 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.test.dht;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import galileo.bmp.GeoavailabilityQuery;
+import galileo.comm.Aggregation;
+import galileo.dataset.Block;
+import galileo.dataset.Coordinates;
+import galileo.dataset.Metadata;
+import galileo.dataset.SpatialHint;
+import galileo.dataset.SpatialProperties;
+import galileo.dataset.TemporalProperties;
+import galileo.dataset.feature.Feature;
+import galileo.dht.GroupInfo;
+import galileo.dht.NetworkInfo;
+import galileo.dht.NodeInfo;
+import galileo.dht.ResultCursor;
+import galileo.fs.GeospatialFileSystem;
+import galileo.query.Expression;
+import galileo.query.Operation;
+import galileo.query.Query;
+import galileo.stat.AggregateStatistics;
+import galileo.util.Deadline;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that a query past its deadline, or cancelled, stops listing and
+ * reading blocks, and that the results it hands back are marked partial.
+ */
+public class DeadlineTests {
+
+    private static final long TIME = 1420070400000L;
+
+    private File root;
+    private GeospatialFileSystem fs;
+    private ExecutorService executor;
+
+    @Before
+    public void createFileSystem() throws Exception {
+        root = new File(System.getProperty("java.io.tmpdir"),
+                "deadlinetest-" + System.nanoTime());
+        NetworkInfo network = new NetworkInfo();
+        GroupInfo group = new GroupInfo("0");
+        group.addNode(new NodeInfo("localhost", 5555));
+        network.addGroup(group);
+        fs = new GeospatialFileSystem(null, root.getPath(), "t", 4, 1, 5,
+                network, "time:9,lat:3,lon:3,v:1",
+                new SpatialHint("lat", "lon"), "time", true, 2, 0, false, 1);
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void removeFileSystem() {
+        executor.shutdownNow();
+        fs.shutdown();
+        delete(root);
+    }
+
+    private void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /* Stores a block of three records, with values start to start + 2 */
+    private String store(String name, String sensor, int start) throws Exception {
+        Metadata meta = new Metadata(name);
+        meta.setTemporalProperties(new TemporalProperties(TIME));
+        meta.setSpatialProperties(new SpatialProperties(40.5f, -105.1f));
+        meta.putAttribute(new Feature("sensor", sensor));
+        StringBuilder data = new StringBuilder();
+        for (int i = start; i < start + 3; ++i) {
+            if (i > start) {
+                data.append("\n");
+            }
+            data.append(TIME + ",40.5,-105.1," + i);
+        }
+        return fs.storeBlock(new Block("t", meta, data.toString().getBytes()));
+    }
+
+    private List<String> storeBlocks(int count) throws Exception {
+        List<String> blocks = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            blocks.add(store("a" + i, "s" + i, i * 3));
+        }
+        return blocks;
+    }
+
+    private static Deadline expired() {
+        return new Deadline(1);
+    }
+
+    private static Deadline cancelled() {
+        Deadline deadline = new Deadline(System.currentTimeMillis() + 60000);
+        deadline.cancel();
+        return deadline;
+    }
+
+    private static List<Coordinates> polygon() {
+        List<Coordinates> polygon = new ArrayList<>();
+        polygon.add(new Coordinates(40.0f, -106.0f));
+        polygon.add(new Coordinates(41.0f, -106.0f));
+        polygon.add(new Coordinates(41.0f, -104.0f));
+        polygon.add(new Coordinates(40.0f, -104.0f));
+        return polygon;
+    }
+
+    private static Query sensors(int count) {
+        Query query = new Query();
+        for (int i = 0; i < count; ++i) {
+            query.addOperation(new Operation(
+                        new Expression("==", new Feature("sensor", "s" + i))));
+        }
+        return query;
+    }
+
+    private int listed(List<Coordinates> polygon, Query metaQuery,
+            Deadline deadline) throws Exception {
+        int blocks = 0;
+        Map<String, List<String>> blockMap = fs.listBlocks(null, polygon,
+                metaQuery, false, deadline);
+        for (List<String> paths : blockMap.values()) {
+            blocks += paths.size();
+        }
+        return blocks;
+    }
+
+    @Test
+    public void testListingStops() throws Exception {
+        storeBlocks(16);
+        /* Enough operations that they are evaluated in parallel */
+        Query metaQuery = sensors(16);
+        assertEquals(16, listed(null, null, Deadline.none()));
+        assertEquals(16, listed(null, metaQuery, Deadline.none()));
+        assertEquals(16, listed(polygon(), null, Deadline.none()));
+
+        for (Deadline deadline : new Deadline[] { expired(), cancelled() }) {
+            assertEquals(0, listed(null, null, deadline));
+            assertEquals(0, listed(null, metaQuery, deadline));
+            assertEquals(0, listed(polygon(), null, deadline));
+            assertEquals(0, listed(polygon(), metaQuery, deadline));
+        }
+    }
+
+    private AggregateStatistics aggregate(String block, Query featureQuery,
+            Deadline deadline) throws Exception {
+        return fs.aggregate(block, new GeoavailabilityQuery(featureQuery, null),
+                null, null, new Aggregation("v"), deadline);
+    }
+
+    @Test
+    public void testAggregationStops() throws Exception {
+        String block = storeBlocks(1).get(0);
+        Query featureQuery = new Query(new Operation(
+                    new Expression(">=", new Feature("v", 1))));
+
+        /* Answered from the zone map, and by reading the block */
+        assertEquals(3, aggregate(block, null, Deadline.none())
+                .get(Aggregation.ALL, "v").n());
+        assertEquals(2, aggregate(block, featureQuery, Deadline.none())
+                .get(Aggregation.ALL, "v").n());
+
+        for (Deadline deadline : new Deadline[] { expired(), cancelled() }) {
+            assertTrue(aggregate(block, null, deadline).isEmpty());
+            assertTrue(aggregate(block, featureQuery, deadline).isEmpty());
+        }
+    }
+
+    private ResultCursor cursor(List<String> blocks, Deadline deadline) {
+        Query query = new Query(new Operation(
+                    new Expression(">=", new Feature("v", 0))));
+        ResultCursor cursor = new ResultCursor("q-1", fs,
+                new GeoavailabilityQuery(query, null), deadline, executor);
+        for (String block : blocks) {
+            cursor.addBlock(block, null, null);
+        }
+        return cursor;
+    }
+
+    private int readAll(ResultCursor cursor) throws Exception {
+        int records = 0;
+        String token;
+        while ((token = cursor.getToken()) != null) {
+            for (String line : new String(cursor.next(token, 2)).split("\n")) {
+                if (line.isEmpty() == false) {
+                    records++;
+                }
+            }
+        }
+        return records;
+    }
+
+    @Test
+    public void testCursorIsPartial() throws Exception {
+        List<String> blocks = storeBlocks(8);
+        ResultCursor cursor = cursor(blocks, Deadline.none());
+        assertEquals(24, readAll(cursor));
+        assertFalse(cursor.isPartial());
+
+        /* Nothing is read past the deadline */
+        for (Deadline deadline : new Deadline[] { expired(), cancelled() }) {
+            cursor = cursor(blocks, deadline);
+            assertEquals(0, readAll(cursor));
+            assertTrue(cursor.isPartial());
+        }
+
+        /* Cancelled while the client is reading its batches */
+        Deadline deadline = new Deadline(System.currentTimeMillis() + 60000);
+        cursor = cursor(blocks, deadline);
+        cursor.next(cursor.getToken(), 2);
+        deadline.cancel();
+        assertTrue(readAll(cursor) < 22);
+        assertTrue(cursor.isPartial());
+    }
+}
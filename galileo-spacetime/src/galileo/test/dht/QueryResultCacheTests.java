@@ -0,0 +1,102 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.test.dht;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import galileo.comm.QueryRequest;
+import galileo.comm.QueryResponse;
+import galileo.dht.QueryResultCache;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class QueryResultCacheTests {
+
+    private static final String TIME = "2015-01-01-xx";
+
+    private QueryResponse response(String queryId) {
+        JSONObject results = new JSONObject();
+        results.put("queryId", queryId);
+        results.put("result", new JSONArray());
+        return new QueryResponse(queryId, new JSONArray(), results);
+    }
+
+    /* Caches the response to a query over the given time */
+    private String cache(QueryResultCache cache, String time) {
+        QueryRequest request = new QueryRequest("cachefs", time);
+        String key = QueryResultCache.getKey(request);
+        QueryResultCache.Entry entry = cache.begin(key, request);
+        cache.complete(entry, response("q"));
+        return key;
+    }
+
+    @Test
+    public void testHitsAndInvalidation() {
+        QueryResultCache cache = new QueryResultCache(16, 1 << 20, 60000);
+        String key = cache(cache, TIME);
+        QueryResponse cached = cache.get(key, "q2");
+        assertNotNull(cached);
+        assertEquals("q2", cached.getJSONResults().getString("queryId"));
+
+        /* Blocks of other times leave the entry alone */
+        assertEquals(0, cache.invalidate("cachefs", "2016-01-01-xx", "9xjq"));
+        assertTrue(cache.contains(key));
+        assertEquals(1, cache.invalidate("cachefs", "2015-01-01-05", "9xjq"));
+        assertFalse(cache.contains(key));
+    }
+
+    @Test
+    public void testWritesDuringQuery() {
+        QueryResultCache cache = new QueryResultCache(16, 1 << 20, 60000);
+        QueryRequest request = new QueryRequest("cachefs", TIME);
+        String key = QueryResultCache.getKey(request);
+        QueryResultCache.Entry entry = cache.begin(key, request);
+        cache.invalidate("cachefs", "2015-01-01-05", null);
+        cache.complete(entry, response("q"));
+        assertNull(cache.get(key, "q"));
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        QueryResultCache cache = new QueryResultCache(16, 1 << 20, 50);
+        String key = cache(cache, TIME);
+        assertTrue(cache.contains(key));
+        Thread.sleep(100);
+        assertFalse(cache.contains(key));
+        assertNull(cache.get(key, "q"));
+        assertEquals(0, cache.size());
+
+        /* A TTL of zero disables the cache */
+        cache = new QueryResultCache(16, 1 << 20, 0);
+        assertFalse(cache.contains(cache(cache, TIME)));
+    }
+}
@@ -0,0 +1,225 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.test.dht;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import galileo.bmp.GeoavailabilityQuery;
+import galileo.dataset.Block;
+import galileo.dataset.Metadata;
+import galileo.dataset.SpatialHint;
+import galileo.dataset.SpatialProperties;
+import galileo.dataset.TemporalProperties;
+import galileo.dataset.feature.Feature;
+import galileo.dht.GroupInfo;
+import galileo.dht.NetworkInfo;
+import galileo.dht.NodeInfo;
+import galileo.dht.ResultCursor;
+import galileo.fs.BlockCompactor;
+import galileo.fs.GeospatialFileSystem;
+import galileo.query.Expression;
+import galileo.query.Operation;
+import galileo.query.Query;
+import galileo.util.Deadline;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ResultCursorTests {
+
+    private static final long TIME = 1420070400000L;
+
+    private File root;
+    private GeospatialFileSystem fs;
+    private ExecutorService executor;
+
+    @Before
+    public void createFileSystem() throws Exception {
+        System.setProperty("galileo.fs.BlockCompactor.minBlocks", "2");
+        System.setProperty("galileo.fs.BlockCompactor.quietPeriod", "-60000");
+
+        root = new File(System.getProperty("java.io.tmpdir"),
+                "resultcursortest-" + System.nanoTime());
+        NetworkInfo network = new NetworkInfo();
+        GroupInfo group = new GroupInfo("0");
+        group.addNode(new NodeInfo("localhost", 5555));
+        network.addGroup(group);
+        fs = new GeospatialFileSystem(null, root.getPath(), "t", 4, 1, 5,
+                network, "time:9,lat:3,lon:3,v:1",
+                new SpatialHint("lat", "lon"), "time", true, 2, 0, false, 1);
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void removeFileSystem() {
+        executor.shutdownNow();
+        fs.shutdown();
+        delete(root);
+    }
+
+    private void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /* Stores a block of three records, with values start to start + 2 */
+    private String store(String name, int start) throws Exception {
+        Metadata meta = new Metadata(name);
+        meta.setTemporalProperties(new TemporalProperties(TIME));
+        meta.setSpatialProperties(new SpatialProperties(40.5f, -105.1f));
+        meta.putAttribute(new Feature("sensor", "a"));
+        StringBuilder data = new StringBuilder();
+        for (int i = start; i < start + 3; ++i) {
+            if (i > start) {
+                data.append("\n");
+            }
+            data.append(TIME + ",40.5,-105.1," + i);
+        }
+        return fs.storeBlock(new Block("t", meta, data.toString().getBytes()));
+    }
+
+    private ResultCursor cursor(List<String> blocks) {
+        Query query = new Query(new Operation(
+                    new Expression(">=", new Feature("v", 0))));
+        ResultCursor cursor = new ResultCursor("q-1", fs,
+                new GeoavailabilityQuery(query, null), Deadline.none(),
+                executor);
+        for (String block : blocks) {
+            cursor.addBlock(block, null, null);
+        }
+        return cursor;
+    }
+
+    /* Reads every remaining batch of a cursor */
+    private List<Integer> readAll(ResultCursor cursor, int batchSize)
+    throws Exception {
+        List<Integer> values = new ArrayList<>();
+        String token;
+        while ((token = cursor.getToken()) != null) {
+            String batch = new String(cursor.next(token, batchSize));
+            assertTrue(batch.split("\n").length <= batchSize);
+            for (String line : batch.split("\n")) {
+                if (line.isEmpty() == false) {
+                    values.add(Integer.parseInt(line.split(",")[3]));
+                }
+            }
+        }
+        Collections.sort(values);
+        return values;
+    }
+
+    private List<Integer> range(int count) {
+        List<Integer> values = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            values.add(i);
+        }
+        return values;
+    }
+
+    @Test
+    public void testBatches() throws Exception {
+        List<String> blocks = new ArrayList<>();
+        for (int i = 0; i < 8; ++i) {
+            blocks.add(store("a" + i, i * 3));
+        }
+        ResultCursor cursor = cursor(blocks);
+        assertEquals(range(24), readAll(cursor, 5));
+        assertFalse(cursor.isPartial());
+        assertNull(cursor.getToken());
+
+        /* Tokens are only good for one batch */
+        cursor = cursor(blocks);
+        String token = cursor.getToken();
+        cursor.next(token, 5);
+        assertNull(cursor.next(token, 5));
+        cursor.close();
+        assertNull(cursor.next(cursor.getToken(), 5));
+    }
+
+    @Test
+    public void testBlocksArePinned() throws Exception {
+        List<String> blocks = new ArrayList<>();
+        for (int i = 0; i < 3; ++i) {
+            blocks.add(store("a" + i, i * 3));
+        }
+        ResultCursor cursor = cursor(blocks);
+
+        /* Merged blocks stay on disk until the cursor has read them */
+        assertEquals(3, new BlockCompactor(fs, root).compact());
+        for (String block : blocks) {
+            assertTrue(new File(block).exists());
+        }
+        assertEquals(range(9), readAll(cursor, 2));
+        assertFalse(cursor.isPartial());
+        for (String block : blocks) {
+            assertFalse(new File(block).exists());
+        }
+    }
+
+    @Test
+    public void testClosingReleasesBlocks() throws Exception {
+        List<String> blocks = new ArrayList<>();
+        for (int i = 0; i < 3; ++i) {
+            blocks.add(store("a" + i, i * 3));
+        }
+        ResultCursor cursor = cursor(blocks);
+        assertEquals(3, new BlockCompactor(fs, root).compact());
+        for (String block : blocks) {
+            assertTrue(new File(block).exists());
+        }
+        cursor.close();
+        for (String block : blocks) {
+            assertFalse(new File(block).exists());
+        }
+    }
+
+    @Test
+    public void testReadFailureIsPartial() throws Exception {
+        List<String> blocks = new ArrayList<>();
+        blocks.add(store("a0", 0));
+        blocks.add(new File(root, "missing.gblock").getPath());
+        blocks.add(store("a1", 3));
+        ResultCursor cursor = cursor(blocks);
+        assertEquals(range(6), readAll(cursor, 100));
+        assertTrue(cursor.isPartial());
+    }
+}
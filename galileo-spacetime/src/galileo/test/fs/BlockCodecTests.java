@@ -0,0 +1,149 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.test.fs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import galileo.fs.BlockCodec;
+import galileo.fs.BlockWriteBuffer;
+import galileo.fs.MappedBlockReader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class BlockCodecTests {
+
+    private static String block = "/tmp/blockcodectest.gblock";
+
+    @After
+    public void removeBlock() {
+        new File(block).delete();
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void write(byte[]... members) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(block)) {
+            for (byte[] member : members) {
+                out.write(member);
+            }
+        }
+    }
+
+    private void assertRecords(List<String> expected) throws IOException {
+        MappedBlockReader reader = new MappedBlockReader(block, 2);
+        List<String[]> records = reader.getRecords();
+        assertEquals(expected.size(), records.size());
+        for (int i = 0; i < expected.size(); ++i) {
+            assertArrayEquals(expected.get(i).split(","), records.get(i));
+        }
+
+        /* Random access, which decodes members on demand */
+        reader = new MappedBlockReader(block, 2);
+        assertEquals(expected.size(), reader.getRecordCount());
+        Random random = new Random(7);
+        for (int i = 0; i < expected.size() * 2; ++i) {
+            int r = random.nextInt(expected.size());
+            assertArrayEquals(expected.get(r).split(","), reader.getRecord(r));
+        }
+    }
+
+    @Test
+    public void testFromName() {
+        assertEquals(BlockCodec.GZIP, BlockCodec.fromName("gzip"));
+        assertEquals(BlockCodec.NONE, BlockCodec.fromName("NONE"));
+        try {
+            BlockCodec.fromName("snappy");
+            fail("Unknown codecs must be rejected");
+        } catch (IllegalArgumentException e) {
+            /* Expected */
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        byte[] data = bytes("a,1\nb,2\nc,3");
+        assertEquals(BlockCodec.NONE, BlockCodec.detect(data));
+        byte[] compressed = BlockCodec.GZIP.compress(data);
+        assertEquals(BlockCodec.GZIP, BlockCodec.detect(compressed));
+        assertArrayEquals(data, BlockCodec.GZIP.decompress(compressed));
+        assertArrayEquals(data, BlockCodec.NONE.compress(data));
+    }
+
+    @Test
+    public void testMembers() throws Exception {
+        removeBlock();
+        List<String> expected = new ArrayList<>();
+        BlockWriteBuffer buffer = new BlockWriteBuffer(64, 60000, 16);
+        for (int i = 0; i < 500; ++i) {
+            String record = "r" + i + "," + i;
+            expected.add(record);
+            buffer.append(block, bytes(record), null, BlockCodec.GZIP);
+        }
+        buffer.shutdown();
+        assertRecords(expected);
+    }
+
+    @Test
+    public void testRecordsAcrossMembers() throws Exception {
+        removeBlock();
+        write(BlockCodec.GZIP.compress(bytes("a,1\nb")),
+                BlockCodec.GZIP.compress(bytes(",2\n")),
+                BlockCodec.GZIP.compress(bytes("c,3")));
+        List<String> expected = new ArrayList<>();
+        expected.add("a,1");
+        expected.add("b,2");
+        expected.add("c,3");
+        assertRecords(expected);
+    }
+
+    @Test
+    public void testCorruptMember() throws Exception {
+        removeBlock();
+        byte[] second = BlockCodec.GZIP.compress(bytes("\nb,2"));
+        /* Flip a bit of the trailing checksum */
+        second[second.length - 8] ^= 1;
+        write(BlockCodec.GZIP.compress(bytes("a,1")), second);
+        try {
+            new MappedBlockReader(block, 2).getRecords();
+            fail("Corrupt members must not be returned");
+        } catch (IOException e) {
+            /* Expected */
+        }
+    }
+}
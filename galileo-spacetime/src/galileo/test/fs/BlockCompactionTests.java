@@ -0,0 +1,263 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.test.fs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import galileo.bmp.GeoavailabilityQuery;
+import galileo.dataset.Block;
+import galileo.dataset.Metadata;
+import galileo.dataset.SpatialHint;
+import galileo.dataset.SpatialProperties;
+import galileo.dataset.TemporalProperties;
+import galileo.dataset.feature.Feature;
+import galileo.dht.GroupInfo;
+import galileo.dht.NetworkInfo;
+import galileo.dht.NodeInfo;
+import galileo.fs.BlockCompactor;
+import galileo.fs.GeospatialFileSystem;
+import galileo.query.Expression;
+import galileo.query.Operation;
+import galileo.query.Query;
+import galileo.util.Deadline;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BlockCompactionTests {
+
+    private static final long TIME = 1420070400000L;
+
+    private File root;
+    private GeospatialFileSystem fs;
+
+    @Before
+    public void createFileSystem() throws Exception {
+        System.setProperty("galileo.fs.BlockCompactor.minBlocks", "2");
+        /* Every block counts as quiet, however recently it was written */
+        System.setProperty("galileo.fs.BlockCompactor.quietPeriod", "-60000");
+
+        root = new File(System.getProperty("java.io.tmpdir"),
+                "blockcompactiontest-" + System.nanoTime());
+        fs = new GeospatialFileSystem(null, root.getPath(), "t", 4, 1, 5,
+                network(), "time:9,lat:3,lon:3,v:1",
+                new SpatialHint("lat", "lon"), "time", true, 2, 0, false, 1);
+    }
+
+    private NetworkInfo network() {
+        NetworkInfo network = new NetworkInfo();
+        GroupInfo group = new GroupInfo("0");
+        group.addNode(new NodeInfo("localhost", 5555));
+        network.addGroup(group);
+        return network;
+    }
+
+    @After
+    public void removeFileSystem() {
+        fs.shutdown();
+        delete(root);
+    }
+
+    private void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /* Stores a block of three records, with values start to start + 2 */
+    private String store(String name, String sensor, int start)
+    throws Exception {
+        Metadata meta = new Metadata(name);
+        meta.setTemporalProperties(new TemporalProperties(TIME));
+        meta.setSpatialProperties(new SpatialProperties(40.5f, -105.1f));
+        meta.putAttribute(new Feature("sensor", sensor));
+        StringBuilder data = new StringBuilder();
+        for (int i = start; i < start + 3; ++i) {
+            if (i > start) {
+                data.append("\n");
+            }
+            data.append(TIME + ",40.5,-105.1," + i);
+        }
+        return fs.storeBlock(new Block("t", meta, data.toString().getBytes()));
+    }
+
+    private List<String> listBlocks() throws Exception {
+        List<String> blocks = new ArrayList<>();
+        Map<String, List<String>> blockMap
+            = fs.listBlocks(null, null, null, false);
+        for (List<String> paths : blockMap.values()) {
+            blocks.addAll(paths);
+        }
+        Collections.sort(blocks);
+        return blocks;
+    }
+
+    /* Values of v at least min, over every block in the file system */
+    private List<Integer> select(int min) throws Exception {
+        Query query = new Query(new Operation(
+                    new Expression(">=", new Feature("v", min))));
+        GeoavailabilityQuery geoQuery = new GeoavailabilityQuery(query, null);
+        List<Integer> values = new ArrayList<>();
+        for (String block : listBlocks()) {
+            for (String[] record
+                    : fs.query(block, geoQuery, null, null, Deadline.none())) {
+                values.add(Integer.parseInt(record[3]));
+            }
+        }
+        Collections.sort(values);
+        return values;
+    }
+
+    private BlockCompactor compactor() {
+        return new BlockCompactor(fs, root);
+    }
+
+    @Test
+    public void testMergeAndQuery() throws Exception {
+        List<String> a = new ArrayList<>();
+        for (int i = 0; i < 4; ++i) {
+            a.add(store("a" + i, "a", i * 10));
+        }
+        String b0 = store("b0", "b", 100);
+        store("b1", "b", 200);
+        List<Integer> before = select(1);
+        assertEquals(6, listBlocks().size());
+
+        assertEquals(6, compactor().compact());
+        List<String> after = listBlocks();
+        /* One segment per set of labels */
+        assertEquals(2, after.size());
+        assertFalse(after.contains(b0));
+        assertEquals(before, select(1));
+        for (String block : a) {
+            assertFalse(new File(block).exists());
+        }
+
+        /* A merged block can be written to again under its old name */
+        store("a0", "a", 1000);
+        assertEquals(3, listBlocks().size());
+        List<Integer> expected = new ArrayList<>(before);
+        expected.add(1000);
+        expected.add(1001);
+        expected.add(1002);
+        assertEquals(expected, select(1));
+    }
+
+    @Test
+    public void testDifferentLabelsAreNotMerged() throws Exception {
+        store("a0", "a", 0);
+        store("b0", "b", 10);
+        store("c0", "c", 20);
+        assertEquals(0, compactor().compact());
+        assertEquals(3, listBlocks().size());
+    }
+
+    @Test
+    public void testPinnedBlocksOutliveCompaction() throws Exception {
+        List<String> blocks = new ArrayList<>();
+        for (int i = 0; i < 3; ++i) {
+            blocks.add(store("a" + i, "a", i * 10));
+        }
+        fs.pinBlocks(blocks);
+        assertEquals(3, compactor().compact());
+        assertEquals(1, listBlocks().size());
+        for (String block : blocks) {
+            assertTrue(new File(block).exists());
+        }
+        fs.unpinBlocks(blocks);
+        for (String block : blocks) {
+            assertFalse(new File(block).exists());
+        }
+    }
+
+    @Test
+    public void testPinnedBlocksAreNotOverwritten() throws Exception {
+        List<String> blocks = new ArrayList<>();
+        for (int i = 0; i < 2; ++i) {
+            blocks.add(store("a" + i, "a", i * 10));
+        }
+        String a0 = blocks.get(0);
+        long length = new File(a0).length();
+        fs.pinBlocks(blocks);
+        assertEquals(2, compactor().compact());
+
+        /* The pinned files stay as they were; the append goes elsewhere */
+        String next = store("a0", "a", 1000);
+        assertFalse(next.equals(a0));
+        assertEquals(length, new File(a0).length());
+        assertEquals(next, store("a0", "a", 2000));
+        assertEquals(2, listBlocks().size());
+
+        /* Once unpinned, the old name starts over */
+        fs.unpinBlocks(blocks);
+        assertFalse(new File(a0).exists());
+        assertTrue(new File(next).exists());
+        assertEquals(a0, store("a0", "a", 3000));
+        assertEquals(3, listBlocks().size());
+        assertEquals(9, select(1000).size());
+    }
+
+    @Test
+    public void testRecoveryDeletesMergedBlocks() throws Exception {
+        List<String> blocks = new ArrayList<>();
+        for (int i = 0; i < 2; ++i) {
+            blocks.add(store("a" + i, "a", i * 10));
+        }
+        fs.pinBlocks(blocks);
+        assertEquals(2, compactor().compact());
+        /* Still pinned when the node goes down */
+        fs.shutdown();
+        for (String block : blocks) {
+            assertTrue(new File(block).exists());
+        }
+
+        fs = new GeospatialFileSystem(null, root.getPath(), "t", 4, 1, 5,
+                network(), "time:9,lat:3,lon:3,v:1",
+                new SpatialHint("lat", "lon"), "time", true, 2, 0, false, 1);
+        for (String block : blocks) {
+            assertFalse(new File(block).exists());
+        }
+        assertEquals(1, listBlocks().size());
+
+        /* The old name starts over instead of growing the leftover block */
+        assertEquals(blocks.get(0), store("a0", "a", 1000));
+        assertEquals(Arrays.asList(10, 11, 12, 1000, 1001, 1002), select(3));
+    }
+}
@@ -0,0 +1,110 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.test.fs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import galileo.fs.BlockCodec;
+import galileo.fs.BlockWriteBuffer;
+import galileo.fs.MappedBlockReader;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class BlockWriteBufferTests {
+
+    private static String[] blocks = {
+        "/tmp/blockwritebuffer0.gblock", "/tmp/blockwritebuffer1.gblock" };
+
+    @After
+    public void removeBlocks() {
+        for (String block : blocks) {
+            new File(block).delete();
+            new File(MappedBlockReader.lineIndexPath(block)).delete();
+        }
+    }
+
+    private String read(String block) throws Exception {
+        return new String(Files.readAllBytes(Paths.get(block)), StandardCharsets.UTF_8);
+    }
+
+    private void append(BlockWriteBuffer buffer, String block, String data) throws Exception {
+        buffer.append(block, data.getBytes(StandardCharsets.UTF_8), null, BlockCodec.NONE);
+    }
+
+    @Test
+    public void testWriteThrough() throws Exception {
+        removeBlocks();
+        BlockWriteBuffer buffer = new BlockWriteBuffer(1024, 0, 16);
+        assertFalse(buffer.isBuffering());
+        append(buffer, blocks[0], "a,1");
+        append(buffer, blocks[0], "b,2");
+        /* Acknowledged appends are on disk without an explicit flush */
+        assertEquals("a,1\nb,2", read(blocks[0]));
+        buffer.shutdown();
+    }
+
+    @Test
+    public void testBuffered() throws Exception {
+        removeBlocks();
+        BlockWriteBuffer buffer = new BlockWriteBuffer(1024, 60000, 16);
+        assertTrue(buffer.isBuffering());
+        append(buffer, blocks[0], "a,1");
+        append(buffer, blocks[0], "b,2");
+        assertEquals("a,1", read(blocks[0]));
+        buffer.flush(blocks[0]);
+        assertEquals("a,1\nb,2", read(blocks[0]));
+        buffer.shutdown();
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        removeBlocks();
+        BlockWriteBuffer buffer = new BlockWriteBuffer(1024, 60000, 1);
+        StringBuilder[] expected = { new StringBuilder(), new StringBuilder() };
+        for (int i = 0; i < 100; ++i) {
+            int b = i % 2;
+            String record = "r," + i;
+            if (expected[b].length() > 0) {
+                expected[b].append("\n");
+            }
+            expected[b].append(record);
+            append(buffer, blocks[b], record);
+        }
+        buffer.flush(blocks[0]);
+        buffer.flush(blocks[1]);
+        assertEquals(expected[0].toString(), read(blocks[0]));
+        assertEquals(expected[1].toString(), read(blocks[1]));
+        buffer.shutdown();
+    }
+}
@@ -0,0 +1,230 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.test.fs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import galileo.dataset.Block;
+import galileo.dataset.Coordinates;
+import galileo.dataset.Metadata;
+import galileo.dataset.SpatialHint;
+import galileo.dataset.SpatialProperties;
+import galileo.dataset.TemporalProperties;
+import galileo.dht.GroupInfo;
+import galileo.dht.NetworkInfo;
+import galileo.dht.NodeInfo;
+import galileo.fs.BorderIndex;
+import galileo.fs.GeospatialFileSystem;
+import galileo.fs.MappedBlockReader;
+import galileo.util.BorderingProperties;
+import galileo.util.GeoHash;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class BorderIndexTests {
+
+    private static String block = "/tmp/borderindextest.gblock";
+
+    @After
+    public void removeIndex() {
+        new File(BorderIndex.indexPath(block)).delete();
+        BorderIndex.forget(block);
+    }
+
+    private BorderingProperties newProperties() {
+        BorderingProperties properties = new BorderingProperties();
+        properties.setNe("9xjr");
+        properties.setSe("9xjp");
+        properties.setNw("9xjx");
+        properties.setSw("9xjn");
+        properties.addN("9xjq");
+        properties.setUp1(1000);
+        properties.setUp2(900);
+        return properties;
+    }
+
+    /* Appends one record, marking it as bordering to the north if even */
+    private void append(BorderingProperties properties) throws Exception {
+        long record = properties.getTotalRecords();
+        if (record % 2 == 0) {
+            properties.addNorthEntries(record);
+        } else {
+            properties.addUpTimeEntries(record);
+        }
+        properties.updateRecordCount(1);
+        BorderIndex.appendUpdate(block, properties, record);
+    }
+
+    private void assertSameEntries(BorderingProperties expected,
+            BorderingProperties actual) {
+        assertEquals(expected.getTotalRecords(), actual.getTotalRecords());
+        assertEquals(expected.getNorthEntries(), actual.getNorthEntries());
+        assertEquals(expected.getUpTimeEntries(), actual.getUpTimeEntries());
+        assertEquals(expected.getNe(), actual.getNe());
+        assertEquals(expected.getN(), actual.getN());
+        assertEquals(expected.getUp1(), actual.getUp1());
+    }
+
+    @Test
+    public void testMissing() throws Exception {
+        removeIndex();
+        assertNull(BorderIndex.load(block));
+    }
+
+    @Test
+    public void testUpdates() throws Exception {
+        removeIndex();
+        BorderingProperties properties = newProperties();
+        BorderIndex.create(block, properties);
+        for (int i = 0; i < 10; ++i) {
+            append(properties);
+        }
+        BorderingProperties loaded = BorderIndex.load(block);
+        assertNotNull(loaded);
+        assertSameEntries(properties, loaded);
+        assertEquals(5, loaded.getNorthEntries().cardinality());
+    }
+
+    @Test
+    public void testCompactionWhileAppending() throws Exception {
+        removeIndex();
+        BorderingProperties properties = newProperties();
+        BorderIndex.create(block, properties);
+        File index = new File(BorderIndex.indexPath(block));
+
+        long largest = 0;
+        for (int i = 0; i < 1000; ++i) {
+            append(properties);
+            largest = Math.max(largest, index.length());
+        }
+        /* Without compaction the sidecar would hold 1000 update records */
+        long snapshot = index.length();
+        assertTrue(largest < 1000 * 40);
+        assertSameEntries(properties, BorderIndex.load(block));
+
+        /* A block that is loaded again keeps counting its updates */
+        BorderingProperties loaded = BorderIndex.load(block);
+        for (int i = 0; i < 1000; ++i) {
+            append(loaded);
+        }
+        assertTrue(index.length() < largest + snapshot);
+        assertSameEntries(loaded, BorderIndex.load(block));
+        assertEquals(2000, loaded.getTotalRecords());
+    }
+
+    @Test
+    public void testTornTail() throws Exception {
+        removeIndex();
+        BorderingProperties properties = newProperties();
+        BorderIndex.create(block, properties);
+        for (int i = 0; i < 4; ++i) {
+            append(properties);
+        }
+        File index = new File(BorderIndex.indexPath(block));
+        long complete = index.length();
+        append(properties);
+        try (RandomAccessFile file = new RandomAccessFile(index, "rw")) {
+            file.setLength(index.length() - 3);
+        }
+
+        BorderingProperties loaded = BorderIndex.load(block);
+        assertEquals(4, loaded.getTotalRecords());
+        /* The torn record is dropped from the sidecar */
+        assertTrue(index.length() <= complete);
+        assertEquals(4, BorderIndex.load(block).getTotalRecords());
+    }
+
+    private void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private String store(GeospatialFileSystem fs, long time, String data)
+    throws Exception {
+        Metadata meta = new Metadata("borders");
+        meta.setTemporalProperties(new TemporalProperties(time));
+        meta.setSpatialProperties(new SpatialProperties(40.5f, -105.1f));
+        return fs.storeBlock(new Block("t", meta, data.getBytes()));
+    }
+
+    @Test
+    public void testEmptyBlock() throws Exception {
+        File root = new File(System.getProperty("java.io.tmpdir"),
+                "borderindextest-" + System.nanoTime());
+        NetworkInfo network = new NetworkInfo();
+        GroupInfo group = new GroupInfo("0");
+        group.addNode(new NodeInfo("localhost", 5555));
+        network.addGroup(group);
+        GeospatialFileSystem fs = new GeospatialFileSystem(null,
+                root.getPath(), "t", 4, 1, 5, network,
+                "time:9,lat:3,lon:3,v:1", new SpatialHint("lat", "lon"),
+                "time", true, 4, 0, false, 1);
+        try {
+            long time = 1420070400000L;
+            String path = store(fs, time, "");
+            BorderingProperties properties = fs.getBorderMap().get(path);
+            assertNotNull(properties);
+            /* An empty block holds no records, just like its readers say */
+            assertEquals(0, properties.getTotalRecords());
+            assertEquals(0, new MappedBlockReader(path, 4).getRecordCount());
+
+            /* Border records are numbered as they are read */
+            Coordinates corner = GeoHash.decodeHash(properties.getNe())
+                .getCenterPoint();
+            String data = time + ",40.5,-105.1,0\n"
+                + time + "," + corner.getLatitude() + ","
+                + corner.getLongitude() + ",1";
+            assertEquals(path, store(fs, time, data));
+            assertEquals(path, store(fs, time, ""));
+            assertEquals(2, properties.getTotalRecords());
+            assertEquals(2, properties.getNeEntries().cardinality());
+            assertTrue(properties.getNeEntries().get(0));
+            assertTrue(properties.getNeEntries().get(1));
+
+            MappedBlockReader reader = new MappedBlockReader(path, 4);
+            assertEquals(2, reader.getRecordCount());
+            assertEquals("1", reader.getRecord(1)[3]);
+            assertSameEntries(properties, BorderIndex.load(path));
+            assertEquals(properties.getNeEntries(),
+                    BorderIndex.load(path).getNeEntries());
+        } finally {
+            fs.shutdown();
+            delete(root);
+        }
+    }
+}
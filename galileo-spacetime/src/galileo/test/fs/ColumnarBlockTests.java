@@ -0,0 +1,114 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.test.fs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import galileo.dataset.feature.FeatureType;
+import galileo.fs.BlockCodec;
+import galileo.fs.ColumnarBlock;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ColumnarBlockTests {
+
+    private static String block = "/tmp/columnarblocktest.gblock";
+
+    private static FeatureType[] schema = new FeatureType[] {
+        FeatureType.FLOAT, FeatureType.INT, FeatureType.LONG,
+        FeatureType.DOUBLE, FeatureType.STRING };
+
+    @After
+    public void removeBlock() {
+        new File(block).delete();
+    }
+
+    private void write(String csv, BlockCodec codec, boolean append) throws IOException {
+        byte[] data = csv.getBytes(StandardCharsets.UTF_8);
+        try (FileOutputStream out = new FileOutputStream(block, append)) {
+            out.write(ColumnarBlock.encode(data, schema, codec));
+        }
+    }
+
+    private String read() throws IOException {
+        return new String(ColumnarBlock.toCSV(block, schema.length), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testCanonicalValues() throws Exception {
+        String csv = "24.3,17,1440000000000,0.125,abc\n"
+            + "-1.5,-3,42,1.0E-5,d e f";
+        write(csv, BlockCodec.NONE, false);
+        assertEquals(csv, read());
+
+        ColumnarBlock columns = ColumnarBlock.readAll(block, schema.length);
+        assertEquals(2, columns.getRecordCount());
+        assertEquals(FeatureType.FLOAT, columns.getType(0));
+        assertEquals(FeatureType.INT, columns.getType(1));
+        assertEquals(FeatureType.LONG, columns.getType(2));
+        assertEquals(FeatureType.DOUBLE, columns.getType(3));
+        assertArrayEquals(new int[] { 17, -3 }, columns.getInts(1));
+    }
+
+    @Test
+    public void testNonCanonicalText() throws Exception {
+        /* None of these read back as the same text from a numeric column */
+        String csv = "24.30,017,+5,1e3,x\n"
+            + "123456789,7, 8,2.50,y";
+        write(csv, BlockCodec.NONE, false);
+        assertEquals(csv, read());
+
+        ColumnarBlock columns = ColumnarBlock.readAll(block, schema.length);
+        for (int c = 0; c < 4; ++c) {
+            assertEquals(FeatureType.STRING, columns.getType(c));
+        }
+    }
+
+    @Test
+    public void testMixedRowGroups() throws Exception {
+        write("1.5,1,2,3.0,a", BlockCodec.GZIP, false);
+        write("1.50,,2,3.0,b", BlockCodec.GZIP, true);
+        assertEquals("1.5,1,2,3.0,a\n1.50,,2,3.0,b", read());
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        write("", BlockCodec.NONE, false);
+        assertEquals(0, ColumnarBlock.readAll(block, schema.length).getRecordCount());
+        assertEquals("", read());
+
+        write("1.5,1,2,3.0,a", BlockCodec.NONE, true);
+        assertEquals(1, ColumnarBlock.readAll(block, schema.length).getRecordCount());
+        assertEquals("1.5,1,2,3.0,a", read());
+    }
+}
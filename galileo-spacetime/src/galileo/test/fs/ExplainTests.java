@@ -0,0 +1,238 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.test.fs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import galileo.bmp.GeoavailabilityGrid;
+import galileo.bmp.GeoavailabilityQuery;
+import galileo.bmp.QueryTransform;
+import galileo.comm.Aggregation;
+import galileo.dataset.Block;
+import galileo.dataset.Coordinates;
+import galileo.dataset.Metadata;
+import galileo.dataset.SpatialHint;
+import galileo.dataset.SpatialProperties;
+import galileo.dataset.TemporalProperties;
+import galileo.dataset.feature.Feature;
+import galileo.dht.GroupInfo;
+import galileo.dht.NetworkInfo;
+import galileo.dht.NodeInfo;
+import galileo.fs.GeospatialFileSystem;
+import galileo.fs.ZoneMap;
+import galileo.query.Expression;
+import galileo.query.Operation;
+import galileo.query.Query;
+import galileo.query.QueryPlanCache;
+import galileo.util.Deadline;
+import galileo.util.GeoHash;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ExplainTests {
+
+    private static final long TIME = 1420070400000L;
+
+    private File root;
+    private GeospatialFileSystem fs;
+
+    @Before
+    public void createFileSystem() throws Exception {
+        root = new File(System.getProperty("java.io.tmpdir"),
+                "explaintest-" + System.nanoTime());
+        NetworkInfo network = new NetworkInfo();
+        GroupInfo group = new GroupInfo("0");
+        group.addNode(new NodeInfo("localhost", 5555));
+        network.addGroup(group);
+        fs = new GeospatialFileSystem(null, root.getPath(), "t", 4, 1, 5,
+                network, "time:9,lat:3,lon:3,v:1",
+                new SpatialHint("lat", "lon"), "time", true, 2, 0, false, 1);
+    }
+
+    @After
+    public void removeFileSystem() {
+        fs.shutdown();
+        delete(root);
+    }
+
+    private void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /* Stores a block of three records, with values start to start + 2 */
+    private String store(String name, float lat, float lon, int start)
+    throws Exception {
+        Metadata meta = new Metadata(name);
+        meta.setTemporalProperties(new TemporalProperties(TIME));
+        meta.setSpatialProperties(new SpatialProperties(lat, lon));
+        meta.putAttribute(new Feature("sensor", name));
+        StringBuilder data = new StringBuilder();
+        for (int i = start; i < start + 3; ++i) {
+            if (i > start) {
+                data.append("\n");
+            }
+            data.append(TIME + "," + lat + "," + lon + "," + i);
+        }
+        return fs.storeBlock(new Block("t", meta, data.toString().getBytes()));
+    }
+
+    private List<String> storeBlocks() throws Exception {
+        List<String> blocks = new ArrayList<>();
+        for (int i = 0; i < 6; ++i) {
+            blocks.add(store("a" + i, 40.5f, -105.1f, i * 10));
+            blocks.add(store("b" + i, 40.9f, -104.1f, i * 10));
+        }
+        return blocks;
+    }
+
+    private static List<Coordinates> polygon() {
+        List<Coordinates> polygon = new ArrayList<>();
+        polygon.add(new Coordinates(40.0f, -106.0f));
+        polygon.add(new Coordinates(41.0f, -106.0f));
+        polygon.add(new Coordinates(41.0f, -104.0f));
+        polygon.add(new Coordinates(40.0f, -104.0f));
+        return polygon;
+    }
+
+    private static Query atLeast(int value) {
+        return new Query(new Operation(
+                    new Expression(">=", new Feature("v", value))));
+    }
+
+    @Test
+    public void testPlanMatchesPruning() throws Exception {
+        storeBlocks();
+        Query featureQuery = atLeast(25);
+        JSONObject plan = fs.explain(null, polygon(), null, featureQuery,
+                null, Deadline.none());
+
+        /*
+         * Goes through the blocks the way a storage node does when it runs
+         * the query, and checks that pruned blocks really hold no matches.
+         */
+        GeoavailabilityQuery geoQuery = new GeoavailabilityQuery(
+                featureQuery, polygon());
+        Map<String, List<String>> blockMap = fs.listBlocks(null, polygon(),
+                null, false, Deadline.none());
+        long blocks = 0, polygonPruned = 0, zoneMapPruned = 0, toRead = 0;
+        long bytesToRead = 0;
+        for (String key : blockMap.keySet()) {
+            GeoavailabilityGrid grid = new GeoavailabilityGrid(key,
+                    GeoHash.MAX_PRECISION * 2 / 3);
+            boolean outside = QueryTransform.queryToGridBitmap(geoQuery, grid)
+                .cardinality() == 0;
+            for (String block : blockMap.get(key)) {
+                blocks++;
+                if (outside) {
+                    polygonPruned++;
+                } else if (!fs.mayMatch(block, featureQuery)) {
+                    zoneMapPruned++;
+                    assertTrue(fs.query(block, geoQuery, grid,
+                                QueryTransform.queryToGridBitmap(geoQuery, grid),
+                                Deadline.none()).isEmpty());
+                } else {
+                    toRead++;
+                    bytesToRead += new File(block).length();
+                }
+            }
+        }
+        assertEquals(12, blocks);
+        assertEquals(6, zoneMapPruned);
+        assertEquals(blocks, plan.getLong("numBlocks"));
+        assertEquals(polygonPruned, plan.getLong("polygonPrunedBlocks"));
+        assertEquals(zoneMapPruned, plan.getLong("zoneMapPrunedBlocks"));
+        assertEquals(toRead, plan.getLong("blocksToRead"));
+        assertEquals(bytesToRead, plan.getLong("sizeToRead"));
+        assertEquals(18, plan.getLong("estimatedRecords"));
+
+        /* Without a feature query every block is read or summarized */
+        plan = fs.explain(null, null, null, null, new Aggregation("v"),
+                Deadline.none());
+        assertEquals(12, plan.getLong("numBlocks"));
+        assertEquals(0, plan.getLong("zoneMapPrunedBlocks"));
+        assertEquals(12, plan.getLong("synopsisBlocks")
+                + plan.getLong("blocksToRead"));
+    }
+
+    @Test
+    public void testCachesAreUntouched() throws Exception {
+        List<String> blocks = storeBlocks();
+        QueryPlanCache planCache = QueryPlanCache.getInstance();
+        planCache.clear();
+        long hits = planCache.getHits();
+        long misses = planCache.getMisses();
+
+        fs.explain(null, polygon(), null, atLeast(25), null, Deadline.none());
+        fs.explain(null, polygon(), null, null, new Aggregation("v"),
+                Deadline.none());
+        assertEquals(0, planCache.size());
+        assertEquals(hits, planCache.getHits());
+        assertEquals(misses, planCache.getMisses());
+
+        /*
+         * With the zone map sidecars out of the way, only a cached zone map
+         * can rule a block out, and explain must not have cached any.
+         */
+        for (String block : blocks) {
+            String zoneMap = ZoneMap.indexPath(block);
+            Files.move(Paths.get(zoneMap), Paths.get(zoneMap + ".moved"));
+        }
+        for (String block : blocks) {
+            assertTrue(fs.mayMatch(block, atLeast(1000)));
+        }
+        for (String block : blocks) {
+            String zoneMap = ZoneMap.indexPath(block);
+            Files.move(Paths.get(zoneMap + ".moved"), Paths.get(zoneMap),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        /* A query run for real does use both caches */
+        fs.listBlocks(null, polygon(), null, false, Deadline.none());
+        assertTrue(planCache.size() > 0);
+        assertFalse(fs.mayMatch(blocks.get(0), atLeast(1000)));
+        Files.delete(Paths.get(ZoneMap.indexPath(blocks.get(0))));
+        assertFalse(fs.mayMatch(blocks.get(0), atLeast(1000)));
+    }
+}
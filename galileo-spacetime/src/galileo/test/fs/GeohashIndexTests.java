@@ -0,0 +1,223 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.test.fs;
+
+import static org.junit.Assert.assertEquals;
+
+import galileo.fs.GeohashIndex;
+import galileo.util.GeoHash;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+/**
+ * Compares a {@link GeohashIndex} with a brute force scan over the same
+ * geohashes kept in a sorted set.
+ */
+public class GeohashIndexTests {
+
+    private static final float[] latitudes = { -90.0f, -45.0f, 0.0f, 45.0f, 90.0f };
+    private static final float[] longitudes = {
+        -180.0f, -90.0f, 0.0f, 90.0f, 180.0f };
+
+    /**
+     * Geohashes of the points on the edges and corners of the top level
+     * cells, at every precision, along with the first and last geohashes and
+     * a couple that cannot be encoded as longs.
+     */
+    private static List<String> boundaryGeohashes() {
+        List<String> geohashes = new ArrayList<>();
+        for (float latitude : latitudes) {
+            for (float longitude : longitudes) {
+                for (int precision = 1; precision <= 12; ++precision) {
+                    geohashes.add(GeoHash.encode(latitude, longitude, precision));
+                }
+            }
+        }
+        geohashes.add("0");
+        geohashes.add("000000000000");
+        geohashes.add("z");
+        geohashes.add("zzzzzzzzzzzz");
+        geohashes.add("9zzzzzzzzzzz");
+        geohashes.add("b00000000000");
+        /* Too long, and the placeholder for blocks without spatial data */
+        geohashes.add("9q8yyk8ytpxr0");
+        geohashes.add("oooo");
+        return geohashes;
+    }
+
+    /**
+     * Random geohashes, each one stored at several precisions so that
+     * geohashes and their ancestors are in the index together.
+     */
+    private static List<String> randomGeohashes(Random random, int count) {
+        List<String> geohashes = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            float latitude = random.nextFloat() * 180.0f - 90.0f;
+            float longitude = random.nextFloat() * 360.0f - 180.0f;
+            String geohash = GeoHash.encode(latitude, longitude, 12);
+            geohashes.add(geohash.substring(0, 1 + random.nextInt(12)));
+            if (random.nextBoolean()) {
+                geohashes.add(geohash.substring(0, 1 + random.nextInt(12)));
+            }
+        }
+        return geohashes;
+    }
+
+    private static List<String> scan(TreeSet<String> geohashes, String prefix) {
+        List<String> matches = new ArrayList<>();
+        for (String geohash : geohashes) {
+            if (geohash.startsWith(prefix)) {
+                matches.add(geohash);
+            }
+        }
+        return matches;
+    }
+
+    private static List<String> scan(TreeSet<String> geohashes, String low, String high) {
+        List<String> matches = new ArrayList<>();
+        for (String geohash : geohashes) {
+            if (geohash.compareTo(low) >= 0 && geohash.compareTo(high) <= 0) {
+                matches.add(geohash);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Prefixes of every length of the given geohash, one character past it,
+     * and its neighbours in the geohash alphabet, which share all but the
+     * last character and sit just outside its range.
+     */
+    private static List<String> queries(String geohash) {
+        List<String> queries = new ArrayList<>();
+        for (int i = 0; i <= geohash.length(); ++i) {
+            String prefix = geohash.substring(0, i);
+            queries.add(prefix);
+            if (i > 0) {
+                char last = prefix.charAt(i - 1);
+                String base = prefix.substring(0, i - 1);
+                int value = Arrays.binarySearch(GeoHash.charMap, last);
+                if (value > 0) {
+                    queries.add(base + GeoHash.charMap[value - 1]);
+                }
+                if (value >= 0 && value < GeoHash.charMap.length - 1) {
+                    queries.add(base + GeoHash.charMap[value + 1]);
+                }
+            }
+        }
+        queries.add(geohash + "0");
+        queries.add(geohash + "z");
+        return queries;
+    }
+
+    private static void verify(GeohashIndex index, TreeSet<String> expected,
+            List<String> probes, Random random) {
+        assertEquals(expected.size(), index.size());
+        assertEquals(new ArrayList<>(expected), index.toList());
+
+        List<String> queries = new ArrayList<>();
+        for (String probe : probes) {
+            queries.addAll(queries(probe));
+        }
+        for (String query : queries) {
+            List<String> matches = scan(expected, query);
+            assertEquals(query, matches, index.getGeohashes(query));
+            assertEquals(query, !matches.isEmpty(), index.containsPrefix(query));
+            assertEquals(query, expected.contains(query), index.contains(query));
+        }
+
+        /* Ranges whose ends have different precisions */
+        for (int i = 0; i < 500; ++i) {
+            String a = queries.get(random.nextInt(queries.size()));
+            String b = queries.get(random.nextInt(queries.size()));
+            String low = (a.compareTo(b) <= 0) ? a : b;
+            String high = (a.compareTo(b) <= 0) ? b : a;
+            List<String> matches = scan(expected, low, high);
+            assertEquals(low + " " + high, matches, index.getGeohashes(low, high));
+            assertEquals(low + " " + high, !matches.isEmpty(), index.intersects(low, high));
+        }
+
+        /* Coverings, where some prefixes lie under others */
+        for (int i = 0; i < 100; ++i) {
+            List<String> covering = new ArrayList<>();
+            int size = 1 + random.nextInt(8);
+            for (int j = 0; j < size; ++j) {
+                covering.add(queries.get(random.nextInt(queries.size())));
+            }
+            TreeSet<String> matches = new TreeSet<>();
+            for (String prefix : covering) {
+                matches.addAll(scan(expected, prefix));
+            }
+            assertEquals(covering.toString(), new ArrayList<>(matches),
+                    index.getIntersecting(covering));
+        }
+    }
+
+    @Test
+    public void testBoundaryCells() {
+        Random random = new Random(3);
+        List<String> geohashes = boundaryGeohashes();
+        TreeSet<String> expected = new TreeSet<>(geohashes);
+        verify(new GeohashIndex(geohashes), expected, geohashes, random);
+
+        GeohashIndex index = new GeohashIndex();
+        for (String geohash : geohashes) {
+            index.add(geohash);
+        }
+        verify(index, expected, geohashes, random);
+    }
+
+    @Test
+    public void testMatchesScan() {
+        Random random = new Random(11);
+        List<String> initial = randomGeohashes(random, 300);
+        initial.addAll(boundaryGeohashes());
+        GeohashIndex index = new GeohashIndex(initial);
+        TreeSet<String> expected = new TreeSet<>(initial);
+        verify(index, expected, initial, random);
+
+        /* Enough additions to merge the recent geohashes more than once */
+        List<String> probes = new ArrayList<>(initial);
+        for (int round = 0; round < 4; ++round) {
+            List<String> added = randomGeohashes(random, 200);
+            for (String geohash : added) {
+                assertEquals(geohash, expected.add(geohash), index.add(geohash));
+            }
+            /* Adding them again changes nothing */
+            for (String geohash : added) {
+                assertEquals(false, index.add(geohash));
+            }
+            probes.addAll(added);
+            verify(index, expected, probes.subList(probes.size() - 300, probes.size()), random);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.test.fs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import galileo.fs.BlockCodec;
+import galileo.fs.BlockWriteBuffer;
+import galileo.fs.MappedBlockReader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class MappedBlockReaderTests {
+
+    private static final String block = "/tmp/mappedblockreader.gblock";
+
+    @After
+    public void removeBlock() {
+        new File(block).delete();
+        new File(MappedBlockReader.lineIndexPath(block)).delete();
+    }
+
+    private void append(String data) throws Exception {
+        BlockWriteBuffer buffer = new BlockWriteBuffer(1024, 0, 16);
+        buffer.append(block, data.getBytes(StandardCharsets.UTF_8), null, BlockCodec.NONE);
+        buffer.shutdown();
+    }
+
+    private void appendUnindexed(String data) throws Exception {
+        try (FileOutputStream out = new FileOutputStream(block, true)) {
+            out.write(data.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private String contents() throws Exception {
+        return new String(Files.readAllBytes(Paths.get(block)), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads every record in random order and compares it with what the file
+     * system would get by decoding and splitting the whole block.
+     */
+    private void verify(int columns, Random random) throws Exception {
+        String[] lines = contents().split("\\r?\\n");
+        if (lines.length == 1 && lines[0].isEmpty()) {
+            lines = new String[0];
+        }
+        MappedBlockReader reader = new MappedBlockReader(block, columns);
+        assertEquals(lines.length, reader.getRecordCount());
+        for (int i = 0; i < lines.length * 2; ++i) {
+            int record = random.nextInt(lines.length);
+            assertArrayEquals(lines[record].split(",", columns),
+                    reader.getRecord(record));
+        }
+        assertEquals(lines.length, reader.getRecords().size());
+    }
+
+    private String randomLine(Random random) {
+        return random.nextInt(1000) + "," + random.nextInt(1000) + ","
+            + (random.nextBoolean() ? "" : "x" + random.nextInt(10));
+    }
+
+    @Test
+    public void testRandomAccess() throws Exception {
+        removeBlock();
+        Random random = new Random(42);
+        for (int i = 0; i < 50; ++i) {
+            StringBuilder chunk = new StringBuilder(randomLine(random));
+            int lines = random.nextInt(20);
+            for (int j = 0; j < lines; ++j) {
+                chunk.append(random.nextInt(4) == 0 ? "\r\n" : "\n");
+                chunk.append(randomLine(random));
+            }
+            append(chunk.toString());
+        }
+        assertTrue(new File(MappedBlockReader.lineIndexPath(block)).exists());
+        verify(3, random);
+
+        /* The index only saves the scan; the result is the same without it */
+        new File(MappedBlockReader.lineIndexPath(block)).delete();
+        verify(3, random);
+    }
+
+    @Test
+    public void testLastLineWithoutNewline() throws Exception {
+        removeBlock();
+        append("a,1\nb,2");
+        MappedBlockReader reader = new MappedBlockReader(block, 2);
+        assertEquals(2, reader.getRecordCount());
+        assertArrayEquals(new String[] { "b", "2" }, reader.getRecord(1));
+        assertArrayEquals(new String[] { "a", "1" }, reader.getRecord(0));
+
+        /* A trailing line break does not add a record, \r\n or not */
+        appendUnindexed("\r\n");
+        reader = new MappedBlockReader(block, 2);
+        assertEquals(2, reader.getRecordCount());
+        assertArrayEquals(new String[] { "b", "2" }, reader.getRecord(1));
+    }
+
+    @Test
+    public void testEmptyBlock() throws Exception {
+        removeBlock();
+        appendUnindexed("");
+        assertEquals(0, new MappedBlockReader(block, 2).getRecordCount());
+        assertEquals(0, new MappedBlockReader(block, 2).getRecords().size());
+
+        append("");
+        MappedBlockReader reader = new MappedBlockReader(block, 2);
+        assertEquals(0, reader.getRecordCount());
+        try {
+            reader.getRecord(0);
+            assertTrue("Read a record from an empty block", false);
+        } catch (java.io.IOException e) {
+            /* Expected */
+        }
+    }
+
+    @Test
+    public void testDataOutsideTheIndex() throws Exception {
+        Random random = new Random(7);
+
+        /* Appended after the indexed writes */
+        removeBlock();
+        append("a,1\nb,2");
+        append("c,3");
+        appendUnindexed("\nd,4\ne,5\n");
+        verify(2, random);
+
+        /* Written before the index was started */
+        removeBlock();
+        appendUnindexed("a,1\nb,2");
+        append("c,3\nd,4");
+        verify(2, random);
+
+        /* A write that never made it into the index */
+        removeBlock();
+        append("a,1");
+        appendUnindexed("\nb,2");
+        append("c,3");
+        verify(2, random);
+
+        /* An entry that was torn while it was being appended */
+        removeBlock();
+        append("a,1\nb,2");
+        try (FileOutputStream out = new FileOutputStream(
+                    MappedBlockReader.lineIndexPath(block), true)) {
+            out.write(new byte[] { 0, 0, 0 });
+        }
+        appendUnindexed("\nc,3");
+        verify(2, random);
+    }
+}
@@ -0,0 +1,277 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.test.fs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import galileo.dataset.feature.Feature;
+import galileo.fs.PathJournal;
+import galileo.graph.FeaturePath;
+import galileo.graph.MetadataGraph;
+import galileo.graph.Path;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PathJournalRecoveryTests {
+
+    private static String journal = "/tmp/pathjournalrecovery";
+    private static String[] files = { journal, journal + ".index",
+        journal + ".prev", journal + ".snapshot", journal + ".tmp",
+        journal + ".snapshot.tmp" };
+
+    @Before
+    @After
+    public void removeJournal() {
+        for (String file : files) {
+            new File(file).delete();
+        }
+    }
+
+    private FeaturePath<String> path(String payload, float humidity) {
+        FeaturePath<String> fp = new FeaturePath<>();
+        fp.add(new Feature("humidity", humidity));
+        fp.add(new Feature("temperature", 4.1f));
+        fp.addPayload(payload);
+        return fp;
+    }
+
+    private PathJournal start() throws Exception {
+        PathJournal pj = new PathJournal(journal);
+        pj.start();
+        return pj;
+    }
+
+    /* Recovers the journal the way the file system does on startup */
+    private Set<String> recover(boolean expectClean) throws Exception {
+        PathJournal pj = new PathJournal(journal);
+        MetadataGraph graph = pj.recoverSnapshot(1);
+        List<FeaturePath<String>> paths = new ArrayList<>();
+        Set<String> removed = new HashSet<>();
+        assertEquals(expectClean, pj.recover(paths, removed));
+        if (graph == null) {
+            graph = new MetadataGraph();
+        } else {
+            graph.removePayloads(removed);
+        }
+        for (FeaturePath<String> path : paths) {
+            graph.addPath(path);
+        }
+        pj.shutdown();
+
+        Set<String> payloads = new TreeSet<>();
+        for (Path<Feature, String> path : graph.getAllPaths()) {
+            payloads.addAll(path.getPayload());
+        }
+        return payloads;
+    }
+
+    private Set<String> set(String... payloads) {
+        return new TreeSet<>(Arrays.asList(payloads));
+    }
+
+    private void checkpoint(PathJournal pj, List<FeaturePath<String>> paths)
+    throws Exception {
+        MetadataGraph graph = new MetadataGraph();
+        for (FeaturePath<String> path : paths) {
+            graph.addPath(path);
+        }
+        pj.rollover();
+        pj.writeSnapshot(graph.getFeatureHierarchy(), graph.getAllPaths());
+    }
+
+    @Test
+    public void testSnapshotAndReplay() throws Exception {
+        PathJournal pj = start();
+        List<FeaturePath<String>> snapshot = new ArrayList<>();
+        snapshot.add(path("/a", 1.0f));
+        snapshot.add(path("/b", 2.0f));
+        for (FeaturePath<String> path : snapshot) {
+            pj.persistPath(path);
+        }
+        checkpoint(pj, snapshot);
+        assertFalse(new File(journal + ".prev").exists());
+        assertEquals(0, pj.getEntryCount());
+
+        pj.persistPath(path("/c", 3.0f));
+        /* "/a" is only held by the snapshot, "/c" only by the journal */
+        pj.replacePaths(Arrays.asList("/a", "/c"), path("/s", 1.0f));
+        pj.persistPath(path("/d", 4.0f));
+        pj.shutdown();
+
+        assertEquals(set("/b", "/d", "/s"), recover(true));
+    }
+
+    @Test
+    public void testRemovalOnlyAppliesToEarlierEntries() throws Exception {
+        PathJournal pj = start();
+        pj.persistPath(path("/a", 1.0f));
+        pj.persistPath(path("/b", 1.0f));
+        pj.replacePaths(Arrays.asList("/a", "/b"), path("/s", 1.0f));
+        /* The merged block is written to again under its old name */
+        pj.persistPath(path("/a", 1.0f));
+        pj.shutdown();
+
+        assertEquals(set("/a", "/s"), recover(true));
+
+        /* Removal entries survive a restart */
+        pj = new PathJournal(journal);
+        pj.recover(new ArrayList<FeaturePath<String>>());
+        pj.start();
+        pj.replacePaths(Collections.singletonList("/s"), path("/t", 1.0f));
+        pj.shutdown();
+        assertEquals(set("/a", "/t"), recover(true));
+    }
+
+    @Test
+    public void testRemovalCarriedPastSnapshot() throws Exception {
+        PathJournal pj = start();
+        pj.persistPath(path("/a", 1.0f));
+        pj.persistPath(path("/b", 1.0f));
+        pj.replacePaths(Arrays.asList("/a", "/b"), path("/s", 1.0f));
+
+        /* The merged blocks are still on disk when the snapshot is taken */
+        checkpoint(pj, Collections.singletonList(path("/s", 1.0f)));
+        pj.persistRemoval(Arrays.asList("/a", "/b"));
+        pj.shutdown();
+
+        pj = new PathJournal(journal);
+        Set<String> removed = new HashSet<>();
+        assertTrue(pj.recover(new ArrayList<FeaturePath<String>>(), removed));
+        pj.shutdown();
+        assertEquals(set("/a", "/b"), removed);
+        assertEquals(set("/s"), recover(true));
+    }
+
+    @Test
+    public void testRolloverWithoutSnapshot() throws Exception {
+        PathJournal pj = start();
+        pj.persistPath(path("/a", 1.0f));
+        /* The snapshot is never written, as if the node went down */
+        pj.rollover();
+        assertTrue(new File(journal + ".prev").exists());
+        pj.persistPath(path("/b", 2.0f));
+        pj.shutdown();
+        assertNull(new PathJournal(journal).recoverSnapshot(1));
+        assertEquals(set("/a", "/b"), recover(true));
+
+        /* A second rollover keeps the entries of the first one */
+        pj = new PathJournal(journal);
+        pj.recover(new ArrayList<FeaturePath<String>>());
+        pj.start();
+        pj.rollover();
+        pj.persistPath(path("/c", 3.0f));
+        pj.shutdown();
+        assertEquals(set("/a", "/b", "/c"), recover(true));
+    }
+
+    @Test
+    public void testTornTail() throws Exception {
+        PathJournal pj = start();
+        pj.persistPath(path("/a", 1.0f));
+        pj.persistPath(path("/b", 2.0f));
+        pj.shutdown();
+
+        File file = new File(journal);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(file.length() - 5);
+        }
+        assertEquals(set("/a"), recover(true));
+    }
+
+    @Test
+    public void testTornReplacement() throws Exception {
+        PathJournal pj = start();
+        pj.persistPath(path("/a", 1.0f));
+        pj.persistPath(path("/b", 1.0f));
+        pj.replacePaths(Arrays.asList("/a", "/b"), path("/s", 1.0f));
+        pj.shutdown();
+
+        /* Neither the removal nor the segment survives */
+        File file = new File(journal);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(file.length() - 5);
+        }
+        assertEquals(set("/a", "/b"), recover(true));
+    }
+
+    @Test
+    public void testChecksumMismatch() throws Exception {
+        PathJournal pj = start();
+        pj.persistPath(path("/a", 1.0f));
+        pj.persistPath(path("/b", 2.0f));
+        pj.shutdown();
+
+        File file = new File(journal);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(file.length() - 1);
+            int last = raf.read();
+            raf.seek(file.length() - 1);
+            raf.write(last ^ 0xff);
+        }
+        assertEquals(set("/a"), recover(true));
+    }
+
+    @Test
+    public void testCorruptSnapshot() throws Exception {
+        PathJournal pj = start();
+        List<FeaturePath<String>> snapshot = new ArrayList<>();
+        snapshot.add(path("/a", 1.0f));
+        pj.persistPath(snapshot.get(0));
+        checkpoint(pj, snapshot);
+        pj.shutdown();
+        assertNotNull(new PathJournal(journal).recoverSnapshot(1));
+
+        File file = new File(journal + ".snapshot");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(file.length() - 1);
+            int last = raf.read();
+            raf.seek(file.length() - 1);
+            raf.write(last ^ 0xff);
+        }
+        try {
+            new PathJournal(journal).recoverSnapshot(1);
+            assertTrue("Corrupt snapshots must be rejected", false);
+        } catch (galileo.serialization.SerializationException e) {
+            /* Expected */
+        }
+    }
+}
@@ -0,0 +1,322 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.test.fs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import galileo.dataset.feature.Feature;
+import galileo.dataset.feature.FeatureType;
+import galileo.fs.ZoneMap;
+import galileo.query.Expression;
+import galileo.query.Operation;
+import galileo.query.Operator;
+import galileo.query.Query;
+import galileo.util.Pair;
+
+import galileo.serialization.SerializationOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ZoneMapTests {
+
+    private static String block = "/tmp/zonemaptest.gblock";
+
+    private static List<Pair<String, FeatureType>> features = new ArrayList<>();
+    static {
+        features.add(new Pair<>("time", FeatureType.STRING));
+        features.add(new Pair<>("temp", FeatureType.FLOAT));
+        features.add(new Pair<>("count", FeatureType.INT));
+        features.add(new Pair<>("id", FeatureType.LONG));
+        features.add(new Pair<>("site", FeatureType.STRING));
+    }
+
+    @After
+    public void removeIndex() {
+        new File(ZoneMap.indexPath(block)).delete();
+    }
+
+    private ZoneMap zoneMap(String data) {
+        ZoneMap zoneMap = new ZoneMap(features, 0);
+        zoneMap.add(data.getBytes(StandardCharsets.UTF_8));
+        return zoneMap;
+    }
+
+    private boolean mayMatch(ZoneMap zoneMap, Operator operator,
+            Feature operand) {
+        return zoneMap.mayMatch(
+                new Query(new Operation(new Expression(operator, operand))));
+    }
+
+    @Test
+    public void testRanges() {
+        ZoneMap zoneMap = zoneMap("1400000000000,10.5,3,100,a\n"
+                + "1400000001000,20.0,7,200,b");
+        assertEquals(2, zoneMap.getRecordCount());
+        assertEquals(10.5, zoneMap.getMin(1), 0.0);
+        assertEquals(20.0, zoneMap.getMax(1), 0.0);
+        assertEquals(1400000000000L, zoneMap.getFirstTime());
+        assertEquals(1400000001000L, zoneMap.getLastTime());
+
+        Feature inside = new Feature("temp", 15.0f);
+        Feature below = new Feature("temp", 5.0f);
+        Feature above = new Feature("temp", 25.0f);
+        assertTrue(mayMatch(zoneMap, Operator.EQUAL, inside));
+        assertFalse(mayMatch(zoneMap, Operator.EQUAL, below));
+        assertFalse(mayMatch(zoneMap, Operator.EQUAL, above));
+        assertFalse(mayMatch(zoneMap, Operator.LESS, below));
+        assertTrue(mayMatch(zoneMap, Operator.LESS, above));
+        assertFalse(mayMatch(zoneMap, Operator.GREATER, above));
+        assertTrue(mayMatch(zoneMap, Operator.GREATER, below));
+
+        /* Bounds are inclusive */
+        Feature min = new Feature("temp", 10.5f);
+        Feature max = new Feature("temp", 20.0f);
+        assertFalse(mayMatch(zoneMap, Operator.LESS, min));
+        assertTrue(mayMatch(zoneMap, Operator.LESSEQUAL, min));
+        assertFalse(mayMatch(zoneMap, Operator.GREATER, max));
+        assertTrue(mayMatch(zoneMap, Operator.GREATEREQUAL, max));
+    }
+
+    @Test
+    public void testOperations() {
+        ZoneMap zoneMap = zoneMap("1,10.0,3,100,a\n2,20.0,7,200,b");
+        Expression matching = new Expression(Operator.GREATER,
+                new Feature("count", 5));
+        Expression pruning = new Expression(Operator.GREATER,
+                new Feature("temp", 30.0f));
+
+        /* Expressions of an operation must all match, operations any */
+        assertFalse(zoneMap.mayMatch(
+                    new Query(new Operation(matching, pruning))));
+        assertTrue(zoneMap.mayMatch(new Query(new Operation(pruning),
+                        new Operation(matching))));
+        assertTrue(zoneMap.mayMatch(new Query()));
+    }
+
+    @Test
+    public void testNotEqual() {
+        ZoneMap constant = zoneMap("1,10.0,3,100,a\n2,10.0,3,100,b");
+        assertFalse(mayMatch(constant, Operator.NOTEQUAL,
+                    new Feature("count", 3)));
+        assertTrue(mayMatch(constant, Operator.NOTEQUAL,
+                    new Feature("count", 4)));
+
+        ZoneMap varying = zoneMap("1,10.0,3,100,a\n2,10.0,4,100,b");
+        assertTrue(mayMatch(varying, Operator.NOTEQUAL,
+                    new Feature("count", 3)));
+    }
+
+    @Test
+    public void testUnprunableExpressions() {
+        ZoneMap zoneMap = zoneMap("1,10.0,3,100,a\n2,20.0,7,200,b");
+
+        /* Features that are not tracked */
+        assertTrue(mayMatch(zoneMap, Operator.EQUAL,
+                    new Feature("site", "z")));
+        assertTrue(mayMatch(zoneMap, Operator.EQUAL,
+                    new Feature("missing", 1000)));
+
+        /* Operands whose type differs from the column are not compared */
+        assertTrue(mayMatch(zoneMap, Operator.EQUAL,
+                    new Feature("count", 1000.0f)));
+        assertTrue(mayMatch(zoneMap, Operator.EQUAL,
+                    new Feature("count", "1000")));
+
+        /* Longs that tie at double precision may still differ */
+        ZoneMap large = zoneMap("1,10.0,3,9007199254740993,a");
+        assertTrue(mayMatch(large, Operator.LESS,
+                    new Feature("id", 9007199254740992L)));
+        assertFalse(mayMatch(large, Operator.LESS,
+                    new Feature("id", 9007199254740000L)));
+    }
+
+    @Test
+    public void testUnparsableValues() {
+        ZoneMap zoneMap = zoneMap("1,10.0,3,100,a\n2,10.0,n/a,100,b\n3,10.0");
+        assertEquals(0, zoneMap.getNullCount(1));
+        assertEquals(2, zoneMap.getNullCount(2));
+        assertEquals(1, zoneMap.getNullCount(3));
+
+        /* The unparsable values may satisfy the query in other ways */
+        assertTrue(mayMatch(zoneMap, Operator.GREATER,
+                    new Feature("count", 100)));
+        assertTrue(mayMatch(zoneMap, Operator.GREATER,
+                    new Feature("id", 100L)));
+        assertFalse(mayMatch(zoneMap, Operator.GREATER,
+                    new Feature("temp", 100.0f)));
+    }
+
+    @Test
+    public void testEmpty() {
+        ZoneMap zoneMap = new ZoneMap(features, 0);
+        assertFalse(zoneMap.mayMatch(new Query()));
+    }
+
+    @Test
+    public void testSidecar() throws Exception {
+        assertFalse(ZoneMap.append(block, zoneMap("1,10.0,3,100,a"), false));
+        assertNull(ZoneMap.load(block, features, 0));
+
+        assertTrue(ZoneMap.append(block, zoneMap("1,10.0,3,100,a"), true));
+        assertTrue(ZoneMap.append(block, zoneMap("2,30.0,5,50,b"), false));
+        ZoneMap zoneMap = ZoneMap.load(block, features, 0);
+        assertNotNull(zoneMap);
+        assertEquals(2, zoneMap.getRecordCount());
+        assertEquals(10.0, zoneMap.getMin(1), 0.0);
+        assertEquals(30.0, zoneMap.getMax(1), 0.0);
+        assertEquals(50.0, zoneMap.getMin(3), 0.0);
+
+        /* Sidecars of other feature lists are not used */
+        assertNull(ZoneMap.load(block, features, -1));
+    }
+
+    @Test
+    public void testCompactionWhileAppending() throws Exception {
+        File index = new File(ZoneMap.indexPath(block));
+        ZoneMap.append(block, zoneMap("0,0.0,0,0,a"), true);
+        long record = index.length();
+        long largest = 0;
+        for (int i = 1; i < 200; ++i) {
+            ZoneMap.append(block, zoneMap(i + "," + i + ".0,0,0,a"), false);
+            largest = Math.max(largest, index.length());
+        }
+        assertTrue(largest <= 64 * record);
+
+        ZoneMap zoneMap = ZoneMap.load(block, features, 0);
+        assertEquals(200, zoneMap.getRecordCount());
+        assertEquals(199.0, zoneMap.getMax(1), 0.0);
+        assertEquals(200, zoneMap.getStatistics(1).n());
+
+        /* Loading does not rewrite the sidecar */
+        long modified = index.lastModified();
+        long length = index.length();
+        ZoneMap.load(block, features, 0);
+        assertEquals(length, index.length());
+        assertEquals(modified, index.lastModified());
+    }
+
+    @Test
+    public void testTornTail() throws Exception {
+        File index = new File(ZoneMap.indexPath(block));
+        ZoneMap.append(block, zoneMap("1,10.0,3,100,a"), true);
+        ZoneMap.append(block, zoneMap("2,99.0,5,50,b"), false);
+        try (RandomAccessFile raf = new RandomAccessFile(index, "rw")) {
+            raf.setLength(index.length() - 3);
+        }
+
+        /* The lost record may have held the largest value */
+        assertNull(ZoneMap.load(block, features, 0));
+    }
+
+    /* Appends a checksummed record to the sidecar */
+    private void writeRecord(byte[] payload) throws Exception {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(12 + payload.length);
+        record.putInt(payload.length);
+        record.putLong(crc.getValue());
+        record.put(payload);
+        try (FileOutputStream out = new FileOutputStream(
+                    ZoneMap.indexPath(block), true)) {
+            out.write(record.array());
+        }
+    }
+
+    /* A zone map as it was serialized before it had a version */
+    private byte[] legacyZoneMap(double minTemp, double maxTemp, long records)
+    throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SerializationOutputStream out = new SerializationOutputStream(bytes);
+        out.writeInt(features.size());
+        for (Pair<String, FeatureType> feature : features) {
+            boolean temp = feature.a.equals("temp");
+            out.writeString(feature.a);
+            out.writeInt(feature.b.toInt());
+            out.writeDouble(temp ? minTemp : Double.POSITIVE_INFINITY);
+            out.writeDouble(temp ? maxTemp : Double.NEGATIVE_INFINITY);
+            out.writeLong(temp ? 0 : records);
+        }
+        out.writeLong(records);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void testLegacySidecar() throws Exception {
+        writeRecord(legacyZoneMap(10.0, 20.0, 2));
+        ZoneMap zoneMap = ZoneMap.load(block, features, 0);
+        assertNotNull(zoneMap);
+        assertFalse(zoneMap.hasSynopsis());
+        assertNull(zoneMap.getStatistics(1));
+        assertEquals(2, zoneMap.getRecordCount());
+        assertFalse(mayMatch(zoneMap, Operator.GREATER,
+                    new Feature("temp", 25.0f)));
+
+        /* Later records keep the sidecar usable, but without a synopsis */
+        ZoneMap.append(block, zoneMap("1,30.0,3,100,a"), false);
+        zoneMap = ZoneMap.load(block, features, 0);
+        assertFalse(zoneMap.hasSynopsis());
+        assertEquals(3, zoneMap.getRecordCount());
+        assertEquals(30.0, zoneMap.getMax(1), 0.0);
+
+        /* Also once the records have been merged into one */
+        for (int i = 0; i < 100; ++i) {
+            ZoneMap.append(block, zoneMap("1,30.0,3,100,a"), false);
+        }
+        zoneMap = ZoneMap.load(block, features, 0);
+        assertFalse(zoneMap.hasSynopsis());
+        assertEquals(103, zoneMap.getRecordCount());
+    }
+
+    @Test
+    public void testUnknownVersion() throws Exception {
+        ZoneMap.create(block, zoneMap("1,10.0,3,100,a"));
+        assertTrue(ZoneMap.load(block, features, 0).hasSynopsis());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SerializationOutputStream out = new SerializationOutputStream(bytes);
+        out.writeInt(0x475A4D50);
+        out.writeInt(99);
+        out.flush();
+        writeRecord(bytes.toByteArray());
+        assertNull(ZoneMap.load(block, features, 0));
+    }
+}
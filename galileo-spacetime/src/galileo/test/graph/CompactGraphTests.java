@@ -0,0 +1,196 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.test.graph;
+
+import static org.junit.Assert.assertEquals;
+
+import galileo.dataset.feature.Feature;
+import galileo.graph.CompactGraph;
+import galileo.graph.FeaturePath;
+import galileo.graph.Path;
+import galileo.query.Expression;
+import galileo.query.Operation;
+import galileo.query.Query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Checks CompactGraphs, as built, merged and pruned, against a brute force
+ * evaluation of the paths they were built from.
+ */
+public class CompactGraphTests {
+
+    private static final int SEEDS = 20;
+    private static final int PATHS = 300;
+    private static final int QUERIES = 50;
+    private static final int RANGE = 6;
+
+    private CompactGraph<String> compactGraph(
+            List<Path<Feature, String>> paths) {
+        return new CompactGraph<>(RandomPaths.names(),
+                RandomPaths.copy(paths));
+    }
+
+    private void assertSameResults(Random random,
+            List<Path<Feature, String>> expected,
+            CompactGraph<String> actual) {
+        assertEquals(RandomPaths.all(expected),
+                RandomPaths.index(actual.getAllPaths()));
+        for (int i = 0; i < QUERIES; ++i) {
+            Query query = RandomPaths.query(random, RANGE);
+            assertEquals(query.toString(),
+                    RandomPaths.evaluate(expected, query),
+                    RandomPaths.index(actual.evaluateQuery(query)));
+        }
+    }
+
+    @Test
+    public void testQueriesMatchBruteForce() throws Exception {
+        for (int seed = 0; seed < SEEDS; ++seed) {
+            Random random = new Random(seed);
+            List<Path<Feature, String>> paths
+                = RandomPaths.paths(random, PATHS, RANGE);
+            CompactGraph<String> graph = compactGraph(paths);
+            assertSameResults(random, paths, graph);
+
+            /* Built from the paths of the graph, without their wildcards */
+            assertSameResults(random, paths, new CompactGraph<>(
+                        RandomPaths.hierarchy(), graph.getAllPaths()));
+        }
+    }
+
+    @Test
+    public void testMergeMatchesBruteForce() throws Exception {
+        for (int seed = 0; seed < SEEDS; ++seed) {
+            Random random = new Random(seed);
+            List<Path<Feature, String>> paths
+                = RandomPaths.paths(random, PATHS, RANGE);
+            List<List<Path<Feature, String>>> parts = Arrays.asList(
+                    paths.subList(0, PATHS / 4),
+                    paths.subList(PATHS / 4, PATHS / 2),
+                    paths.subList(PATHS / 2, PATHS));
+
+            List<CompactGraph<String>> segments = new ArrayList<>();
+            for (List<Path<Feature, String>> part : parts) {
+                segments.add(compactGraph(part));
+            }
+            assertSameResults(random, paths,
+                    CompactGraph.merge(RandomPaths.names(), segments));
+
+            /* Removed payloads are left out of the merged graph, but only
+             * for the paths of the segment they were removed from */
+            Set<String> items = RandomPaths.payloads(random, parts.get(1));
+            segments.set(1, segments.get(1).removePayloads(items));
+            List<Path<Feature, String>> expected = new ArrayList<>();
+            expected.addAll(parts.get(0));
+            expected.addAll(RandomPaths.without(parts.get(1), items));
+            expected.addAll(parts.get(2));
+            assertSameResults(random, expected,
+                    CompactGraph.merge(RandomPaths.names(), segments));
+        }
+    }
+
+    @Test
+    public void testMergeRebuildsOtherHierarchies() throws Exception {
+        Random random = new Random(1);
+        List<Path<Feature, String>> paths
+            = RandomPaths.paths(random, PATHS, RANGE);
+        List<String> reversed = RandomPaths.names();
+        Collections.reverse(reversed);
+        List<CompactGraph<String>> segments = new ArrayList<>();
+        segments.add(compactGraph(paths.subList(0, PATHS / 2)));
+        segments.add(new CompactGraph<>(reversed,
+                    RandomPaths.copy(paths.subList(PATHS / 2, PATHS))));
+
+        CompactGraph<String> merged
+            = CompactGraph.merge(RandomPaths.names(), segments);
+        assertEquals(RandomPaths.names(), merged.getFeatureNames());
+        assertSameResults(random, paths, merged);
+    }
+
+    @Test
+    public void testRemovePayloadsMatchesBruteForce() throws Exception {
+        for (int seed = 0; seed < SEEDS; ++seed) {
+            Random random = new Random(seed);
+            List<Path<Feature, String>> paths
+                = RandomPaths.paths(random, PATHS, RANGE);
+            CompactGraph<String> compact = compactGraph(paths);
+
+            Set<String> items = RandomPaths.payloads(random, paths);
+            CompactGraph<String> pruned = compact.removePayloads(items);
+            assertSameResults(random, RandomPaths.without(paths, items),
+                    pruned);
+
+            /* The original graph is left as it was */
+            assertEquals(RandomPaths.all(paths),
+                    RandomPaths.index(compact.getAllPaths()));
+
+            /* Removing everything that is left empties the graph */
+            Set<String> rest = new HashSet<>();
+            for (Path<Feature, String> path : paths) {
+                rest.addAll(path.getPayload());
+            }
+            assertEquals(0, pruned.removePayloads(rest).getAllPaths().size());
+        }
+    }
+
+    @Test
+    public void testLessThanKeepsWildcards() throws Exception {
+        List<Path<Feature, String>> paths = new ArrayList<>();
+        paths.add(new FeaturePath<String>("x",
+                    new Feature("a", 1), new Feature("c", 5)));
+        paths.add(new FeaturePath<String>("y",
+                    new Feature("a", 1), new Feature("b", 2),
+                    new Feature("c", 6)));
+        CompactGraph<String> graph = compactGraph(paths);
+
+        Query lessThan = new Query(new Operation(
+                    new Expression("<", new Feature("b", 3))));
+        for (int i = 0; i < 3; ++i) {
+            List<Path<Feature, String>> results
+                = graph.evaluateQuery(lessThan);
+            assertEquals(1, results.size());
+            assertEquals(Collections.singleton("y"),
+                    results.get(0).getPayload());
+        }
+
+        /* The path through the wildcard for b is still in the graph */
+        assertEquals(2, graph.getAllPaths().size());
+        List<Path<Feature, String>> results = graph.evaluateQuery(new Query(
+                    new Operation(new Expression("==",
+                            new Feature("c", 5)))));
+        assertEquals(1, results.size());
+        assertEquals(Collections.singleton("x"), results.get(0).getPayload());
+    }
+}
@@ -0,0 +1,146 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.test.graph;
+
+import static org.junit.Assert.assertEquals;
+
+import galileo.dataset.feature.Feature;
+import galileo.graph.CompactGraph;
+import galileo.graph.FeaturePath;
+import galileo.graph.MetadataGraph;
+import galileo.graph.Path;
+import galileo.query.Expression;
+import galileo.query.Operation;
+import galileo.query.Query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the graphs against a brute force evaluation of the same queries,
+ * one Expression at a time.
+ */
+public class GraphQueryEquivalenceTests {
+
+    private static final int SEEDS = 20;
+
+    /* Fewer than fit in the tail of a MetadataGraph */
+    private static final int PATHS = 300;
+
+    private static final int QUERIES = 100;
+    private static final int RANGE = 6;
+
+    @Test
+    public void testRandomQueries() throws Exception {
+        for (int seed = 0; seed < SEEDS; ++seed) {
+            Random random = new Random(seed);
+            List<Path<Feature, String>> paths
+                = RandomPaths.paths(random, PATHS, RANGE);
+
+            MetadataGraph metadata = new MetadataGraph(RandomPaths.hierarchy());
+            for (Path<Feature, String> path : RandomPaths.copy(paths)) {
+                metadata.addPath(path);
+            }
+            CompactGraph<String> compact = new CompactGraph<>(
+                    RandomPaths.names(), RandomPaths.copy(paths));
+
+            for (int i = 0; i < QUERIES; ++i) {
+                Query query = RandomPaths.query(random, RANGE);
+                String message = "seed " + seed + ": " + query;
+                Object expected = RandomPaths.evaluate(paths, query);
+                assertEquals(message, expected, RandomPaths.index(
+                            compact.evaluateQuery(query)));
+                /* Every path is still in the tail */
+                assertEquals(message, expected, RandomPaths.index(
+                            metadata.evaluateQuery(query)));
+            }
+        }
+    }
+
+    private List<String> evaluate(MetadataGraph graph,
+            Expression... expressions) {
+        List<String> payloads = new ArrayList<>();
+        Query query = new Query(new Operation(expressions));
+        List<Path<Feature, String>> results = graph.evaluateQuery(query);
+
+        /* The same paths, once they have been sealed into a CompactGraph */
+        assertEquals(RandomPaths.index(results), RandomPaths.index(
+                    new CompactGraph<>(RandomPaths.names(),
+                        graph.getAllPaths()).evaluateQuery(query)));
+        for (Path<Feature, String> path : results) {
+            payloads.addAll(path.getPayload());
+        }
+        Collections.sort(payloads);
+        return payloads;
+    }
+
+    @Test
+    public void testWildcardsAndEmptyIntervals() throws Exception {
+        MetadataGraph graph = new MetadataGraph(RandomPaths.hierarchy());
+        graph.addPath(new FeaturePath<String>("one",
+                    new Feature("a", 1), new Feature("b", 1)));
+        graph.addPath(new FeaturePath<String>("three",
+                    new Feature("a", 3), new Feature("b", 1)));
+        graph.addPath(new FeaturePath<String>("wildcard",
+                    new Feature("b", 1)));
+
+        /* Wildcards sort first, but never satisfy a comparison */
+        assertEquals(Arrays.asList("one"), evaluate(graph,
+                    new Expression("<", new Feature("a", 3))));
+        assertEquals(Arrays.asList("one"), evaluate(graph,
+                    new Expression("<=", new Feature("a", 1))));
+        assertEquals(Arrays.asList("one", "three"), evaluate(graph,
+                    new Expression(">", new Feature("a", 0))));
+
+        /* ...but they do satisfy NOTEQUAL */
+        assertEquals(Arrays.asList("three", "wildcard"), evaluate(graph,
+                    new Expression("!=", new Feature("a", 1))));
+        assertEquals(Arrays.asList("wildcard"), evaluate(graph,
+                    new Expression("!=", new Feature("a", 1)),
+                    new Expression("!=", new Feature("a", 3))));
+
+        /* Bounds that meet in a single value */
+        assertEquals(Arrays.asList("three"), evaluate(graph,
+                    new Expression(">=", new Feature("a", 3)),
+                    new Expression("<=", new Feature("a", 3))));
+
+        /* Contradictory bounds */
+        assertEquals(Collections.<String>emptyList(), evaluate(graph,
+                    new Expression(">", new Feature("a", 3)),
+                    new Expression("<=", new Feature("a", 3))));
+        assertEquals(Collections.<String>emptyList(), evaluate(graph,
+                    new Expression(">", new Feature("a", 2)),
+                    new Expression("<", new Feature("a", 1))));
+        assertEquals(Collections.<String>emptyList(), evaluate(graph,
+                    new Expression("==", new Feature("a", 1)),
+                    new Expression("==", new Feature("a", 3))));
+    }
+}
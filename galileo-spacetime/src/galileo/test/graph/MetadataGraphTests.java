@@ -0,0 +1,274 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.test.graph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import galileo.dataset.feature.Feature;
+import galileo.graph.FeaturePath;
+import galileo.graph.MetadataGraph;
+import galileo.graph.Path;
+import galileo.query.Query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class MetadataGraphTests {
+
+    /* Enough to seal and merge several segments of the default size */
+    private static final int PATHS = 6000;
+
+    private static final int QUERIES = 50;
+    private static final int RANGE = 12;
+
+    private void assertSameResults(Random random,
+            List<Path<Feature, String>> expected, MetadataGraph actual) {
+        assertEquals(RandomPaths.all(expected),
+                RandomPaths.index(actual.getAllPaths()));
+        for (int i = 0; i < QUERIES; ++i) {
+            Query query = RandomPaths.query(random, RANGE);
+            assertEquals(query.toString(),
+                    RandomPaths.evaluate(expected, query),
+                    RandomPaths.index(actual.evaluateQuery(query)));
+        }
+    }
+
+    @Test
+    public void testLayersMatchBruteForce() throws Exception {
+        Random random = new Random(0);
+        List<Path<Feature, String>> paths
+            = RandomPaths.paths(random, PATHS, RANGE);
+        List<Path<Feature, String>> expected = new ArrayList<>();
+        MetadataGraph graph = new MetadataGraph(RandomPaths.hierarchy());
+
+        /* Base, segments and tail all hold some of the paths by the end */
+        List<List<Path<Feature, String>>> batches = new ArrayList<>();
+        batches.add(paths.subList(0, PATHS / 3));
+        batches.add(paths.subList(PATHS / 3, PATHS * 2 / 3 + 100));
+        batches.add(paths.subList(PATHS * 2 / 3 + 100, PATHS));
+        for (int b = 0; b < batches.size(); ++b) {
+            List<Path<Feature, String>> batch = batches.get(b);
+            expected.addAll(batch);
+            for (Path<Feature, String> path : RandomPaths.copy(batch)) {
+                graph.addPath(path);
+            }
+            assertSameResults(random, expected, graph);
+
+            /* Removal reaches the paths of earlier batches too */
+            Set<String> items = RandomPaths.payloads(random, batch);
+            expected = RandomPaths.without(expected, items);
+            graph.removePayloads(items);
+            assertSameResults(random, expected, graph);
+
+            if (b == 0) {
+                graph.compact();
+                assertSameResults(random, expected, graph);
+            }
+        }
+        graph.compact();
+        assertSameResults(random, expected, graph);
+    }
+
+    @Test
+    public void testSnapshotIsIndependent() throws Exception {
+        Random random = new Random(2);
+        List<Path<Feature, String>> paths
+            = RandomPaths.paths(random, 2500, RANGE);
+        List<Path<Feature, String>> first = paths.subList(0, 1500);
+        List<Path<Feature, String>> second = paths.subList(1500, 2000);
+        List<Path<Feature, String>> third = paths.subList(2000, 2500);
+        MetadataGraph graph = new MetadataGraph(RandomPaths.hierarchy());
+        for (Path<Feature, String> path : RandomPaths.copy(first)) {
+            graph.addPath(path);
+        }
+
+        /* Both graphs go on filling the tail they started out with */
+        MetadataGraph snapshot = graph.snapshot();
+        for (Path<Feature, String> path : RandomPaths.copy(second)) {
+            graph.addPath(path);
+        }
+        for (Path<Feature, String> path : RandomPaths.copy(third)) {
+            snapshot.addPath(path);
+        }
+        Set<String> items = RandomPaths.payloads(random, first);
+        graph.removePayloads(items);
+        graph.compact();
+
+        List<Path<Feature, String>> expected = new ArrayList<>(first);
+        expected.addAll(second);
+        assertSameResults(random, RandomPaths.without(expected, items), graph);
+        expected = new ArrayList<>(first);
+        expected.addAll(third);
+        assertSameResults(random, expected, snapshot);
+    }
+
+    /**
+     * Gives every path a payload of its own, so that a removed payload never
+     * comes back.
+     */
+    private List<Path<Feature, String>> uniquePayloads(
+            List<Path<Feature, String>> paths) {
+        List<Path<Feature, String>> unique = new ArrayList<>();
+        for (int i = 0; i < paths.size(); ++i) {
+            List<Feature> labels = paths.get(i).getLabels();
+            unique.add(new FeaturePath<String>("block-" + i,
+                        labels.toArray(new Feature[labels.size()])));
+        }
+        return unique;
+    }
+
+    @Test
+    public void testConcurrentChanges() throws Exception {
+        Random random = new Random(1);
+        final List<Path<Feature, String>> paths
+            = uniquePayloads(RandomPaths.paths(random, PATHS, RANGE));
+        final List<Query> queries = new ArrayList<>();
+        final List<Map<List<Feature>, Set<String>>> results
+            = new ArrayList<>();
+        for (int i = 0; i < QUERIES; ++i) {
+            Query query = RandomPaths.query(random, RANGE);
+            queries.add(query);
+            results.add(RandomPaths.evaluate(paths, query));
+        }
+
+        final MetadataGraph graph = new MetadataGraph(RandomPaths.hierarchy());
+        final AtomicInteger added = new AtomicInteger();
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Set<String> removed = ConcurrentHashMap.newKeySet();
+        final AtomicInteger checked = new AtomicInteger();
+
+        List<Thread> threads = new ArrayList<>();
+        threads.add(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (Path<Feature, String> path
+                            : RandomPaths.copy(paths)) {
+                        graph.addPath(path);
+                        added.incrementAndGet();
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    done.set(true);
+                }
+            }
+        });
+        threads.add(new Thread() {
+            @Override
+            public void run() {
+                Random random = new Random(2);
+                while (done.get() == false) {
+                    int count = added.get();
+                    if (count == 0) {
+                        Thread.yield();
+                        continue;
+                    }
+                    String item = "block-" + random.nextInt(count);
+                    removed.add(item);
+                    graph.removePayloads(Collections.singleton(item));
+                    Thread.yield();
+                }
+            }
+        });
+        threads.add(new Thread() {
+            @Override
+            public void run() {
+                while (done.get() == false) {
+                    graph.compact();
+                    Thread.yield();
+                }
+            }
+        });
+        for (int r = 0; r < 2; ++r) {
+            final int seed = r;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    try {
+                        while (done.get() == false) {
+                            int q = random.nextInt(queries.size());
+                            Map<List<Feature>, Set<String>> actual
+                                = RandomPaths.index(graph.evaluateQuery(
+                                            queries.get(q)));
+                            Map<List<Feature>, Set<String>> expected
+                                = results.get(q);
+                            /* Whatever is returned was added at some point */
+                            for (Map.Entry<List<Feature>, Set<String>> result
+                                    : actual.entrySet()) {
+                                Set<String> payload
+                                    = expected.get(result.getKey());
+                                assertTrue(queries.get(q) + ": "
+                                        + result.getKey(), payload != null
+                                        && payload.containsAll(
+                                            result.getValue()));
+                            }
+                            checked.incrementAndGet();
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertTrue(checked.get() > 0);
+
+        /* Every path that was added is there, less the removed payloads */
+        assertEquals(RandomPaths.remove(RandomPaths.all(paths), removed),
+                RandomPaths.index(graph.getAllPaths()));
+        graph.compact();
+        assertEquals(RandomPaths.remove(RandomPaths.all(paths), removed),
+                RandomPaths.index(graph.getAllPaths()));
+        for (int i = 0; i < queries.size(); ++i) {
+            assertEquals(queries.get(i).toString(),
+                    RandomPaths.remove(results.get(i), removed),
+                    RandomPaths.index(graph.evaluateQuery(queries.get(i))));
+        }
+    }
+}
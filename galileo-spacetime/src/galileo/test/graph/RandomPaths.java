@@ -0,0 +1,342 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.test.graph;
+
+import static org.junit.Assert.assertNull;
+
+import galileo.dataset.feature.Feature;
+import galileo.dataset.feature.FeatureType;
+import galileo.graph.FeatureHierarchy;
+import galileo.graph.FeaturePath;
+import galileo.graph.GraphException;
+import galileo.graph.Path;
+import galileo.query.Expression;
+import galileo.query.Operation;
+import galileo.query.Operator;
+import galileo.query.Query;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Generates random paths and queries over a four level hierarchy of int
+ * Features, and evaluates the queries by brute force for the graph tests to
+ * compare against.  Paths leave levels out or give them explicit NULL
+ * Features, so that they pass through wildcards, and may end above the
+ * bottom of the hierarchy.
+ */
+class RandomPaths {
+
+    static final String[] NAMES = { "a", "b", "c", "d" };
+
+    static FeatureHierarchy hierarchy() throws GraphException {
+        FeatureHierarchy hierarchy = new FeatureHierarchy();
+        for (String name : NAMES) {
+            hierarchy.addFeature(name, FeatureType.INT);
+        }
+        return hierarchy;
+    }
+
+    static List<String> names() {
+        List<String> names = new ArrayList<>();
+        for (String name : NAMES) {
+            names.add(name);
+        }
+        return names;
+    }
+
+    /**
+     * Creates paths with values in [0, range).  Payloads are drawn from a
+     * pool half as large as the number of paths, so some are shared.
+     */
+    static List<Path<Feature, String>> paths(Random random, int count,
+            int range) {
+        List<Path<Feature, String>> paths = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            List<Feature> labels = new ArrayList<>();
+            int depth = 1 + random.nextInt(NAMES.length);
+            for (int l = 0; l < depth; ++l) {
+                int kind = random.nextInt(6);
+                if (kind == 0) {
+                    /* Left out; the graph fills in a wildcard */
+                    continue;
+                } else if (kind == 1) {
+                    labels.add(new Feature(NAMES[l]));
+                } else {
+                    labels.add(new Feature(NAMES[l], random.nextInt(range)));
+                }
+            }
+            boolean hasValue = false;
+            for (Feature label : labels) {
+                hasValue |= label.getType() != FeatureType.NULL;
+            }
+            if (hasValue == false) {
+                /* Replaces the wildcard, if any, on the deepest level */
+                labels.clear();
+                labels.add(new Feature(NAMES[depth - 1],
+                            random.nextInt(range)));
+            }
+
+            Set<String> payload = new HashSet<>();
+            int pool = java.lang.Math.max(1, count / 2);
+            payload.add("block-" + random.nextInt(pool));
+            if (random.nextBoolean()) {
+                payload.add("block-" + random.nextInt(pool));
+            }
+            paths.add(new FeaturePath<String>(payload,
+                        labels.toArray(new Feature[labels.size()])));
+        }
+        return paths;
+    }
+
+    /**
+     * Copies paths, since graphs take over the paths they are given.
+     */
+    static List<Path<Feature, String>> copy(
+            List<Path<Feature, String>> paths) {
+        List<Path<Feature, String>> copies = new ArrayList<>();
+        for (Path<Feature, String> path : paths) {
+            List<Feature> labels = path.getLabels();
+            copies.add(new FeaturePath<String>(
+                        new HashSet<>(path.getPayload()),
+                        labels.toArray(new Feature[labels.size()])));
+        }
+        return copies;
+    }
+
+    /**
+     * Creates a query with a single Operation of one to three Expressions.
+     * Values reach one past either end of [0, range), operators include
+     * NOTEQUAL and the occasional UNKNOWN, and a few Expressions name a
+     * Feature that no path has.  Several Expressions on the same level often
+     * contradict each other.
+     */
+    static Query query(Random random, int range) {
+        Operator[] operators = { Operator.EQUAL, Operator.NOTEQUAL,
+            Operator.LESS, Operator.LESSEQUAL, Operator.GREATER,
+            Operator.GREATEREQUAL };
+        Operation operation = new Operation();
+        int count = 1 + random.nextInt(3);
+        for (int i = 0; i < count; ++i) {
+            String name = (random.nextInt(20) == 0)
+                ? "z" : NAMES[random.nextInt(NAMES.length)];
+            Operator operator = (random.nextInt(20) == 0)
+                ? Operator.UNKNOWN : operators[random.nextInt(operators.length)];
+            int value = random.nextInt(range + 2) - 1;
+            operation.addExpressions(
+                    new Expression(operator, new Feature(name, value)));
+        }
+        return new Query(operation);
+    }
+
+    /**
+     * Evaluates a query by brute force, one Expression at a time: paths must
+     * reach the deepest level the query constrains, and wildcards satisfy
+     * NOTEQUAL but no comparison.
+     */
+    static Map<List<Feature>, Set<String>> evaluate(
+            List<Path<Feature, String>> paths, Query query) {
+        Map<List<Feature>, Set<String>> results = new HashMap<>();
+        for (Map.Entry<List<Feature>, Set<String>> row
+                : rows(paths).entrySet()) {
+            List<Feature> labels = row.getKey();
+            for (Operation operation : query.getOperations()) {
+                if (satisfies(labels, operation)) {
+                    results.put(withoutWildcards(labels),
+                            new HashSet<>(row.getValue()));
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Lists the distinct paths, one label per level with NULL Features
+     * filling the gaps, along with the union of their payloads.
+     */
+    static Map<List<Feature>, Set<String>> rows(
+            List<Path<Feature, String>> paths) {
+        Map<List<Feature>, Set<String>> rows = new HashMap<>();
+        for (Path<Feature, String> path : paths) {
+            Feature[] labels = new Feature[NAMES.length];
+            int depth = 0;
+            for (Feature label : path.getLabels()) {
+                int level = names().indexOf(label.getName());
+                labels[level] = label;
+                if (label.getType() != FeatureType.NULL) {
+                    depth = java.lang.Math.max(depth, level + 1);
+                }
+            }
+            List<Feature> row = new ArrayList<>();
+            for (int l = 0; l < depth; ++l) {
+                row.add(labels[l] == null ? new Feature(NAMES[l]) : labels[l]);
+            }
+            Set<String> payload = rows.get(row);
+            if (payload == null) {
+                payload = new HashSet<>();
+                rows.put(row, payload);
+            }
+            payload.addAll(path.getPayload());
+        }
+        return rows;
+    }
+
+    private static boolean satisfies(List<Feature> row, Operation operation) {
+        int farthest = 0;
+        for (int l = 0; l < NAMES.length; ++l) {
+            if (operation.getOperand(NAMES[l]) != null) {
+                farthest = l + 1;
+            }
+        }
+        if (row.size() < farthest) {
+            return false;
+        }
+        for (int l = 0; l < farthest; ++l) {
+            List<Expression> expressions = operation.getOperand(NAMES[l]);
+            if (expressions == null) {
+                continue;
+            }
+            for (Expression expression : expressions) {
+                if (satisfies(row.get(l), expression) == false) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean satisfies(Feature label, Expression expression) {
+        boolean wildcard = label.getType() == FeatureType.NULL;
+        int compare = wildcard ? 0 : Integer.compare(label.getInt(),
+                expression.getValue().getInt());
+        switch (expression.getOperator()) {
+            case EQUAL:
+                return wildcard == false && compare == 0;
+            case NOTEQUAL:
+                return wildcard || compare != 0;
+            case LESS:
+                return wildcard == false && compare < 0;
+            case LESSEQUAL:
+                return wildcard == false && compare <= 0;
+            case GREATER:
+                return wildcard == false && compare > 0;
+            case GREATEREQUAL:
+                return wildcard == false && compare >= 0;
+            default:
+                return false;
+        }
+    }
+
+    private static List<Feature> withoutWildcards(List<Feature> labels) {
+        List<Feature> features = new ArrayList<>();
+        for (Feature label : labels) {
+            if (label.getType() != FeatureType.NULL) {
+                features.add(label);
+            }
+        }
+        return features;
+    }
+
+    /**
+     * Brute force results after removing payloads; paths left without one
+     * are dropped.
+     */
+    static Map<List<Feature>, Set<String>> remove(
+            Map<List<Feature>, Set<String>> results, Collection<String> items) {
+        Map<List<Feature>, Set<String>> remaining = new HashMap<>();
+        for (Map.Entry<List<Feature>, Set<String>> result
+                : results.entrySet()) {
+            Set<String> payload = new HashSet<>(result.getValue());
+            payload.removeAll(items);
+            if (payload.isEmpty() == false) {
+                remaining.put(result.getKey(), payload);
+            }
+        }
+        return remaining;
+    }
+
+    /**
+     * Copies paths without the given payloads, leaving out the ones that have
+     * none left.
+     */
+    static List<Path<Feature, String>> without(
+            List<Path<Feature, String>> paths, Collection<String> items) {
+        List<Path<Feature, String>> remaining = new ArrayList<>();
+        for (Path<Feature, String> path : copy(paths)) {
+            path.getPayload().removeAll(items);
+            if (path.getPayload().isEmpty() == false) {
+                remaining.add(path);
+            }
+        }
+        return remaining;
+    }
+
+    /**
+     * Keys the paths a graph returned by their Features.  No two of them may
+     * have the same Features.
+     */
+    static Map<List<Feature>, Set<String>> index(
+            List<Path<Feature, String>> paths) {
+        Map<List<Feature>, Set<String>> index = new HashMap<>();
+        for (Path<Feature, String> path : paths) {
+            assertNull("Duplicate path " + path, index.put(
+                        withoutWildcards(path.getLabels()),
+                        new HashSet<>(path.getPayload())));
+        }
+        return index;
+    }
+
+    /** Brute force result of listing every path. */
+    static Map<List<Feature>, Set<String>> all(
+            List<Path<Feature, String>> paths) {
+        Map<List<Feature>, Set<String>> results = new HashMap<>();
+        for (Map.Entry<List<Feature>, Set<String>> row
+                : rows(paths).entrySet()) {
+            results.put(withoutWildcards(row.getKey()), row.getValue());
+        }
+        return results;
+    }
+
+    /** Picks about a third of the payloads of some paths. */
+    static Set<String> payloads(Random random,
+            List<Path<Feature, String>> paths) {
+        Set<String> items = new HashSet<>();
+        for (Path<Feature, String> path : paths) {
+            for (String item : path.getPayload()) {
+                if (random.nextInt(3) == 0) {
+                    items.add(item);
+                }
+            }
+        }
+        return items;
+    }
+}
@@ -31,7 +31,10 @@ import org.junit.runners.Suite.SuiteClasses;
 
 @RunWith(Suite.class)
 @SuiteClasses({
+    CompactGraphTests.class,
     FeaturePathQuery.class,
+    GraphQueryEquivalenceTests.class,
+    MetadataGraphTests.class,
     VariableTickHashing.class,
 })
 public class TestSuite { }
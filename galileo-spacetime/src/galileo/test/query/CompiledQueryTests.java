@@ -0,0 +1,341 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.test.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import galileo.dataset.feature.Feature;
+import galileo.dataset.feature.FeatureType;
+import galileo.fs.BlockCodec;
+import galileo.fs.ColumnarBlock;
+import galileo.query.CompiledQuery;
+import galileo.query.Expression;
+import galileo.query.Operation;
+import galileo.query.Operator;
+import galileo.query.Query;
+import galileo.util.Pair;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class CompiledQueryTests {
+
+    private static String block = "/tmp/compiledquerytest.gblock";
+
+    private static List<Pair<String, FeatureType>> columns = new ArrayList<>();
+    static {
+        columns.add(new Pair<>("i", FeatureType.INT));
+        columns.add(new Pair<>("l", FeatureType.LONG));
+        columns.add(new Pair<>("f", FeatureType.FLOAT));
+        columns.add(new Pair<>("d", FeatureType.DOUBLE));
+        columns.add(new Pair<>("s", FeatureType.STRING));
+    }
+
+    private static Operator[] operators = new Operator[] {
+        Operator.EQUAL, Operator.NOTEQUAL, Operator.LESS, Operator.LESSEQUAL,
+        Operator.GREATER, Operator.GREATEREQUAL };
+
+    @After
+    public void removeBlock() {
+        new File(block).delete();
+    }
+
+    private static Query query(Operator operator, Feature operand) {
+        return new Query(new Operation(new Expression(operator, operand)));
+    }
+
+    /* Values of the records among the given ones that match the query */
+    private static List<String> matching(Query query, boolean lenient,
+            String... values) {
+        CompiledQuery compiled = CompiledQuery.compile(query, columns,
+                lenient);
+        List<String> matches = new ArrayList<>();
+        for (String value : values) {
+            String[] record = value.split(",", -1);
+            if (compiled.matches(record)) {
+                matches.add(value);
+            }
+        }
+        return matches;
+    }
+
+    private static List<String> intMatches(Operator operator,
+            Feature operand) {
+        List<String> matches = new ArrayList<>();
+        for (String value : matching(query(operator, operand), true,
+                    "19,0,0,0,a", "20,0,0,0,a", "21,0,0,0,a")) {
+            matches.add(value.split(",")[0]);
+        }
+        return matches;
+    }
+
+    @Test
+    public void testFractionalOperands() {
+        Feature operand = new Feature("i", 20.5f);
+        assertEquals(Arrays.asList("21"),
+                intMatches(Operator.GREATEREQUAL, operand));
+        assertEquals(Arrays.asList("21"),
+                intMatches(Operator.GREATER, operand));
+        assertEquals(Arrays.asList("19", "20"),
+                intMatches(Operator.LESS, operand));
+        assertEquals(Arrays.asList("19", "20"),
+                intMatches(Operator.LESSEQUAL, operand));
+        assertEquals(Arrays.asList(), intMatches(Operator.EQUAL, operand));
+        assertEquals(Arrays.asList("19", "20", "21"),
+                intMatches(Operator.NOTEQUAL, operand));
+
+        operand = new Feature("i", -20.5);
+        assertEquals(Arrays.asList("19", "20", "21"),
+                intMatches(Operator.GREATER, operand));
+
+        /* Integral floating point operands compare as the integer */
+        operand = new Feature("i", 20.0);
+        assertEquals(Arrays.asList("20"), intMatches(Operator.EQUAL, operand));
+        assertEquals(Arrays.asList("20", "21"),
+                intMatches(Operator.GREATEREQUAL, operand));
+        assertEquals(Arrays.asList("19"), intMatches(Operator.LESS, operand));
+    }
+
+    @Test
+    public void testOperandsOutsideTheColumnRange() {
+        Feature large = new Feature("i", 1L << 40);
+        assertEquals(Arrays.asList("19", "20", "21"),
+                intMatches(Operator.LESS, large));
+        assertEquals(Arrays.asList(), intMatches(Operator.EQUAL, large));
+        assertEquals(Arrays.asList("19", "20", "21"),
+                intMatches(Operator.NOTEQUAL, large));
+
+        Feature huge = new Feature("l", 1e30);
+        assertEquals(Arrays.asList("0,9223372036854775807,0,0,a"),
+                matching(query(Operator.LESS, huge), true,
+                    "0,9223372036854775807,0,0,a"));
+        assertEquals(Arrays.asList(),
+                matching(query(Operator.GREATEREQUAL, huge), true,
+                    "0,9223372036854775807,0,0,a"));
+        assertEquals(Arrays.asList("0,-9223372036854775808,0,0,a"),
+                matching(query(Operator.GREATER, new Feature("l", -1e30)),
+                    true, "0,-9223372036854775808,0,0,a"));
+
+        /* NaN sorts above every other value */
+        Feature nan = new Feature("i", Float.NaN);
+        assertEquals(Arrays.asList("19", "20", "21"),
+                intMatches(Operator.LESS, nan));
+        assertEquals(Arrays.asList(), intMatches(Operator.GREATER, nan));
+    }
+
+    @Test
+    public void testFloatingPointWidening() {
+        /* 0.1f is slightly larger than 0.1 */
+        assertEquals(Arrays.asList(),
+                matching(query(Operator.EQUAL, new Feature("f", 0.1)), true,
+                    "0,0,0.1,0,a"));
+        assertEquals(Arrays.asList("0,0,0.1,0,a"),
+                matching(query(Operator.GREATER, new Feature("f", 0.1)), true,
+                    "0,0,0.1,0,a"));
+        assertEquals(Arrays.asList("0,0,0.1,0,a"),
+                matching(query(Operator.EQUAL, new Feature("f", 0.1f)), true,
+                    "0,0,0.1,0,a"));
+        assertEquals(Arrays.asList("0,0,0,3.0,a"),
+                matching(query(Operator.EQUAL, new Feature("d", 3)), true,
+                    "0,0,0,3.0,a"));
+    }
+
+    @Test
+    public void testMismatchedTypes() {
+        for (Operator operator : operators) {
+            assertEquals(Arrays.asList(),
+                    matching(query(operator, new Feature("i", "20")), true,
+                        "20,0,0,0,a", "21,0,0,0,a"));
+            assertEquals(Arrays.asList(),
+                    matching(query(operator, new Feature("s", 20)), true,
+                        "0,0,0,0,20", "0,0,0,0,21"));
+        }
+
+        /* Other operations of the query still match */
+        Query query = new Query(
+                new Operation(new Expression(Operator.EQUAL,
+                        new Feature("i", "x"))),
+                new Operation(new Expression(Operator.EQUAL,
+                        new Feature("s", "a"))));
+        assertEquals(Arrays.asList("0,0,0,0,a"),
+                matching(query, true, "0,0,0,0,a", "0,0,0,0,b"));
+    }
+
+    @Test
+    public void testParsing() {
+        Query query = query(Operator.LESS, new Feature("i", 5));
+        String[] records = new String[] { "1,0,0,0,a", "1,x,0,0,a",
+            "x,0,0,0,a", "1,0,0,0,a,extra", "1,0" };
+
+        assertEquals(Arrays.asList("1,0,0,0,a", "1,x,0,0,a", "x,0,0,0,a",
+                    "1,0,0,0,a,extra", "1,0"),
+                matching(query, true, records));
+
+        /* Unparsable values drop the record even if they are not queried */
+        assertEquals(Arrays.asList("1,0,0,0,a", "1,0"),
+                matching(query, false, records));
+    }
+
+    private static String randomValue(Random random, FeatureType type,
+            boolean canonical) {
+        int choice = random.nextInt(10);
+        switch (type) {
+            case INT:
+                /* Stores the column as text */
+                if (choice == 0 && canonical == false) {
+                    return "0" + random.nextInt(5);
+                }
+                return Integer.toString(random.nextInt(11) - 5);
+            case LONG:
+                if (choice == 0) {
+                    return Long.toString(Long.MAX_VALUE - random.nextInt(2));
+                }
+                return Long.toString(random.nextInt(11) - 5);
+            case FLOAT:
+                if (choice == 0) {
+                    return "NaN";
+                }
+                if (choice == 1) {
+                    return "-0.0";
+                }
+                return Float.toString((random.nextInt(21) - 10) / 4.0f);
+            case DOUBLE:
+                if (choice == 0) {
+                    return "NaN";
+                }
+                return Double.toString((random.nextInt(21) - 10) / 4.0);
+            default:
+                return Character.toString((char) ('a' + random.nextInt(4)));
+        }
+    }
+
+    private static Feature randomOperand(Random random, String name) {
+        switch (random.nextInt(8)) {
+            case 0:
+                return new Feature(name, random.nextInt(11) - 5);
+            case 1:
+                return new Feature(name, (long) random.nextInt(11) - 5);
+            case 2:
+                return new Feature(name, (random.nextInt(21) - 10) / 4.0f);
+            case 3:
+                return new Feature(name, (random.nextInt(21) - 10) / 4.0);
+            case 4:
+                return new Feature(name, Float.NaN);
+            case 5:
+                return new Feature(name, Long.MAX_VALUE);
+            case 6:
+                return new Feature(name, -0.0);
+            default:
+                return new Feature(name,
+                        Character.toString((char) ('a' + random.nextInt(4))));
+        }
+    }
+
+    /* Selecting from a columnar block matches the records one at a time */
+    @Test
+    public void testSelect() throws Exception {
+        Random random = new Random(1);
+        FeatureType[] schema = new FeatureType[columns.size()];
+        for (int c = 0; c < schema.length; ++c) {
+            schema[c] = columns.get(c).b;
+        }
+
+        for (int round = 0; round < 50; ++round) {
+            int size = 1 + random.nextInt(200);
+            List<String[]> records = new ArrayList<>();
+            StringBuilder csv = new StringBuilder();
+            for (int r = 0; r < size; ++r) {
+                String[] record = new String[schema.length];
+                for (int c = 0; c < schema.length; ++c) {
+                    record[c] = randomValue(random, schema[c],
+                            round % 2 == 0);
+                }
+                records.add(record);
+                if (r > 0) {
+                    csv.append('\n');
+                }
+                csv.append(String.join(",", record));
+            }
+            try (FileOutputStream out = new FileOutputStream(block)) {
+                out.write(ColumnarBlock.encode(
+                            csv.toString().getBytes(StandardCharsets.UTF_8),
+                            schema, BlockCodec.NONE));
+            }
+
+            for (int q = 0; q < 20; ++q) {
+                List<Operation> operations = new ArrayList<>();
+                int count = 1 + random.nextInt(3);
+                for (int o = 0; o < count; ++o) {
+                    List<Expression> expressions = new ArrayList<>();
+                    int terms = 1 + random.nextInt(3);
+                    for (int e = 0; e < terms; ++e) {
+                        String name = columns.get(
+                                random.nextInt(columns.size())).a;
+                        expressions.add(new Expression(
+                                    operators[random.nextInt(operators.length)],
+                                    randomOperand(random, name)));
+                    }
+                    operations.add(new Operation(expressions));
+                }
+                Query query = new Query(
+                        operations.toArray(new Operation[operations.size()]));
+                CompiledQuery compiled = CompiledQuery.compile(query, columns,
+                        true);
+
+                BitSet expected = new BitSet();
+                for (int r = 0; r < size; ++r) {
+                    if (compiled.matches(records.get(r))) {
+                        expected.set(r);
+                    }
+                }
+                BitSet selected = compiled.select(
+                        ColumnarBlock.read(block, compiled.getColumns()));
+                assertEquals(query.toString(), expected, selected);
+            }
+        }
+    }
+
+    @Test
+    public void testEmptyQuery() {
+        CompiledQuery compiled = CompiledQuery.compile(new Query(), columns,
+                false);
+        assertFalse(compiled.matches("1,0,0,0,a".split(",")));
+        assertTrue(CompiledQuery.compile(
+                    query(Operator.EQUAL, new Feature("missing", 1)), columns,
+                    false).matches("1,0,0,0,a".split(",")));
+    }
+}
@@ -0,0 +1,169 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.test.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import galileo.bmp.Bitmap;
+import galileo.bmp.GeoavailabilityGrid;
+import galileo.bmp.GeoavailabilityQuery;
+import galileo.bmp.QueryTransform;
+import galileo.dataset.Coordinates;
+import galileo.query.Operation;
+import galileo.query.QueryPlanCache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class QueryPlanCacheTests {
+
+    /**
+     * Builds a new polygon, with new Coordinates, every time so that cache
+     * hits can only come from the polygons being equal.
+     */
+    private static List<Coordinates> polygon(float south, float west) {
+        List<Coordinates> polygon = new ArrayList<>();
+        polygon.add(new Coordinates(south, west));
+        polygon.add(new Coordinates(south + 1.0f, west));
+        polygon.add(new Coordinates(south + 1.0f, west + 1.0f));
+        polygon.add(new Coordinates(south, west + 1.0f));
+        return polygon;
+    }
+
+    private static void assertCounts(QueryPlanCache cache, long hits, long misses) {
+        assertEquals("hits", hits, cache.getHits());
+        assertEquals("misses", misses, cache.getMisses());
+    }
+
+    @Test
+    public void testEqualPolygonsHit() {
+        QueryPlanCache cache = new QueryPlanCache(16);
+        List<String> bases = cache.getBaseHashes(polygon(40.0f, -105.0f));
+        assertCounts(cache, 0, 1);
+        assertTrue(bases.size() > 0);
+
+        assertSame(bases, cache.getBaseHashes(polygon(40.0f, -105.0f)));
+        assertCounts(cache, 1, 1);
+
+        /* A different polygon, or the same points in another order, miss */
+        assertNotSame(bases, cache.getBaseHashes(polygon(40.0f, -104.5f)));
+        List<Coordinates> reordered = polygon(40.0f, -105.0f);
+        reordered.add(reordered.remove(0));
+        cache.getBaseHashes(reordered);
+        assertCounts(cache, 1, 3);
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void testCoveringKeys() {
+        QueryPlanCache cache = new QueryPlanCache(16);
+        String base = cache.getBaseHashes(polygon(40.0f, -105.0f)).get(0);
+        List<Operation> covering = cache.getCovering(polygon(40.0f, -105.0f),
+                base, 4, "location");
+        assertCounts(cache, 0, 2);
+
+        assertSame(covering, cache.getCovering(polygon(40.0f, -105.0f),
+                    base, 4, "location"));
+        assertCounts(cache, 1, 2);
+
+        /* Every part of the key matters */
+        cache.getCovering(polygon(40.0f, -105.0f), base, 5, "location");
+        cache.getCovering(polygon(40.0f, -105.0f), base, 4, "geohash");
+        cache.getCovering(polygon(40.0f, -105.0f), "9w", 4, "location");
+        cache.getCovering(polygon(41.0f, -105.0f), base, 4, "location");
+        assertCounts(cache, 1, 6);
+
+        /* A cached covering is the same as one computed from scratch */
+        List<Operation> fresh = new QueryPlanCache(16).getCovering(
+                polygon(40.0f, -105.0f), base, 4, "location");
+        assertEquals(ranges(fresh), ranges(covering));
+        assertTrue(covering.size() > 0);
+    }
+
+    private static Set<String> ranges(List<Operation> covering) {
+        Set<String> ranges = new TreeSet<>();
+        for (Operation operation : covering) {
+            ranges.add(operation.toString());
+        }
+        return ranges;
+    }
+
+    @Test
+    public void testGridBitmapKeys() {
+        QueryPlanCache cache = new QueryPlanCache(16);
+        GeoavailabilityGrid grid = new GeoavailabilityGrid("9x", 20);
+        Bitmap bitmap = cache.getGridBitmap(
+                new GeoavailabilityQuery(polygon(40.0f, -105.0f)), grid);
+        assertCounts(cache, 0, 1);
+        assertEquals(QueryTransform.queryToGridBitmap(
+                    new GeoavailabilityQuery(polygon(40.0f, -105.0f)), grid), bitmap);
+
+        /* Equal queries on an equal grid share the bitmap */
+        assertSame(bitmap, cache.getGridBitmap(
+                    new GeoavailabilityQuery(polygon(40.0f, -105.0f)),
+                    new GeoavailabilityGrid("9x", 20)));
+        assertCounts(cache, 1, 1);
+
+        /* Grids of another size or on another base geohash do not */
+        cache.getGridBitmap(new GeoavailabilityQuery(polygon(40.0f, -105.0f)),
+                new GeoavailabilityGrid("9x", 10));
+        cache.getGridBitmap(new GeoavailabilityQuery(polygon(40.0f, -105.0f)),
+                new GeoavailabilityGrid("9w", 20));
+        assertCounts(cache, 1, 3);
+    }
+
+    @Test
+    public void testEviction() {
+        QueryPlanCache cache = new QueryPlanCache(2);
+        List<String> a = cache.getBaseHashes(polygon(10.0f, 10.0f));
+        List<String> b = cache.getBaseHashes(polygon(20.0f, 20.0f));
+        assertEquals(2, cache.size());
+
+        /* Using a makes b the least recently used entry */
+        assertSame(a, cache.getBaseHashes(polygon(10.0f, 10.0f)));
+        cache.getBaseHashes(polygon(30.0f, 30.0f));
+        assertEquals(2, cache.size());
+        assertCounts(cache, 1, 3);
+
+        assertSame(a, cache.getBaseHashes(polygon(10.0f, 10.0f)));
+        assertCounts(cache, 2, 3);
+        assertNotSame(b, cache.getBaseHashes(polygon(20.0f, 20.0f)));
+        assertCounts(cache, 2, 4);
+        assertEquals(2, cache.size());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        cache.getBaseHashes(polygon(10.0f, 10.0f));
+        assertCounts(cache, 2, 5);
+    }
+}
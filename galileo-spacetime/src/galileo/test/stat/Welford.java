@@ -142,6 +142,25 @@ public class Welford {
                 0.0, rs.popStd(), EPSILON);
     }
 
+    @Test
+    public void merge() {
+        double d[] = { 1.0, 2.0, 3.0, 4.0, 5.0, 6.0, 20.0 };
+        RunningStatistics rs1 = new RunningStatistics(1.0, 2.0, 3.0);
+        RunningStatistics rs2 = new RunningStatistics(4.0, 5.0, 6.0, 20.0);
+        rs1.merge(rs2);
+        rs1.merge(new RunningStatistics());
+        RunningStatistics rs = new RunningStatistics(d);
+        assertEquals("merged n of vals: " + stringify(d), rs.n(), rs1.n());
+        assertEquals("merged mean of vals: " + stringify(d),
+                rs.mean(), rs1.mean(), EPSILON);
+        assertEquals("merged sample var of vals: " + stringify(d),
+                rs.var(), rs1.var(), EPSILON);
+        assertEquals("merged min of vals: " + stringify(d),
+                1.0, rs1.min(), EPSILON);
+        assertEquals("merged max of vals: " + stringify(d),
+                20.0, rs1.max(), EPSILON);
+    }
+
     private String stringify(double[] ds) {
         String s = "";
         for (double d : ds) {
@@ -0,0 +1,251 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.test.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import galileo.bmp.Bitmap;
+import galileo.util.BorderingProperties;
+import galileo.util.OrientationManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+/**
+ * Compares the record numbers OrientationManager picks out of a block's
+ * border bitmaps with the set based computation it replaced, which removed
+ * and retained record numbers held in lists.
+ */
+public class OrientationManagerTests {
+
+    private static final String[] spatials = {
+        "nw", "n", "ne", "w", "c", "e", "sw", "s", "se" };
+    private static final String[] temporals = { "down", "mid", "up" };
+
+    /* Spatial classes a record can be put in; null is the inside of a block */
+    private static final String[] cells = {
+        "nw", "n", "ne", "w", null, "e", "sw", "s", "se" };
+
+    /**
+     * Border records of one block, kept both in BorderingProperties and as
+     * plain lists for the reference computation.
+     */
+    private static class Block {
+        BorderingProperties properties = new BorderingProperties();
+        Map<String, List<Long>> entries = new HashMap<>();
+        long total;
+
+        Block() {
+            for (String direction : spatials) {
+                entries.put(direction, new ArrayList<Long>());
+            }
+            for (String direction : temporals) {
+                entries.put(direction, new ArrayList<Long>());
+            }
+        }
+
+        /* Appends a record, the way readBlockData classifies it */
+        void add(String cell, String time) {
+            long record = total++;
+            if ("down".equals(time)) {
+                properties.addDownTimeEntries(record);
+                entries.get("down").add(record);
+            } else if ("up".equals(time)) {
+                properties.addUpTimeEntries(record);
+                entries.get("up").add(record);
+            }
+            if (cell != null) {
+                entries.get(cell).add(record);
+            }
+            if ("nw".equals(cell)) {
+                properties.addNWEntries(record);
+            } else if ("n".equals(cell)) {
+                properties.addNorthEntries(record);
+            } else if ("ne".equals(cell)) {
+                properties.addNEEntries(record);
+            } else if ("w".equals(cell)) {
+                properties.addWestEntries(record);
+            } else if ("e".equals(cell)) {
+                properties.addEastEntries(record);
+            } else if ("sw".equals(cell)) {
+                properties.addSWEntries(record);
+            } else if ("s".equals(cell)) {
+                properties.addSouthEntries(record);
+            } else if ("se".equals(cell)) {
+                properties.addSEEntries(record);
+            }
+            properties.updateRecordCount(1);
+        }
+
+        private List<Long> all() {
+            List<Long> all = new ArrayList<>();
+            for (long i = 0; i < total; ++i) {
+                all.add(i);
+            }
+            return all;
+        }
+
+        /* OrientationManager.getSpecificRecords, before the bitmaps */
+        List<Long> specificRecords(String direction) {
+            List<Long> records;
+            if (direction.equals("c")) {
+                records = all();
+                records.removeAll(entries.get("n"));
+                records.removeAll(entries.get("s"));
+                records.removeAll(entries.get("e"));
+                records.removeAll(entries.get("w"));
+            } else if (direction.equals("mid")) {
+                records = all();
+                records.removeAll(entries.get("up"));
+                records.removeAll(entries.get("down"));
+            } else {
+                records = new ArrayList<>(entries.get(direction));
+            }
+            return records;
+        }
+
+        /* OrientationManager.getRecordNumbersFromBlock, before the bitmaps */
+        List<Long> recordNumbers(int chunk) {
+            List<Long> spatial = specificRecords(spatials[chunk % 9]);
+            List<Long> temporal = specificRecords(temporals[chunk / 9]);
+            if (spatial.isEmpty() || temporal.isEmpty()) {
+                return null;
+            }
+            spatial.retainAll(temporal);
+            return spatial;
+        }
+    }
+
+    private static List<Long> toList(Bitmap bitmap) {
+        if (bitmap == null) {
+            return null;
+        }
+        List<Long> records = new ArrayList<>();
+        for (int record : bitmap) {
+            records.add((long) record);
+        }
+        return records;
+    }
+
+    private static void verify(Block block) {
+        for (String direction : spatials) {
+            assertEquals(direction, block.specificRecords(direction),
+                    toList(OrientationManager.getSpecificRecords(
+                            direction, 1, block.properties)));
+        }
+        for (String direction : temporals) {
+            assertEquals(direction, block.specificRecords(direction),
+                    toList(OrientationManager.getSpecificRecords(
+                            direction, 2, block.properties)));
+        }
+        for (int chunk = 0; chunk < 27; ++chunk) {
+            List<Long> expected = block.recordNumbers(chunk);
+            Bitmap actual = OrientationManager.getRecordNumbersFromBlock(
+                    chunk, block.properties);
+            if (expected == null) {
+                assertNull("chunk " + chunk, actual);
+            } else {
+                assertEquals("chunk " + chunk, expected, toList(actual));
+            }
+        }
+    }
+
+    /**
+     * Records read for an orientation, such as "ne-up", across the chunks it
+     * needs.
+     */
+    private static TreeSet<Long> records(String orientation, Block block) {
+        TreeSet<Long> records = new TreeSet<>();
+        for (int chunk : OrientationManager.getRequiredChunks(orientation)) {
+            List<Long> chunkRecords = toList(
+                    OrientationManager.getRecordNumbersFromBlock(chunk, block.properties));
+            if (chunkRecords != null) {
+                records.addAll(chunkRecords);
+            }
+        }
+        return records;
+    }
+
+    @Test
+    public void testCornerAndEdgeCells() {
+        /* One record in every cell and time span, so no chunk is empty */
+        Block block = new Block();
+        for (String time : new String[] { "down", null, "up" }) {
+            for (String cell : cells) {
+                block.add(cell, time);
+            }
+        }
+        verify(block);
+        assertEquals(Arrays.asList(20L),
+                toList(OrientationManager.getRecordNumbersFromBlock(20, block.properties)));
+
+        /* A corner bordering in time only needs its own cell at that end */
+        assertEquals(new TreeSet<>(Arrays.asList(20L)), records("ne-up", block));
+        assertEquals(new TreeSet<>(Arrays.asList(0L)), records("nw-down", block));
+        /* An edge takes its corners along, over the whole time span */
+        assertEquals(new TreeSet<>(Arrays.asList(0L, 1L, 2L, 9L, 10L, 11L, 18L, 19L, 20L)),
+                records("n-full", block));
+        assertEquals(new TreeSet<>(Arrays.asList(2L, 5L, 8L)), records("e-down", block));
+    }
+
+    @Test
+    public void testEmptyCells() {
+        /* Without any corner records the corner chunks are missing */
+        Block block = new Block();
+        for (int i = 0; i < 10; ++i) {
+            block.add((i % 2 == 0) ? "n" : "e", (i % 3 == 0) ? "up" : null);
+        }
+        verify(block);
+        assertNull(OrientationManager.getRecordNumbersFromBlock(2, block.properties));
+
+        /* Nor is anything left when no records are stored yet */
+        verify(new Block());
+    }
+
+    @Test
+    public void testRandomBlocks() {
+        Random random = new Random(5);
+        String[] times = { "down", null, "up" };
+        for (int i = 0; i < 50; ++i) {
+            Block block = new Block();
+            /* Long enough, at times, to span several bitmap words */
+            int records = random.nextInt(400);
+            for (int j = 0; j < records; ++j) {
+                block.add(cells[random.nextInt(cells.length)],
+                        times[random.nextInt(times.length)]);
+            }
+            verify(block);
+        }
+    }
+}
@@ -1,12 +1,19 @@
 package galileo.util;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-public class BorderingProperties {
+import galileo.bmp.Bitmap;
+import galileo.serialization.ByteSerializable;
+import galileo.serialization.SerializationInputStream;
+import galileo.serialization.SerializationOutputStream;
+
+public class BorderingProperties implements ByteSerializable {
 	
 	private List<String> n;
 	private List<String> s;
@@ -25,18 +32,19 @@ public class BorderingProperties {
 	
 	private long totalRecords;
 	
-	private List<Long> upTimeEntries;
-	private List<Long> downTimeEntries;
+	/* Each set of record numbers is kept as a bitmap indexed by record number */
+	private Bitmap upTimeEntries;
+	private Bitmap downTimeEntries;
 	//private List<Integer> fringeEntries;
 	
-	private List<Long> northEntries;
-	private List<Long> southEntries;
-	private List<Long> eastEntries;
-	private List<Long> westEntries;
-	private List<Long> neEntries;
-	private List<Long> nwEntries;
-	private List<Long> seEntries;
-	private List<Long> swEntries;
+	private Bitmap northEntries;
+	private Bitmap southEntries;
+	private Bitmap eastEntries;
+	private Bitmap westEntries;
+	private Bitmap neEntries;
+	private Bitmap nwEntries;
+	private Bitmap seEntries;
+	private Bitmap swEntries;
 	
 	public String toString() {
 		String ret = "";
@@ -58,14 +66,14 @@ public class BorderingProperties {
 		bmap.put("se",se);
 		bmap.put("sw",sw);
 		
-		bmap.put("northEntries",northEntries);
-		bmap.put("southEntries",southEntries);
-		bmap.put("eastEntries",eastEntries);
-		bmap.put("westEntries",westEntries);
-		bmap.put("neEntries",neEntries);
-		bmap.put("nwEntries",nwEntries);
-		bmap.put("seEntries",seEntries);
-		bmap.put("swEntries",swEntries);
+		bmap.put("northEntries",toList(northEntries));
+		bmap.put("southEntries",toList(southEntries));
+		bmap.put("eastEntries",toList(eastEntries));
+		bmap.put("westEntries",toList(westEntries));
+		bmap.put("neEntries",toList(neEntries));
+		bmap.put("nwEntries",toList(nwEntries));
+		bmap.put("seEntries",toList(seEntries));
+		bmap.put("swEntries",toList(swEntries));
 		
 		bmap.put("up1", up1);
 		bmap.put("up2", up2);
@@ -74,9 +82,9 @@ public class BorderingProperties {
 		
 		bmap.put("totalRecords", totalRecords);
 		
-		bmap.put("upTimeEntries",upTimeEntries);
-		bmap.put("downTimeEntries",downTimeEntries);
-		//bmap.put("fringeEntries",fringeEntries);
+		bmap.put("upTimeEntries",toList(upTimeEntries));
+		bmap.put("downTimeEntries",toList(downTimeEntries));
+		//bmap.put("fringeEntries",toList(fringeEntries));
 		
 		
 		return bmap;
@@ -114,43 +122,43 @@ public class BorderingProperties {
 		
 		JSONArray nEntries = jsonObj.getJSONArray("northEntries");
 		for (int i = 0; i < nEntries.length(); i++)
-			northEntries.add(nEntries.getLong(i));
+			northEntries.set((int) nEntries.getLong(i));
 		
 		JSONArray sEntries = jsonObj.getJSONArray("southEntries");
 		for (int i = 0; i < sEntries.length(); i++)
-			southEntries.add(sEntries.getLong(i));
+			southEntries.set((int) sEntries.getLong(i));
 		
 		JSONArray eEntries = jsonObj.getJSONArray("eastEntries");
 		for (int i = 0; i < eEntries.length(); i++)
-			eastEntries.add(eEntries.getLong(i));
+			eastEntries.set((int) eEntries.getLong(i));
 		
 		JSONArray wEntries = jsonObj.getJSONArray("westEntries");
 		for (int i = 0; i < wEntries.length(); i++)
-			westEntries.add(wEntries.getLong(i));
+			westEntries.set((int) wEntries.getLong(i));
 		
 		JSONArray neEntriess = jsonObj.getJSONArray("neEntries");
 		for (int i = 0; i < neEntriess.length(); i++)
-			neEntries.add(neEntriess.getLong(i));
+			neEntries.set((int) neEntriess.getLong(i));
 		
 		JSONArray nwEntriess = jsonObj.getJSONArray("nwEntries");
 		for (int i = 0; i < nwEntriess.length(); i++)
-			nwEntries.add(nwEntriess.getLong(i));
+			nwEntries.set((int) nwEntriess.getLong(i));
 		
 		JSONArray seEntriess = jsonObj.getJSONArray("seEntries");
 		for (int i = 0; i < seEntriess.length(); i++)
-			seEntries.add(seEntriess.getLong(i));
+			seEntries.set((int) seEntriess.getLong(i));
 		
 		JSONArray swEntriess = jsonObj.getJSONArray("swEntries");
 		for (int i = 0; i < swEntriess.length(); i++)
-			swEntries.add(swEntriess.getLong(i));
+			swEntries.set((int) swEntriess.getLong(i));
 		
 		JSONArray upTimeEntriess = jsonObj.getJSONArray("upTimeEntries");
 		for (int i = 0; i < upTimeEntriess.length(); i++)
-			upTimeEntries.add(upTimeEntriess.getLong(i));
+			upTimeEntries.set((int) upTimeEntriess.getLong(i));
 		
 		JSONArray downTimeEntriess = jsonObj.getJSONArray("downTimeEntries");
 		for (int i = 0; i < downTimeEntriess.length(); i++)
-			downTimeEntries.add(downTimeEntriess.getLong(i));
+			downTimeEntries.set((int) downTimeEntriess.getLong(i));
 		/*
 		
 		JSONArray fringeEntriess = jsonObj.getJSONArray("fringeEntries");
@@ -168,20 +176,95 @@ public class BorderingProperties {
 		
 		totalRecords = 0;
 		
-		northEntries = new ArrayList<Long>();
-		southEntries = new ArrayList<Long>();
-		eastEntries = new ArrayList<Long>();
-		westEntries = new ArrayList<Long>();
-		neEntries = new ArrayList<Long>();
-		nwEntries = new ArrayList<Long>();
-		seEntries = new ArrayList<Long>();
-		swEntries = new ArrayList<Long>();
+		northEntries = new Bitmap();
+		southEntries = new Bitmap();
+		eastEntries = new Bitmap();
+		westEntries = new Bitmap();
+		neEntries = new Bitmap();
+		nwEntries = new Bitmap();
+		seEntries = new Bitmap();
+		swEntries = new Bitmap();
 		
-		upTimeEntries = new ArrayList<Long>();
-		downTimeEntries = new ArrayList<Long>();
+		upTimeEntries = new Bitmap();
+		downTimeEntries = new Bitmap();
 		//fringeEntries = new ArrayList<Integer>();
 	}
 	
+	@Deserialize
+	public BorderingProperties(SerializationInputStream in) throws IOException {
+		this();
+		in.readStringCollection(n);
+		in.readStringCollection(s);
+		in.readStringCollection(e);
+		in.readStringCollection(w);
+		this.ne = in.readString();
+		this.se = in.readString();
+		this.nw = in.readString();
+		this.sw = in.readString();
+		this.up1 = in.readLong();
+		this.up2 = in.readLong();
+		this.down1 = in.readLong();
+		this.down2 = in.readLong();
+		mergeEntries(in);
+	}
+
+	@Override
+	public void serialize(SerializationOutputStream out) throws IOException {
+		out.writeStringCollection(n);
+		out.writeStringCollection(s);
+		out.writeStringCollection(e);
+		out.writeStringCollection(w);
+		out.writeString((ne == null) ? "" : ne);
+		out.writeString((se == null) ? "" : se);
+		out.writeString((nw == null) ? "" : nw);
+		out.writeString((sw == null) ? "" : sw);
+		out.writeLong(up1);
+		out.writeLong(up2);
+		out.writeLong(down1);
+		out.writeLong(down2);
+		serializeEntriesSince(0, out);
+	}
+
+	/* Every set of record numbers, in serialization order */
+	private List<Bitmap> getEntrySets() {
+		return Arrays.asList(upTimeEntries, downTimeEntries, northEntries, southEntries, eastEntries, westEntries,
+				neEntries, nwEntries, seEntries, swEntries);
+	}
+
+	private static List<Long> toList(Bitmap entries) {
+		List<Long> list = new ArrayList<Long>(entries.cardinality());
+		for (int record : entries)
+			list.add((long) record);
+		return list;
+	}
+
+	/**
+	 * Writes the record count along with every entry whose record number is
+	 * at least firstRecord. Since records are numbered in the order they are
+	 * appended, this captures exactly what changed after the block held
+	 * firstRecord records.
+	 */
+	public synchronized void serializeEntriesSince(long firstRecord, SerializationOutputStream out)
+			throws IOException {
+		out.writeLong(totalRecords);
+		Bitmap earlier = Bitmap.firstBits((int) firstRecord);
+		for (Bitmap entries : getEntrySets())
+			out.writeLongCollection(toList(entries.andNot(earlier)));
+	}
+
+	/**
+	 * Applies changes written by {@link #serializeEntriesSince(long, SerializationOutputStream)}.
+	 */
+	public synchronized void mergeEntries(SerializationInputStream in) throws IOException {
+		this.totalRecords = in.readLong();
+		for (Bitmap entries : getEntrySets()) {
+			List<Long> records = new ArrayList<Long>();
+			in.readLongCollection(records);
+			for (long record : records)
+				entries.set((int) record);
+		}
+	}
+
 	public synchronized void updateRecordCount(long n) {
 		totalRecords+=n;
 	}
@@ -266,100 +349,100 @@ public class BorderingProperties {
 		s.add(str);
 	}
 
-	public List<Long> getNorthEntries() {
+	public Bitmap getNorthEntries() {
 		return northEntries;
 	}
 
-	public void setNorthEntries(List<Long> northEntries) {
+	public void setNorthEntries(Bitmap northEntries) {
 		this.northEntries = northEntries;
 	}
 
-	public List<Long> getSouthEntries() {
+	public Bitmap getSouthEntries() {
 		return southEntries;
 	}
 
-	public void setSouthEntries(List<Long> southEntries) {
+	public void setSouthEntries(Bitmap southEntries) {
 		this.southEntries = southEntries;
 	}
 
-	public List<Long> getEastEntries() {
+	public Bitmap getEastEntries() {
 		return eastEntries;
 	}
 
-	public void setEastEntries(List<Long> eastEntries) {
+	public void setEastEntries(Bitmap eastEntries) {
 		this.eastEntries = eastEntries;
 	}
 
-	public List<Long> getWestEntries() {
+	public Bitmap getWestEntries() {
 		return westEntries;
 	}
 
-	public void setWestEntries(List<Long> westEntries) {
+	public void setWestEntries(Bitmap westEntries) {
 		this.westEntries = westEntries;
 	}
 
-	public List<Long> getNeEntries() {
+	public Bitmap getNeEntries() {
 		return neEntries;
 	}
 
-	public void setNeEntries(List<Long> neEntries) {
+	public void setNeEntries(Bitmap neEntries) {
 		this.neEntries = neEntries;
 	}
 
-	public List<Long> getNwEntries() {
+	public Bitmap getNwEntries() {
 		return nwEntries;
 	}
 
-	public void setNwEntries(List<Long> nwEntries) {
+	public void setNwEntries(Bitmap nwEntries) {
 		this.nwEntries = nwEntries;
 	}
 
-	public List<Long> getSeEntries() {
+	public Bitmap getSeEntries() {
 		return seEntries;
 	}
 
-	public void setSeEntries(List<Long> seEntries) {
+	public void setSeEntries(Bitmap seEntries) {
 		this.seEntries = seEntries;
 	}
 
-	public List<Long> getSwEntries() {
+	public Bitmap getSwEntries() {
 		return swEntries;
 	}
 
-	public void setSwEntries(List<Long> swEntries) {
+	public void setSwEntries(Bitmap swEntries) {
 		this.swEntries = swEntries;
 	}
 	
 	public void addNorthEntries(long n) {
-		northEntries.add(n);
+		northEntries.set((int) n);
 	}
 	
 	public void addSouthEntries(long n) {
-		southEntries.add(n);
+		southEntries.set((int) n);
 	}
 	
 	public void addEastEntries(long n) {
-		eastEntries.add(n);
+		eastEntries.set((int) n);
 	}
 	
 	public void addWestEntries(long n) {
-		westEntries.add(n);
+		westEntries.set((int) n);
 	}
 	
 	public void addNEEntries(long n) {
-		neEntries.add(n);
+		neEntries.set((int) n);
 	}
 	
 	public void addNWEntries(long n) {
-		nwEntries.add(n);
+		nwEntries.set((int) n);
 	}
 	
 	public void addSEEntries(long n) {
-		seEntries.add(n);
+		seEntries.set((int) n);
 	}
 	
 	public void addSWEntries(long n) {
-		swEntries.add(n);
+		swEntries.set((int) n);
 	}
 
 	public long getUp1() {
@@ -394,29 +477,29 @@ public class BorderingProperties {
 		this.down2 = down2;
 	}
 
-	public List<Long> getUpTimeEntries() {
+	public Bitmap getUpTimeEntries() {
 		return upTimeEntries;
 	}
 
-	public void setUpTimeEntries(List<Long> upTimeEntries) {
+	public void setUpTimeEntries(Bitmap upTimeEntries) {
 		this.upTimeEntries = upTimeEntries;
 	}
 	
 
 	public void addUpTimeEntries(long n) {
-		upTimeEntries.add(n);
+		upTimeEntries.set((int) n);
 	}
 
-	public List<Long> getDownTimeEntries() {
+	public Bitmap getDownTimeEntries() {
 		return downTimeEntries;
 	}
 
-	public void setDownTimeEntries(List<Long> downTimeEntries) {
+	public void setDownTimeEntries(Bitmap downTimeEntries) {
 		this.downTimeEntries = downTimeEntries;
 	}
 	
 	public void addDownTimeEntries(long n) {
-		downTimeEntries.add(n);
+		downTimeEntries.set((int) n);
 	}
 
 	public long getTotalRecords() {
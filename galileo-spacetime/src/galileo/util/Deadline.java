@@ -0,0 +1,131 @@
+/*
+Copyright (c) 2014, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package galileo.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks how long a query may keep running and whether it has been
+ * cancelled. Parallel stages wait on their workers only until the deadline,
+ * and workers check {@link #isExpired()} between blocks and records so that
+ * they stop once the query is no longer wanted.
+ * <p>
+ * Deadlines travel between nodes as the number of milliseconds remaining
+ * rather than as a timestamp, so clocks do not need to be synchronized.
+ *
+ * @author sapmitra
+ */
+public class Deadline {
+
+    /** Longest a stage waits on its workers when no deadline was given. */
+    public static final long MAX_WAIT = 10 * 60 * 1000;
+
+    private static final long POLL_INTERVAL = 250;
+
+    private final long deadline;
+    private volatile boolean cancelled;
+
+    /**
+     * @param deadline time in milliseconds since the epoch at which the
+     * query should stop, or 0 if it may run indefinitely.
+     */
+    public Deadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    public static Deadline none() {
+        return new Deadline(0);
+    }
+
+    /**
+     * @return the deadline in milliseconds since the epoch, or 0 if there is
+     * none.
+     */
+    public long getTime() {
+        return deadline;
+    }
+
+    public boolean hasDeadline() {
+        return deadline > 0;
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean isExpired() {
+        return cancelled
+            || (hasDeadline() && System.currentTimeMillis() >= deadline);
+    }
+
+    /**
+     * Shuts down an executor and waits for its tasks to finish, giving up
+     * when the deadline passes, the query is cancelled, or {@link #MAX_WAIT}
+     * elapses. Tasks still running at that point are interrupted.
+     *
+     * @return true if every task completed.
+     */
+    public boolean await(ExecutorService executor)
+    throws InterruptedException {
+        executor.shutdown();
+        long limit = System.currentTimeMillis() + MAX_WAIT;
+        while (!executor.awaitTermination(POLL_INTERVAL,
+                    TimeUnit.MILLISECONDS)) {
+            if (isExpired() || System.currentTimeMillis() >= limit) {
+                executor.shutdownNow();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Converts a deadline to the milliseconds remaining for serialization.
+     * An expired deadline is sent as 1 ms so it is not mistaken for none.
+     */
+    public static long toRemaining(long deadline) {
+        if (deadline <= 0) {
+            return 0;
+        }
+        return java.lang.Math.max(1, deadline - System.currentTimeMillis());
+    }
+
+    /**
+     * Converts the milliseconds remaining read from a message back into a
+     * deadline on the local clock.
+     */
+    public static long fromRemaining(long remaining) {
+        if (remaining <= 0) {
+            return 0;
+        }
+        return System.currentTimeMillis() + remaining;
+    }
+}
@@ -1174,42 +1174,42 @@ public class GeoHash {
 				BorderingProperties bpr = borderMap.get(block);
 				
 				if(ignoreBorder.contains("n")) {
-					if(bpr.getNorthEntries().size() > 0) {
+					if(!bpr.getNorthEntries().isEmpty()) {
 						ignoreBorder.remove("n");
 					}
 				}
 				if(ignoreBorder.contains("s")) {
-					if(bpr.getSouthEntries().size() > 0) {
+					if(!bpr.getSouthEntries().isEmpty()) {
 						ignoreBorder.remove("s");
 					}
 				}
 				if(ignoreBorder.contains("e")) {
-					if(bpr.getEastEntries().size() > 0) {
+					if(!bpr.getEastEntries().isEmpty()) {
 						ignoreBorder.remove("e");
 					}
 				}
 				if(ignoreBorder.contains("w")) {
-					if(bpr.getWestEntries().size() > 0) {
+					if(!bpr.getWestEntries().isEmpty()) {
 						ignoreBorder.remove("w");
 					}
 				}
 				if(ignoreBorder.contains("ne")) {
-					if(bpr.getNeEntries().size() > 0) {
+					if(!bpr.getNeEntries().isEmpty()) {
 						ignoreBorder.remove("ne");
 					}
 				}
 				if(ignoreBorder.contains("nw")) {
-					if(bpr.getNwEntries().size() > 0) {
+					if(!bpr.getNwEntries().isEmpty()) {
 						ignoreBorder.remove("nw");
 					}
 				}
 				if(ignoreBorder.contains("se")) {
-					if(bpr.getSeEntries().size() > 0) {
+					if(!bpr.getSeEntries().isEmpty()) {
 						ignoreBorder.remove("se");
 					}
 				}
 				if(ignoreBorder.contains("sw")) {
-					if(bpr.getSwEntries().size() > 0) {
+					if(!bpr.getSwEntries().isEmpty()) {
 						ignoreBorder.remove("sw");
 					}
 				}
@@ -3,10 +3,7 @@ package galileo.util;
 import java.util.ArrayList;
 import java.util.List;
 
-import com.google.common.collect.ContiguousSet;
-import com.google.common.collect.DiscreteDomain;
-import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Range;
+import galileo.bmp.Bitmap;
 
 public class OrientationManager {
 	
@@ -103,34 +100,38 @@ public class OrientationManager {
 	 * @param bp
 	 * @return
 	 */
-	public static List<Long> getRecordNumbersFromBlock(int chunk, BorderingProperties bp) {
+	public static Bitmap getRecordNumbersFromBlock(int chunk, BorderingProperties bp) {
 		
 		String[] spatials = {"nw","n","ne","w","c","e","sw","s","se"};
 		String[] temporals = {"down","mid","up"};
 			
 		int spatialNumber = chunk % 9 ;
 		//System.out.println("SPATIAL NUM: "+chunk + " "+spatials[spatialNumber]);
-		List<Long> spatialRecordNums = getSpecificRecords(spatials[spatialNumber], 1, bp);
+		Bitmap spatialRecordNums = getSpecificRecords(spatials[spatialNumber], 1, bp);
 		//System.out.println("SPATIAL REC NUM: "+chunk + " "+spatialRecordNums);
 		
 		int temporalNumber = chunk / 9 ;
 		//System.out.println("TEMPORAL NUM: "+chunk + " "+temporals[temporalNumber]);
 		//System.out.println(temporals[temporalNumber]);
-		List<Long> temporalRecordNums = getSpecificRecords(temporals[temporalNumber], 2, bp);
+		Bitmap temporalRecordNums = getSpecificRecords(temporals[temporalNumber], 2, bp);
 		/*System.out.println("SPATIAL NUM: "+chunk + " "+spatials[spatialNumber]+
 				"\nSPATIAL REC NUM: "+chunk + " "+spatialRecordNums+
 				"\nTEMPORAL NUM: "+chunk + " "+temporals[temporalNumber]+
 				"\nTEMPORAL REC NUM: "+chunk + " "+temporalRecordNums);*/
 			
-		if(spatialRecordNums == null || temporalRecordNums == null || spatialRecordNums.size() <= 0 || temporalRecordNums.size() <= 0 )
+		if(spatialRecordNums == null || temporalRecordNums == null || spatialRecordNums.isEmpty() || temporalRecordNums.isEmpty())
 			return null;
 		
-		spatialRecordNums.retainAll(temporalRecordNums);
-		return spatialRecordNums;
+		return spatialRecordNums.and(temporalRecordNums);
 		
 	}
 	
-	public static List<Long> getSpecificRecords(String dir, int type, BorderingProperties bp) {
+	/**
+	 * The sets kept in the bordering properties are returned as they are and
+	 * must not be modified. The "c" and "mid" sets are derived by clearing the
+	 * border records from a bitmap of every record in the block.
+	 */
+	public static Bitmap getSpecificRecords(String dir, int type, BorderingProperties bp) {
 		/* For spatial */
 		if(type == 1) {
 			
@@ -151,15 +152,11 @@ public class OrientationManager {
 			} else if(dir.equals("se")) {
 				return bp.getSeEntries();
 			} else if(dir.equals("c")) {
-				long totalRecords = bp.getTotalRecords();
-				
-				List<Long> allEntries = new ArrayList<Long>(ContiguousSet.create(Range.closed(0l, totalRecords - 1), DiscreteDomain.longs()));
-				allEntries.removeAll(bp.getNorthEntries());
-				allEntries.removeAll(bp.getSouthEntries());
-				allEntries.removeAll(bp.getEastEntries());
-				allEntries.removeAll(bp.getWestEntries());
+				Bitmap allEntries = Bitmap.firstBits((int) bp.getTotalRecords());
+				Bitmap borders = bp.getNorthEntries().or(bp.getSouthEntries()).or(bp.getEastEntries())
+						.or(bp.getWestEntries());
 				
-				return allEntries;
+				return allEntries.andNot(borders);
 			} 
 			
 			
@@ -175,11 +172,8 @@ public class OrientationManager {
 			} else if(dir.equals("up")) {
 				return bp.getUpTimeEntries();
 			} else if(dir.equals("mid")) {
-				long totalRecords = bp.getTotalRecords();
-				List<Long> allEntries = new ArrayList<Long>(ContiguousSet.create(Range.closed(0l, totalRecords - 1), DiscreteDomain.longs()));
-				allEntries.removeAll(bp.getUpTimeEntries());
-				allEntries.removeAll(bp.getDownTimeEntries());
-				return allEntries;
+				Bitmap allEntries = Bitmap.firstBits((int) bp.getTotalRecords());
+				return allEntries.andNot(bp.getUpTimeEntries().or(bp.getDownTimeEntries()));
 			}
 			
 		}
@@ -191,7 +185,7 @@ public class OrientationManager {
 		System.out.println(OrientationManager.getRequiredChunks("e-full"));
 		List<Integer> chunks = new ArrayList<>();
 		chunks.add(24);
-		List<Long> allEntries = new ArrayList<Long>(ContiguousSet.create(Range.closed(0l, 2l), DiscreteDomain.longs()));
+		Bitmap allEntries = Bitmap.firstBits(3);
 		System.out.println(allEntries);
 		//System.out.println(OrientationManager.getRecordNumbersFromBlock(24,null));
 		